@@ -0,0 +1,372 @@
+package com.mozilla.secops;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.values.PCollection;
+import org.joda.time.Instant;
+
+/**
+ * Asynchronous enrichment of elements using an external service
+ *
+ * <p>Performing a lookup against a remote service (such as minFraud, iprepd, or DNS) synchronously
+ * in a DoFn limits throughput to one lookup per thread at a time. This transform instead submits a
+ * lookup for each element in a bundle to an executor with bounded concurrency as elements arrive,
+ * and waits for the results when the bundle finishes. Results are emitted in the window and with
+ * the timestamp of the element they were produced from.
+ *
+ * <p>Each lookup is subject to a timeout once it begins executing. A circuit breaker stops lookups
+ * from being attempted for a period of time after a number of consecutive lookups fail or time out.
+ * If a lookup fails, times out, or is rejected by the circuit breaker, the fallback value for the
+ * element is emitted instead; if the fallback value is null nothing is emitted for the element.
+ *
+ * <p>Since results are only emitted at bundle completion, this transform is intended for lookups
+ * where latency is significant in relation to the processing time of an element.
+ *
+ * @param <InputT> Input element type
+ * @param <OutputT> Output element type
+ */
+public class AsyncEnrich<InputT, OutputT>
+    extends PTransform<PCollection<InputT>, PCollection<OutputT>> {
+  private static final long serialVersionUID = 1L;
+
+  /** Default maximum number of concurrent lookups per DoFn instance */
+  public static final int DEFAULT_MAX_CONCURRENCY = 16;
+  /** Default lookup timeout in milliseconds */
+  public static final long DEFAULT_TIMEOUT_MS = 5000L;
+  /** Default number of consecutive failures before the circuit breaker opens */
+  public static final int DEFAULT_BREAKER_FAILURES = 10;
+  /** Default time the circuit breaker remains open in milliseconds */
+  public static final long DEFAULT_BREAKER_OPEN_MS = 30000L;
+
+  private final String name;
+  private final Enricher<InputT, OutputT> enricher;
+  private final Coder<OutputT> outputCoder;
+  private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+  private long timeoutMs = DEFAULT_TIMEOUT_MS;
+  private int breakerFailures = DEFAULT_BREAKER_FAILURES;
+  private long breakerOpenMs = DEFAULT_BREAKER_OPEN_MS;
+
+  private static ScheduledExecutorService timer;
+
+  /**
+   * Lookup performed for each element
+   *
+   * <p>A single instance is used concurrently by all lookups made from a DoFn instance, so
+   * implementations must be thread safe. Implementations should also apply their own I/O timeouts,
+   * since a lookup that has timed out continues to occupy an executor thread until it returns.
+   *
+   * @param <InputT> Input element type
+   * @param <OutputT> Output element type
+   */
+  public interface Enricher<InputT, OutputT> extends Serializable {
+    static final long serialVersionUID = 1L;
+
+    /**
+     * Prepare enricher for use, called once per DoFn instance before any lookups
+     *
+     * @throws Exception Exception
+     */
+    default void setup() throws Exception {}
+
+    /**
+     * Perform lookup for element
+     *
+     * @param input Input element
+     * @return Enriched element, or null to emit nothing
+     * @throws Exception Exception
+     */
+    OutputT enrich(InputT input) throws Exception;
+
+    /**
+     * Value to emit if lookup for element could not be completed
+     *
+     * @param input Input element
+     * @return Fallback element, or null to emit nothing
+     */
+    default OutputT fallback(InputT input) {
+      return null;
+    }
+  }
+
+  /** Exception used to complete lookups rejected by an open circuit breaker */
+  public static class CircuitOpenException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /** Create new CircuitOpenException */
+    public CircuitOpenException() {
+      super("circuit breaker open");
+    }
+  }
+
+  /**
+   * Consecutive failure circuit breaker
+   *
+   * <p>The breaker opens once the specified number of consecutive failures has been recorded, and
+   * rejects calls until the open period has elapsed. Calls are then permitted again; a success
+   * resets the breaker, and a failure opens it again immediately.
+   */
+  public static class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openMs;
+    private int failures;
+    private long openUntil;
+
+    /**
+     * Create new CircuitBreaker
+     *
+     * @param failureThreshold Consecutive failures before breaker opens
+     * @param openMs Time breaker remains open in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openMs) {
+      this.failureThreshold = failureThreshold;
+      this.openMs = openMs;
+    }
+
+    /**
+     * Determine if a call should be permitted
+     *
+     * @return True if call is permitted
+     */
+    public synchronized boolean allow() {
+      return System.currentTimeMillis() >= openUntil;
+    }
+
+    /** Record a successful call */
+    public synchronized void success() {
+      failures = 0;
+    }
+
+    /** Record a failed call */
+    public synchronized void failure() {
+      if (++failures >= failureThreshold) {
+        openUntil = System.currentTimeMillis() + openMs;
+      }
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "async-enrich-timer");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return timer;
+  }
+
+  /**
+   * Create new AsyncEnrich
+   *
+   * @param name Name used for metrics
+   * @param enricher Lookup performed for each element
+   * @param outputCoder Coder for output elements
+   */
+  public AsyncEnrich(String name, Enricher<InputT, OutputT> enricher, Coder<OutputT> outputCoder) {
+    this.name = name;
+    this.enricher = enricher;
+    this.outputCoder = outputCoder;
+  }
+
+  /**
+   * Set maximum number of concurrent lookups per DoFn instance
+   *
+   * @param maxConcurrency Maximum concurrent lookups
+   * @return AsyncEnrich
+   */
+  public AsyncEnrich<InputT, OutputT> withMaxConcurrency(int maxConcurrency) {
+    this.maxConcurrency = maxConcurrency;
+    return this;
+  }
+
+  /**
+   * Set lookup timeout
+   *
+   * @param timeoutMs Timeout in milliseconds, measured from when the lookup begins executing
+   * @return AsyncEnrich
+   */
+  public AsyncEnrich<InputT, OutputT> withTimeoutMs(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+    return this;
+  }
+
+  /**
+   * Configure circuit breaker
+   *
+   * @param failures Consecutive failures before breaker opens
+   * @param openMs Time breaker remains open in milliseconds
+   * @return AsyncEnrich
+   */
+  public AsyncEnrich<InputT, OutputT> withCircuitBreaker(int failures, long openMs) {
+    breakerFailures = failures;
+    breakerOpenMs = openMs;
+    return this;
+  }
+
+  private static class Pending<InputT, OutputT> {
+    private final InputT input;
+    private final Instant timestamp;
+    private final BoundedWindow window;
+    private final CompletableFuture<OutputT> result;
+
+    Pending(InputT input, Instant timestamp, BoundedWindow window) {
+      this.input = input;
+      this.timestamp = timestamp;
+      this.window = window;
+      result = new CompletableFuture<>();
+    }
+  }
+
+  private static class EnrichFn<InputT, OutputT> extends DoFn<InputT, OutputT> {
+    private static final long serialVersionUID = 1L;
+
+    private final Enricher<InputT, OutputT> enricher;
+    private final int maxConcurrency;
+    private final long timeoutMs;
+    private final int breakerFailures;
+    private final long breakerOpenMs;
+
+    private final Counter lookups;
+    private final Counter timeouts;
+    private final Counter failures;
+    private final Counter rejected;
+
+    private transient ExecutorService executor;
+    private transient CircuitBreaker breaker;
+    private transient ArrayList<Pending<InputT, OutputT>> pending;
+
+    EnrichFn(AsyncEnrich<InputT, OutputT> t) {
+      enricher = t.enricher;
+      maxConcurrency = t.maxConcurrency;
+      timeoutMs = t.timeoutMs;
+      breakerFailures = t.breakerFailures;
+      breakerOpenMs = t.breakerOpenMs;
+      lookups = Metrics.counter(AsyncEnrich.class, t.name + "_lookups");
+      timeouts = Metrics.counter(AsyncEnrich.class, t.name + "_timeouts");
+      failures = Metrics.counter(AsyncEnrich.class, t.name + "_failures");
+      rejected = Metrics.counter(AsyncEnrich.class, t.name + "_circuit_open");
+    }
+
+    @Setup
+    public void setup() throws Exception {
+      enricher.setup();
+      executor =
+          Executors.newFixedThreadPool(
+              maxConcurrency,
+              r -> {
+                Thread t = new Thread(r, "async-enrich");
+                t.setDaemon(true);
+                return t;
+              });
+      breaker = new CircuitBreaker(breakerFailures, breakerOpenMs);
+    }
+
+    @StartBundle
+    public void startBundle() {
+      pending = new ArrayList<>();
+    }
+
+    private void run(Pending<InputT, OutputT> p) {
+      if (p.result.isDone()) {
+        // Already timed out while queued
+        return;
+      }
+      if (!breaker.allow()) {
+        p.result.completeExceptionally(new CircuitOpenException());
+        return;
+      }
+      ScheduledFuture<?> t =
+          getTimer()
+              .schedule(
+                  () -> {
+                    if (p.result.completeExceptionally(new TimeoutException())) {
+                      breaker.failure();
+                    }
+                  },
+                  timeoutMs,
+                  TimeUnit.MILLISECONDS);
+      try {
+        if (p.result.complete(enricher.enrich(p.input))) {
+          breaker.success();
+        }
+      } catch (Exception exc) {
+        if (p.result.completeExceptionally(exc)) {
+          breaker.failure();
+        }
+      } finally {
+        t.cancel(false);
+      }
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c, BoundedWindow w) {
+      Pending<InputT, OutputT> p = new Pending<>(c.element(), c.timestamp(), w);
+      pending.add(p);
+      executor.execute(() -> run(p));
+    }
+
+    @FinishBundle
+    public void finishBundle(FinishBundleContext c) throws InterruptedException {
+      // Each lookup is bounded by the timeout once it starts, so bound the total wait by the
+      // number of rounds required to execute every pending lookup
+      long rounds = (pending.size() + maxConcurrency - 1) / maxConcurrency;
+      long deadline = System.currentTimeMillis() + (rounds + 1) * timeoutMs;
+
+      for (Pending<InputT, OutputT> p : pending) {
+        lookups.inc();
+        OutputT ret;
+        try {
+          ret =
+              p.result.get(
+                  Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException exc) {
+          p.result.completeExceptionally(exc);
+          timeouts.inc();
+          ret = enricher.fallback(p.input);
+        } catch (ExecutionException exc) {
+          if (exc.getCause() instanceof TimeoutException) {
+            timeouts.inc();
+          } else if (exc.getCause() instanceof CircuitOpenException) {
+            rejected.inc();
+          } else {
+            failures.inc();
+          }
+          ret = enricher.fallback(p.input);
+        }
+        if (ret != null) {
+          c.output(ret, p.timestamp, p.window);
+        }
+      }
+      pending = null;
+    }
+
+    @Teardown
+    public void teardown() {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Override
+  public PCollection<OutputT> expand(PCollection<InputT> input) {
+    return input.apply(ParDo.of(new EnrichFn<InputT, OutputT>(this))).setCoder(outputCoder);
+  }
+}
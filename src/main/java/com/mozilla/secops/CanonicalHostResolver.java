@@ -0,0 +1,353 @@
+package com.mozilla.secops;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Cached, asynchronous forward-confirmed reverse DNS resolution
+ *
+ * <p>For a given address, a reverse query is performed and the resulting hostname is only returned
+ * if a forward query for that hostname includes the original address.
+ *
+ * <p>Results are cached, including negative results, with separate expiry times for each. An expiry
+ * time of zero disables caching of that type of result. Lookups are performed on a bounded
+ * executor, and concurrent requests for the same address while a lookup is in progress share the
+ * result of that lookup rather than issuing additional queries. The underlying resolver is
+ * pluggable using {@link Resolver}, for example to use {@link InMemoryResolver} in tests.
+ */
+public class CanonicalHostResolver {
+  /** Default expiry for positive results, in seconds */
+  public static final long DEFAULT_POSITIVE_TTL_SECONDS = 3600L;
+  /** Default expiry for negative results, in seconds */
+  public static final long DEFAULT_NEGATIVE_TTL_SECONDS = 300L;
+  /** Default maximum number of cached results */
+  public static final long DEFAULT_MAX_SIZE = 16384L;
+  /** Default maximum time a synchronous lookup will wait for a result, in milliseconds */
+  public static final long DEFAULT_TIMEOUT_MS = 10000L;
+
+  private static final int DEFAULT_THREADS = 8;
+
+  private static volatile CanonicalHostResolver defaultResolver;
+
+  private final Resolver resolver;
+  private final AsyncLoadingCache<String, Optional<String>> cache;
+  private final long timeoutMs;
+  private final boolean cacheNegative;
+
+  /** Interface for DNS resolution used by {@link CanonicalHostResolver} */
+  public interface Resolver {
+    /**
+     * Reverse lookup of address
+     *
+     * @param addr Address
+     * @return Hostname, or null if the lookup could not be completed
+     */
+    String reverse(InetAddress addr);
+
+    /**
+     * Forward lookup of hostname
+     *
+     * @param hostname Hostname
+     * @return Addresses
+     * @throws UnknownHostException UnknownHostException
+     */
+    InetAddress[] forward(String hostname) throws UnknownHostException;
+  }
+
+  /** {@link Resolver} using the system resolver */
+  public static class SystemResolver implements Resolver {
+    @Override
+    public String reverse(InetAddress addr) {
+      String hn = addr.getCanonicalHostName();
+      if (hn.equals(addr.getHostAddress())) {
+        // If the returned value is the original address, the lookup operation could not be
+        // completed
+        return null;
+      }
+      return hn;
+    }
+
+    @Override
+    public InetAddress[] forward(String hostname) throws UnknownHostException {
+      return InetAddress.getAllByName(hostname);
+    }
+  }
+
+  /** {@link Resolver} using an in-memory set of records */
+  public static class InMemoryResolver implements Resolver {
+    private final HashMap<InetAddress, String> ptr = new HashMap<>();
+    private final HashMap<String, ArrayList<InetAddress>> addrs = new HashMap<>();
+    private int queries;
+
+    /**
+     * Add a forward record for a hostname, and a reverse record for each address
+     *
+     * @param hostname Hostname
+     * @param addresses Addresses
+     * @return InMemoryResolver
+     */
+    public synchronized InMemoryResolver addRecord(String hostname, String... addresses) {
+      for (String a : addresses) {
+        InetAddress ia;
+        try {
+          ia = InetAddress.getByName(a);
+        } catch (UnknownHostException exc) {
+          throw new IllegalArgumentException(exc.getMessage());
+        }
+        ptr.put(ia, hostname);
+        addrs.computeIfAbsent(hostname, k -> new ArrayList<>()).add(ia);
+      }
+      return this;
+    }
+
+    /**
+     * Add a reverse record only
+     *
+     * @param address Address
+     * @param hostname Hostname
+     * @return InMemoryResolver
+     */
+    public synchronized InMemoryResolver addReverseRecord(String address, String hostname) {
+      try {
+        ptr.put(InetAddress.getByName(address), hostname);
+      } catch (UnknownHostException exc) {
+        throw new IllegalArgumentException(exc.getMessage());
+      }
+      return this;
+    }
+
+    /**
+     * Get number of reverse queries made against the resolver
+     *
+     * @return int
+     */
+    public synchronized int getQueries() {
+      return queries;
+    }
+
+    @Override
+    public synchronized String reverse(InetAddress addr) {
+      queries++;
+      return ptr.get(addr);
+    }
+
+    @Override
+    public synchronized InetAddress[] forward(String hostname) throws UnknownHostException {
+      ArrayList<InetAddress> ret = addrs.get(hostname);
+      if (ret == null) {
+        throw new UnknownHostException(hostname);
+      }
+      return ret.toArray(new InetAddress[0]);
+    }
+  }
+
+  /**
+   * Get shared resolver using the system resolver and default settings
+   *
+   * @return CanonicalHostResolver
+   */
+  public static CanonicalHostResolver getDefault() {
+    CanonicalHostResolver ret = defaultResolver;
+    if (ret != null) {
+      return ret;
+    }
+    synchronized (CanonicalHostResolver.class) {
+      if (defaultResolver == null) {
+        defaultResolver = newDefault();
+      }
+      return defaultResolver;
+    }
+  }
+
+  private static CanonicalHostResolver newDefault() {
+    ExecutorService ex =
+        Executors.newFixedThreadPool(
+            DEFAULT_THREADS,
+            r -> {
+              Thread t = new Thread(r, "canonical-host-resolver");
+              t.setDaemon(true);
+              return t;
+            });
+    return new CanonicalHostResolver(
+        new SystemResolver(),
+        DEFAULT_POSITIVE_TTL_SECONDS,
+        DEFAULT_NEGATIVE_TTL_SECONDS,
+        DEFAULT_MAX_SIZE,
+        DEFAULT_TIMEOUT_MS,
+        ex);
+  }
+
+  /**
+   * Replace the shared resolver returned by {@link #getDefault}
+   *
+   * @param resolver CanonicalHostResolver, or null to restore the default
+   */
+  public static synchronized void setDefault(CanonicalHostResolver resolver) {
+    defaultResolver = resolver;
+  }
+
+  /**
+   * Create new CanonicalHostResolver
+   *
+   * @param resolver Underlying resolver
+   * @param positiveTtlSeconds Expiry for positive results in seconds
+   * @param negativeTtlSeconds Expiry for negative results in seconds
+   * @param maxSize Maximum number of cached results
+   * @param timeoutMs Maximum time a synchronous lookup will wait for a result in milliseconds
+   * @param executor Executor lookups are performed on
+   */
+  public CanonicalHostResolver(
+      Resolver resolver,
+      long positiveTtlSeconds,
+      long negativeTtlSeconds,
+      long maxSize,
+      long timeoutMs,
+      Executor executor) {
+    this.resolver = resolver;
+    this.timeoutMs = timeoutMs;
+    cacheNegative = negativeTtlSeconds > 0;
+    long positiveNanos = TimeUnit.SECONDS.toNanos(positiveTtlSeconds);
+    long negativeNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    cache =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .executor(executor)
+            .expireAfter(
+                new Expiry<String, Optional<String>>() {
+                  @Override
+                  public long expireAfterCreate(
+                      String key, Optional<String> value, long currentTime) {
+                    return value.isPresent() ? positiveNanos : negativeNanos;
+                  }
+
+                  @Override
+                  public long expireAfterUpdate(
+                      String key, Optional<String> value, long currentTime, long currentDuration) {
+                    return value.isPresent() ? positiveNanos : negativeNanos;
+                  }
+
+                  @Override
+                  public long expireAfterRead(
+                      String key, Optional<String> value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                  }
+                })
+            .buildAsync(this::lookup);
+  }
+
+  private Optional<String> lookup(String ip) {
+    InetAddress addr;
+    try {
+      addr = InetAddress.getByName(ip);
+    } catch (UnknownHostException exc) {
+      return Optional.empty();
+    }
+    String hn = resolver.reverse(addr);
+    if (hn == null || hn.equals(ip)) {
+      return Optional.empty();
+    }
+
+    InetAddress[] rlist;
+    try {
+      rlist = resolver.forward(hn);
+    } catch (UnknownHostException exc) {
+      return Optional.empty();
+    }
+    for (InetAddress r : rlist) {
+      if (r.equals(addr)) {
+        return Optional.of(hn);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Asynchronously resolve forward-confirmed hostname for address
+   *
+   * @param ip IP address
+   * @return Future completing with hostname, or null if the address did not resolve
+   */
+  public CompletableFuture<String> resolveAsync(String ip) {
+    return cache
+        .get(ip)
+        .thenApply(
+            x -> {
+              if (!x.isPresent() && !cacheNegative) {
+                // Remove the result before it is returned, so a subsequent lookup cannot observe
+                // it regardless of when the cache applies the zero expiry
+                cache.synchronous().invalidate(ip);
+              }
+              return x.orElse(null);
+            });
+  }
+
+  /**
+   * Wait for the result of an asynchronous lookup using the configured timeout
+   *
+   * <p>If the lookup does not complete within the timeout, the default value is returned. The
+   * lookup continues in the background and the result will be cached for subsequent calls.
+   *
+   * @param <T> Result type
+   * @param future Future returned by an asynchronous method
+   * @param defaultValue Value to return if the lookup does not complete
+   * @return Result
+   */
+  public <T> T await(CompletableFuture<T> future, T defaultValue) {
+    try {
+      return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      return defaultValue;
+    } catch (ExecutionException | TimeoutException exc) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Resolve forward-confirmed hostname for address
+   *
+   * <p>See {@link #await} for timeout behavior.
+   *
+   * @param ip IP address
+   * @return Hostname, or null if the address did not resolve
+   */
+  public String resolve(String ip) {
+    return await(resolveAsync(ip), null);
+  }
+
+  /**
+   * Asynchronously determine if forward-confirmed hostname for address matches pattern
+   *
+   * @param ip IP address
+   * @param pattern Pattern
+   * @return Future completing with true if hostname matches pattern
+   */
+  public CompletableFuture<Boolean> matchesAsync(String ip, Pattern pattern) {
+    return resolveAsync(ip).thenApply(hn -> hn != null && pattern.matcher(hn).matches());
+  }
+
+  /**
+   * Determine if forward-confirmed hostname for address matches pattern
+   *
+   * @param ip IP address
+   * @param pattern Pattern
+   * @return True if hostname matches pattern
+   */
+  public boolean matches(String ip, Pattern pattern) {
+    return await(matchesAsync(ip, pattern), false);
+  }
+}
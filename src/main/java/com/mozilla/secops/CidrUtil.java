@@ -7,10 +7,10 @@ import com.google.common.net.InetAddresses;
 import com.mozilla.secops.parser.Event;
 import com.mozilla.secops.parser.Normalized;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
@@ -27,11 +27,12 @@ import org.springframework.security.web.util.matcher.IpAddressMatcher;
 
 /** CIDR matching utilities */
 public class CidrUtil {
-  private final String AWS_IP_RANGES_URL = "https://ip-ranges.amazonaws.com/ip-ranges.json";
+  private static final String AWS_IP_RANGES_URL = "https://ip-ranges.amazonaws.com/ip-ranges.json";
 
-  private ArrayList<IpAddressMatcher> subnets;
   private InetRadix inetTree;
 
+  private static final ConcurrentHashMap<String, Pattern> patternCache = new ConcurrentHashMap<>();
+
   /** Load exclusion list from path resource */
   public static final int CIDRUTIL_FILE = 1;
   /** Load exclusion list with allowed cloud providers */
@@ -49,42 +50,45 @@ public class CidrUtil {
    * <p>This function attempts to also perform a forward DNS query on the hostname returned by the
    * reverse DNS query and ensures the IP address matches what was supplied as a function argument.
    *
+   * <p>Resolution results are cached; see {@link CanonicalHostResolver}. Compiled patterns are also
+   * cached, but where possible callers should use {@link #resolvedCanonicalHostMatches(String,
+   * Pattern)} with a precompiled pattern.
+   *
    * @param ip IP address
    * @param pattern Regular expression to match against
    * @return True if hostname matches pattern, false otherwise
    */
   public static Boolean resolvedCanonicalHostMatches(String ip, String pattern) {
-    Pattern p = Pattern.compile(pattern);
-
-    InetAddress addr;
-    try {
-      addr = InetAddress.getByName(ip);
-    } catch (UnknownHostException exc) {
-      return false;
-    }
-    String hn = addr.getCanonicalHostName();
-    if (hn.equals(ip)) {
-      // If the returned value is the original address, the lookup operation could not be
-      // completed, so just return false.
-      return false;
-    }
-
-    InetAddress[] rlist;
-    try {
-      rlist = InetAddress.getAllByName(hn);
-    } catch (UnknownHostException exc) {
-      return false;
-    }
+    return resolvedCanonicalHostMatches(
+        ip, patternCache.computeIfAbsent(pattern, Pattern::compile));
+  }
 
-    for (InetAddress r : rlist) {
-      if (r.equals(addr)) {
-        if (p.matcher(hn).matches()) {
-          return true;
-        }
-      }
-    }
+  /**
+   * Reverse DNS query of provided IP and comparison of result against compiled pattern
+   *
+   * <p>See {@link #resolvedCanonicalHostMatches(String, String)}.
+   *
+   * @param ip IP address
+   * @param pattern Compiled pattern to match against
+   * @return True if hostname matches pattern, false otherwise
+   */
+  public static Boolean resolvedCanonicalHostMatches(String ip, Pattern pattern) {
+    return CanonicalHostResolver.getDefault().matches(ip, pattern);
+  }
 
-    return false;
+  /**
+   * Asynchronous variant of {@link #resolvedCanonicalHostMatches(String, Pattern)}
+   *
+   * <p>Callers processing a number of addresses can issue all lookups before waiting on any of the
+   * results, so resolution occurs concurrently.
+   *
+   * @param ip IP address
+   * @param pattern Compiled pattern to match against
+   * @return Future completing with true if hostname matches pattern
+   */
+  public static CompletableFuture<Boolean> resolvedCanonicalHostMatchesAsync(
+      String ip, Pattern pattern) {
+    return CanonicalHostResolver.getDefault().matchesAsync(ip, pattern);
   }
 
   /**
@@ -109,6 +113,31 @@ public class CidrUtil {
    * @return {@link DoFn}
    */
   public static DoFn<Event, Event> excludeNormalizedSourceAddresses(int flags, String path) {
+    return excludeNormalizedSourceAddresses(flags, path, null, 0, false);
+  }
+
+  /**
+   * Returns a DoFn that filters any events that have a normalized source address field that matches
+   * the specified criteria, loading cloud provider subnets from a snapshot
+   *
+   * <p>Behaves as {@link #excludeNormalizedSourceAddresses(int, String)}, but if {@value
+   * #CIDRUTIL_CLOUDPROVIDERS} is specified and snapshot is non-null, cloud provider subnets are
+   * loaded from the {@link CloudProviderSnapshot} at the specified path rather than from the live
+   * provider sources.
+   *
+   * @param flags Option bitmask
+   * @param path Resource path or GCS URL to load subnets from for {@value #CIDRUTIL_FILE}
+   * @param snapshot Resource path or GCS URL to load cloud provider snapshot from, or null
+   * @param snapshotMaxAgeDays Maximum age of snapshot in days before it is considered stale
+   * @param snapshotFailIfStale If true, fail setup if the snapshot is stale rather than warning
+   * @return {@link DoFn}
+   */
+  public static DoFn<Event, Event> excludeNormalizedSourceAddresses(
+      int flags,
+      String path,
+      String snapshot,
+      int snapshotMaxAgeDays,
+      boolean snapshotFailIfStale) {
     return new DoFn<Event, Event>() {
       private static final long serialVersionUID = 1L;
 
@@ -143,8 +172,12 @@ public class CidrUtil {
           cidrs = new CidrUtil();
         }
         if (addCp) {
-          cidrs.loadGcpSubnets();
-          cidrs.loadAwsSubnets();
+          if (snapshot != null) {
+            cidrs.loadCloudProviderSnapshot(snapshot, snapshotMaxAgeDays, snapshotFailIfStale);
+          } else {
+            cidrs.loadGcpSubnets();
+            cidrs.loadAwsSubnets();
+          }
         }
         if (addInternal) {
           cidrs.loadInternalSubnets();
@@ -213,18 +246,7 @@ public class CidrUtil {
    * @return True if any loaded subnet contains the address
    */
   public Boolean contains(String addr) {
-    if (isInet4(addr)) {
-      if (inetTree.contains(addr)) {
-        return true;
-      }
-    } else {
-      for (IpAddressMatcher s : subnets) {
-        if (s.matches(addr)) {
-          return true;
-        }
-      }
-    }
-    return false;
+    return inetTree.contains(addr);
   }
 
   private static ArrayList<String> spfResolver(String record, String prefix) {
@@ -253,31 +275,65 @@ public class CidrUtil {
   }
 
   /**
-   * Load known GCP subnets into instance of {@link CidrUtil}
+   * Fetch known GCP subnets
    *
    * <p>This is done via SPF record queries.
    *
+   * @return CIDR subnets
    * @throws IOException IOException
    */
-  public void loadGcpSubnets() throws IOException {
-    int pcnt = 0;
+  public static ArrayList<String> fetchGcpSubnets() throws IOException {
+    ArrayList<String> ret = new ArrayList<>();
     for (int i = 1; i <= 16; i++) {
       String rdom = String.format("_cloud-netblocks%d.googleusercontent.com", i);
-      ArrayList<String> ipents = spfResolver(rdom, "ip4:");
-      for (String j : ipents) {
-        pcnt++;
-        add(j);
-      }
-      ipents = spfResolver(rdom, "ip6:");
-      for (String j : ipents) {
-        pcnt++;
-        add(j);
-      }
+      ret.addAll(spfResolver(rdom, "ip4:"));
+      ret.addAll(spfResolver(rdom, "ip6:"));
     }
     // If we were not able to successfully add any subnet, throw an exception.
-    if (pcnt == 0) {
+    if (ret.size() == 0) {
       throw new IOException("unable to process GCP subnet list from SPF records");
     }
+    return ret;
+  }
+
+  /**
+   * Load known GCP subnets into instance of {@link CidrUtil}
+   *
+   * <p>This is done via SPF record queries.
+   *
+   * @throws IOException IOException
+   */
+  public void loadGcpSubnets() throws IOException {
+    for (String j : fetchGcpSubnets()) {
+      add(j);
+    }
+  }
+
+  /**
+   * Load cloud provider subnets from a snapshot into instance of {@link CidrUtil}
+   *
+   * <p>See {@link CloudProviderSnapshot}. Snapshots are loaded once per JVM.
+   *
+   * @param path Resource path or GCS URL to load snapshot from
+   * @param maxAgeDays Maximum age of snapshot in days before it is considered stale
+   * @param failIfStale If true, throw an exception for a stale snapshot rather than logging a
+   *     warning
+   * @param providers Providers to load subnets for, or all providers in the snapshot if none are
+   *     specified
+   * @throws IOException IOException
+   */
+  public void loadCloudProviderSnapshot(
+      String path, int maxAgeDays, boolean failIfStale, String... providers) throws IOException {
+    CloudProviderSnapshot s = CloudProviderSnapshot.loadCached(path);
+    s.checkStaleness(maxAgeDays, failIfStale);
+    if (providers.length == 0) {
+      providers = s.getProviders();
+    }
+    for (String p : providers) {
+      for (CloudProviderSnapshot.Prefix e : s.getPrefixes(p)) {
+        inetTree.add(e.getAddress(), e.getMasklen());
+      }
+    }
   }
 
   /** Populate CidrUtil instance with internal/RFC1918 subnets */
@@ -341,6 +397,20 @@ public class CidrUtil {
    * @throws IOException IOException
    */
   public void loadAwsSubnets() throws IOException {
+    for (String j : fetchAwsSubnets()) {
+      add(j);
+    }
+  }
+
+  /**
+   * Fetch known AWS subnets
+   *
+   * <p>Utilizes information at https://ip-ranges.amazonaws.com/ip-ranges.json
+   *
+   * @return CIDR subnets
+   * @throws IOException IOException
+   */
+  public static ArrayList<String> fetchAwsSubnets() throws IOException {
     HttpClient httpClient = HttpClientBuilder.create().build();
     HttpGet get = new HttpGet(AWS_IP_RANGES_URL);
     HttpResponse resp = httpClient.execute(get);
@@ -352,12 +422,26 @@ public class CidrUtil {
     ObjectMapper mapper = new ObjectMapper();
     AwsCidrResponse awscidrs =
         mapper.readValue(resp.getEntity().getContent(), AwsCidrResponse.class);
+    ArrayList<String> ret = new ArrayList<>();
     for (AwsCidrPrefixEntry e : awscidrs.getIp4Prefixes()) {
-      add(e.getIp4Prefix());
+      ret.add(e.getIp4Prefix());
     }
     for (AwsCidrPrefixEntry e : awscidrs.getIp6Prefixes()) {
-      add(e.getIp6Prefix());
+      ret.add(e.getIp6Prefix());
     }
+    return ret;
+  }
+
+  /**
+   * Return immutable snapshot of all loaded subnets
+   *
+   * <p>The returned tree is not affected by subnets added after the call, and can be shared between
+   * threads.
+   *
+   * @return InetPrefixTree
+   */
+  public InetPrefixTree<Boolean> snapshot() {
+    return inetTree.snapshot();
   }
 
   /**
@@ -370,16 +454,11 @@ public class CidrUtil {
     if (addr == null) {
       throw new IllegalArgumentException(String.format("bad format, %s", cidr));
     }
-    if (isInet4(addr)) {
-      inetTree.add(cidr);
-    } else {
-      subnets.add(new IpAddressMatcher(cidr));
-    }
+    inetTree.add(cidr);
   }
 
   /** Constructor for {@link CidrUtil}, initialize empty */
   public CidrUtil() {
-    subnets = new ArrayList<IpAddressMatcher>();
     inetTree = new InetRadix();
   }
 
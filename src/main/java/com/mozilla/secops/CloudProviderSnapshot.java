@@ -0,0 +1,346 @@
+package com.mozilla.secops;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.net.InetAddresses;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Versioned offline snapshot of cloud provider address ranges
+ *
+ * <p>Loading cloud provider ranges from their live sources requires network access (DNS queries for
+ * GCP, an HTTP request for AWS) from every worker that needs them. A snapshot contains the ranges
+ * for each provider as they were at the time the snapshot was created, in a compact binary format
+ * that is read with a single request from a resource path or GCS URL.
+ *
+ * <p>Snapshots are created offline using {@link #main}, and include their creation time so
+ * staleness can be checked when they are loaded.
+ *
+ * <p>The format consists of a header containing a magic value, the format version, the creation
+ * time in milliseconds since the epoch, and a free-form source version string. This is followed by
+ * the number of providers, and for each provider its name, the number of prefixes, and each prefix
+ * encoded as the address family, the mask length, and only the address bytes covered by the mask.
+ */
+public class CloudProviderSnapshot {
+  /** Provider name used for GCP ranges */
+  public static final String PROVIDER_GCP = "gcp";
+  /** Provider name used for AWS ranges */
+  public static final String PROVIDER_AWS = "aws";
+
+  private static final int MAGIC = 0x46584350;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final Logger log = LoggerFactory.getLogger(CloudProviderSnapshot.class);
+
+  // Snapshots loaded in this JVM, keyed by path
+  private static final ConcurrentHashMap<String, CloudProviderSnapshot> loaded =
+      new ConcurrentHashMap<>();
+
+  private final DateTime createdAt;
+  private final String sourceVersion;
+  private final LinkedHashMap<String, ArrayList<Prefix>> providers;
+
+  /** Single address prefix contained in a snapshot */
+  public static class Prefix {
+    private final byte[] address;
+    private final int masklen;
+
+    /**
+     * Get address bytes, 4 bytes for IPv4 or 16 bytes for IPv6
+     *
+     * @return byte[]
+     */
+    public byte[] getAddress() {
+      return address;
+    }
+
+    /**
+     * Get mask length in bits
+     *
+     * @return int
+     */
+    public int getMasklen() {
+      return masklen;
+    }
+
+    Prefix(byte[] address, int masklen) {
+      this.address = address;
+      this.masklen = masklen;
+    }
+  }
+
+  /**
+   * Create new snapshot
+   *
+   * @param createdAt Snapshot creation time
+   * @param sourceVersion Free-form version of the source data, may be empty
+   */
+  public CloudProviderSnapshot(DateTime createdAt, String sourceVersion) {
+    this.createdAt = createdAt;
+    this.sourceVersion = sourceVersion == null ? "" : sourceVersion;
+    providers = new LinkedHashMap<>();
+  }
+
+  /**
+   * Add CIDR subnets for a provider to the snapshot
+   *
+   * @param provider Provider name
+   * @param subnets CIDR subnets
+   */
+  public void addSubnets(String provider, Iterable<String> subnets) {
+    ArrayList<Prefix> p = providers.computeIfAbsent(provider, k -> new ArrayList<>());
+    for (String cidr : subnets) {
+      String addr = CidrUtil.stripMaskFromCidr(cidr);
+      if (addr == null) {
+        throw new IllegalArgumentException(String.format("bad format, %s", cidr));
+      }
+      byte[] buf = InetAddresses.forString(addr).getAddress();
+      int m = Integer.parseInt(cidr.substring(cidr.indexOf("/") + 1));
+      if (m < 0 || m > buf.length * 8) {
+        throw new IllegalArgumentException(String.format("invalid mask length, %s", cidr));
+      }
+      p.add(new Prefix(buf, m));
+    }
+  }
+
+  /**
+   * Get snapshot creation time
+   *
+   * @return DateTime
+   */
+  public DateTime getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * Get version of source data
+   *
+   * @return String
+   */
+  public String getSourceVersion() {
+    return sourceVersion;
+  }
+
+  /**
+   * Get providers present in snapshot
+   *
+   * @return Provider names
+   */
+  public String[] getProviders() {
+    return providers.keySet().toArray(new String[0]);
+  }
+
+  /**
+   * Get prefixes for a provider
+   *
+   * @param provider Provider name
+   * @return Prefixes, empty if the provider is not present in the snapshot
+   */
+  public ArrayList<Prefix> getPrefixes(String provider) {
+    ArrayList<Prefix> ret = providers.get(provider);
+    if (ret == null) {
+      return new ArrayList<Prefix>();
+    }
+    return ret;
+  }
+
+  /**
+   * Determine if snapshot is older than the specified number of days
+   *
+   * @param maxAgeDays Maximum age in days
+   * @return True if snapshot is stale
+   */
+  public boolean isStale(int maxAgeDays) {
+    return Days.daysBetween(createdAt, new DateTime(DateTimeZone.UTC)).getDays() > maxAgeDays;
+  }
+
+  /**
+   * Check snapshot staleness, logging a warning or throwing an exception if it is stale
+   *
+   * @param maxAgeDays Maximum age in days
+   * @param failIfStale If true throw an exception rather than logging a warning
+   * @throws IOException IOException if snapshot is stale and failIfStale is set
+   */
+  public void checkStaleness(int maxAgeDays, boolean failIfStale) throws IOException {
+    if (!isStale(maxAgeDays)) {
+      return;
+    }
+    String msg =
+        String.format(
+            "cloud provider snapshot created at %s is older than %d days",
+            createdAt.toString(), maxAgeDays);
+    if (failIfStale) {
+      throw new IOException(msg);
+    }
+    log.warn(msg);
+  }
+
+  /**
+   * Write snapshot
+   *
+   * @param out OutputStream
+   * @throws IOException IOException
+   */
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream d = new DataOutputStream(out);
+    d.writeInt(MAGIC);
+    d.writeShort(FORMAT_VERSION);
+    d.writeLong(createdAt.getMillis());
+    d.writeUTF(sourceVersion);
+    d.writeInt(providers.size());
+    for (Map.Entry<String, ArrayList<Prefix>> e : providers.entrySet()) {
+      d.writeUTF(e.getKey());
+      d.writeInt(e.getValue().size());
+      for (Prefix p : e.getValue()) {
+        d.writeByte(p.address.length == 4 ? 4 : 6);
+        d.writeByte(p.masklen);
+        d.write(p.address, 0, (p.masklen + 7) / 8);
+      }
+    }
+    d.flush();
+  }
+
+  /**
+   * Read snapshot from stream
+   *
+   * @param in InputStream
+   * @return CloudProviderSnapshot
+   * @throws IOException IOException
+   */
+  public static CloudProviderSnapshot read(InputStream in) throws IOException {
+    // Read the complete snapshot in one operation before parsing
+    DataInputStream d = new DataInputStream(new ByteArrayInputStream(ByteStreams.toByteArray(in)));
+    if (d.readInt() != MAGIC) {
+      throw new IOException("invalid cloud provider snapshot");
+    }
+    int version = d.readShort();
+    if (version != FORMAT_VERSION) {
+      throw new IOException(
+          String.format("unsupported cloud provider snapshot format version %d", version));
+    }
+    CloudProviderSnapshot ret =
+        new CloudProviderSnapshot(new DateTime(d.readLong(), DateTimeZone.UTC), d.readUTF());
+    int pcnt = d.readInt();
+    for (int i = 0; i < pcnt; i++) {
+      ArrayList<Prefix> plist = new ArrayList<>();
+      ret.providers.put(d.readUTF(), plist);
+      int cnt = d.readInt();
+      for (int j = 0; j < cnt; j++) {
+        int family = d.readByte();
+        int masklen = d.readByte() & 0xff;
+        byte[] addr;
+        if (family == 4) {
+          addr = new byte[4];
+        } else if (family == 6) {
+          addr = new byte[16];
+        } else {
+          throw new IOException("invalid address family in cloud provider snapshot");
+        }
+        if (masklen > addr.length * 8) {
+          throw new IOException("invalid mask length in cloud provider snapshot");
+        }
+        d.readFully(addr, 0, (masklen + 7) / 8);
+        plist.add(new Prefix(addr, masklen));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Load snapshot from resource path or GCS URL
+   *
+   * @param path Resource path or GCS URL
+   * @return CloudProviderSnapshot
+   * @throws IOException IOException
+   */
+  public static CloudProviderSnapshot load(String path) throws IOException {
+    try (InputStream in = FileUtil.getStreamFromPath(path)) {
+      return read(in);
+    }
+  }
+
+  /**
+   * Load snapshot from resource path or GCS URL, returning a previously loaded copy if one exists
+   *
+   * <p>Snapshots are immutable once loaded, so a single copy is shared by all callers in the JVM.
+   *
+   * @param path Resource path or GCS URL
+   * @return CloudProviderSnapshot
+   * @throws IOException IOException
+   */
+  public static CloudProviderSnapshot loadCached(String path) throws IOException {
+    CloudProviderSnapshot ret = loaded.get(path);
+    if (ret == null) {
+      ret = load(path);
+      CloudProviderSnapshot prev = loaded.putIfAbsent(path, ret);
+      if (prev != null) {
+        ret = prev;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Create a new snapshot, offline operation
+   *
+   * <p>The first argument is the file to write the snapshot to. By default the current ranges are
+   * fetched from the live provider sources. Optionally, provider=path arguments can be supplied to
+   * instead read CIDR subnets for a provider from a local file containing one subnet per line.
+   *
+   * @param args Arguments
+   * @throws IOException IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: CloudProviderSnapshot outfile [provider=path ...]");
+      System.exit(1);
+    }
+
+    DateTime now = new DateTime(DateTimeZone.UTC);
+    CloudProviderSnapshot s = new CloudProviderSnapshot(now, now.toString());
+    if (args.length == 1) {
+      s.addSubnets(PROVIDER_GCP, CidrUtil.fetchGcpSubnets());
+      s.addSubnets(PROVIDER_AWS, CidrUtil.fetchAwsSubnets());
+    } else {
+      for (String a : Arrays.copyOfRange(args, 1, args.length)) {
+        String[] parts = a.split("=", 2);
+        if (parts.length != 2) {
+          throw new IllegalArgumentException(String.format("invalid argument %s", a));
+        }
+        ArrayList<String> subnets = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(parts[1]), StandardCharsets.UTF_8)) {
+          line = line.trim();
+          if (!line.isEmpty() && !line.startsWith("#")) {
+            subnets.add(line);
+          }
+        }
+        s.addSubnets(parts[0], subnets);
+      }
+    }
+
+    try (FileOutputStream out = new FileOutputStream(args[0])) {
+      s.write(out);
+    }
+    for (String p : s.getProviders()) {
+      System.out.println(String.format("%s: %d prefixes", p, s.getPrefixes(p).size()));
+    }
+  }
+}
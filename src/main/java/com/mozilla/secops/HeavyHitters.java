@@ -0,0 +1,457 @@
+package com.mozilla.secops;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Combine.CombineFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.View;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionView;
+
+/**
+ * Approximate heavy hitter detection using bounded memory
+ *
+ * <p>Each input element is counted using a Count-Min sketch, and the most frequent elements are
+ * tracked using a Space-Saving summary with a fixed capacity. Both structures can be merged, so the
+ * analysis is done in a combiner and the amount of state and data shuffled is bounded regardless of
+ * the cardinality of the input.
+ *
+ * <p>The output contains candidate heavy hitters along with their estimated counts. Estimated
+ * counts are never lower than the true count, so the candidate set can be confirmed using exact
+ * counts for only the candidate elements.
+ */
+public class HeavyHitters
+    extends PTransform<PCollection<String>, PCollection<HeavyHitters.HeavyHittersOutput>> {
+  private static final long serialVersionUID = 1L;
+
+  /** Default Count-Min sketch width */
+  public static final int DEFAULT_WIDTH = 2048;
+
+  /** Default Count-Min sketch depth */
+  public static final int DEFAULT_DEPTH = 4;
+
+  private final int capacity;
+  private final Double relativeThreshold;
+  private final Long absoluteThreshold;
+
+  /** Output of heavy hitters transform */
+  public static class HeavyHittersOutput implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Long totalCount;
+    private final Long threshold;
+    private final HashMap<String, Long> candidates;
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof HeavyHittersOutput)) {
+        return false;
+      }
+      HeavyHittersOutput h = (HeavyHittersOutput) o;
+      return totalCount.equals(h.totalCount)
+          && threshold.equals(h.threshold)
+          && candidates.equals(h.candidates);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(totalCount, threshold, candidates);
+    }
+
+    /**
+     * Get total number of elements that were counted
+     *
+     * @return Total element count
+     */
+    public Long getTotalCount() {
+      return totalCount;
+    }
+
+    /**
+     * Get the threshold candidates were selected with
+     *
+     * @return Threshold count
+     */
+    public Long getThreshold() {
+      return threshold;
+    }
+
+    /**
+     * Get candidate heavy hitters
+     *
+     * @return Map of candidate element to estimated count
+     */
+    public Map<String, Long> getCandidates() {
+      return candidates;
+    }
+
+    /**
+     * Determine if an element is a heavy hitter candidate
+     *
+     * @param element Element
+     * @return True if element is a candidate
+     */
+    public Boolean isCandidate(String element) {
+      return candidates.containsKey(element);
+    }
+
+    HeavyHittersOutput(Long totalCount, Long threshold, HashMap<String, Long> candidates) {
+      this.totalCount = totalCount;
+      this.threshold = threshold;
+      this.candidates = candidates;
+    }
+
+    HeavyHittersOutput() {
+      this(0L, 0L, new HashMap<String, Long>());
+    }
+  }
+
+  /**
+   * Count-Min sketch combined with a Space-Saving summary
+   *
+   * <p>The Count-Min sketch provides a frequency estimate for any element, and the Space-Saving
+   * summary provides the set of elements that are likely to be the most frequent. Where both
+   * structures have an estimate for a given element, the lower of the two is used.
+   */
+  public static class Sketch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int width;
+    private final int depth;
+    private final int capacity;
+    private final long[][] table;
+    private final HashMap<String, Long> summary;
+    private final TreeSet<Counter> order;
+    private long total;
+
+    /** Summary counter, ordered by count so the minimum can be found in logarithmic time */
+    private static class Counter implements Comparable<Counter>, Serializable {
+      private static final long serialVersionUID = 1L;
+
+      private final long count;
+      private final String element;
+
+      Counter(long count, String element) {
+        this.count = count;
+        this.element = element;
+      }
+
+      @Override
+      public int compareTo(Counter o) {
+        int c = Long.compare(count, o.count);
+        return c != 0 ? c : element.compareTo(o.element);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (!(o instanceof Counter)) {
+          return false;
+        }
+        Counter c = (Counter) o;
+        return count == c.count && element.equals(c.element);
+      }
+
+      @Override
+      public int hashCode() {
+        return Objects.hash(count, element);
+      }
+    }
+
+    /**
+     * Create new sketch
+     *
+     * @param width Count-Min sketch width
+     * @param depth Count-Min sketch depth
+     * @param capacity Maximum number of elements tracked in Space-Saving summary
+     */
+    public Sketch(int width, int depth, int capacity) {
+      if (width < 1 || depth < 1 || capacity < 1) {
+        throw new IllegalArgumentException("sketch dimensions and capacity must be positive");
+      }
+      this.width = width;
+      this.depth = depth;
+      this.capacity = capacity;
+      table = new long[depth][width];
+      summary = new HashMap<>();
+      order = new TreeSet<>();
+      total = 0L;
+    }
+
+    private static long mix(long z) {
+      z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+      z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+      return z ^ (z >>> 33);
+    }
+
+    private static long hash(String element) {
+      long h = 1125899906842597L;
+      for (byte b : element.getBytes(StandardCharsets.UTF_8)) {
+        h = 31 * h + b;
+      }
+      return mix(h);
+    }
+
+    private int bucket(long h, int row) {
+      long v = mix(h + (row * 0x9e3779b97f4a7c15L));
+      return (int) ((v >>> 1) % width);
+    }
+
+    private long sketchEstimate(long h) {
+      long ret = Long.MAX_VALUE;
+      for (int i = 0; i < depth; i++) {
+        ret = Math.min(ret, table[i][bucket(h, i)]);
+      }
+      return ret;
+    }
+
+    private long summaryMinimum() {
+      if (summary.size() < capacity) {
+        return 0L;
+      }
+      return order.first().count;
+    }
+
+    private void put(String element, long count) {
+      Long cur = summary.put(element, count);
+      if (cur != null) {
+        order.remove(new Counter(cur, element));
+      }
+      order.add(new Counter(count, element));
+    }
+
+    /**
+     * Add an element to the sketch
+     *
+     * @param element Element
+     * @param count Number of occurrences
+     */
+    public void add(String element, long count) {
+      long h = hash(element);
+      for (int i = 0; i < depth; i++) {
+        table[i][bucket(h, i)] += count;
+      }
+      total += count;
+
+      Long cur = summary.get(element);
+      if (cur != null) {
+        put(element, cur + count);
+        return;
+      }
+      if (summary.size() < capacity) {
+        put(element, count);
+        return;
+      }
+      // Replace the element with the lowest count, inheriting its count as per Space-Saving
+      Counter min = order.pollFirst();
+      summary.remove(min.element);
+      put(element, min.count + count);
+    }
+
+    /**
+     * Merge another sketch into this sketch
+     *
+     * @param other Sketch to merge, must have the same dimensions
+     */
+    public void merge(Sketch other) {
+      if (other.width != width || other.depth != depth || other.capacity != capacity) {
+        throw new IllegalArgumentException("cannot merge sketches with different dimensions");
+      }
+      for (int i = 0; i < depth; i++) {
+        for (int j = 0; j < width; j++) {
+          table[i][j] += other.table[i][j];
+        }
+      }
+      total += other.total;
+
+      // Elements absent from a full summary may have occurred up to the minimum count of that
+      // summary, so use that as the contribution to keep estimates as upper bounds
+      long minA = summaryMinimum();
+      long minB = other.summaryMinimum();
+      HashMap<String, Long> merged = new HashMap<>();
+      for (Map.Entry<String, Long> e : summary.entrySet()) {
+        Long o = other.summary.get(e.getKey());
+        merged.put(e.getKey(), e.getValue() + (o != null ? o : minB));
+      }
+      for (Map.Entry<String, Long> e : other.summary.entrySet()) {
+        if (!merged.containsKey(e.getKey())) {
+          merged.put(e.getKey(), e.getValue() + minA);
+        }
+      }
+      ArrayList<Map.Entry<String, Long>> entries = new ArrayList<>(merged.entrySet());
+      entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      summary.clear();
+      order.clear();
+      for (int i = 0; i < entries.size() && i < capacity; i++) {
+        put(entries.get(i).getKey(), entries.get(i).getValue());
+      }
+    }
+
+    /**
+     * Get estimated count for an element
+     *
+     * <p>The estimate will be greater than or equal to the true count.
+     *
+     * @param element Element
+     * @return Estimated count
+     */
+    public long estimate(String element) {
+      long ret = sketchEstimate(hash(element));
+      Long s = summary.get(element);
+      if (s != null) {
+        ret = Math.min(ret, s);
+      }
+      return ret;
+    }
+
+    /**
+     * Get total count of all elements added to the sketch
+     *
+     * @return Total count
+     */
+    public long getTotal() {
+      return total;
+    }
+
+    /**
+     * Return elements tracked in the summary with an estimated count at or above threshold
+     *
+     * @param threshold Threshold
+     * @return Map of element to estimated count
+     */
+    public HashMap<String, Long> candidates(long threshold) {
+      HashMap<String, Long> ret = new HashMap<>();
+      for (String k : summary.keySet()) {
+        long est = estimate(k);
+        if (est >= threshold) {
+          ret.put(k, est);
+        }
+      }
+      return ret;
+    }
+  }
+
+  /** {@link CombineFn} for heavy hitter detection */
+  public static class HeavyHittersCombiner
+      extends CombineFn<String, HeavyHitters.Sketch, HeavyHittersOutput> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    private final Double relativeThreshold;
+    private final Long absoluteThreshold;
+
+    /**
+     * Create new combiner
+     *
+     * @param capacity Maximum number of candidates tracked
+     * @param relativeThreshold Fraction of total count an element must meet, or null
+     * @param absoluteThreshold Count an element must meet, or null
+     */
+    public HeavyHittersCombiner(int capacity, Double relativeThreshold, Long absoluteThreshold) {
+      if (relativeThreshold == null && absoluteThreshold == null) {
+        throw new IllegalArgumentException("heavy hitters requires a threshold");
+      }
+      this.capacity = capacity;
+      this.relativeThreshold = relativeThreshold;
+      this.absoluteThreshold = absoluteThreshold;
+    }
+
+    @Override
+    public Sketch createAccumulator() {
+      return new Sketch(DEFAULT_WIDTH, DEFAULT_DEPTH, capacity);
+    }
+
+    @Override
+    public Sketch addInput(Sketch sketch, String input) {
+      sketch.add(input, 1L);
+      return sketch;
+    }
+
+    @Override
+    public Sketch mergeAccumulators(Iterable<Sketch> sketches) {
+      Sketch merged = createAccumulator();
+      for (Sketch s : sketches) {
+        merged.merge(s);
+      }
+      return merged;
+    }
+
+    @Override
+    public HeavyHittersOutput extractOutput(Sketch sketch) {
+      long threshold = getThreshold(sketch.getTotal(), relativeThreshold, absoluteThreshold);
+      return new HeavyHittersOutput(sketch.getTotal(), threshold, sketch.candidates(threshold));
+    }
+
+    @Override
+    public HeavyHittersOutput defaultValue() {
+      return new HeavyHittersOutput();
+    }
+  }
+
+  /**
+   * Calculate the count threshold given a total count
+   *
+   * <p>If both relative and absolute thresholds are set, the greater of the two applies.
+   *
+   * @param total Total count
+   * @param relativeThreshold Fraction of total count, or null
+   * @param absoluteThreshold Absolute count, or null
+   * @return Threshold count
+   */
+  public static long getThreshold(long total, Double relativeThreshold, Long absoluteThreshold) {
+    long ret = 1L;
+    if (relativeThreshold != null) {
+      ret = Math.max(ret, (long) Math.ceil(total * relativeThreshold));
+    }
+    if (absoluteThreshold != null) {
+      ret = Math.max(ret, absoluteThreshold);
+    }
+    return ret;
+  }
+
+  /**
+   * Create new heavy hitters transform
+   *
+   * @param capacity Maximum number of candidates tracked
+   * @param relativeThreshold Fraction of total count an element must meet, or null
+   * @param absoluteThreshold Count an element must meet, or null
+   */
+  public HeavyHitters(int capacity, Double relativeThreshold, Long absoluteThreshold) {
+    this.capacity = capacity;
+    this.relativeThreshold = relativeThreshold;
+    this.absoluteThreshold = absoluteThreshold;
+  }
+
+  /**
+   * Execute the transform returning a {@link PCollectionView} suitable for use as a side input
+   *
+   * @param input Input data set
+   * @param capacity Maximum number of candidates tracked
+   * @param relativeThreshold Fraction of total count an element must meet, or null
+   * @param absoluteThreshold Count an element must meet, or null
+   * @return {@link PCollectionView} representing results of analysis
+   */
+  public static PCollectionView<HeavyHittersOutput> getView(
+      PCollection<String> input, int capacity, Double relativeThreshold, Long absoluteThreshold) {
+    return input
+        .apply(
+            "heavy hitters transform",
+            new HeavyHitters(capacity, relativeThreshold, absoluteThreshold))
+        .apply(
+            "heavy hitters view",
+            View.<HeavyHittersOutput>asSingleton().withDefaultValue(new HeavyHittersOutput()));
+  }
+
+  @Override
+  public PCollection<HeavyHittersOutput> expand(PCollection<String> input) {
+    return input.apply(
+        "heavy hitters",
+        Combine.globally(new HeavyHittersCombiner(capacity, relativeThreshold, absoluteThreshold))
+            .withoutDefaults());
+  }
+}
@@ -0,0 +1,329 @@
+package com.mozilla.secops;
+
+import com.google.common.net.InetAddresses;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Immutable longest prefix match lookup for IPv4 and IPv6 subnets
+ *
+ * <p>Subnets are stored in a path-compressed binary trie, where each node represents a prefix of up
+ * to 128 bits and only nodes that either carry a value or where the trie branches are present. A
+ * value can be associated with each subnet, and a lookup returns the value associated with the most
+ * specific subnet containing the address.
+ *
+ * <p>IPv4 and IPv6 subnets are kept in separate tries, so an IPv6 subnet never matches an IPv4
+ * address and vice versa.
+ *
+ * <p>Instances are created using a {@link Builder} and cannot be modified once built, so a single
+ * instance can be shared between threads without synchronization.
+ *
+ * @param <V> Type of value associated with each subnet
+ */
+public final class InetPrefixTree<V> {
+  private final Node<V> root4;
+  private final Node<V> root6;
+  private final int size;
+
+  private static final class Node<V> {
+    private final long hi;
+    private final long lo;
+    private final int len;
+    private final V value;
+    private final Node<V> left;
+    private final Node<V> right;
+
+    Node(long hi, long lo, int len, V value, Node<V> left, Node<V> right) {
+      this.hi = hi;
+      this.lo = lo;
+      this.len = len;
+      this.value = value;
+      this.left = left;
+      this.right = right;
+    }
+  }
+
+  /** Prefix representation used during construction, bits are left aligned in hi and lo */
+  private static final class Prefix {
+    private final long hi;
+    private final long lo;
+    private final int len;
+
+    Prefix(long hi, long lo, int len) {
+      this.hi = hi & maskHi(len);
+      this.lo = lo & maskLo(len);
+      this.len = len;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Prefix)) {
+        return false;
+      }
+      Prefix p = (Prefix) o;
+      return hi == p.hi && lo == p.lo && len == p.len;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(hi, lo, len);
+    }
+  }
+
+  private static long maskHi(int len) {
+    if (len == 0) {
+      return 0L;
+    }
+    return len >= 64 ? -1L : -1L << (64 - len);
+  }
+
+  private static long maskLo(int len) {
+    if (len <= 64) {
+      return 0L;
+    }
+    return len == 128 ? -1L : -1L << (128 - len);
+  }
+
+  private static int bitAt(long hi, long lo, int i) {
+    if (i < 64) {
+      return (int) ((hi >>> (63 - i)) & 1L);
+    }
+    return (int) ((lo >>> (127 - i)) & 1L);
+  }
+
+  private static int commonLength(long ahi, long alo, long bhi, long blo) {
+    long x = ahi ^ bhi;
+    if (x != 0) {
+      return Long.numberOfLeadingZeros(x);
+    }
+    x = alo ^ blo;
+    if (x != 0) {
+      return 64 + Long.numberOfLeadingZeros(x);
+    }
+    return 128;
+  }
+
+  private static boolean prefixMatches(Node<?> n, long hi, long lo) {
+    return ((hi ^ n.hi) & maskHi(n.len)) == 0 && ((lo ^ n.lo) & maskLo(n.len)) == 0;
+  }
+
+  private static long bytesToLong(byte[] buf, int off, int len) {
+    long ret = 0L;
+    for (int i = 0; i < len; i++) {
+      ret = (ret << 8) | (buf[off + i] & 0xffL);
+    }
+    return ret;
+  }
+
+  private static <V> Node<V> buildNode(ArrayList<Prefix> prefixes, HashMap<Prefix, V> values) {
+    if (prefixes.isEmpty()) {
+      return null;
+    }
+
+    // The node prefix is the longest prefix common to all prefixes in this group
+    Prefix first = prefixes.get(0);
+    int len = first.len;
+    for (Prefix p : prefixes) {
+      len = Math.min(len, Math.min(p.len, commonLength(first.hi, first.lo, p.hi, p.lo)));
+    }
+
+    V value = null;
+    ArrayList<Prefix> left = new ArrayList<>();
+    ArrayList<Prefix> right = new ArrayList<>();
+    for (Prefix p : prefixes) {
+      if (p.len == len) {
+        value = values.get(p);
+      } else if (bitAt(p.hi, p.lo, len) == 0) {
+        left.add(p);
+      } else {
+        right.add(p);
+      }
+    }
+
+    return new Node<V>(
+        first.hi & maskHi(len),
+        first.lo & maskLo(len),
+        len,
+        value,
+        buildNode(left, values),
+        buildNode(right, values));
+  }
+
+  private static <V> V lookup(Node<V> root, long hi, long lo) {
+    V ret = null;
+    Node<V> n = root;
+    while (n != null && prefixMatches(n, hi, lo)) {
+      if (n.value != null) {
+        ret = n.value;
+      }
+      if (n.len == 128) {
+        break;
+      }
+      n = bitAt(hi, lo, n.len) == 0 ? n.left : n.right;
+    }
+    return ret;
+  }
+
+  /**
+   * Builder for {@link InetPrefixTree}
+   *
+   * <p>Builders are not thread safe.
+   *
+   * @param <V> Type of value associated with each subnet
+   */
+  public static class Builder<V> {
+    private final HashMap<Prefix, V> values4 = new HashMap<>();
+    private final HashMap<Prefix, V> values6 = new HashMap<>();
+
+    /**
+     * Add subnet to the tree being built
+     *
+     * <p>Any host bits set in the address component of the subnet are ignored. If the same subnet
+     * is added more than once, the last value added is used.
+     *
+     * @param cidr CIDR subnet specification, IPv4 or IPv6
+     * @param value Value to associate with subnet, must not be null
+     * @return Builder
+     */
+    public Builder<V> add(String cidr, V value) {
+      if (value == null) {
+        throw new IllegalArgumentException("value must not be null");
+      }
+      int i = cidr.indexOf("/");
+      if (i == -1) {
+        throw new IllegalArgumentException(String.format("bad format, %s", cidr));
+      }
+      byte[] addr = InetAddresses.forString(cidr.substring(0, i)).getAddress();
+      int m;
+      try {
+        m = Integer.parseInt(cidr.substring(i + 1));
+      } catch (NumberFormatException exc) {
+        throw new IllegalArgumentException(String.format("bad format, %s", cidr));
+      }
+      return add(addr, m, value);
+    }
+
+    /**
+     * Add subnet to the tree being built using the numeric address
+     *
+     * @param addr Address bytes, 4 bytes for IPv4 or 16 bytes for IPv6
+     * @param masklen Mask length in bits
+     * @param value Value to associate with subnet, must not be null
+     * @return Builder
+     */
+    public Builder<V> add(byte[] addr, int masklen, V value) {
+      if (value == null) {
+        throw new IllegalArgumentException("value must not be null");
+      }
+      if (addr.length != 4 && addr.length != 16) {
+        throw new IllegalArgumentException("invalid address length");
+      }
+      if (masklen < 0 || masklen > addr.length * 8) {
+        throw new IllegalArgumentException(String.format("invalid mask length, %d", masklen));
+      }
+      if (addr.length == 4) {
+        values4.put(new Prefix(bytesToLong(addr, 0, 4) << 32, 0L, masklen), value);
+      } else {
+        values6.put(new Prefix(bytesToLong(addr, 0, 8), bytesToLong(addr, 8, 8), masklen), value);
+      }
+      return this;
+    }
+
+    /**
+     * Build immutable tree from subnets added to builder
+     *
+     * @return InetPrefixTree
+     */
+    public InetPrefixTree<V> build() {
+      return new InetPrefixTree<V>(
+          buildNode(new ArrayList<>(values4.keySet()), values4),
+          buildNode(new ArrayList<>(values6.keySet()), values6),
+          values4.size() + values6.size());
+    }
+  }
+
+  /**
+   * Create a new builder
+   *
+   * @param <V> Type of value associated with each subnet
+   * @return Builder
+   */
+  public static <V> Builder<V> builder() {
+    return new Builder<V>();
+  }
+
+  private InetPrefixTree(Node<V> root4, Node<V> root6, int size) {
+    this.root4 = root4;
+    this.root6 = root6;
+    this.size = size;
+  }
+
+  /**
+   * Get number of subnets in tree
+   *
+   * @return int
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Return value associated with the most specific IPv4 subnet containing address
+   *
+   * @param addr IPv4 address as an integer in network byte order
+   * @return Value, or null if no subnet contains the address
+   */
+  public V lookupInet4(int addr) {
+    return lookup(root4, (addr & 0xffffffffL) << 32, 0L);
+  }
+
+  /**
+   * Return value associated with the most specific IPv6 subnet containing address
+   *
+   * @param hi High order 64 bits of the address
+   * @param lo Low order 64 bits of the address
+   * @return Value, or null if no subnet contains the address
+   */
+  public V lookupInet6(long hi, long lo) {
+    return lookup(root6, hi, lo);
+  }
+
+  /**
+   * Return value associated with the most specific subnet containing address
+   *
+   * @param addr Address bytes, 4 bytes for IPv4 or 16 bytes for IPv6
+   * @return Value, or null if no subnet contains the address
+   */
+  public V lookup(byte[] addr) {
+    if (addr.length == 4) {
+      return lookupInet4((int) bytesToLong(addr, 0, 4));
+    } else if (addr.length == 16) {
+      return lookupInet6(bytesToLong(addr, 0, 8), bytesToLong(addr, 8, 8));
+    }
+    throw new IllegalArgumentException("invalid address length");
+  }
+
+  /**
+   * Return value associated with the most specific subnet containing address
+   *
+   * @param addr IPv4 or IPv6 address
+   * @return Value, or null if no subnet contains the address
+   */
+  public V lookup(String addr) {
+    return lookup(InetAddresses.forString(addr).getAddress());
+  }
+
+  /**
+   * Determine if any subnet in the tree contains address
+   *
+   * @param addr IPv4 or IPv6 address
+   * @return True if address is contained in a subnet
+   */
+  public boolean contains(String addr) {
+    return lookup(addr) != null;
+  }
+}
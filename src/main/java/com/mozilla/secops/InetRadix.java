@@ -1,101 +1,28 @@
 package com.mozilla.secops;
 
-import com.google.common.net.InetAddresses;
-import java.nio.ByteBuffer;
-
 /**
  * CIDR lookup using radix tree search
  *
- * <p>Only supports IPv4.
+ * <p>Supports both IPv4 and IPv6 subnets. Subnets can be added incrementally; lookups are performed
+ * against an immutable {@link InetPrefixTree} that is rebuilt after the set of subnets changes, and
+ * that can also be obtained directly using {@link #snapshot} for sharing between threads.
  *
  * <p>See also http://www.cs.columbia.edu/~ji/F02/ir04/routing.pdf
  */
 public class InetRadix {
-  private static class Node {
-    public Node left, right;
-    public boolean isLeaf;
-
-    Node() {
-      left = right = null;
-      isLeaf = false;
-    }
-  }
-
-  private static class Tree {
-    Node root;
-
-    // 10000000 00000000 00000000 00000000 (1L << 31)
-    private long startBit = 0x80000000L;
-
-    public boolean contains(long ip) {
-      long bit = startBit;
-      Node n = root;
-
-      while (n != null) {
-        if (n.isLeaf) {
-          return true;
-        }
-        if ((ip & bit) != 0) {
-          n = n.right;
-        } else {
-          n = n.left;
-        }
-        bit = bit >> 1;
-      }
-      return false;
-    }
-
-    public void insert(long ip, long mask) {
-      long bit = startBit;
-
-      Node n = root;
-      Node next = n;
-
-      while ((bit & mask) != 0) {
-        if ((ip & bit) != 0) {
-          next = n.right;
-        } else {
-          next = n.left;
-        }
-        if (next == null) {
-          break;
-        }
-        bit = bit >> 1;
-        n = next;
-      }
-
-      if (next != null) {
-        n.isLeaf = true;
-        return;
-      }
-
-      while ((bit & mask) != 0) {
-        next = new Node();
-        if ((ip & bit) != 0) {
-          n.right = next;
-        } else {
-          n.left = next;
-        }
-        bit = bit >> 1;
-        n = next;
-      }
+  private final InetPrefixTree.Builder<Boolean> builder;
+  private volatile InetPrefixTree<Boolean> tree;
 
-      n.isLeaf = true;
-    }
-
-    Tree() {
-      root = new Node();
+  /**
+   * Return immutable tree containing all subnets added so far
+   *
+   * @return InetPrefixTree
+   */
+  public synchronized InetPrefixTree<Boolean> snapshot() {
+    if (tree == null) {
+      tree = builder.build();
     }
-  }
-
-  private Tree tree;
-
-  private long longFromString(String ip) {
-    ByteBuffer bb = ByteBuffer.allocate(8);
-    bb.putInt(0);
-    bb.put(InetAddresses.forString(ip).getAddress());
-    bb.rewind();
-    return bb.getLong();
+    return tree;
   }
 
   /**
@@ -105,34 +32,36 @@ public class InetRadix {
    * @return True if tree contained subnet that contains IP
    */
   public boolean contains(String ip) {
-    return tree.contains(longFromString(ip));
+    InetPrefixTree<Boolean> t = tree;
+    if (t == null) {
+      t = snapshot();
+    }
+    return t.contains(ip);
   }
 
   /**
-   * Add IPv4 CIDR subnet to tree
+   * Add IPv4 or IPv6 CIDR subnet to tree
    *
    * @param cidr CIDR subnet specification
    */
-  public void add(String cidr) {
-    int i = cidr.indexOf("/");
-    String ip = cidr.substring(0, i);
-    int m = Integer.parseInt(cidr.substring(i + 1));
-
-    // Generate a bitmask from our integer mask value, e.g. for a /24:
-    //
-    // 1 << (32 - 24)
-    // 00000000 00000000 00000001 00000000
-    // - 1
-    // 00000000 00000000 00000000 11111111
-    // ^ 0xffffffff
-    // 11111111 11111111 11111111 00000000
-    long mask = ((1L << (32 - m)) - 1L) ^ 0xffffffffL;
+  public synchronized void add(String cidr) {
+    builder.add(cidr, true);
+    tree = null;
+  }
 
-    tree.insert(longFromString(ip), mask);
+  /**
+   * Add IPv4 or IPv6 subnet to tree using the numeric address
+   *
+   * @param addr Address bytes, 4 bytes for IPv4 or 16 bytes for IPv6
+   * @param masklen Mask length in bits
+   */
+  public synchronized void add(byte[] addr, int masklen) {
+    builder.add(addr, masklen, true);
+    tree = null;
   }
 
   /** Create new InetRadix */
   InetRadix() {
-    tree = new Tree();
+    builder = InetPrefixTree.builder();
   }
 }
@@ -72,6 +72,12 @@ public interface InputOptions extends PipelineOptions, PubsubOptions, GcpOptions
 
   void setMaxmindIspDbPath(String value);
 
+  @Description("Stage Maxmind databases to local disk and memory map them rather than heap load")
+  @Default.Boolean(false)
+  Boolean getMaxmindDbMemoryMap();
+
+  void setMaxmindDbMemoryMap(Boolean value);
+
   @Description("Enable XFF address selector; comma delimited list of trusted CIDR format subnets")
   String getXffAddressSelector();
 
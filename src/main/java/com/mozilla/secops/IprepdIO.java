@@ -2,7 +2,9 @@ package com.mozilla.secops;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.InetAddresses;
 import com.mozilla.secops.alert.Alert;
 import com.mozilla.secops.alert.AlertMeta;
 import com.mozilla.secops.crypto.RuntimeSecrets;
@@ -12,8 +14,21 @@ import com.mozilla.secops.state.StateCursor;
 import com.mozilla.secops.state.StateException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.beam.sdk.metrics.Counter;
 import org.apache.beam.sdk.metrics.Metrics;
@@ -30,6 +45,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +55,39 @@ public class IprepdIO {
   /** Custom metric name used to count iprepd violation submissions from write functions */
   public static final String VIOLATION_WRITES_METRIC = "iprepd_violation_writes";
 
+  /** Custom metric name used to count violations successfully submitted to iprepd */
+  public static final String VIOLATION_SUBMITTED_METRIC = "iprepd_violation_submitted";
+
+  /** Custom metric name used to count violations dropped as duplicates within a bundle */
+  public static final String VIOLATION_DEDUPLICATED_METRIC = "iprepd_violation_deduplicated";
+
+  /** Custom metric name used to count violations that could not be submitted to iprepd */
+  public static final String VIOLATION_FAILED_METRIC = "iprepd_violation_failed";
+
+  /**
+   * Custom metric name used to count violations sent using a request per violation, as an iprepd
+   * instance did not accept a multi-violation request
+   */
+  public static final String VIOLATION_INDIVIDUAL_METRIC = "iprepd_violation_individual";
+
+  /** Maximum number of concurrent requests made to iprepd by each write function instance */
+  public static final int WRITER_MAX_CONCURRENCY = 8;
+
+  /** Maximum number of violations included in a multi-violation request */
+  public static final int WRITER_BATCH_SIZE = 100;
+
+  /** Maximum number of attempts made for each request */
+  public static final int WRITER_MAX_ATTEMPTS = 3;
+
+  /** Initial backoff between request attempts, in milliseconds */
+  public static final long WRITER_BACKOFF_INITIAL_MS = 250L;
+
+  /**
+   * Time in milliseconds after an iprepd instance rejects the multi-violation endpoint before it is
+   * used again for that instance
+   */
+  public static final long WRITER_MULTI_UNSUPPORTED_RETRY_MS = 600000L;
+
   /** Namespace for custom metrics */
   public static final String METRICS_NAMESPACE = "IprepdIO";
 
@@ -144,6 +193,9 @@ public class IprepdIO {
     /** Reader socket timeout */
     public final int READER_TIMEOUT_SOCKET = 5000;
 
+    /** Reader maximum number of concurrent connections */
+    public final int READER_MAX_CONNECTIONS = 32;
+
     /**
      * Read a reputation
      *
@@ -198,10 +250,12 @@ public class IprepdIO {
       int sc = resp.getStatusLine().getStatusCode();
       if (sc == 404) {
         // Reputation not found, report 100
+        EntityUtils.consumeQuietly(resp.getEntity());
         return new Integer(100);
       }
       if (sc != 200) {
         log.error("GET from iprepd returned with status code {}", sc);
+        EntityUtils.consumeQuietly(resp.getEntity());
         return new Integer(100);
       }
       HttpEntity entity = resp.getEntity();
@@ -262,7 +316,12 @@ public class IprepdIO {
               .setConnectionRequestTimeout(READER_TIMEOUT_CONNECTION_REQUEST)
               .setSocketTimeout(READER_TIMEOUT_SOCKET)
               .build();
-      httpClient = HttpClientBuilder.create().setDefaultRequestConfig(rc).build();
+      httpClient =
+          HttpClientBuilder.create()
+              .setDefaultRequestConfig(rc)
+              .setMaxConnPerRoute(READER_MAX_CONNECTIONS)
+              .setMaxConnTotal(READER_MAX_CONNECTIONS)
+              .build();
     }
   }
 
@@ -291,6 +350,13 @@ public class IprepdIO {
    * {@link Violation}, for any successful conversion the resulting violation will be submitted to
    * iprepd as a violation message for the source address. Any input data that is not an {@link
    * Alert} that can be converted into a violation will be ignored.
+   *
+   * <p>Violations are buffered for the duration of a bundle, and repeated violations of the same
+   * type for the same object within a bundle are submitted once. When the bundle finishes,
+   * violations are submitted concurrently using multi-violation requests, falling back to a request
+   * per violation for iprepd instances that do not support them. An instance that does not support
+   * them is tried again after {@link IprepdIO#WRITER_MULTI_UNSUPPORTED_RETRY_MS}. Failed requests
+   * are retried with exponential backoff.
    */
   public static class Write extends PTransform<PCollection<String>, PDone> {
     private static final long serialVersionUID = 1L;
@@ -333,7 +399,7 @@ public class IprepdIO {
     }
   }
 
-  private static class WriteFn extends DoFn<String, Void> {
+  static class WriteFn extends DoFn<String, Void> {
     private static final long serialVersionUID = 1L;
 
     private final Write wTransform;
@@ -341,6 +407,8 @@ public class IprepdIO {
     private HttpClient httpClient;
     private String[] iprepdSpecs;
     private String project;
+    private transient ExecutorService executor;
+    private transient LinkedHashMap<String, Violation> pending;
 
     /** Writer initial connection timeout */
     public final int WRITER_TIMEOUT_CONNECTION = 5000;
@@ -352,10 +420,21 @@ public class IprepdIO {
     public final int WRITER_TIMEOUT_SOCKET = 5000;
 
     private Counter violationWrites = Metrics.counter(METRICS_NAMESPACE, VIOLATION_WRITES_METRIC);
+    private Counter violationSubmitted =
+        Metrics.counter(METRICS_NAMESPACE, VIOLATION_SUBMITTED_METRIC);
+    private Counter violationDeduplicated =
+        Metrics.counter(METRICS_NAMESPACE, VIOLATION_DEDUPLICATED_METRIC);
+    private Counter violationFailed = Metrics.counter(METRICS_NAMESPACE, VIOLATION_FAILED_METRIC);
+    private Counter violationIndividual =
+        Metrics.counter(METRICS_NAMESPACE, VIOLATION_INDIVIDUAL_METRIC);
 
     private static HashMap<String, String> decrypted = new HashMap<String, String>();
     private static ReentrantLock decryptedLock = new ReentrantLock();
 
+    // Tracks iprepd URLs found to not support multi-violation submission, with the time in
+    // milliseconds until which violations are submitted individually
+    private static ConcurrentHashMap<String, Long> multiUnsupported = new ConcurrentHashMap<>();
+
     public WriteFn(Write wTransform) {
       this.wTransform = wTransform;
     }
@@ -370,7 +449,20 @@ public class IprepdIO {
               .setConnectionRequestTimeout(WRITER_TIMEOUT_CONNECTION_REQUEST)
               .setSocketTimeout(WRITER_TIMEOUT_SOCKET)
               .build();
-      httpClient = HttpClientBuilder.create().setDefaultRequestConfig(rc).build();
+      httpClient =
+          HttpClientBuilder.create()
+              .setDefaultRequestConfig(rc)
+              .setMaxConnPerRoute(WRITER_MAX_CONCURRENCY)
+              .setMaxConnTotal(WRITER_MAX_CONCURRENCY)
+              .build();
+      executor =
+          Executors.newFixedThreadPool(
+              WRITER_MAX_CONCURRENCY,
+              r -> {
+                Thread t = new Thread(r, "iprepd-write");
+                t.setDaemon(true);
+                return t;
+              });
 
       project = wTransform.getProject();
       iprepdSpecs = wTransform.getIprepdSpecs();
@@ -385,6 +477,11 @@ public class IprepdIO {
       }
     }
 
+    @StartBundle
+    public void startBundle() {
+      pending = new LinkedHashMap<>();
+    }
+
     @ProcessElement
     public void processElement(ProcessContext c) {
       String el = c.element();
@@ -408,71 +505,229 @@ public class IprepdIO {
         return;
       }
       for (Violation v : vlist) {
-        String object = v.getObject();
-        String type = v.getType();
+        violationWrites.inc();
 
-        String violationJSON = v.toJSON();
-        if (violationJSON == null) {
-          log.error("violation serialization failed");
-          return;
+        // Repeated violations of the same type for an object within a bundle are submitted
+        // once, retaining the longest recovery suppression
+        String key =
+            new StringJoiner("|")
+                .add(v.getType())
+                .add(v.getObject())
+                .add(v.getViolation())
+                .toString();
+        Violation prev = pending.get(key);
+        if (prev == null) {
+          pending.put(key, v);
+          continue;
         }
+        violationDeduplicated.inc();
+        if (v.getSuppressRecovery() != null
+            && (prev.getSuppressRecovery() == null
+                || v.getSuppressRecovery() > prev.getSuppressRecovery())) {
+          pending.put(key, v);
+        }
+      }
+    }
 
-        violationWrites.inc();
-        for (String spec : iprepdSpecs) {
-          decryptedLock.lock();
-          String decr = null;
-          try {
-            decr = decrypted.get(spec);
-          } finally {
-            decryptedLock.unlock();
+    @FinishBundle
+    public void finishBundle() throws InterruptedException {
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      // Group violations by type, since multi-violation submission is made per type
+      HashMap<String, ArrayList<Violation>> byType = new HashMap<>();
+      for (Violation v : pending.values()) {
+        byType.computeIfAbsent(v.getType(), k -> new ArrayList<>()).add(v);
+      }
+      pending = null;
+
+      // Each task returns the number of violations it submitted successfully
+      ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+      AtomicInteger individual = new AtomicInteger();
+      int total = 0;
+      for (String spec : iprepdSpecs) {
+        decryptedLock.lock();
+        String decr = null;
+        try {
+          decr = decrypted.get(spec);
+        } finally {
+          decryptedLock.unlock();
+        }
+        if (decr == null) {
+          throw new RuntimeException("iprepd specification not found in translation map");
+        }
+        String[] parts = decr.split("\\|");
+        String url = parts[0];
+        String apiKey = parts[1];
+
+        for (Map.Entry<String, ArrayList<Violation>> e : byType.entrySet()) {
+          ArrayList<Violation> vlist = e.getValue();
+          total += vlist.size();
+          if (!multiSupported(url, System.currentTimeMillis())) {
+            individual.addAndGet(vlist.size());
+            for (Violation v : vlist) {
+              tasks.add(() -> submitSingle(url, apiKey, v) ? 1 : 0);
+            }
+            continue;
           }
-          if (decr == null) {
-            throw new RuntimeException("iprepd specification not found in translation map");
+          for (int i = 0; i < vlist.size(); i += WRITER_BATCH_SIZE) {
+            List<Violation> batch = vlist.subList(i, Math.min(i + WRITER_BATCH_SIZE, vlist.size()));
+            tasks.add(() -> submitBatch(url, apiKey, e.getKey(), batch, individual));
           }
-          String[] parts = decr.split("\\|");
-          String url = parts[0];
-          String apiKey = parts[1];
+        }
+      }
 
-          try {
-            String reqPath;
-            reqPath =
-                new StringJoiner("/")
-                    .add(url)
-                    .add("violations")
-                    .add("type")
-                    .add(type)
-                    .add(object)
-                    .toString();
-            StringEntity body = new StringEntity(violationJSON);
-
-            log.info(
-                "notify iprepd url {} object {} type {} violation {}",
-                url,
-                object,
-                type,
-                v.getViolation());
-            HttpPut put = new HttpPut(reqPath);
-            put.addHeader("Content-Type", "application/json");
-            put.setEntity(body);
-
-            if (apiKey != null) {
-              put.addHeader("Authorization", "APIKey " + apiKey);
-            }
+      // Tasks handle their own errors, and metrics are updated here since they can only be
+      // updated from the bundle processing thread
+      int submitted = 0;
+      for (Future<Integer> f : executor.invokeAll(tasks)) {
+        try {
+          submitted += f.get();
+        } catch (ExecutionException exc) {
+          log.error("iprepd submission failed: {}", exc.getMessage());
+        }
+      }
+      violationSubmitted.inc(submitted);
+      violationFailed.inc(total - submitted);
+      violationIndividual.inc(individual.get());
+    }
 
-            HttpResponse resp = httpClient.execute(put);
-            log.info(
-                "PUT to iprepd at {} for {} returned with status code {}",
-                url,
-                object,
-                resp.getStatusLine().getStatusCode());
-            put.reset();
-          } catch (IOException exc) {
-            log.error(exc.getMessage());
-          } catch (IllegalArgumentException exc) {
-            log.error(exc.getMessage());
+    @Teardown
+    public void teardown() {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+
+    /**
+     * Execute PUT request, retrying with exponential backoff on connection errors or server side
+     * failures
+     *
+     * @return Final status code, or -1 if no response was received
+     */
+    private int put(String reqPath, String apiKey, String body) {
+      long backoff = WRITER_BACKOFF_INITIAL_MS;
+      for (int attempt = 1; ; attempt++) {
+        int status = -1;
+        HttpPut put = new HttpPut(reqPath);
+        try {
+          put.addHeader("Content-Type", "application/json");
+          put.setEntity(new StringEntity(body));
+          if (apiKey != null) {
+            put.addHeader("Authorization", "APIKey " + apiKey);
           }
+          HttpResponse resp = httpClient.execute(put);
+          status = resp.getStatusLine().getStatusCode();
+          EntityUtils.consumeQuietly(resp.getEntity());
+        } catch (IOException exc) {
+          log.error("PUT to iprepd at {} failed: {}", reqPath, exc.getMessage());
+        } catch (IllegalArgumentException exc) {
+          log.error(exc.getMessage());
+          return -1;
+        } finally {
+          put.reset();
+        }
+
+        if ((status != -1 && status != 429 && status < 500) || attempt >= WRITER_MAX_ATTEMPTS) {
+          return status;
+        }
+        try {
+          Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+        } catch (InterruptedException exc) {
+          Thread.currentThread().interrupt();
+          return status;
+        }
+        backoff *= 2;
+      }
+    }
+
+    private boolean submitSingle(String url, String apiKey, Violation v) {
+      String violationJSON = v.toJSON();
+      if (violationJSON == null) {
+        log.error("violation serialization failed");
+        return false;
+      }
+      String reqPath =
+          new StringJoiner("/")
+              .add(url)
+              .add("violations")
+              .add("type")
+              .add(v.getType())
+              .add(v.getObject())
+              .toString();
+      log.info(
+          "notify iprepd url {} object {} type {} violation {}",
+          url,
+          v.getObject(),
+          v.getType(),
+          v.getViolation());
+      int status = put(reqPath, apiKey, violationJSON);
+      log.info(
+          "PUT to iprepd at {} for {} returned with status code {}", url, v.getObject(), status);
+      return status == 200;
+    }
+
+    /**
+     * Check if multi-violation submission should be used for an iprepd URL
+     *
+     * <p>If the URL was marked as not supporting multi-violation submission and the mark has
+     * expired, the mark is removed.
+     *
+     * @param url iprepd URL
+     * @param now Current time in milliseconds
+     * @return True if multi-violation submission should be used
+     */
+    static boolean multiSupported(String url, long now) {
+      Long until = multiUnsupported.get(url);
+      if (until == null) {
+        return true;
+      }
+      if (now < until) {
+        return false;
+      }
+      multiUnsupported.remove(url, until);
+      return true;
+    }
+
+    private int submitBatch(
+        String url, String apiKey, String type, List<Violation> batch, AtomicInteger individual) {
+      String body;
+      try {
+        body = new ObjectMapper().writeValueAsString(batch);
+      } catch (JsonProcessingException exc) {
+        log.error("violation serialization failed: {}", exc.getMessage());
+        return 0;
+      }
+      // iprepd registers the multi-violation route with a trailing slash
+      String reqPath =
+          new StringJoiner("/").add(url).add("violations").add("type").add(type).add("").toString();
+      log.info("notify iprepd url {} type {} with {} violations", url, type, batch.size());
+      int status = put(reqPath, apiKey, body);
+      log.info(
+          "PUT to iprepd at {} for {} violations returned with status code {}",
+          url,
+          batch.size(),
+          status);
+      if (status == 200) {
+        return batch.size();
+      }
+      if (status == 404 || status == 405) {
+        log.info("iprepd at {} does not support multi-violation submission", url);
+        multiUnsupported.put(url, System.currentTimeMillis() + WRITER_MULTI_UNSUPPORTED_RETRY_MS);
+      } else if (status != 400) {
+        return 0;
+      }
+      // Either the endpoint is not supported, or the batch was rejected; submit individually so
+      // a single invalid violation does not prevent the others from being applied
+      individual.addAndGet(batch.size());
+      int ret = 0;
+      for (Violation v : batch) {
+        if (submitSingle(url, apiKey, v)) {
+          ret++;
         }
       }
+      return ret;
     }
   }
 
@@ -643,37 +898,156 @@ public class IprepdIO {
     addMetadataIfObjectIsExempt(obj, type, a, null);
   }
 
+  /** Interval at which exemption snapshots are refreshed, in milliseconds */
+  public static final long EXEMPTION_REFRESH_MS = 60000L;
+
+  /** Minimum interval between attempts to load an exemption snapshot, in milliseconds */
+  public static final long EXEMPTION_RETRY_MS = 10000L;
+
   /**
-   * Add metadata if the object is exempt from reporting to iprepd.
-   *
-   * <p>This variant allows specification of a project ID, for cases where the datastore instance
-   * lives in another GCP project.
+   * Age after which an exemption snapshot is no longer used, in milliseconds
    *
-   * <p>If for some reason the exemption state lookup fails, an {@link IOException} will be thrown.
+   * <p>If a snapshot could not be refreshed within this period, exemption lookups are made directly
+   * against Datastore until a refresh succeeds.
+   */
+  public static final long EXEMPTION_STALE_MS = 300000L;
+
+  private static final ConcurrentHashMap<String, ExemptionSnapshot> exemptionSnapshots =
+      new ConcurrentHashMap<>();
+
+  /** Immutable set of exempted objects of a given type */
+  static class Exemptions {
+    private final long loadedAt;
+    private final HashMap<String, ExemptedObject> objects;
+    private final InetPrefixTree<ExemptedObject> addresses;
+    private final boolean complete;
+
+    Exemptions(ArrayList<ExemptedObject> entries, boolean ip) {
+      loadedAt = System.currentTimeMillis();
+      objects = new HashMap<>();
+      InetPrefixTree.Builder<ExemptedObject> b = InetPrefixTree.builder();
+      boolean c = true;
+      for (ExemptedObject o : entries) {
+        String k = o.getObject() != null ? o.getObject() : o.getIp();
+        if (k == null) {
+          // Entry can only be located using its key, so negative results from this snapshot
+          // cannot be relied on
+          c = false;
+          continue;
+        }
+        objects.put(k, o);
+        if (ip) {
+          try {
+            if (k.contains("/")) {
+              b.add(k, o);
+            } else {
+              byte[] addr = InetAddresses.forString(k).getAddress();
+              b.add(addr, addr.length * 8, o);
+            }
+          } catch (IllegalArgumentException exc) {
+            // Not an address, only matched exactly
+          }
+        }
+      }
+      addresses = b.build();
+      complete = c;
+    }
+
+    boolean isComplete() {
+      return complete;
+    }
+
+    ExemptedObject lookup(String obj) {
+      ExemptedObject ret = objects.get(obj);
+      if (ret != null || addresses.size() == 0) {
+        return ret;
+      }
+      try {
+        return addresses.lookup(obj);
+      } catch (IllegalArgumentException exc) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Process shared snapshot of exempted objects of a given type
    *
-   * @param obj Object to check (usually an IP or email)
-   * @param type Type of object (usually "ip" or "email")
-   * @param a Alert to add metadata to
-   * @param datastoreProject If Datastore is in another project, non-null project ID
-   * @throws IOException IOException
+   * <p>The snapshot is loaded with a single GET_ALL operation and refreshed at most once per
+   * refresh interval, by whichever caller first finds it due.
    */
-  public static void addMetadataIfObjectIsExempt(
-      String obj, String type, Alert a, String datastoreProject) throws IOException {
-    if (obj == null || type == null || a == null) {
-      return;
+  private static class ExemptionSnapshot {
+    private final String type;
+    private final String datastoreProject;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private volatile Exemptions current;
+    private volatile long lastAttempt;
+
+    ExemptionSnapshot(String type, String datastoreProject) {
+      this.type = type;
+      this.datastoreProject = datastoreProject;
     }
 
-    if (!type.equals(exemptedIpKind) && !type.equals(exemptedEmailKind)) {
-      return;
+    private void refresh() {
+      Logger log = LoggerFactory.getLogger(IprepdIO.class);
+      State state = getExemptionState(type, datastoreProject);
+      try {
+        state.initialize();
+        StateCursor<ExemptedObject> sc = state.newCursor(ExemptedObject.class, false);
+        current = new Exemptions(sc.getAll(), type.equals(exemptedIpKind));
+      } catch (StateException exc) {
+        log.error("error loading exempted objects: {}", exc.getMessage());
+      } finally {
+        state.done();
+      }
+    }
+
+    /**
+     * Return current exemptions, refreshing if required
+     *
+     * @return Exemptions, or null if no sufficiently recent snapshot is available
+     */
+    Exemptions get() {
+      long now = System.currentTimeMillis();
+      Exemptions e = current;
+      if ((e == null || now - e.loadedAt >= EXEMPTION_REFRESH_MS)
+          && now - lastAttempt >= EXEMPTION_RETRY_MS
+          && refreshing.compareAndSet(false, true)) {
+        try {
+          lastAttempt = now;
+          refresh();
+        } finally {
+          refreshing.set(false);
+        }
+        e = current;
+      }
+      if (e == null || now - e.loadedAt >= EXEMPTION_STALE_MS) {
+        return null;
+      }
+      return e;
     }
+  }
+
+  /**
+   * Discard all exemption snapshots
+   *
+   * <p>Subsequent exemption lookups will load a new snapshot. Intended for tests.
+   */
+  public static void clearExemptionSnapshots() {
+    exemptionSnapshots.clear();
+  }
 
-    State state;
+  private static State getExemptionState(String type, String datastoreProject) {
     if (datastoreProject != null) {
-      state =
-          new State(new DatastoreStateInterface(type, exemptedObjectNamespace, datastoreProject));
-    } else {
-      state = new State(new DatastoreStateInterface(type, exemptedObjectNamespace));
+      return new State(
+          new DatastoreStateInterface(type, exemptedObjectNamespace, datastoreProject));
     }
+    return new State(new DatastoreStateInterface(type, exemptedObjectNamespace));
+  }
+
+  private static ExemptedObject getExemptedObjectDirect(
+      String obj, String type, String datastoreProject) throws IOException {
+    State state = getExemptionState(type, datastoreProject);
 
     Logger log = LoggerFactory.getLogger(IprepdIO.class);
 
@@ -687,11 +1061,7 @@ public class IprepdIO {
     StateCursor<ExemptedObject> sc = null;
     try {
       sc = state.newCursor(ExemptedObject.class, false);
-      ExemptedObject wobj = sc.get(obj);
-      if (wobj != null) {
-        a.addMetadata(AlertMeta.Key.IPREPD_EXEMPT, "true");
-        a.addMetadata(AlertMeta.Key.IPREPD_EXEMPT_CREATED_BY, wobj.getCreatedBy());
-      }
+      return sc.get(obj);
     } catch (StateException exc) {
       log.error("error getting exempted object: {}", exc.getMessage());
       throw new IOException(exc.getMessage());
@@ -699,4 +1069,55 @@ public class IprepdIO {
       state.done();
     }
   }
+
+  /**
+   * Add metadata if the object is exempt from reporting to iprepd.
+   *
+   * <p>This variant allows specification of a project ID, for cases where the datastore instance
+   * lives in another GCP project.
+   *
+   * <p>Exemptions are checked against a snapshot of all exempted objects of the type that is shared
+   * in the JVM and refreshed periodically, so newly added exemptions may take up to {@link
+   * #EXEMPTION_REFRESH_MS} to apply. If no recent snapshot is available, the object is looked up
+   * directly in Datastore.
+   *
+   * <p>If for some reason the exemption state lookup fails, an {@link IOException} will be thrown.
+   *
+   * @param obj Object to check (usually an IP or email)
+   * @param type Type of object (usually "ip" or "email")
+   * @param a Alert to add metadata to
+   * @param datastoreProject If Datastore is in another project, non-null project ID
+   * @throws IOException IOException
+   */
+  public static void addMetadataIfObjectIsExempt(
+      String obj, String type, Alert a, String datastoreProject) throws IOException {
+    if (obj == null || type == null || a == null) {
+      return;
+    }
+
+    if (!type.equals(exemptedIpKind) && !type.equals(exemptedEmailKind)) {
+      return;
+    }
+
+    ExemptionSnapshot snapshot =
+        exemptionSnapshots.computeIfAbsent(
+            String.format("%s|%s", type, datastoreProject),
+            k -> new ExemptionSnapshot(type, datastoreProject));
+    Exemptions e = snapshot.get();
+
+    ExemptedObject wobj;
+    if (e != null) {
+      wobj = e.lookup(obj);
+      if (wobj == null && !e.isComplete()) {
+        wobj = getExemptedObjectDirect(obj, type, datastoreProject);
+      }
+    } else {
+      wobj = getExemptedObjectDirect(obj, type, datastoreProject);
+    }
+
+    if (wobj != null) {
+      a.addMetadata(AlertMeta.Key.IPREPD_EXEMPT, "true");
+      a.addMetadata(AlertMeta.Key.IPREPD_EXEMPT_CREATED_BY, wobj.getCreatedBy());
+    }
+  }
 }
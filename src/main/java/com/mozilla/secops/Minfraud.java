@@ -1,11 +1,15 @@
 package com.mozilla.secops;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.InjectableValues.Std;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.util.StdDateFormat;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.maxmind.minfraud.WebServiceClient;
 import com.maxmind.minfraud.exception.AuthenticationException;
 import com.maxmind.minfraud.exception.HttpException;
@@ -18,14 +22,23 @@ import com.maxmind.minfraud.request.Email;
 import com.maxmind.minfraud.request.Transaction;
 import com.maxmind.minfraud.response.InsightsResponse;
 import com.mozilla.secops.crypto.RuntimeSecrets;
+import com.mozilla.secops.state.State;
+import com.mozilla.secops.state.StateCursor;
+import com.mozilla.secops.state.StateException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -36,14 +49,112 @@ import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Query Maxmind minFraud API */
+/**
+ * Query Maxmind minFraud API
+ *
+ * <p>Insights responses are cached in a process shared cache bounded in size and with a fixed
+ * expiry, keyed on the request inputs. Concurrent requests for the same inputs result in a single
+ * request to the service. Optionally, responses can also be stored in a persistent cache using
+ * {@link State}, allowing cached responses to be reused across restarts. The persistent cache
+ * should use a state instance dedicated to it, with the kind {@link #PERSISTENT_CACHE_KIND}.
+ */
 public class Minfraud implements Serializable {
   private static final long serialVersionUID = 1L;
   private final Logger log;
   private WebServiceClient mfClient;
+  private transient State persistentCache;
   private static Boolean cacheOnly = false;
 
-  private static HashMap<String, InsightsResponse> cache = new HashMap<>();
+  /** Maximum number of responses held in the cache */
+  public static final long CACHE_MAX_SIZE = 16384L;
+  /** Cache expiry in minutes, applies to both the in-memory and persistent cache */
+  public static final long CACHE_EXPIRY_MINUTES = 60L;
+
+  /** State kind to use for the persistent cache */
+  public static final String PERSISTENT_CACHE_KIND = "minfraud_insights";
+
+  private static final String PERSISTENT_KEY_PREFIX = "minfraud_insights";
+
+  // Responses forced for an address using cacheInsightsResource, used regardless of email
+  private static ConcurrentHashMap<String, InsightsResponse> forced = new ConcurrentHashMap<>();
+
+  private static Cache<String, InsightsResponse> cache =
+      Caffeine.newBuilder()
+          .maximumSize(CACHE_MAX_SIZE)
+          .expireAfterWrite(CACHE_EXPIRY_MINUTES, TimeUnit.MINUTES)
+          .build();
+
+  // Lookups currently in progress, used so concurrent requests for the same key share one lookup
+  private static ConcurrentHashMap<String, CompletableFuture<InsightsResponse>> inflight =
+      new ConcurrentHashMap<>();
+
+  private final Counter cacheHits = Metrics.counter(Minfraud.class, "insights_cache_hits");
+  private final Counter cacheMisses = Metrics.counter(Minfraud.class, "insights_cache_misses");
+  private final Counter persistentHits =
+      Metrics.counter(Minfraud.class, "insights_persistent_cache_hits");
+  private final Distribution latency = Metrics.distribution(Minfraud.class, "insights_latency_ms");
+
+  /** Insights response stored in persistent cache */
+  public static class PersistentEntry {
+    private String response;
+    private Long timestamp;
+
+    /**
+     * Get JSON encoded insights response
+     *
+     * @return String
+     */
+    @JsonProperty("response")
+    public String getResponse() {
+      return response;
+    }
+
+    /**
+     * Set JSON encoded insights response
+     *
+     * @param response String
+     */
+    public void setResponse(String response) {
+      this.response = response;
+    }
+
+    /**
+     * Get time response was stored in milliseconds since epoch
+     *
+     * @return Long
+     */
+    @JsonProperty("timestamp")
+    public Long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Set time response was stored in milliseconds since epoch
+     *
+     * @param timestamp Long
+     */
+    public void setTimestamp(Long timestamp) {
+      this.timestamp = timestamp;
+    }
+  }
+
+  private static InsightsResponse parseInsights(InputStream in) throws IOException {
+    return getInsightsReader().readValue(in);
+  }
+
+  private static InsightsResponse parseInsights(String in) throws IOException {
+    return getInsightsReader().readValue(in);
+  }
+
+  private static ObjectReader getInsightsReader() {
+    ObjectMapper o = new ObjectMapper();
+    o.disable(MapperFeature.CAN_OVERRIDE_ACCESS_MODIFIERS);
+    o.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    o.setDateFormat(new StdDateFormat().withColonInTimeZone(true));
+    List<String> locales = Collections.singletonList("en");
+    InjectableValues inj = new Std().addValue("locales", locales);
+    return o.readerFor(InsightsResponse.class).with(inj);
+  }
 
   /**
    * Enable cache only
@@ -60,7 +171,8 @@ public class Minfraud implements Serializable {
    * <p>Intended for tests.
    */
   public static void cacheClear() {
-    cache.clear();
+    forced.clear();
+    cache.invalidateAll();
   }
 
   /**
@@ -81,14 +193,52 @@ public class Minfraud implements Serializable {
     if (in == null) {
       throw new IOException("invalid resource path");
     }
-    ObjectMapper o = new ObjectMapper();
-    o.disable(MapperFeature.CAN_OVERRIDE_ACCESS_MODIFIERS);
-    o.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-    o.setDateFormat(new StdDateFormat().withColonInTimeZone(true));
-    List<String> locales = Collections.singletonList("en");
-    InjectableValues inj = new Std().addValue("locales", locales);
-    InsightsResponse r = o.readerFor(InsightsResponse.class).with(inj).readValue(in);
-    cache.put(ipAddress, r);
+    forced.put(ipAddress, parseInsights(in));
+  }
+
+  /**
+   * Enable persistent cache of insights responses
+   *
+   * <p>The state instance should already be initialized, and is not closed by this class. It should
+   * not be shared with other users of state, see {@link #PERSISTENT_CACHE_KIND}.
+   *
+   * @param state Initialized state instance
+   */
+  public void setPersistentCache(State state) {
+    persistentCache = state;
+  }
+
+  private static String cacheKey(String ipAddress, String email) {
+    return String.format("%s|%s", ipAddress, email == null ? "" : email);
+  }
+
+  private InsightsResponse persistentGet(String key) {
+    try {
+      StateCursor<PersistentEntry> c = persistentCache.newCursor(PersistentEntry.class, false);
+      PersistentEntry e = c.get(PERSISTENT_KEY_PREFIX + "|" + key);
+      if (e == null
+          || e.getTimestamp() == null
+          || e.getTimestamp() + TimeUnit.MINUTES.toMillis(CACHE_EXPIRY_MINUTES)
+              < System.currentTimeMillis()) {
+        return null;
+      }
+      return parseInsights(e.getResponse());
+    } catch (StateException | IOException exc) {
+      log.error("error reading persistent insights cache: {}", exc.getMessage());
+      return null;
+    }
+  }
+
+  private void persistentSet(String key, InsightsResponse resp) {
+    try {
+      PersistentEntry e = new PersistentEntry();
+      e.setResponse(resp.toJson());
+      e.setTimestamp(System.currentTimeMillis());
+      StateCursor<PersistentEntry> c = persistentCache.newCursor(PersistentEntry.class, false);
+      c.set(PERSISTENT_KEY_PREFIX + "|" + key, e);
+    } catch (StateException | IOException exc) {
+      log.error("error writing persistent insights cache: {}", exc.getMessage());
+    }
   }
 
   /**
@@ -105,14 +255,69 @@ public class Minfraud implements Serializable {
       return null;
     }
 
-    if (cache.containsKey(ipAddress)) {
-      return cache.get(ipAddress);
+    InsightsResponse ret = forced.get(ipAddress);
+    if (ret != null) {
+      return ret;
     }
 
     if (cacheOnly) {
       throw new RuntimeException(String.format("cache only with cache miss, %s", ipAddress));
     }
 
+    String key = cacheKey(ipAddress, email);
+    ret = cache.getIfPresent(key);
+    if (ret != null) {
+      cacheHits.inc();
+      return ret;
+    }
+    cacheMisses.inc();
+
+    // Concurrent requests for the same key wait for a single lookup. The lookup is performed
+    // outside of the cache so a slow request does not block cache operations for other keys.
+    CompletableFuture<InsightsResponse> f = new CompletableFuture<>();
+    CompletableFuture<InsightsResponse> prev = inflight.putIfAbsent(key, f);
+    if (prev != null) {
+      try {
+        return prev.join();
+      } catch (CompletionException exc) {
+        return null;
+      }
+    }
+    try {
+      ret = lookup(key, ipAddress, email);
+      // Null results are not cached
+      if (ret != null) {
+        cache.put(key, ret);
+      }
+      f.complete(ret);
+      return ret;
+    } catch (RuntimeException exc) {
+      f.completeExceptionally(exc);
+      throw exc;
+    } finally {
+      inflight.remove(key, f);
+    }
+  }
+
+  private InsightsResponse lookup(String key, String ipAddress, String email) {
+    if (persistentCache != null) {
+      InsightsResponse ret = persistentGet(key);
+      if (ret != null) {
+        persistentHits.inc();
+        return ret;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    InsightsResponse ret = query(ipAddress, email);
+    latency.update(System.currentTimeMillis() - start);
+    if (ret != null && persistentCache != null) {
+      persistentSet(key, ret);
+    }
+    return ret;
+  }
+
+  private InsightsResponse query(String ipAddress, String email) {
     Transaction.Builder txb;
     try {
       txb = new Transaction.Builder(new Device.Builder(InetAddress.getByName(ipAddress)).build());
@@ -168,8 +373,20 @@ public class Minfraud implements Serializable {
    *     RuntimeSecrets
    */
   public Minfraud(String accountId, String licenseKey, String project) {
+    this(buildClient(accountId, licenseKey, project));
+  }
+
+  /**
+   * Create Minfraud using an existing client
+   *
+   * @param client WebServiceClient
+   */
+  Minfraud(WebServiceClient client) {
     log = LoggerFactory.getLogger(Minfraud.class);
+    mfClient = client;
+  }
 
+  private static WebServiceClient buildClient(String accountId, String licenseKey, String project) {
     String accountIdDecrypted;
     try {
       accountIdDecrypted = RuntimeSecrets.interpretSecret(accountId, project);
@@ -184,9 +401,8 @@ public class Minfraud implements Serializable {
       throw new RuntimeException(exc.getMessage());
     }
 
-    mfClient =
-        new WebServiceClient.Builder(Integer.parseInt(accountIdDecrypted), licenseKeyDecrypted)
-            .build();
+    return new WebServiceClient.Builder(Integer.parseInt(accountIdDecrypted), licenseKeyDecrypted)
+        .build();
   }
 
   /**
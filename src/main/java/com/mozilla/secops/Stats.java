@@ -218,6 +218,16 @@ public class Stats extends PTransform<PCollection<Long>, PCollection<Stats.Stats
         .apply("stats view", View.<StatsOutput>asSingleton().withDefaultValue(new StatsOutput()));
   }
 
+  /**
+   * Return a transform that calculates statistics for each key in a keyed collection of values
+   *
+   * @param <K> Key type
+   * @return Per-key combine transform
+   */
+  public static <K> Combine.PerKey<K, Long, StatsOutput> perKey() {
+    return Combine.<K, Long, StatsOutput>perKey(new StatsCombiner());
+  }
+
   @Override
   public PCollection<StatsOutput> expand(PCollection<Long> input) {
     return input.apply("stats", Combine.globally(new StatsCombiner()).withoutDefaults());
@@ -181,6 +181,9 @@ public class Violation {
         "useragent_blocklist",
         new GenericSourceViolationGenerator(ViolationType.USERAGENT_BLOCKLIST_VIOLATION));
     vMap.put("hard_limit", new GenericSourceViolationGenerator(ViolationType.HARD_LIMIT_VIOLATION));
+    vMap.put(
+        "heavy_hitter",
+        new GenericSourceViolationGenerator(ViolationType.REQUEST_THRESHOLD_VIOLATION));
     vMap.put(
         "per_endpoint_error_rate",
         new GenericSourceViolationGenerator(ViolationType.PER_ENDPOINT_ERROR_RATE_VIOLATION));
@@ -440,7 +440,10 @@ public class Watchlist {
                   kind, Watchlist.watchlistDatastoreNamespace, cmd.getOptionValue("p")));
       s.initialize();
       StateCursor<Watchlist.WatchlistEntry> c = s.newCursor(Watchlist.WatchlistEntry.class, true);
-      c.set(we.getObject(), we);
+      // Store the entry with a TTL matching its expiry time, so it is no longer returned once
+      // it has expired
+      int ttl = (int) ((we.getExpiresAt().getMillis() - new DateTime().getMillis()) / 1000);
+      c.set(we.getObject(), we, Math.max(ttl, 1));
       c.commit();
       s.done();
       System.out.println("Successfully submitted watchlist entry to " + cmd.getOptionValue("p"));
@@ -15,6 +15,7 @@ public class AlertFormatter extends DoFn<Alert, Alert> {
   private String[] addressFields;
   private String maxmindCityDbPath;
   private String maxmindIspDbPath;
+  private boolean maxmindDbMemoryMap;
   private GeoIP geoip;
 
   /**
@@ -40,6 +41,7 @@ public class AlertFormatter extends DoFn<Alert, Alert> {
     monitoredResourceIndicator = options.getMonitoredResourceIndicator();
     maxmindCityDbPath = options.getMaxmindCityDbPath();
     maxmindIspDbPath = options.getMaxmindIspDbPath();
+    maxmindDbMemoryMap = options.getMaxmindDbMemoryMap();
   }
 
   /**
@@ -123,7 +125,7 @@ public class AlertFormatter extends DoFn<Alert, Alert> {
   @Setup
   public void setup() {
     if (maxmindCityDbPath != null || maxmindIspDbPath != null) {
-      geoip = new GeoIP(maxmindCityDbPath, maxmindIspDbPath);
+      geoip = new GeoIP(maxmindCityDbPath, maxmindIspDbPath, maxmindDbMemoryMap);
     }
   }
 
@@ -1,5 +1,6 @@
 package com.mozilla.secops.amo;
 
+import com.mozilla.secops.AsyncEnrich;
 import com.mozilla.secops.DocumentingTransform;
 import com.mozilla.secops.IprepdIO;
 import com.mozilla.secops.alert.Alert;
@@ -11,10 +12,14 @@ import com.mozilla.secops.window.GlobalTriggers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.regex.Pattern;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.VarIntCoder;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.Flatten;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionList;
 
@@ -64,6 +69,60 @@ public class FxaAccountAbuseNewVersion extends PTransform<PCollection<Event>, PC
         Arrays.toString(banAccounts));
   }
 
+  /**
+   * Looks up iprepd reputation for applicable AMO events
+   *
+   * <p>For profile fetches the reputation of the FxA email is returned, and for addon submissions
+   * the reputation of the remote address. If the lookup could not be completed, a reputation of 100
+   * is used, consistent with how {@link IprepdIO.Reader} handles errors.
+   */
+  private static class ReputationEnricher
+      implements AsyncEnrich.Enricher<Event, KV<Event, Integer>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String iprepdSpec;
+    private final String project;
+    private transient IprepdIO.Reader iprepdReader;
+
+    ReputationEnricher(String iprepdSpec, String project) {
+      this.iprepdSpec = iprepdSpec;
+      this.project = project;
+    }
+
+    @Override
+    public void setup() {
+      iprepdReader = IprepdIO.getReader(iprepdSpec, project);
+    }
+
+    private static String[] getLookup(Event e) {
+      if (!e.getPayloadType().equals(Payload.PayloadType.AMODOCKER)) {
+        return null;
+      }
+      AmoDocker d = e.getPayload();
+      if (d.getEventType().equals(AmoDocker.EventType.GOTPROFILE)) {
+        return new String[] {"email", d.getFxaEmail()};
+      } else if ((d.getEventType().equals(AmoDocker.EventType.NEWVERSION))
+          || (d.getEventType().equals(AmoDocker.EventType.FILEUPLOAD))) {
+        return new String[] {"ip", d.getRemoteIp()};
+      }
+      return null;
+    }
+
+    @Override
+    public KV<Event, Integer> enrich(Event e) {
+      String[] l = getLookup(e);
+      if (l == null) {
+        return null;
+      }
+      return KV.of(e, iprepdReader.getReputation(l[0], l[1]));
+    }
+
+    @Override
+    public KV<Event, Integer> fallback(Event e) {
+      return getLookup(e) == null ? null : KV.of(e, 100);
+    }
+  }
+
   @Override
   public PCollection<Alert> expand(PCollection<Event> col) {
     PCollection<Event> wEvents =
@@ -159,78 +218,71 @@ public class FxaAccountAbuseNewVersion extends PTransform<PCollection<Event>, PC
 
     alerts =
         alerts.and(
-            wEvents.apply(
-                "fxa account abuse new version",
-                ParDo.of(
-                    new DoFn<Event, Alert>() {
-                      private static final long serialVersionUID = 1L;
-
-                      private IprepdIO.Reader iprepdReader;
-
-                      @Setup
-                      public void setup() {
-                        iprepdReader = IprepdIO.getReader(iprepdSpec, project);
-                      }
+            wEvents
+                .apply(
+                    "fxa account abuse new version reputation",
+                    new AsyncEnrich<Event, KV<Event, Integer>>(
+                        "fxa_account_abuse_new_version_reputation",
+                        new ReputationEnricher(iprepdSpec, project),
+                        KvCoder.of(SerializableCoder.of(Event.class), VarIntCoder.of())))
+                .apply(
+                    "fxa account abuse new version",
+                    ParDo.of(
+                        new DoFn<KV<Event, Integer>, Alert>() {
+                          private static final long serialVersionUID = 1L;
 
-                      @ProcessElement
-                      public void processElement(ProcessContext c) {
-                        Event e = c.element();
-
-                        if (!e.getPayloadType().equals(Payload.PayloadType.AMODOCKER)) {
-                          return;
-                        }
+                          @ProcessElement
+                          public void processElement(ProcessContext c) {
+                            AmoDocker d = c.element().getKey().getPayload();
+                            Integer rep = c.element().getValue();
 
-                        AmoDocker d = e.getPayload();
-                        if (d.getEventType().equals(AmoDocker.EventType.GOTPROFILE)) {
-                          // This was a profile fetch, compare the email account against stored
-                          // account reputation information.
-                          Integer rep = iprepdReader.getReputation("email", d.getFxaEmail());
-
-                          if (rep <= 50) {
-                            Alert alert = new Alert();
-                            alert.setCategory("amo");
-                            alert.setNotifyMergeKey("fxa_account_abuse_new_version_login");
-                            alert.addMetadata(AlertMeta.Key.SOURCEADDRESS, d.getRemoteIp());
-                            alert.addMetadata(AlertMeta.Key.EMAIL, d.getFxaEmail());
-                            alert.addMetadata(
-                                AlertMeta.Key.ALERT_SUBCATEGORY_FIELD,
-                                "fxa_account_abuse_new_version_login");
-                            alert.setSummary(
-                                String.format(
-                                    "%s login to amo from suspected fraudulent account, %s from %s",
-                                    monitoredResource, d.getFxaEmail(), d.getRemoteIp()));
-                            c.output(alert);
-                            return;
-                          }
-                        } else if ((d.getEventType().equals(AmoDocker.EventType.NEWVERSION))
-                            || (d.getEventType().equals(AmoDocker.EventType.FILEUPLOAD))) {
-                          Integer rep = iprepdReader.getReputation("ip", d.getRemoteIp());
-                          if (rep > 50) {
-                            return;
-                          }
-                          // Address had a sufficiently low reputation score
-                          Alert alert = new Alert();
-                          alert.setCategory("amo");
-                          alert.setNotifyMergeKey("fxa_account_abuse_new_version_submission");
-                          alert.addMetadata(AlertMeta.Key.SOURCEADDRESS, d.getRemoteIp());
-                          alert.addMetadata(
-                              AlertMeta.Key.ALERT_SUBCATEGORY_FIELD,
-                              "fxa_account_abuse_new_version_submission");
-                          if (d.getAddonId() != null) {
-                            alert.addMetadata(AlertMeta.Key.ADDON_ID, d.getAddonId());
+                            if (d.getEventType().equals(AmoDocker.EventType.GOTPROFILE)) {
+                              // This was a profile fetch, compare the email account against
+                              // stored account reputation information.
+                              if (rep <= 50) {
+                                Alert alert = new Alert();
+                                alert.setCategory("amo");
+                                alert.setNotifyMergeKey("fxa_account_abuse_new_version_login");
+                                alert.addMetadata(AlertMeta.Key.SOURCEADDRESS, d.getRemoteIp());
+                                alert.addMetadata(AlertMeta.Key.EMAIL, d.getFxaEmail());
+                                alert.addMetadata(
+                                    AlertMeta.Key.ALERT_SUBCATEGORY_FIELD,
+                                    "fxa_account_abuse_new_version_login");
+                                alert.setSummary(
+                                    String.format(
+                                        "%s login to amo from suspected fraudulent account, %s "
+                                            + "from %s",
+                                        monitoredResource, d.getFxaEmail(), d.getRemoteIp()));
+                                c.output(alert);
+                                return;
+                              }
+                            } else {
+                              if (rep > 50) {
+                                return;
+                              }
+                              // Address had a sufficiently low reputation score
+                              Alert alert = new Alert();
+                              alert.setCategory("amo");
+                              alert.setNotifyMergeKey("fxa_account_abuse_new_version_submission");
+                              alert.addMetadata(AlertMeta.Key.SOURCEADDRESS, d.getRemoteIp());
+                              alert.addMetadata(
+                                  AlertMeta.Key.ALERT_SUBCATEGORY_FIELD,
+                                  "fxa_account_abuse_new_version_submission");
+                              if (d.getAddonId() != null) {
+                                alert.addMetadata(AlertMeta.Key.ADDON_ID, d.getAddonId());
+                              }
+                              if (d.getAddonVersion() != null) {
+                                alert.addMetadata(AlertMeta.Key.ADDON_VERSION, d.getAddonVersion());
+                              }
+                              alert.setSummary(
+                                  String.format(
+                                      "%s addon submission from address associated with "
+                                          + "suspected fraudulent account, %s",
+                                      monitoredResource, d.getRemoteIp()));
+                              c.output(alert);
+                            }
                           }
-                          if (d.getAddonVersion() != null) {
-                            alert.addMetadata(AlertMeta.Key.ADDON_VERSION, d.getAddonVersion());
-                          }
-                          alert.setSummary(
-                              String.format(
-                                  "%s addon submission from address associated with suspected "
-                                      + "fraudulent account, %s",
-                                  monitoredResource, d.getRemoteIp()));
-                          c.output(alert);
-                        }
-                      }
-                    })));
+                        })));
 
     return alerts.apply("flatten fxa account abuse", Flatten.<Alert>pCollections());
   }
@@ -1,6 +1,8 @@
 package com.mozilla.secops.authprofile;
 
+import com.mozilla.secops.CanonicalHostResolver;
 import com.mozilla.secops.CidrUtil;
+import com.mozilla.secops.CloudProviderSnapshot;
 import com.mozilla.secops.DocumentingTransform;
 import com.mozilla.secops.IOOptions;
 import com.mozilla.secops.Minfraud;
@@ -13,6 +15,7 @@ import com.mozilla.secops.authstate.AuthStateModel;
 import com.mozilla.secops.authstate.PruningStrategyEntryAge;
 import com.mozilla.secops.identity.Identity;
 import com.mozilla.secops.identity.IdentityManager;
+import com.mozilla.secops.identity.SharedIdentityManager;
 import com.mozilla.secops.input.Input;
 import com.mozilla.secops.metrics.CfgTickBuilder;
 import com.mozilla.secops.metrics.CfgTickProcessor;
@@ -26,17 +29,23 @@ import com.mozilla.secops.parser.ParserDoFn;
 import com.mozilla.secops.parser.Payload;
 import com.mozilla.secops.state.DatastoreStateInterface;
 import com.mozilla.secops.state.MemcachedStateInterface;
+import com.mozilla.secops.state.RedisStateInterface;
 import com.mozilla.secops.state.State;
+import com.mozilla.secops.state.StateConflictException;
 import com.mozilla.secops.state.StateCursor;
 import com.mozilla.secops.state.StateException;
+import com.mozilla.secops.state.StateInterface;
 import com.mozilla.secops.window.GlobalTriggers;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.metrics.Gauge;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.options.Default;
 import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptions;
@@ -53,8 +62,6 @@ import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionList;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
-import org.joda.time.Duration;
-import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,36 +77,39 @@ public class AuthProfile implements Serializable {
   private static final String SLACK_TEMPLATE = "slack/authprofile.ftlh";
   private static final String[] ALERT_TEMPLATES = new String[] {EMAIL_TEMPLATE, SLACK_TEMPLATE};
 
-  private static IdentityManager globalIdm;
-  private static Instant globalIdmLoaded;
-  private static ReentrantLock globalIdmLock = new ReentrantLock();
-  private static final Duration globalIdmRefresh = Duration.standardMinutes(5);
+  private static final long DEFAULT_IDM_REFRESH_SECONDS = 300L;
+  private static final Gauge idmVersion =
+      Metrics.gauge(AuthProfile.class, "identity_manager_version");
 
   /**
    * Load a process shared version of the identity manager
    *
    * <p>Requests the current identity manager for use. In an attempt to be as consistent as possible
-   * across worker threads, the identity manager is shared. If the identity manager is more than 5
-   * minutes old, a new version is requested from storage.
+   * across worker threads, the identity manager is shared. Once loaded, the identity manager is
+   * refreshed from storage in the background every refreshSeconds, and callers are always returned
+   * the most recent successfully loaded version without blocking.
    *
-   * <p>This function will pick up a mutex on entry which is released on return.
+   * @param path Identity manager path
+   * @param refreshSeconds Refresh interval in seconds
+   * @return IdentityManager
+   * @throws IOException IOException
+   */
+  public static IdentityManager getIdentityManager(String path, long refreshSeconds)
+      throws IOException {
+    SharedIdentityManager sidm = SharedIdentityManager.get(path, refreshSeconds);
+    idmVersion.set(sidm.getVersion());
+    return sidm.current();
+  }
+
+  /**
+   * Load a process shared version of the identity manager, using the default refresh interval
    *
    * @param path Identity manager path
    * @return IdentityManager
    * @throws IOException IOException
    */
   public static IdentityManager getIdentityManager(String path) throws IOException {
-    globalIdmLock.lock();
-    try {
-      if ((globalIdmLoaded == null)
-          || (new Instant().isAfter(globalIdmLoaded.plus(globalIdmRefresh)))) {
-        globalIdmLoaded = new Instant();
-        globalIdm = IdentityManager.load(path);
-      }
-      return globalIdm;
-    } finally {
-      globalIdmLock.unlock();
-    }
+    return getIdentityManager(path, DEFAULT_IDM_REFRESH_SECONDS);
   }
 
   /**
@@ -255,6 +265,7 @@ public class AuthProfile implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private final String idmanagerPath;
+    private final Long idmanagerRefreshSeconds;
     private final Boolean ignoreUnknownIdentities;
     private Logger log;
 
@@ -265,6 +276,7 @@ public class AuthProfile implements Serializable {
      */
     public ExtractIdentity(AuthProfileOptions options) {
       idmanagerPath = options.getIdentityManagerPath();
+      idmanagerRefreshSeconds = options.getIdentityManagerRefreshSeconds();
       ignoreUnknownIdentities = options.getIgnoreUnknownIdentities();
     }
 
@@ -280,7 +292,7 @@ public class AuthProfile implements Serializable {
       IdentityManager idmanager;
 
       try {
-        idmanager = AuthProfile.getIdentityManager(idmanagerPath);
+        idmanager = AuthProfile.getIdentityManager(idmanagerPath, idmanagerRefreshSeconds);
       } catch (IOException exc) {
         throw new RuntimeException(exc.getMessage());
       }
@@ -553,9 +565,12 @@ public class AuthProfile implements Serializable {
 
     private final String memcachedHost;
     private final Integer memcachedPort;
+    private final String redisHost;
+    private final Integer redisPort;
     private final String datastoreNamespace;
     private final String datastoreKind;
     private final String idmanagerPath;
+    private final Long idmanagerRefreshSeconds;
     private final Double maxKilometersPerSecond;
     private final String maxmindAccountId;
     private final String maxmindLicenseKey;
@@ -564,9 +579,20 @@ public class AuthProfile implements Serializable {
     private final String contactEmail;
     private final String docLink;
     private final Boolean useEventTimestampForAlert;
+    private final Boolean minfraudPersistentCache;
+    private final Integer maxStateEntries;
+    private final String cloudProviderSnapshot;
+    private final Integer cloudProviderSnapshotMaxAgeDays;
     private CidrUtil cidrGcp;
     private Logger log;
+
+    private static final Pattern GCP_CANONICAL_HOST = Pattern.compile(".*\\.google\\.com$");
+
+    /** Number of times a batch of events for an identity is applied before giving up on state */
+    private static final int STATE_TRANSACTION_ATTEMPTS = 3;
+
     private State state;
+    private State minfraudState;
     private Minfraud minfraud;
 
     /**
@@ -577,9 +603,12 @@ public class AuthProfile implements Serializable {
     public StateAnalyze(AuthProfileOptions options) {
       memcachedHost = options.getMemcachedHost();
       memcachedPort = options.getMemcachedPort();
+      redisHost = options.getRedisHost();
+      redisPort = options.getRedisPort();
       datastoreNamespace = options.getDatastoreNamespace();
       datastoreKind = options.getDatastoreKind();
       idmanagerPath = options.getIdentityManagerPath();
+      idmanagerRefreshSeconds = options.getIdentityManagerRefreshSeconds();
       maxKilometersPerSecond = options.getMaximumKilometersPerHour() / 3600.0;
       maxKilometersStatic = options.getMaximumKilometersFromLastLogin();
       maxmindAccountId = options.getMaxmindAccountId();
@@ -588,6 +617,17 @@ public class AuthProfile implements Serializable {
       contactEmail = options.getContactEmail();
       docLink = options.getDocLink();
       useEventTimestampForAlert = options.getUseEventTimestampForAlert();
+      minfraudPersistentCache = options.getMinfraudPersistentCache();
+      maxStateEntries = options.getMaxStateEntries();
+      cloudProviderSnapshot = options.getCloudProviderSnapshot();
+      cloudProviderSnapshotMaxAgeDays = options.getCloudProviderSnapshotMaxAgeDays();
+
+      // Memcached state has no separate keyspace for each kind, so the persistent cache would
+      // share keys with authentication state
+      if (minfraudPersistentCache && memcachedHost != null && memcachedPort != null) {
+        throw new IllegalArgumentException(
+            "minfraud persistent cache is not supported with memcached state");
+      }
     }
 
     /** {@inheritDoc} */
@@ -600,27 +640,58 @@ public class AuthProfile implements Serializable {
       log = LoggerFactory.getLogger(StateAnalyze.class);
 
       cidrGcp = new CidrUtil();
-      cidrGcp.loadGcpSubnets();
-
-      if (memcachedHost != null && memcachedPort != null) {
-        log.info("using memcached for state management");
-        state = new State(new MemcachedStateInterface(memcachedHost, memcachedPort));
-      } else if (datastoreNamespace != null && datastoreKind != null) {
-        log.info("using datastore for state management");
-        state = new State(new DatastoreStateInterface(datastoreKind, datastoreNamespace));
+      if (cloudProviderSnapshot != null) {
+        cidrGcp.loadCloudProviderSnapshot(
+            cloudProviderSnapshot,
+            cloudProviderSnapshotMaxAgeDays,
+            false,
+            CloudProviderSnapshot.PROVIDER_GCP);
       } else {
-        throw new IllegalArgumentException("could not find valid state parameters in options");
+        cidrGcp.loadGcpSubnets();
       }
+
+      state = new State(newStateInterface(datastoreKind));
       state.initialize();
 
       if (maxmindAccountId != null || maxmindLicenseKey != null) {
         minfraud = new Minfraud(maxmindAccountId, maxmindLicenseKey, gcpProject);
+        if (minfraudPersistentCache) {
+          // The persistent cache uses its own kind, so it is kept apart from authentication state
+          minfraudState = new State(newStateInterface(Minfraud.PERSISTENT_CACHE_KIND));
+          minfraudState.initialize();
+          minfraud.setPersistentCache(minfraudState);
+        }
+      }
+    }
+
+    /**
+     * Create the state interface used for the given kind based on the pipeline options
+     *
+     * <p>Package-private so tests can substitute the state implementation.
+     *
+     * @param kind Kind value to use for stored objects
+     * @return State interface
+     */
+    StateInterface newStateInterface(String kind) {
+      if (memcachedHost != null && memcachedPort != null) {
+        log.info("using memcached for state management, {}", kind);
+        return new MemcachedStateInterface(memcachedHost, memcachedPort);
+      } else if (redisHost != null && redisPort != null) {
+        log.info("using redis for state management, {}", kind);
+        return new RedisStateInterface(redisHost, redisPort, datastoreNamespace, kind);
+      } else if (datastoreNamespace != null && datastoreKind != null) {
+        log.info("using datastore for state management, {}", kind);
+        return new DatastoreStateInterface(kind, datastoreNamespace);
       }
+      throw new IllegalArgumentException("could not find valid state parameters in options");
     }
 
     @Teardown
     public void teardown() {
       state.done();
+      if (minfraudState != null) {
+        minfraudState.done();
+      }
     }
 
     private String getEntryKey(String ipAddr, IdentityManager idmanager) {
@@ -748,19 +819,28 @@ public class AuthProfile implements Serializable {
       a.addToPayload(payload);
     }
 
-    @ProcessElement
-    public void processElement(ProcessContext c) throws StateException {
-      Iterable<Event> events = c.element().getValue();
-      String userIdentity = c.element().getKey();
-      IdentityManager idmanager;
-
-      try {
-        idmanager = AuthProfile.getIdentityManager(idmanagerPath);
-      } catch (IOException exc) {
-        throw new RuntimeException(exc.getMessage());
-      }
-      Identity identity = idmanager.getIdentity(userIdentity);
+    private boolean isGcpInternal(
+        Event e, HashMap<String, CompletableFuture<Boolean>> gcpHostLookups) {
+      return e.getPayloadType().equals(Payload.PayloadType.GCPAUDIT)
+          && (cidrGcp.contains(e.getNormalized().getSourceAddress())
+              || CanonicalHostResolver.getDefault()
+                  .await(gcpHostLookups.get(e.getNormalized().getSourceAddress()), false));
+    }
 
+    /**
+     * Analyze events for an identity in event order, returning the resulting alerts
+     *
+     * <p>If the identity is tracked, each event updates the supplied state model, otherwise the
+     * model is not used and may be null. The model is not persisted here.
+     */
+    private ArrayList<Alert> analyzeEvents(
+        ArrayList<Event> events,
+        String userIdentity,
+        Identity identity,
+        IdentityManager idmanager,
+        HashMap<String, CompletableFuture<Boolean>> gcpHostLookups,
+        AuthStateModel sm) {
+      ArrayList<Alert> ret = new ArrayList<>();
       ArrayList<String> seenKnownAddresses = new ArrayList<>();
 
       for (Event e : events) {
@@ -780,17 +860,14 @@ public class AuthProfile implements Serializable {
           continue;
         }
 
-        if ((e.getPayloadType().equals(Payload.PayloadType.GCPAUDIT))
-            && ((cidrGcp.contains(e.getNormalized().getSourceAddress()))
-                || (CidrUtil.resolvedCanonicalHostMatches(
-                    e.getNormalized().getSourceAddress(), ".*\\.google\\.com$")))) {
+        if (isGcpInternal(e, gcpHostLookups)) {
           // Skip AlertIO if it's a GCP event from GCP source, we can also skip the remainder of the
           // logic here
           a.addMetadata(AlertMeta.Key.ALERTIO_IGNORE_EVENT, "true");
           a.addMetadata(AlertMeta.Key.STATE_ACTION_TYPE, ActionType.GCP_INTERNAL.toString());
           buildAlertSummary(e, a);
           buildAlertPayload(e, a);
-          c.output(a);
+          ret.add(a);
           continue;
         }
 
@@ -803,15 +880,7 @@ public class AuthProfile implements Serializable {
           // We also want to skip AlertIO for untracked identities here
           a.addMetadata(AlertMeta.Key.ALERTIO_IGNORE_EVENT, "true");
         } else {
-          // AuthStateModel expects a cursor that has been allocated as a transaction
-          StateCursor<AuthStateModel> cur = state.newCursor(AuthStateModel.class, true);
-
           a.addMetadata(AlertMeta.Key.IDENTITY_KEY, userIdentity);
-          // The event was for a tracked identity, initialize the state model
-          AuthStateModel sm = AuthStateModel.get(userIdentity, cur, new PruningStrategyEntryAge());
-          if (sm == null) {
-            sm = new AuthStateModel(userIdentity);
-          }
 
           String entryKey = getEntryKey(e.getNormalized().getSourceAddress(), idmanager);
           if (!entryKey.equals(e.getNormalized().getSourceAddress())) {
@@ -928,22 +997,122 @@ public class AuthProfile implements Serializable {
             a.addMetadata(AlertMeta.Key.STATE_ACTION_TYPE, ActionType.KNOWN_IP.toString());
             buildAlertPayload(e, a);
           }
+        }
+
+        if (a.getSeverity().equals(Alert.AlertSeverity.WARNING)) {
+          addEscalationMetadata(a, identity, userIdentity, onlyNotify);
+        }
+        buildAlertSummary(e, a);
+        if (useEventTimestampForAlert) {
+          a.setTimestamp(e.getTimestamp());
+        }
+        ret.add(a);
+      }
+      return ret;
+    }
+
+    private PruningStrategyEntryAge getPruningStrategy() {
+      PruningStrategyEntryAge ret = new PruningStrategyEntryAge();
+      ret.setMaxEntries(maxStateEntries);
+      return ret;
+    }
+
+    /**
+     * Apply all events for a tracked identity to the state model using a single transaction
+     *
+     * <p>If the commit fails due to a concurrent update of the model, the model is read again and
+     * the events are replayed against it, up to {@link #STATE_TRANSACTION_ATTEMPTS} times. The
+     * alerts from the last replay are returned.
+     */
+    private ArrayList<Alert> analyzeEventsWithState(
+        ArrayList<Event> events,
+        String userIdentity,
+        Identity identity,
+        IdentityManager idmanager,
+        HashMap<String, CompletableFuture<Boolean>> gcpHostLookups)
+        throws StateException {
+      for (int attempt = 1; ; attempt++) {
+        // AuthStateModel expects a cursor that has been allocated as a transaction
+        StateCursor<AuthStateModel> cur = state.newCursor(AuthStateModel.class, true);
+        try {
+          AuthStateModel sm = AuthStateModel.get(userIdentity, cur, getPruningStrategy());
+          if (sm == null) {
+            sm = new AuthStateModel(userIdentity);
+          }
+          ArrayList<Alert> ret =
+              analyzeEvents(events, userIdentity, identity, idmanager, gcpHostLookups, sm);
 
           // Update persistent state with new information
           try {
-            sm.set(cur, new PruningStrategyEntryAge());
+            sm.set(cur, getPruningStrategy());
+            return ret;
+          } catch (StateConflictException exc) {
+            if (attempt >= STATE_TRANSACTION_ATTEMPTS) {
+              log.error("{}: error updating state: {}", userIdentity, exc.getMessage());
+              return ret;
+            }
+            log.info(
+                "{}: state update conflicted, replaying {} events", userIdentity, events.size());
+            state.recordTransactionRetry();
           } catch (StateException exc) {
             log.error("{}: error updating state: {}", userIdentity, exc.getMessage());
+            return ret;
           }
+        } finally {
+          // Release anything still held by the transaction if it was not committed
+          cur.close();
         }
+      }
+    }
 
-        if (a.getSeverity().equals(Alert.AlertSeverity.WARNING)) {
-          addEscalationMetadata(a, identity, userIdentity, onlyNotify);
+    @ProcessElement
+    public void processElement(ProcessContext c) throws StateException {
+      String userIdentity = c.element().getKey();
+      ArrayList<Event> events = new ArrayList<>();
+      for (Event e : c.element().getValue()) {
+        events.add(e);
+      }
+      IdentityManager idmanager;
+
+      try {
+        idmanager = AuthProfile.getIdentityManager(idmanagerPath, idmanagerRefreshSeconds);
+      } catch (IOException exc) {
+        throw new RuntimeException(exc.getMessage());
+      }
+      Identity identity = idmanager.getIdentity(userIdentity);
+
+      // Issue canonical host lookups for any GCP events that did not originate from a known GCP
+      // subnet up front, so the lookups for the batch occur concurrently
+      HashMap<String, CompletableFuture<Boolean>> gcpHostLookups = new HashMap<>();
+      for (Event e : events) {
+        String addr = e.getNormalized().getSourceAddress();
+        if (e.getPayloadType().equals(Payload.PayloadType.GCPAUDIT)
+            && !cidrGcp.contains(addr)
+            && !gcpHostLookups.containsKey(addr)) {
+          gcpHostLookups.put(
+              addr, CidrUtil.resolvedCanonicalHostMatchesAsync(addr, GCP_CANONICAL_HOST));
         }
-        buildAlertSummary(e, a);
-        if (useEventTimestampForAlert) {
-          a.setTimestamp(e.getTimestamp());
+      }
+
+      // State is only consulted for tracked identities, and only if an event in the group is
+      // not GCP internal
+      boolean useState = false;
+      if (identity != null) {
+        for (Event e : events) {
+          if (!isGcpInternal(e, gcpHostLookups)) {
+            useState = true;
+            break;
+          }
         }
+      }
+
+      ArrayList<Alert> alerts;
+      if (useState) {
+        alerts = analyzeEventsWithState(events, userIdentity, identity, idmanager, gcpHostLookups);
+      } else {
+        alerts = analyzeEvents(events, userIdentity, identity, idmanager, gcpHostLookups, null);
+      }
+      for (Alert a : alerts) {
         c.output(a);
       }
     }
@@ -974,6 +1143,17 @@ public class AuthProfile implements Serializable {
 
     void setMemcachedPort(Integer value);
 
+    @Description("Use Redis state; hostname of Redis server")
+    String getRedisHost();
+
+    void setRedisHost(String value);
+
+    @Description("Use Redis state; port of Redis server")
+    @Default.Integer(6379)
+    Integer getRedisPort();
+
+    void setRedisPort(Integer value);
+
     @Description("Use Datastore state; namespace for entities")
     String getDatastoreNamespace();
 
@@ -995,6 +1175,12 @@ public class AuthProfile implements Serializable {
 
     void setIgnoreUnknownIdentities(Boolean value);
 
+    @Description("Interval at which identity manager is refreshed from storage; seconds")
+    @Default.Long(300L)
+    Long getIdentityManagerRefreshSeconds();
+
+    void setIdentityManagerRefreshSeconds(Long value);
+
     @Description("Objects to consider for critical object analysis; regex (multiple allowed)")
     String[] getCritObjects();
 
@@ -1017,6 +1203,12 @@ public class AuthProfile implements Serializable {
 
     void setMaximumKilometersFromLastLogin(Double value);
 
+    @Description("Maximum number of source addresses retained in state for each identity")
+    @Default.Integer(PruningStrategyEntryAge.DEFAULTMAXENTRIES)
+    Integer getMaxStateEntries();
+
+    void setMaxStateEntries(Integer value);
+
     @Description("General contact address used in alert templates; email address")
     @Validation.Required
     String getContactEmail();
@@ -1035,6 +1227,26 @@ public class AuthProfile implements Serializable {
 
     void setUseEventTimestampForAlert(Boolean value);
 
+    @Description(
+        "Also cache minFraud insights responses in state storage; not supported with memcached")
+    @Default.Boolean(false)
+    Boolean getMinfraudPersistentCache();
+
+    void setMinfraudPersistentCache(Boolean value);
+
+    @Description(
+        "Load GCP subnets from cloud provider snapshot instead of live sources; resource path, gcs"
+            + " path")
+    String getCloudProviderSnapshot();
+
+    void setCloudProviderSnapshot(String value);
+
+    @Description("Maximum age of cloud provider snapshot in days before it is considered stale")
+    @Default.Integer(30)
+    Integer getCloudProviderSnapshotMaxAgeDays();
+
+    void setCloudProviderSnapshotMaxAgeDays(Integer value);
+
     @Description(
         "Alternate Slack based critical object analysis escalation for weekdays; "
             + "tz:start_hour:end_hour:channel_id")
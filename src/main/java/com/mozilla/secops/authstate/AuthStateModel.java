@@ -1,23 +1,87 @@
 package com.mozilla.secops.authstate;
 
-import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.mozilla.secops.GeoUtil;
 import com.mozilla.secops.state.StateCursor;
 import com.mozilla.secops.state.StateException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeSet;
 import org.joda.time.DateTime;
-
-/** Manages and stores authentication state information for a given user identity. */
+import org.joda.time.DateTimeZone;
+
+/**
+ * Manages and stores authentication state information for a given user identity.
+ *
+ * <p>Entries are indexed by address and also kept in timestamp order, so updates, pruning of the
+ * oldest entries and analysis of the latest entries do not require sorting the model. Models are
+ * persisted using a compact binary encoding; models stored in the previous JSON object form can
+ * still be read.
+ */
+@JsonSerialize(using = AuthStateModel.Serializer.class)
+@JsonDeserialize(using = AuthStateModel.Deserializer.class)
 public class AuthStateModel {
   private String subject;
-  private Map<String, ModelEntry> entries;
+  private final HashMap<String, ModelEntry> entries;
+  private final TreeSet<Position> order;
+
+  // Version 1 encoded strings using modified UTF-8 limited to 65535 bytes, and is still readable
+  private static final int BINARY_VERSION_UTF = 1;
+  private static final int BINARY_VERSION = 2;
+  private static final int FLAG_LATITUDE = 1;
+  private static final int FLAG_LONGITUDE = 1 << 1;
+  private static final int FLAG_USERAGENT = 1 << 2;
+
+  /** Position of an entry in the time ordering, entries with equal timestamps order by address */
+  private static class Position implements Comparable<Position> {
+    private final long millis;
+    private final String address;
+
+    Position(DateTime timestamp, String address) {
+      millis = timestamp.getMillis();
+      this.address = address;
+    }
+
+    @Override
+    public int compareTo(Position o) {
+      int c = Long.compare(millis, o.millis);
+      return c != 0 ? c : address.compareTo(o.address);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Position)) {
+        return false;
+      }
+      Position p = (Position) o;
+      return millis == p.millis && address.equals(p.address);
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(millis) * 31 + address.hashCode();
+    }
+  }
 
   /** Response to {@link AuthStateModel} GeoVelocity analysis request */
   public static class GeoVelocityResponse {
@@ -285,42 +349,100 @@ public class AuthStateModel {
     if (timestamp == null) {
       timestamp = new DateTime();
     }
+    Boolean ret = false;
     ModelEntry ent = entries.get(request.ipAddress);
     if (ent == null) { // New entry for this user model
       ent = new ModelEntry();
-      ent.setTimestamp(timestamp);
-      ent.setLatitude(request.latitude);
-      ent.setLongitude(request.longitude);
-      ent.setUserAgent(request.userAgent);
-      entries.put(request.ipAddress, ent);
-      return true;
+      ret = true;
+    } else { // Known entry, reposition it using the new timestamp
+      order.remove(new Position(ent.getTimestamp(), request.ipAddress));
     }
-
-    // Known entry, update it
     ent.setTimestamp(timestamp);
     ent.setLatitude(request.latitude);
     ent.setLongitude(request.longitude);
     ent.setUserAgent(request.userAgent);
-    return false;
+    addEntry(request.ipAddress, ent);
+    return ret;
+  }
+
+  private void addEntry(String address, ModelEntry ent) {
+    if (ent.getTimestamp() == null) {
+      throw new IllegalArgumentException("model entry must have a timestamp");
+    }
+    entries.put(address, ent);
+    order.add(new Position(ent.getTimestamp(), address));
+  }
+
+  /**
+   * Remove an entry from the model
+   *
+   * @param address Address to remove
+   * @return True if the entry existed
+   */
+  public boolean removeEntry(String address) {
+    ModelEntry ent = entries.remove(address);
+    if (ent == null) {
+      return false;
+    }
+    order.remove(new Position(ent.getTimestamp(), address));
+    return true;
+  }
+
+  /**
+   * Remove all entries with a timestamp before the specified time
+   *
+   * @param cutoff Entries older than this timestamp are removed
+   * @return Number of entries removed
+   */
+  public int removeEntriesBefore(DateTime cutoff) {
+    int ret = 0;
+    while (!order.isEmpty() && order.first().millis < cutoff.getMillis()) {
+      entries.remove(order.pollFirst().address);
+      ret++;
+    }
+    return ret;
+  }
+
+  /**
+   * Remove the oldest entries until at most count entries remain in the model
+   *
+   * @param count Maximum number of entries to retain
+   * @return Number of entries removed
+   */
+  public int retainLatest(int count) {
+    int ret = 0;
+    while (order.size() > count) {
+      entries.remove(order.pollFirst().address);
+      ret++;
+    }
+    return ret;
   }
 
   /**
    * Get entries associated with model
    *
+   * <p>The returned map is a read-only view indexed by address. Entries must be modified using the
+   * methods of the model so their ordering is maintained.
+   *
    * @return Map of model entries
    */
-  @JsonProperty("entries")
   public Map<String, ModelEntry> getEntries() {
-    return entries;
+    return Collections.unmodifiableMap(entries);
   }
 
   /**
    * Set entries associated with model
    *
+   * <p>Any existing entries in the model are replaced.
+   *
    * @param entries Map
    */
   public void setEntries(Map<String, ModelEntry> entries) {
-    this.entries = entries;
+    this.entries.clear();
+    order.clear();
+    for (Map.Entry<String, ModelEntry> e : entries.entrySet()) {
+      addEntry(e.getKey(), e.getValue());
+    }
   }
 
   /**
@@ -328,7 +450,6 @@ public class AuthStateModel {
    *
    * @return Subject string
    */
-  @JsonProperty("subject")
   public String getSubject() {
     return subject;
   }
@@ -364,7 +485,8 @@ public class AuthStateModel {
   /**
    * Persist state using state interface
    *
-   * <p>Calling set will also commit and close the cursor.
+   * <p>Calling set will also commit and close the cursor. The model is stored with the TTL returned
+   * by the pruning strategy.
    *
    * @param s Initialized state cursor for request
    * @param ps Pruning strategy
@@ -372,7 +494,7 @@ public class AuthStateModel {
    */
   public void set(StateCursor<AuthStateModel> s, PruningStrategy ps) throws StateException {
     ps.pruneState(this);
-    s.set(subject, this);
+    s.set(subject, this, ps.getStateTtlSeconds());
     s.commit();
   }
 
@@ -390,83 +512,240 @@ public class AuthStateModel {
    * @return GeoVelocityResponse or null
    */
   public GeoVelocityResponse geoVelocityAnalyzeLatest(Double maxKmPerSecond) {
-    ArrayList<AbstractMap.SimpleEntry<String, ModelEntry>> ent = timeSortedEntries();
-
-    int s = ent.size();
-    if (s <= 1) {
+    if (order.size() <= 1) {
       return null;
     }
 
-    AbstractMap.SimpleEntry<String, ModelEntry> prev = ent.get(s - 2);
-    AbstractMap.SimpleEntry<String, ModelEntry> cur = ent.get(s - 1);
+    Position curPos = order.last();
+    Position prevPos = order.lower(curPos);
+    ModelEntry prev = entries.get(prevPos.address);
+    ModelEntry cur = entries.get(curPos.address);
 
     // Make sure we have long/lat for both entries
-    if ((prev.getValue().getLatitude() == null)
-        || (prev.getValue().getLongitude() == null)
-        || (cur.getValue().getLatitude() == null)
-        || (cur.getValue().getLongitude() == null)) {
+    if ((prev.getLatitude() == null)
+        || (prev.getLongitude() == null)
+        || (cur.getLatitude() == null)
+        || (cur.getLongitude() == null)) {
       return null;
     }
 
     Double kmdist =
         GeoUtil.kmBetweenTwoPoints(
-            prev.getValue().getLatitude(),
-            prev.getValue().getLongitude(),
-            cur.getValue().getLatitude(),
-            cur.getValue().getLongitude());
+            prev.getLatitude(), prev.getLongitude(), cur.getLatitude(), cur.getLongitude());
 
-    long td =
-        (cur.getValue().getTimestamp().getMillis() / 1000)
-            - (prev.getValue().getTimestamp().getMillis() / 1000);
+    long td = (cur.getTimestamp().getMillis() / 1000) - (prev.getTimestamp().getMillis() / 1000);
 
     if ((kmdist / td) > maxKmPerSecond) {
       return new GeoVelocityResponse(td, kmdist, true)
-          .withPreviousSource(prev.getKey())
-          .withCurrentSource(cur.getKey());
+          .withPreviousSource(prevPos.address)
+          .withCurrentSource(curPos.address);
     }
     return new GeoVelocityResponse(td, kmdist, false)
-        .withPreviousSource(prev.getKey())
-        .withCurrentSource(cur.getKey());
+        .withPreviousSource(prevPos.address)
+        .withCurrentSource(curPos.address);
   }
 
   /**
    * Return all entries in AuthStateModel as an array list, sorted by timestamp
    *
+   * <p>Entries with the same timestamp are ordered by address.
+   *
    * @return ArrayList
    */
   public ArrayList<AbstractMap.SimpleEntry<String, ModelEntry>> timeSortedEntries() {
-    ArrayList<AbstractMap.SimpleEntry<String, ModelEntry>> ret = new ArrayList<>();
-    for (Map.Entry<String, ModelEntry> entry : entries.entrySet()) {
-      ret.add(new AbstractMap.SimpleEntry<String, ModelEntry>(entry.getKey(), entry.getValue()));
-    }
-    Collections.sort(
-        ret,
-        new Comparator<AbstractMap.SimpleEntry<String, ModelEntry>>() {
-          @Override
-          public int compare(
-              AbstractMap.SimpleEntry<String, ModelEntry> lhs,
-              AbstractMap.SimpleEntry<String, ModelEntry> rhs) {
-            DateTime lhsd = lhs.getValue().getTimestamp();
-            DateTime rhsd = rhs.getValue().getTimestamp();
-            if (lhsd.isAfter(rhsd)) {
-              return 1;
-            } else if (lhsd.isBefore(rhsd)) {
-              return -1;
-            }
-            return 0;
-          }
-        });
+    ArrayList<AbstractMap.SimpleEntry<String, ModelEntry>> ret = new ArrayList<>(order.size());
+    for (Position p : order) {
+      ret.add(new AbstractMap.SimpleEntry<String, ModelEntry>(p.address, entries.get(p.address)));
+    }
     return ret;
   }
 
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    // Zig-zag encode so small negative deltas remain small
+    long v = (value << 1) ^ (value >> 63);
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return (v >>> 1) ^ -(v & 1);
+      }
+    }
+    throw new IOException("malformed variable length integer");
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] b = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, b.length);
+    out.write(b);
+  }
+
+  private static String readString(DataInputStream in, int version) throws IOException {
+    if (version == BINARY_VERSION_UTF) {
+      return in.readUTF();
+    }
+    long len = readVarLong(in);
+    // Validate against the remaining input before allocating, in case the encoding is corrupt
+    if (len < 0 || len > in.available()) {
+      throw new IOException("malformed string length");
+    }
+    byte[] b = new byte[(int) len];
+    in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Encode the model in binary form
+   *
+   * <p>Entries are written in time order, with each timestamp encoded as a variable length delta
+   * from the timestamp of the previous entry. Strings are written as their UTF-8 encoding preceded
+   * by a variable length byte count, so there is no limit on their length.
+   *
+   * @return Encoded model
+   */
+  public byte[] toBytes() {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buf)) {
+      out.writeByte(BINARY_VERSION);
+      out.writeBoolean(subject != null);
+      if (subject != null) {
+        writeString(out, subject);
+      }
+      writeVarLong(out, order.size());
+      long last = 0;
+      for (Position p : order) {
+        ModelEntry ent = entries.get(p.address);
+        writeString(out, p.address);
+        writeVarLong(out, p.millis - last);
+        last = p.millis;
+        int flags = 0;
+        if (ent.getLatitude() != null) {
+          flags |= FLAG_LATITUDE;
+        }
+        if (ent.getLongitude() != null) {
+          flags |= FLAG_LONGITUDE;
+        }
+        if (ent.getUserAgent() != null) {
+          flags |= FLAG_USERAGENT;
+        }
+        out.writeByte(flags);
+        if (ent.getLatitude() != null) {
+          out.writeDouble(ent.getLatitude());
+        }
+        if (ent.getLongitude() != null) {
+          out.writeDouble(ent.getLongitude());
+        }
+        if (ent.getUserAgent() != null) {
+          writeString(out, ent.getUserAgent());
+        }
+      }
+    } catch (IOException exc) {
+      // Not expected when writing to a byte array
+      throw new UncheckedIOException(exc);
+    }
+    return buf.toByteArray();
+  }
+
+  /**
+   * Decode a model previously encoded using {@link #toBytes}
+   *
+   * @param buf Encoded model
+   * @return AuthStateModel
+   * @throws IOException IOException
+   */
+  public static AuthStateModel fromBytes(byte[] buf) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+    int version = in.readUnsignedByte();
+    if (version != BINARY_VERSION && version != BINARY_VERSION_UTF) {
+      throw new IOException(String.format("unsupported model encoding version %d", version));
+    }
+    AuthStateModel ret = new AuthStateModel(in.readBoolean() ? readString(in, version) : null);
+    long count = readVarLong(in);
+    long last = 0;
+    for (long i = 0; i < count; i++) {
+      String address = readString(in, version);
+      last += readVarLong(in);
+      int flags = in.readUnsignedByte();
+      ModelEntry ent = new ModelEntry();
+      ent.setTimestamp(new DateTime(last, DateTimeZone.UTC));
+      if ((flags & FLAG_LATITUDE) != 0) {
+        ent.setLatitude(in.readDouble());
+      }
+      if ((flags & FLAG_LONGITUDE) != 0) {
+        ent.setLongitude(in.readDouble());
+      }
+      if ((flags & FLAG_USERAGENT) != 0) {
+        ent.setUserAgent(readString(in, version));
+      }
+      ret.addEntry(address, ent);
+    }
+    return ret;
+  }
+
+  /** Serializes a model as its binary encoding */
+  static class Serializer extends StdSerializer<AuthStateModel> {
+    private static final long serialVersionUID = 1L;
+
+    Serializer() {
+      super(AuthStateModel.class);
+    }
+
+    @Override
+    public void serialize(AuthStateModel value, JsonGenerator gen, SerializerProvider provider)
+        throws IOException {
+      gen.writeBinary(value.toBytes());
+    }
+  }
+
+  /** Deserializes a model from its binary encoding, or from the object form used previously */
+  static class Deserializer extends StdDeserializer<AuthStateModel> {
+    private static final long serialVersionUID = 1L;
+
+    Deserializer() {
+      super(AuthStateModel.class);
+    }
+
+    @Override
+    public AuthStateModel deserialize(JsonParser p, DeserializationContext ctxt)
+        throws IOException {
+      if (p.getCurrentToken() == JsonToken.VALUE_STRING) {
+        return fromBytes(p.getBinaryValue());
+      }
+      ObjectModel o = ctxt.readValue(p, ObjectModel.class);
+      AuthStateModel ret = new AuthStateModel(o.subject);
+      if (o.entries != null) {
+        ret.setEntries(o.entries);
+      }
+      return ret;
+    }
+  }
+
+  /** Object form of a model, as stored before the binary encoding was introduced */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  static class ObjectModel {
+    @JsonProperty("subject")
+    String subject;
+
+    @JsonProperty("entries")
+    Map<String, ModelEntry> entries;
+  }
+
   /**
    * Create new state model for user
    *
    * @param subject Subject user name
    */
-  @JsonCreator
-  public AuthStateModel(@JsonProperty("subject") String subject) {
+  public AuthStateModel(String subject) {
     this.subject = subject;
     entries = new HashMap<String, ModelEntry>();
+    order = new TreeSet<Position>();
   }
 }
@@ -8,4 +8,17 @@ public interface PruningStrategy {
    * @param s {@link AuthStateModel}
    */
   public void pruneState(AuthStateModel s);
+
+  /**
+   * TTL to apply when a model is persisted
+   *
+   * <p>A strategy that would prune every entry from a model once it reaches a certain age can
+   * return that age here, allowing the state implementation to expire models that are no longer
+   * being updated.
+   *
+   * @return TTL in seconds, or 0 if models should not expire
+   */
+  public default int getStateTtlSeconds() {
+    return 0;
+  }
 }
@@ -1,18 +1,32 @@
 package com.mozilla.secops.authstate;
 
-import java.util.Iterator;
-import java.util.Map;
+import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 
 /**
  * Entry age based pruning
  *
- * <p>Entries in a model are removed according to how old they are.
+ * <p>Entries in a model are removed according to how old they are. The number of entries retained
+ * is also bounded, with the oldest entries removed first.
  */
 public class PruningStrategyEntryAge implements PruningStrategy {
   public static final long DEFAULTPRUNEAGE = 864000L; // 10 days
+  public static final int DEFAULTMAXENTRIES = 256;
 
   private long entryAgePruningSeconds = DEFAULTPRUNEAGE;
+  private int maxEntries = DEFAULTMAXENTRIES;
+
+  /**
+   * Set maximum number of entries retained in the model
+   *
+   * @param maxEntries Maximum number of entries
+   */
+  public void setMaxEntries(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maximum entries must be at least 1");
+    }
+    this.maxEntries = maxEntries;
+  }
 
   /**
    * Set age after which entries will be pruned from the model
@@ -23,22 +37,26 @@ public class PruningStrategyEntryAge implements PruningStrategy {
     this.entryAgePruningSeconds = entryAgePruningSeconds;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Once no entry in a model has been updated within the pruning age, every entry would be
+   * pruned on the next read, so the model can expire after the same period.
+   */
+  public int getStateTtlSeconds() {
+    return (int) Math.min(entryAgePruningSeconds, Integer.MAX_VALUE);
+  }
+
   /**
    * {@inheritDoc}
    *
    * <p>Implementation of method of {@link PruningStrategyEntryAge}
    */
   public void pruneState(AuthStateModel s) {
-    Map<String, AuthStateModel.ModelEntry> entries = s.getEntries();
-
-    Iterator<?> it = entries.entrySet().iterator();
-    while (it.hasNext()) {
-      Map.Entry<?, ?> p = (Map.Entry) it.next();
-      AuthStateModel.ModelEntry me = (AuthStateModel.ModelEntry) p.getValue();
-      long mts = me.getTimestamp().getMillis() / 1000;
-      if ((DateTimeUtils.currentTimeMillis() / 1000) - mts > entryAgePruningSeconds) {
-        it.remove();
-      }
-    }
+    // Entries are compared using second granularity, so remove any entry from a second that is
+    // more than the pruning age before the current second
+    long cutoff = (DateTimeUtils.currentTimeMillis() / 1000) - entryAgePruningSeconds;
+    s.removeEntriesBefore(new DateTime(cutoff * 1000));
+    s.retainLatest(maxEntries);
   }
 }
@@ -191,11 +191,29 @@ public class Customs implements Serializable {
 
     void setMemcachedPort(Integer value);
 
+    @Description("Use Redis state; hostname of Redis server")
+    String getRedisHost();
+
+    void setRedisHost(String value);
+
+    @Description("Use Redis state; port of Redis server")
+    @Default.Integer(6379)
+    Integer getRedisPort();
+
+    void setRedisPort(Integer value);
+
     @Description("Use Datastore state; namespace for entities")
     String getDatastoreNamespace();
 
     void setDatastoreNamespace(String value);
 
+    @Description(
+        "Cache at risk account state locally for the specified number of seconds; 0 to disable")
+    @Default.Integer(0)
+    Integer getAtRiskAccountStateCacheSeconds();
+
+    void setAtRiskAccountStateCacheSeconds(Integer value);
+
     @Description(
         "Enable account creation abuse detector; CustomsAccountCreation, CustomsAccountCreationDist")
     @Default.Boolean(false)
@@ -5,10 +5,12 @@ import com.mozilla.secops.alert.AlertMeta;
 import com.mozilla.secops.customs.CustomsAtRiskAccountState.CustomsAtRiskAccountStateModel;
 import com.mozilla.secops.parser.Event;
 import com.mozilla.secops.parser.FxaAuth;
+import com.mozilla.secops.state.CachingStateInterface;
 import com.mozilla.secops.state.DatastoreStateInterface;
 import com.mozilla.secops.state.State;
 import com.mozilla.secops.state.StateCursor;
 import com.mozilla.secops.state.StateException;
+import com.mozilla.secops.state.StateInterface;
 import com.mozilla.secops.window.GlobalTriggers;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.PTransform;
@@ -41,7 +43,11 @@ public class CustomsLoginFailureForAtRiskAccount
   /** Datastore kind used for state */
   public static final String DATASTORE_KIND = "customs_lfara";
 
+  /** Maximum number of entries held in the local state cache, if enabled */
+  public static final long STATE_CACHE_SIZE = 10000L;
+
   private boolean escalate;
+  private final int stateCacheSeconds;
 
   /** {@inheritDoc} */
   public String getTransformDocDescription() {
@@ -56,6 +62,7 @@ public class CustomsLoginFailureForAtRiskAccount
    */
   public CustomsLoginFailureForAtRiskAccount(Customs.CustomsOptions options) {
     monitoredResource = options.getMonitoredResourceIndicator();
+    stateCacheSeconds = options.getAtRiskAccountStateCacheSeconds();
   }
 
   @Override
@@ -101,8 +108,18 @@ public class CustomsLoginFailureForAtRiskAccount
                   @Setup
                   public void setup() throws StateException {
                     log.info("using datastore for state management");
-                    state =
-                        new State(new DatastoreStateInterface(DATASTORE_KIND, DATASTORE_NAMESPACE));
+                    StateInterface si =
+                        new DatastoreStateInterface(DATASTORE_KIND, DATASTORE_NAMESPACE);
+                    if (stateCacheSeconds > 0) {
+                      // Failed logins for the same account tend to arrive in bursts, so cache
+                      // lookups locally; entries flagged by the status comparator may then take
+                      // up to the cache TTL to be observed
+                      log.info("caching state for {} seconds", stateCacheSeconds);
+                      si =
+                          new CachingStateInterface(
+                              "lfara", si, STATE_CACHE_SIZE, stateCacheSeconds);
+                    }
+                    state = new State(si);
                     state.initialize();
                   }
 
@@ -10,6 +10,7 @@ import com.mozilla.secops.parser.FxaAuth;
 import com.mozilla.secops.parser.GeoIP;
 import com.mozilla.secops.state.DatastoreStateInterface;
 import com.mozilla.secops.state.MemcachedStateInterface;
+import com.mozilla.secops.state.RedisStateInterface;
 import com.mozilla.secops.state.State;
 import com.mozilla.secops.state.StateCursor;
 import com.mozilla.secops.state.StateException;
@@ -42,12 +43,15 @@ public class CustomsVelocity extends PTransform<PCollection<Event>, PCollection<
 
   private final String memcachedHost;
   private final Integer memcachedPort;
+  private final String redisHost;
+  private final Integer redisPort;
   private final String datastoreNamespace;
   private final String monitoredResource;
   private final Logger log = LoggerFactory.getLogger(CustomsVelocity.class);
 
   private final String maxmindCityDbPath;
   private final String maxmindIspDbPath;
+  private final boolean maxmindDbMemoryMap;
 
   private boolean escalate;
   private boolean checkExperimentalParam;
@@ -81,10 +85,13 @@ public class CustomsVelocity extends PTransform<PCollection<Event>, PCollection<
     checkExperimentalParam = options.getEnableVelocityDetectorMonitorOnly();
     memcachedHost = options.getMemcachedHost();
     memcachedPort = options.getMemcachedPort();
+    redisHost = options.getRedisHost();
+    redisPort = options.getRedisPort();
     datastoreNamespace = options.getDatastoreNamespace();
 
     maxmindCityDbPath = options.getMaxmindCityDbPath();
     maxmindIspDbPath = options.getMaxmindIspDbPath();
+    maxmindDbMemoryMap = options.getMaxmindDbMemoryMap();
 
     escalate = options.getEscalateVelocity();
   }
@@ -142,6 +149,12 @@ public class CustomsVelocity extends PTransform<PCollection<Event>, PCollection<
                     if (memcachedHost != null && memcachedPort != null) {
                       log.info("using memcached for state management");
                       state = new State(new MemcachedStateInterface(memcachedHost, memcachedPort));
+                    } else if (redisHost != null && redisPort != null) {
+                      log.info("using redis for state management");
+                      state =
+                          new State(
+                              new RedisStateInterface(
+                                  redisHost, redisPort, datastoreNamespace, VELOCITY_KIND));
                     } else if (datastoreNamespace != null) {
                       log.info("using datastore for state management");
                       state =
@@ -151,7 +164,7 @@ public class CustomsVelocity extends PTransform<PCollection<Event>, PCollection<
                           "could not find valid state parameters in options");
                     }
                     state.initialize();
-                    geoip = new GeoIP(maxmindCityDbPath, maxmindIspDbPath);
+                    geoip = new GeoIP(maxmindCityDbPath, maxmindIspDbPath, maxmindDbMemoryMap);
                   }
 
                   @Teardown
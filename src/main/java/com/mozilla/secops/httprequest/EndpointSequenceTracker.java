@@ -0,0 +1,231 @@
+package com.mozilla.secops.httprequest;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Incremental per-source progress tracking for endpoint sequence abuse analysis
+ *
+ * <p>For each configured sequence, a request for the second endpoint is a violation if it occurred
+ * within the configured delta of the most recent request for the first endpoint that precedes it.
+ * Rather than retaining and sorting every request made by a source, the tracker keeps a bounded
+ * number of recent first endpoint timestamps and a bounded number of second endpoint requests that
+ * have not yet been matched, and advances the violation count as requests are added.
+ *
+ * <p>Requests can be added in any order. A first endpoint request that arrives late will match any
+ * pending second endpoint requests it precedes within the delta, so the result is identical to
+ * processing the requests in timestamp order as long as no more than {@link #CAPACITY} requests for
+ * a given endpoint arrive out of order. Memory use is proportional to the number of configured
+ * sequences rather than to the number of requests made by the source.
+ *
+ * <p>Trackers are compared by value, which allows Beam to verify that a tracker held as an
+ * accumulator or in state has not been mutated unexpectedly.
+ */
+public class EndpointSequenceTracker implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Maximum number of first endpoint and pending second endpoint timestamps per sequence */
+  public static final int CAPACITY = 32;
+
+  private final SequenceProgress[] progress;
+
+  private static class Pending implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long timestamp;
+    private final String userAgent;
+
+    Pending(long timestamp, String userAgent) {
+      this.timestamp = timestamp;
+      this.userAgent = userAgent;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Pending)) {
+        return false;
+      }
+      Pending p = (Pending) o;
+      return timestamp == p.timestamp && Objects.equals(userAgent, p.userAgent);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(timestamp, userAgent);
+    }
+  }
+
+  private static class SequenceProgress implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long deltaMs;
+
+    // Both lists are kept sorted in ascending timestamp order
+    private final ArrayList<Long> firsts = new ArrayList<>();
+    private final ArrayList<Pending> pending = new ArrayList<>();
+
+    private int count;
+    private Long lastViolationTimestamp;
+    private String lastViolationUserAgent;
+
+    SequenceProgress(long deltaMs) {
+      this.deltaMs = deltaMs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SequenceProgress)) {
+        return false;
+      }
+      SequenceProgress p = (SequenceProgress) o;
+      return deltaMs == p.deltaMs
+          && count == p.count
+          && firsts.equals(p.firsts)
+          && pending.equals(p.pending)
+          && Objects.equals(lastViolationTimestamp, p.lastViolationTimestamp)
+          && Objects.equals(lastViolationUserAgent, p.lastViolationUserAgent);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(deltaMs, count, firsts, pending, lastViolationTimestamp);
+    }
+
+    private void violation(long timestamp, String userAgent) {
+      count++;
+      if (lastViolationTimestamp == null || timestamp >= lastViolationTimestamp) {
+        lastViolationTimestamp = timestamp;
+        lastViolationUserAgent = userAgent;
+      }
+    }
+
+    void addFirst(long timestamp) {
+      int i = firsts.size();
+      while (i > 0 && firsts.get(i - 1) > timestamp) {
+        i--;
+      }
+      firsts.add(i, timestamp);
+      if (firsts.size() > CAPACITY) {
+        firsts.remove(0);
+      }
+
+      // Match any pending second endpoint requests that this request precedes within the delta
+      for (int j = pending.size() - 1; j >= 0; j--) {
+        Pending p = pending.get(j);
+        if (p.timestamp >= timestamp && p.timestamp < timestamp + deltaMs) {
+          pending.remove(j);
+          violation(p.timestamp, p.userAgent);
+        }
+      }
+    }
+
+    void addSecond(long timestamp, String userAgent) {
+      for (int i = firsts.size() - 1; i >= 0; i--) {
+        long f = firsts.get(i);
+        if (f <= timestamp) {
+          if (timestamp < f + deltaMs) {
+            violation(timestamp, userAgent);
+            return;
+          }
+          break;
+        }
+      }
+
+      int i = pending.size();
+      while (i > 0 && pending.get(i - 1).timestamp > timestamp) {
+        i--;
+      }
+      pending.add(i, new Pending(timestamp, userAgent));
+      if (pending.size() > CAPACITY) {
+        pending.remove(0);
+      }
+    }
+  }
+
+  /**
+   * Create new tracker
+   *
+   * @param deltaMs Configured delta in milliseconds for each sequence
+   */
+  public EndpointSequenceTracker(long[] deltaMs) {
+    progress = new SequenceProgress[deltaMs.length];
+    for (int i = 0; i < deltaMs.length; i++) {
+      progress[i] = new SequenceProgress(deltaMs[i]);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof EndpointSequenceTracker)) {
+      return false;
+    }
+    return Arrays.equals(progress, ((EndpointSequenceTracker) o).progress);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(progress);
+  }
+
+  /**
+   * Record a request for the first endpoint of a sequence
+   *
+   * @param index Sequence index
+   * @param timestamp Request timestamp in milliseconds
+   */
+  public void addFirst(int index, long timestamp) {
+    progress[index].addFirst(timestamp);
+  }
+
+  /**
+   * Record a request for the second endpoint of a sequence
+   *
+   * @param index Sequence index
+   * @param timestamp Request timestamp in milliseconds
+   * @param userAgent User agent of request, may be null
+   */
+  public void addSecond(int index, long timestamp, String userAgent) {
+    progress[index].addSecond(timestamp, userAgent == null ? "" : userAgent);
+  }
+
+  /**
+   * Get number of sequences being tracked
+   *
+   * @return int
+   */
+  public int size() {
+    return progress.length;
+  }
+
+  /**
+   * Get violation count for a sequence
+   *
+   * @param index Sequence index
+   * @return int
+   */
+  public int getCount(int index) {
+    return progress[index].count;
+  }
+
+  /**
+   * Get timestamp of the latest violation for a sequence
+   *
+   * @param index Sequence index
+   * @return Timestamp in milliseconds, or null if there have been no violations
+   */
+  public Long getLastViolationTimestamp(int index) {
+    return progress[index].lastViolationTimestamp;
+  }
+
+  /**
+   * Get user agent associated with the latest violation for a sequence
+   *
+   * @param index Sequence index
+   * @return User agent, or null if there have been no violations
+   */
+  public String getLastViolationUserAgent(int index) {
+    return progress[index].lastViolationUserAgent;
+  }
+}
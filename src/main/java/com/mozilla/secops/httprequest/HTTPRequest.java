@@ -3,6 +3,7 @@ package com.mozilla.secops.httprequest;
 import com.mozilla.secops.DetectNat;
 import com.mozilla.secops.DocumentingTransform;
 import com.mozilla.secops.FileUtil;
+import com.mozilla.secops.HeavyHitters;
 import com.mozilla.secops.IOOptions;
 import com.mozilla.secops.IprepdIO;
 import com.mozilla.secops.OutputOptions;
@@ -26,17 +27,22 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.coders.SerializableCoder;
 import org.apache.beam.sdk.options.Default;
 import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.state.StateSpec;
+import org.apache.beam.sdk.state.StateSpecs;
+import org.apache.beam.sdk.state.TimeDomain;
+import org.apache.beam.sdk.state.Timer;
+import org.apache.beam.sdk.state.TimerSpec;
+import org.apache.beam.sdk.state.TimerSpecs;
+import org.apache.beam.sdk.state.ValueState;
 import org.apache.beam.sdk.transforms.Count;
 import org.apache.beam.sdk.transforms.Distinct;
 import org.apache.beam.sdk.transforms.DoFn;
@@ -58,6 +64,7 @@ import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionTuple;
 import org.apache.beam.sdk.values.PCollectionView;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
@@ -182,6 +189,7 @@ public class HTTPRequest implements Serializable {
     private final String monitoredResource;
     private final Boolean enableIprepdDatastoreExemptions;
     private final String iprepdDatastoreExemptionsProject;
+    private PCollectionView<Double> sampledFractionView = null;
 
     private Logger log;
 
@@ -211,6 +219,18 @@ public class HTTPRequest implements Serializable {
           maxErrorRate);
     }
 
+    /**
+     * Scale the threshold using the fraction of events retained by {@link HTTPRequestSampler}
+     *
+     * @param sampledFractionView View returned by {@link
+     *     HTTPRequestSampler#getSampledFractionView}, or null if the input is not sampled
+     * @return this for chaining
+     */
+    public ErrorRateAnalysis withSampledFractionView(PCollectionView<Double> sampledFractionView) {
+      this.sampledFractionView = sampledFractionView;
+      return this;
+    }
+
     @Override
     public PCollection<Alert> expand(PCollection<Event> input) {
       return input
@@ -239,45 +259,55 @@ public class HTTPRequest implements Serializable {
           .apply(
               "per-client error rate analysis",
               ParDo.of(
-                  new DoFn<KV<String, Long>, Alert>() {
-                    private static final long serialVersionUID = 1L;
+                      new DoFn<KV<String, Long>, Alert>() {
+                        private static final long serialVersionUID = 1L;
 
-                    @ProcessElement
-                    public void processElement(ProcessContext c, BoundedWindow w) {
-                      if (c.element().getValue() <= maxErrorRate) {
-                        return;
-                      }
-                      Alert a = new Alert();
-                      a.setSummary(
-                          String.format(
-                              "%s httprequest error_rate %s %d",
-                              monitoredResource, c.element().getKey(), c.element().getValue()));
-                      a.setCategory("httprequest");
-                      a.setSubcategory("error_rate");
-                      a.addMetadata(AlertMeta.Key.SOURCEADDRESS, c.element().getKey());
+                        @ProcessElement
+                        public void processElement(ProcessContext c, BoundedWindow w) {
+                          Long scaledMaxErrorRate =
+                              HTTPRequestSampler.scale(
+                                  maxErrorRate,
+                                  sampledFractionView != null
+                                      ? c.sideInput(sampledFractionView)
+                                      : 1.0);
+                          if (c.element().getValue() <= scaledMaxErrorRate) {
+                            return;
+                          }
+                          Alert a = new Alert();
+                          a.setSummary(
+                              String.format(
+                                  "%s httprequest error_rate %s %d",
+                                  monitoredResource, c.element().getKey(), c.element().getValue()));
+                          a.setCategory("httprequest");
+                          a.setSubcategory("error_rate");
+                          a.addMetadata(AlertMeta.Key.SOURCEADDRESS, c.element().getKey());
 
-                      if (enableIprepdDatastoreExemptions) {
-                        try {
-                          IprepdIO.addMetadataIfIpIsExempt(
-                              c.element().getKey(), a, iprepdDatastoreExemptionsProject);
-                        } catch (IOException exc) {
-                          log.error("error checking iprepd exemptions: {}", exc.getMessage());
-                          return;
-                        }
-                      }
+                          if (enableIprepdDatastoreExemptions) {
+                            try {
+                              IprepdIO.addMetadataIfIpIsExempt(
+                                  c.element().getKey(), a, iprepdDatastoreExemptionsProject);
+                            } catch (IOException exc) {
+                              log.error("error checking iprepd exemptions: {}", exc.getMessage());
+                              return;
+                            }
+                          }
 
-                      a.addMetadata(AlertMeta.Key.ERROR_COUNT, c.element().getValue().toString());
-                      a.addMetadata(AlertMeta.Key.ERROR_THRESHOLD, maxErrorRate.toString());
-                      a.setNotifyMergeKey(String.format("%s error_count", monitoredResource));
-                      a.addMetadata(
-                          AlertMeta.Key.WINDOW_TIMESTAMP,
-                          (new DateTime(w.maxTimestamp())).toString());
-                      if (!a.hasCorrectFields()) {
-                        throw new IllegalArgumentException("alert has invalid field configuration");
-                      }
-                      c.output(a);
-                    }
-                  }));
+                          a.addMetadata(
+                              AlertMeta.Key.ERROR_COUNT, c.element().getValue().toString());
+                          a.addMetadata(
+                              AlertMeta.Key.ERROR_THRESHOLD, scaledMaxErrorRate.toString());
+                          a.setNotifyMergeKey(String.format("%s error_count", monitoredResource));
+                          a.addMetadata(
+                              AlertMeta.Key.WINDOW_TIMESTAMP,
+                              (new DateTime(w.maxTimestamp())).toString());
+                          if (!a.hasCorrectFields()) {
+                            throw new IllegalArgumentException(
+                                "alert has invalid field configuration");
+                          }
+                          c.output(a);
+                        }
+                      })
+                  .withSideInputs(HTTPRequestSampler.sideInputs(sampledFractionView)));
     }
   }
 
@@ -405,6 +435,205 @@ public class HTTPRequest implements Serializable {
     }
   }
 
+  /**
+   * Transform for detection of sources responsible for a large share of requests within a fixed
+   * window
+   *
+   * <p>Rather than calculating exact counts for every source, candidate heavy hitters are
+   * identified using {@link HeavyHitters}, which uses bounded memory regardless of the number of
+   * unique sources in the window. Exact counts are then calculated only for the candidates to
+   * confirm them before an alert is generated.
+   */
+  public static class HeavyHitterAnalysis extends PTransform<PCollection<Event>, PCollection<Alert>>
+      implements DocumentingTransform {
+    private static final long serialVersionUID = 1L;
+
+    private final Integer capacity;
+    private final Double relativeThreshold;
+    private final Long absoluteThreshold;
+    private final String monitoredResource;
+    private final Boolean enableIprepdDatastoreExemptions;
+    private final String iprepdDatastoreExemptionsProject;
+    private PCollectionView<Map<String, Boolean>> natView = null;
+    private PCollectionView<Double> sampledFractionView = null;
+    private final HeuristicMetrics metrics;
+
+    private Logger log;
+
+    /**
+     * Static initializer for {@link HeavyHitterAnalysis}
+     *
+     * @param toggles {@link HTTPRequestToggles}
+     * @param enableIprepdDatastoreExemptions True to enable datastore exemptions
+     * @param iprepdDatastoreExemptionsProject Project to look for datastore entities in
+     * @param natView Use {@link DetectNat} view, or null to disable
+     */
+    public HeavyHitterAnalysis(
+        HTTPRequestToggles toggles,
+        Boolean enableIprepdDatastoreExemptions,
+        String iprepdDatastoreExemptionsProject,
+        PCollectionView<Map<String, Boolean>> natView) {
+      capacity = toggles.getHeavyHitterCapacity();
+      relativeThreshold = toggles.getHeavyHitterRelativeThreshold();
+      absoluteThreshold = toggles.getHeavyHitterAbsoluteThreshold();
+      monitoredResource = toggles.getMonitoredResource();
+      this.enableIprepdDatastoreExemptions = enableIprepdDatastoreExemptions;
+      this.iprepdDatastoreExemptionsProject = iprepdDatastoreExemptionsProject;
+      this.natView = natView;
+      log = LoggerFactory.getLogger(HeavyHitterAnalysis.class);
+      metrics = new HeuristicMetrics(HeavyHitterAnalysis.class.getName());
+    }
+
+    /** {@inheritDoc} */
+    public String getTransformDoc() {
+      String ret = "Alert if a single source address makes";
+      if (relativeThreshold != null) {
+        ret += String.format(" more than %.2f%% of all requests", relativeThreshold * 100);
+      }
+      if (absoluteThreshold != null) {
+        if (relativeThreshold != null) {
+          ret += " and";
+        }
+        ret += String.format(" at least %d requests", absoluteThreshold);
+      }
+      return ret + " in a 1 minute window.";
+    }
+
+    /**
+     * Scale the absolute threshold using the fraction of events retained by {@link
+     * HTTPRequestSampler}
+     *
+     * @param sampledFractionView View returned by {@link
+     *     HTTPRequestSampler#getSampledFractionView}, or null if the input is not sampled
+     * @return this for chaining
+     */
+    public HeavyHitterAnalysis withSampledFractionView(
+        PCollectionView<Double> sampledFractionView) {
+      this.sampledFractionView = sampledFractionView;
+      return this;
+    }
+
+    @Override
+    public PCollection<Alert> expand(PCollection<Event> input) {
+      if (natView == null) {
+        // If natView was not set then we just create an empty view for use as the side input
+        natView = DetectNat.getEmptyView(input.getPipeline());
+      }
+
+      PCollection<String> sources =
+          input.apply(
+              "heavy hitter extract source",
+              ParDo.of(
+                  new DoFn<Event, String>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @ProcessElement
+                    public void processElement(ProcessContext c) {
+                      Normalized n = c.element().getNormalized();
+                      if (n.getSourceAddress() == null) {
+                        return;
+                      }
+                      c.output(n.getSourceAddress());
+                    }
+                  }));
+
+      // If the input is sampled the absolute threshold depends on the fraction of events retained
+      // in the window, so it is only applied when candidates are confirmed using exact counts
+      final PCollectionView<HeavyHitters.HeavyHittersOutput> candidates =
+          HeavyHitters.getView(
+              sources,
+              capacity,
+              relativeThreshold,
+              sampledFractionView != null && absoluteThreshold != null ? 1L : absoluteThreshold);
+      ArrayList<PCollectionView<?>> sideInputs = new ArrayList<>();
+      sideInputs.add(natView);
+      sideInputs.add(candidates);
+      sideInputs.addAll(HTTPRequestSampler.sideInputs(sampledFractionView));
+
+      return sources
+          .apply(
+              "heavy hitter select candidates",
+              ParDo.of(
+                      new DoFn<String, String>() {
+                        private static final long serialVersionUID = 1L;
+
+                        @ProcessElement
+                        public void processElement(ProcessContext c) {
+                          if (c.sideInput(candidates).isCandidate(c.element())) {
+                            c.output(c.element());
+                          }
+                        }
+                      })
+                  .withSideInputs(candidates))
+          .apply("heavy hitter candidate count", Count.<String>perElement())
+          .apply(
+              "heavy hitter analysis",
+              ParDo.of(
+                      new DoFn<KV<String, Long>, Alert>() {
+                        private static final long serialVersionUID = 1L;
+
+                        @ProcessElement
+                        public void processElement(ProcessContext c, BoundedWindow w) {
+                          Map<String, Boolean> nv = c.sideInput(natView);
+                          HeavyHitters.HeavyHittersOutput hh = c.sideInput(candidates);
+                          Long threshold = hh.getThreshold();
+                          if (sampledFractionView != null) {
+                            threshold =
+                                HeavyHitters.getThreshold(
+                                    hh.getTotalCount(),
+                                    relativeThreshold,
+                                    HTTPRequestSampler.scale(
+                                        absoluteThreshold, c.sideInput(sampledFractionView)));
+                          }
+                          // Confirm the candidate using the exact count
+                          if (c.element().getValue() < threshold) {
+                            return;
+                          }
+                          Boolean isNat = nv.get(c.element().getKey());
+                          if (isNat != null && isNat) {
+                            log.info(
+                                "{}: detectnat: skipping result emission for {}",
+                                w.toString(),
+                                c.element().getKey());
+                            metrics.natDetected();
+                            return;
+                          }
+                          Alert a = new Alert();
+                          a.setSummary(
+                              String.format(
+                                  "%s httprequest heavy_hitter %s %d",
+                                  monitoredResource, c.element().getKey(), c.element().getValue()));
+                          a.setCategory("httprequest");
+                          a.setSubcategory("heavy_hitter");
+                          a.addMetadata(AlertMeta.Key.SOURCEADDRESS, c.element().getKey());
+
+                          try {
+                            if (enableIprepdDatastoreExemptions) {
+                              IprepdIO.addMetadataIfIpIsExempt(
+                                  c.element().getKey(), a, iprepdDatastoreExemptionsProject);
+                            }
+                          } catch (IOException exc) {
+                            log.error("error checking iprepd exemptions: {}", exc.getMessage());
+                            return;
+                          }
+
+                          a.addMetadata(AlertMeta.Key.COUNT, c.element().getValue().toString());
+                          a.addMetadata(AlertMeta.Key.REQUEST_THRESHOLD, threshold.toString());
+                          a.setNotifyMergeKey(String.format("%s heavy_hitter", monitoredResource));
+                          a.addMetadata(
+                              AlertMeta.Key.WINDOW_TIMESTAMP,
+                              (new DateTime(w.maxTimestamp())).toString());
+                          if (!a.hasCorrectFields()) {
+                            throw new IllegalArgumentException(
+                                "alert has invalid field configuration");
+                          }
+                          c.output(a);
+                        }
+                      })
+                  .withSideInputs(sideInputs));
+    }
+  }
+
   /** Analysis to identify known bad user agents */
   public static class UserAgentBlocklistAnalysis
       extends PTransform<PCollection<Event>, PCollection<Alert>> implements DocumentingTransform {
@@ -854,6 +1083,7 @@ public class HTTPRequest implements Serializable {
     private final Boolean enableIprepdDatastoreExemptions;
     private final String iprepdDatastoreExemptionsProject;
     private PCollectionView<Map<String, Boolean>> natView = null;
+    private PCollectionView<Double> sampledFractionView = null;
 
     private final HeuristicMetrics metrics;
     private Logger log;
@@ -892,6 +1122,19 @@ public class HTTPRequest implements Serializable {
           thresholdModifier);
     }
 
+    /**
+     * Scale count based thresholds using the fraction of events retained by {@link
+     * HTTPRequestSampler}
+     *
+     * @param sampledFractionView View returned by {@link
+     *     HTTPRequestSampler#getSampledFractionView}, or null if the input is not sampled
+     * @return this for chaining
+     */
+    public ThresholdAnalysis withSampledFractionView(PCollectionView<Double> sampledFractionView) {
+      this.sampledFractionView = sampledFractionView;
+      return this;
+    }
+
     @Override
     public PCollection<Alert> expand(PCollection<Event> col) {
       if (natView == null) {
@@ -928,16 +1171,21 @@ public class HTTPRequest implements Serializable {
           .apply(
               "filter insignificant",
               ParDo.of(
-                  new DoFn<KV<String, Long>, KV<String, Long>>() {
-                    private static final long serialVersionUID = 1L;
+                      new DoFn<KV<String, Long>, KV<String, Long>>() {
+                        private static final long serialVersionUID = 1L;
 
-                    @ProcessElement
-                    public void processElement(ProcessContext c) {
-                      if (c.element().getValue() >= requiredMinimumRequestsPerClient) {
-                        c.output(c.element());
-                      }
-                    }
-                  }))
+                        @ProcessElement
+                        public void processElement(ProcessContext c) {
+                          double fraction =
+                              sampledFractionView != null ? c.sideInput(sampledFractionView) : 1.0;
+                          if (c.element().getValue()
+                              >= HTTPRequestSampler.scale(
+                                  requiredMinimumRequestsPerClient, fraction)) {
+                            c.output(c.element());
+                          }
+                        }
+                      })
+                  .withSideInputs(HTTPRequestSampler.sideInputs(sampledFractionView)))
           .apply(
               "apply thresholds",
               ParDo.of(
@@ -952,16 +1200,23 @@ public class HTTPRequest implements Serializable {
 
                           Double cMean = sOutput.getMean();
 
+                          // Count based thresholds are scaled if the input to the analysis is
+                          // sampled. The number of distinct clients does not shrink in proportion
+                          // to the events retained, so the minimum client count is not scaled.
+                          double fraction =
+                              sampledFractionView != null ? c.sideInput(sampledFractionView) : 1.0;
+                          Double clamp = HTTPRequestSampler.scale(clampThresholdMaximum, fraction);
+
                           if (uc < requiredMinimumClients) {
                             return;
                           }
 
-                          if (cMean < requiredMinimumAverage) {
+                          if (cMean < HTTPRequestSampler.scale(requiredMinimumAverage, fraction)) {
                             return;
                           }
 
-                          if ((clampThresholdMaximum != null) && (cMean > clampThresholdMaximum)) {
-                            cMean = clampThresholdMaximum;
+                          if ((clamp != null) && (cMean > clamp)) {
+                            cMean = clamp;
                           }
 
                           if (c.element().getValue() >= (cMean * thresholdModifier)) {
@@ -1014,7 +1269,8 @@ public class HTTPRequest implements Serializable {
                           }
                         }
                       })
-                  .withSideInputs(wStats, natView));
+                  .withSideInputs(wStats, natView)
+                  .withSideInputs(HTTPRequestSampler.sideInputs(sampledFractionView)));
     }
   }
 
@@ -1024,6 +1280,9 @@ public class HTTPRequest implements Serializable {
    *
    * <p>Generates alerts where the request profile violates path thresholds specified in the
    * endpointAbusePath pipeline option configuration.
+   *
+   * <p>Analysis is incremental; sequence progress for each client is maintained in state using an
+   * {@link EndpointSequenceTracker} as requests arrive, and evaluated when the window closes.
    */
   public static class EndpointSequenceAbuse
       extends PTransform<PCollection<Event>, PCollection<Alert>> implements DocumentingTransform {
@@ -1158,67 +1417,88 @@ public class HTTPRequest implements Serializable {
                       }
                     }
                   }))
-          .apply(GroupByKey.<String, Event>create())
+          .apply(
+              "track sequences per-client",
+              ParDo.of(
+                  new DoFn<KV<String, Event>, KV<String, EndpointSequenceTracker>>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @StateId("tracker")
+                    private final StateSpec<ValueState<EndpointSequenceTracker>> trackerState =
+                        StateSpecs.value(SerializableCoder.of(EndpointSequenceTracker.class));
+
+                    @StateId("source")
+                    private final StateSpec<ValueState<String>> sourceState = StateSpecs.value();
+
+                    // Fires at the end of the window to emit the per-client result and release
+                    // state
+                    @TimerId("windowEnd")
+                    private final TimerSpec windowEnd = TimerSpecs.timer(TimeDomain.EVENT_TIME);
+
+                    @ProcessElement
+                    public void processElement(
+                        ProcessContext c,
+                        BoundedWindow w,
+                        @StateId("tracker") ValueState<EndpointSequenceTracker> tracker,
+                        @StateId("source") ValueState<String> source,
+                        @TimerId("windowEnd") Timer timer) {
+                      Event event = c.element().getValue();
+                      if (event.getTimestamp() == null) {
+                        return;
+                      }
+                      Normalized n = event.getNormalized();
+                      long ts = event.getTimestamp().getMillis();
+
+                      EndpointSequenceTracker t = tracker.read();
+                      if (t == null) {
+                        long[] deltas = new long[endpointPatterns.length];
+                        for (int i = 0; i < endpointPatterns.length; i++) {
+                          deltas[i] = endpointPatterns[i].deltaMs;
+                        }
+                        t = new EndpointSequenceTracker(deltas);
+                        source.write(c.element().getKey());
+                        timer.set(w.maxTimestamp());
+                      }
+
+                      // Process the event as the first part of any sequences before the second
+                      // part, so a request that is both is considered to follow itself
+                      for (Integer m :
+                          findFirstHalfPatternMatches(
+                              n.getRequestMethod(), n.getUrlRequestPath())) {
+                        t.addFirst(m, ts);
+                      }
+                      for (Integer m :
+                          findSecondHalfPatternMatches(
+                              n.getRequestMethod(), n.getUrlRequestPath())) {
+                        t.addSecond(m, ts, n.getUserAgent());
+                      }
+                      tracker.write(t);
+                    }
+
+                    @OnTimer("windowEnd")
+                    public void onWindowEnd(
+                        OnTimerContext c,
+                        @StateId("tracker") ValueState<EndpointSequenceTracker> tracker,
+                        @StateId("source") ValueState<String> source) {
+                      EndpointSequenceTracker t = tracker.read();
+                      String remoteAddress = source.read();
+                      if (t != null && remoteAddress != null) {
+                        c.output(KV.of(remoteAddress, t));
+                      }
+                      tracker.clear();
+                      source.clear();
+                    }
+                  }))
           .apply(
               "analyze per-client",
               ParDo.of(
-                      new DoFn<KV<String, Iterable<Event>>, Alert>() {
+                      new DoFn<KV<String, EndpointSequenceTracker>, Alert>() {
                         private static final long serialVersionUID = 1L;
 
                         @ProcessElement
                         public void processElement(ProcessContext c, BoundedWindow w) {
                           String remoteAddress = c.element().getKey();
-                          Iterable<Event> events = c.element().getValue();
-
-                          // sort events by timestamp
-                          List<Event> eventList =
-                              StreamSupport.stream(events.spliterator(), false)
-                                  .sorted(
-                                      (e1, e2) -> e1.getTimestamp().compareTo(e2.getTimestamp()))
-                                  .collect(Collectors.toList());
-
-                          int[] violationsCounter = new int[endpointPatterns.length];
-                          Instant[] lastViolationTimestamp = new Instant[endpointPatterns.length];
-                          String[] lastViolationUserAgent = new String[endpointPatterns.length];
-
-                          // used to track last time we saw the first part of each
-                          // request sequence used for timing analysis
-                          Instant[] lastFirstRequest = new Instant[endpointPatterns.length];
-
-                          // for each path
-                          for (Event event : eventList) {
-                            Normalized n = event.getNormalized();
-
-                            // check if its a first item in an endpoint sequence
-                            ArrayList<Integer> indices =
-                                findFirstHalfPatternMatches(
-                                    n.getRequestMethod(), n.getUrlRequestPath());
-
-                            // for any sequence its a part of update the latest timestamp for it
-                            for (Integer m : indices) {
-                              lastFirstRequest[m] = Instant.parse(event.getTimestamp().toString());
-                            }
-
-                            // check if its a second item in an endpoint sequence
-                            ArrayList<Integer> secondIndices =
-                                findSecondHalfPatternMatches(
-                                    n.getRequestMethod(), n.getUrlRequestPath());
-
-                            // for any sequence its the second part of, check the delta and increase
-                            // count if it is
-                            for (Integer m : secondIndices) {
-                              Instant ts = Instant.parse(event.getTimestamp().toString());
-                              if (lastFirstRequest[m] != null) {
-                                if (ts.isBefore(
-                                    lastFirstRequest[m].plus(endpointPatterns[m].deltaMs))) {
-                                  lastViolationUserAgent[m] =
-                                      n.getUserAgent() == null ? "" : n.getUserAgent();
-                                  lastViolationTimestamp[m] = ts;
-                                  violationsCounter[m]++;
-                                }
-                              }
-                            }
-                          }
+                          EndpointSequenceTracker tracker = c.element().getValue();
 
                           // identify if any monitored endpoints have
                           // exceeded the threshold and use the one with
@@ -1226,14 +1506,14 @@ public class HTTPRequest implements Serializable {
                           Integer abmaxIndex = null;
                           int count = -1;
                           for (int i = 0; i < endpointPatterns.length; i++) {
-                            if (endpointPatterns[i].threshold <= violationsCounter[i]) {
+                            if (endpointPatterns[i].threshold <= tracker.getCount(i)) {
                               if (abmaxIndex == null) {
                                 abmaxIndex = i;
-                                count = violationsCounter[i];
+                                count = tracker.getCount(i);
                               } else {
-                                if (count < violationsCounter[i]) {
+                                if (count < tracker.getCount(i)) {
                                   abmaxIndex = i;
-                                  count = violationsCounter[i];
+                                  count = tracker.getCount(i);
                                 }
                               }
                             }
@@ -1267,7 +1547,9 @@ public class HTTPRequest implements Serializable {
                           String compareSecondPath = endpointPatterns[abmaxIndex].secondPath;
 
                           Alert a = new Alert();
-                          a.setTimestamp(lastViolationTimestamp[abmaxIndex].toDateTime());
+                          a.setTimestamp(
+                              new Instant(tracker.getLastViolationTimestamp(abmaxIndex))
+                                  .toDateTime());
                           a.setSummary(
                               String.format(
                                   "%s httprequest endpoint_sequence_abuse %s %s:%s:%d:%s:%s %d",
@@ -1302,7 +1584,8 @@ public class HTTPRequest implements Serializable {
                               endpointPatterns[abmaxIndex].toString());
                           a.addMetadata(AlertMeta.Key.COUNT, Integer.toString(count));
                           a.addMetadata(
-                              AlertMeta.Key.USERAGENT, lastViolationUserAgent[abmaxIndex]);
+                              AlertMeta.Key.USERAGENT,
+                              tracker.getLastViolationUserAgent(abmaxIndex));
                           a.setNotifyMergeKey(
                               String.format("%s endpoint_sequence_abuse", monitoredResource));
                           a.addMetadata(
@@ -1601,6 +1884,7 @@ public class HTTPRequest implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private final transient HTTPRequestToggles toggles;
+    private final Boolean sharedCountAnalysis;
     private final Boolean enableIprepdDatastoreExemptions;
     private final String iprepdDatastoreExemptionsProject;
     private final String monitoredResource;
@@ -1613,9 +1897,13 @@ public class HTTPRequest implements Serializable {
      *
      * @param options Pipeline options
      * @param toggles Element toggles
+     * @param sharedCountAnalysis If true, threshold, hard limit, and error rate analysis for the
+     *     element are handled by {@link HTTPRequestSharedAnalysis} and will not be included
      */
-    public HTTPRequestAnalysis(HTTPRequestOptions options, HTTPRequestToggles toggles) {
+    public HTTPRequestAnalysis(
+        HTTPRequestOptions options, HTTPRequestToggles toggles, Boolean sharedCountAnalysis) {
       this.toggles = toggles;
+      this.sharedCountAnalysis = sharedCountAnalysis;
 
       enableIprepdDatastoreExemptions = options.getOutputIprepdEnableDatastoreExemptions();
       iprepdDatastoreExemptionsProject = options.getOutputIprepdDatastoreExemptionsProject();
@@ -1629,33 +1917,54 @@ public class HTTPRequest implements Serializable {
     public PCollection<Alert> expand(PCollection<Event> events) {
       PCollectionList<Alert> resultsList = PCollectionList.empty(events.getPipeline());
 
-      if (toggles.getEnableThresholdAnalysis()
-          || toggles.getEnableErrorRateAnalysis()
-          || toggles.getEnableHardLimitAnalysis()
+      Boolean enableThresholdAnalysis =
+          toggles.getEnableThresholdAnalysis() && !sharedCountAnalysis;
+      Boolean enableHardLimitAnalysis =
+          toggles.getEnableHardLimitAnalysis() && !sharedCountAnalysis;
+      Boolean enableErrorRateAnalysis =
+          toggles.getEnableErrorRateAnalysis() && !sharedCountAnalysis;
+
+      if (enableThresholdAnalysis
+          || enableErrorRateAnalysis
+          || enableHardLimitAnalysis
+          || toggles.getEnableHeavyHitterAnalysis()
           || toggles.getEnableUserAgentBlocklistAnalysis()
           || toggles.getEnableEndpointSequenceAbuseAnalysis()) {
         PCollection<Event> fwEvents = events.apply("window for fixed", new WindowForFixed());
 
+        // Analysis that tolerates sampled input consumes fwSampledEvents, analysis that requires
+        // exact counts such as hard limit analysis always consumes the complete event set
+        PCollection<Event> fwSampledEvents = fwEvents;
+        PCollectionView<Double> sampledFraction = null;
+        if (HTTPRequestSampler.isEnabled(toggles)) {
+          fwSampledEvents =
+              events
+                  .apply("sample", new HTTPRequestSampler(toggles))
+                  .apply("window for fixed sampled", new WindowForFixed());
+          sampledFraction = HTTPRequestSampler.getSampledFractionView(fwEvents, fwSampledEvents);
+        }
+
         PCollectionView<Map<String, Boolean>> natView = null;
         if (toggles.getEnableNatDetection()) {
           natView = DetectNat.getView(fwEvents, initialNatListPath);
         }
 
-        if (toggles.getEnableThresholdAnalysis()) {
+        if (enableThresholdAnalysis) {
           resultsList =
               resultsList.and(
-                  fwEvents
+                  fwSampledEvents
                       .apply(
                           "threshold analysis",
                           new ThresholdAnalysis(
-                              toggles,
-                              enableIprepdDatastoreExemptions,
-                              iprepdDatastoreExemptionsProject,
-                              natView))
+                                  toggles,
+                                  enableIprepdDatastoreExemptions,
+                                  iprepdDatastoreExemptionsProject,
+                                  natView)
+                              .withSampledFractionView(sampledFraction))
                       .apply("threshold analysis global triggers", new GlobalTriggers<Alert>(5)));
         }
 
-        if (toggles.getEnableHardLimitAnalysis()) {
+        if (enableHardLimitAnalysis) {
           resultsList =
               resultsList.and(
                   fwEvents
@@ -1669,16 +1978,33 @@ public class HTTPRequest implements Serializable {
                       .apply("hard limit analysis global triggers", new GlobalTriggers<Alert>(5)));
         }
 
-        if (toggles.getEnableErrorRateAnalysis()) {
+        if (toggles.getEnableHeavyHitterAnalysis()) {
           resultsList =
               resultsList.and(
-                  fwEvents
+                  fwSampledEvents
+                      .apply(
+                          "heavy hitter analysis",
+                          new HeavyHitterAnalysis(
+                                  toggles,
+                                  enableIprepdDatastoreExemptions,
+                                  iprepdDatastoreExemptionsProject,
+                                  natView)
+                              .withSampledFractionView(sampledFraction))
+                      .apply(
+                          "heavy hitter analysis global triggers", new GlobalTriggers<Alert>(5)));
+        }
+
+        if (enableErrorRateAnalysis) {
+          resultsList =
+              resultsList.and(
+                  fwSampledEvents
                       .apply(
                           "error rate analysis",
                           new ErrorRateAnalysis(
-                              toggles,
-                              enableIprepdDatastoreExemptions,
-                              iprepdDatastoreExemptionsProject))
+                                  toggles,
+                                  enableIprepdDatastoreExemptions,
+                                  iprepdDatastoreExemptionsProject)
+                              .withSampledFractionView(sampledFraction))
                       .apply("error rate analysis global triggers", new GlobalTriggers<Alert>(5)));
         }
 
@@ -1743,13 +2069,20 @@ public class HTTPRequest implements Serializable {
                             iprepdDatastoreExemptionsProject)));
       }
 
+      PCollection<Alert> flattened =
+          resultsList.apply("flatten analysis output", Flatten.<Alert>pCollections());
+      if (resultsList.size() == 0) {
+        // All analysis for the element may be handled in the shared analysis graph, in which case
+        // there is nothing to infer the output coder or windowing from
+        flattened =
+            flattened
+                .setCoder(SerializableCoder.of(Alert.class))
+                .apply("empty analysis global triggers", new GlobalTriggers<Alert>(5));
+      }
       PCollection<Alert> allAlerts =
-          resultsList
-              .apply("flatten analysis output", Flatten.<Alert>pCollections())
-              .apply(
-                  "output format",
-                  ParDo.of(
-                      new AlertFormatter(monitoredResource, maxmindCityDbPath, maxmindIspDbPath)));
+          flattened.apply(
+              "output format",
+              ParDo.of(new AlertFormatter(monitoredResource, maxmindCityDbPath, maxmindIspDbPath)));
 
       if (toggles.getEnableSourceCorrelator()) {
         // Wire up source correlation
@@ -1821,6 +2154,32 @@ public class HTTPRequest implements Serializable {
 
     void setHardLimitRequestCount(Long value);
 
+    @Description("Enable heavy hitter analysis")
+    @Default.Boolean(false)
+    Boolean getEnableHeavyHitterAnalysis();
+
+    void setEnableHeavyHitterAnalysis(Boolean value);
+
+    @Description("Maximum number of candidate clients tracked per window in heavy hitter analysis")
+    @Default.Integer(100)
+    Integer getHeavyHitterCapacity();
+
+    void setHeavyHitterCapacity(Integer value);
+
+    @Description(
+        "Heavy hitter threshold as a fraction of all requests in the window; e.g., 0.05 for 5%")
+    @Default.Double(0.05)
+    Double getHeavyHitterRelativeThreshold();
+
+    void setHeavyHitterRelativeThreshold(Double value);
+
+    @Description(
+        "Heavy hitter threshold as a request count per window; the greater threshold applies if"
+            + " both are set")
+    Long getHeavyHitterAbsoluteThreshold();
+
+    void setHeavyHitterAbsoluteThreshold(Long value);
+
     @Description("Analysis threshold modifier")
     @Default.Double(75.0)
     Double getAnalysisThresholdModifier();
@@ -1944,6 +2303,26 @@ public class HTTPRequest implements Serializable {
 
     void setIncludeUrlHostRegex(String[] value);
 
+    @Description(
+        "Sample rate applied to input of threshold, error rate, and heavy hitter analysis; e.g.,"
+            + " 0.25")
+    @Default.Double(1.0)
+    Double getSampleRate();
+
+    void setSampleRate(Double value);
+
+    @Description(
+        "Sample rate for requests with a path matching regex (multiple allowed); e.g.,"
+            + " 0.1:^/static/")
+    String[] getSamplePathClasses();
+
+    void setSamplePathClasses(String[] value);
+
+    @Description("Maximum events per second within a bundle before sampled analysis input is shed")
+    Long getLoadSheddingMaxEventsPerSecond();
+
+    void setLoadSheddingMaxEventsPerSecond(Long value);
+
     @Description("Load CIDR exclusion list; resource path, gcs path")
     String getCidrExclusionList();
 
@@ -1967,6 +2346,25 @@ public class HTTPRequest implements Serializable {
 
     void setIgnoreCloudProviderRequests(Boolean value);
 
+    @Description(
+        "Load cloud provider subnets from snapshot instead of live sources; resource path, gcs"
+            + " path")
+    String getCloudProviderSnapshot();
+
+    void setCloudProviderSnapshot(String value);
+
+    @Description("Maximum age of cloud provider snapshot in days before it is considered stale")
+    @Default.Integer(30)
+    Integer getCloudProviderSnapshotMaxAgeDays();
+
+    void setCloudProviderSnapshotMaxAgeDays(Integer value);
+
+    @Description("Fail if cloud provider snapshot is stale, instead of logging a warning")
+    @Default.Boolean(false)
+    Boolean getCloudProviderSnapshotFailIfStale();
+
+    void setCloudProviderSnapshotFailIfStale(Boolean value);
+
     @Description("Ignore requests from internal subnets (e.g., RFC1918)")
     @Default.Boolean(true)
     Boolean getIgnoreInternalRequests();
@@ -1978,6 +2376,14 @@ public class HTTPRequest implements Serializable {
 
     void setPipelineMultimodeConfiguration(String value);
 
+    @Description(
+        "In multimode, use a single analysis graph shared by all eligible services for threshold,"
+            + " hard limit, and error rate analysis")
+    @Default.Boolean(false)
+    Boolean getEnableSharedAnalysis();
+
+    void setEnableSharedAnalysis(Boolean value);
+
     @Description("Enable source correlator")
     @Default.Boolean(false)
     Boolean getEnableSourceCorrelator();
@@ -2025,6 +2431,14 @@ public class HTTPRequest implements Serializable {
               options.getOutputIprepdDatastoreExemptionsProject(),
               null));
     }
+    if (toggles.getEnableHeavyHitterAnalysis()) {
+      b.withTransformDoc(
+          new HeavyHitterAnalysis(
+              toggles,
+              options.getOutputIprepdEnableDatastoreExemptions(),
+              options.getOutputIprepdDatastoreExemptionsProject(),
+              null));
+    }
     if (toggles.getEnableErrorRateAnalysis()) {
       b.withTransformDoc(
           new ErrorRateAnalysis(
@@ -2157,18 +2571,21 @@ public class HTTPRequest implements Serializable {
     // Perform the multiplexed read operations
     PCollection<KV<String, Event>> col = p.apply("input", input.multiplexRead());
 
-    HashMap<String, PCollection<Event>> ret = new HashMap<>();
-    // For each configured element, extract the resulting collection and associate it with
-    // a key in our input map.
+    // Route each event to the branch for its element in a single pass, rather than filtering
+    // the multiplexed collection once per element.
+    HashMap<String, HTTPRequestToggles> elementToggles = new HashMap<>();
     for (InputElement e : input.getInputElements()) {
       if (!toggleCache.containsKey(e.getName())) {
         throw new RuntimeException(String.format("no toggle cache entry for %s", e.getName()));
       }
-      PCollection<Event> t =
-          col.apply(
-              String.format("filter %s", e.getName()),
-              new HTTPRequestElementFilter(e.getName(), toggleCache.get(e.getName())));
-      ret.put(e.getName(), t);
+      elementToggles.put(e.getName(), toggleCache.get(e.getName()));
+    }
+    HTTPRequestElementPartition partition = new HTTPRequestElementPartition(elementToggles);
+    PCollectionTuple branches = col.apply("partition elements", partition);
+
+    HashMap<String, PCollection<Event>> ret = new HashMap<>();
+    for (String name : elementToggles.keySet()) {
+      ret.put(name, branches.get(partition.getTag(name)));
     }
 
     return ret;
@@ -2186,7 +2603,30 @@ public class HTTPRequest implements Serializable {
       Pipeline p, HashMap<String, PCollection<Event>> inputMap, HTTPRequestOptions options) {
     PCollectionList<Alert> resultsList = PCollectionList.empty(p);
 
+    // If enabled, determine which services will have count analysis done by the shared analysis
+    // graph rather than in their own subgraph
+    HashMap<String, HTTPRequestToggles> sharedToggles = new HashMap<>();
+    if (options.getEnableSharedAnalysis()) {
+      for (String name : inputMap.keySet()) {
+        HTTPRequestToggles t = toggleCache.get(name);
+        if (HTTPRequestSharedAnalysis.isEligible(t)) {
+          sharedToggles.put(name, t);
+        }
+      }
+    }
+
+    PCollectionList<KV<String, Event>> sharedInput = PCollectionList.empty(p);
     for (Map.Entry<String, PCollection<Event>> entry : inputMap.entrySet()) {
+      Boolean shared = sharedToggles.containsKey(entry.getKey());
+      if (shared) {
+        sharedInput =
+            sharedInput.and(
+                entry
+                    .getValue()
+                    .apply(
+                        String.format("key for shared analysis %s", entry.getKey()),
+                        ParDo.of(new HTTPRequestSharedAnalysis.KeyForService(entry.getKey()))));
+      }
       resultsList =
           resultsList
               .and(
@@ -2194,7 +2634,7 @@ public class HTTPRequest implements Serializable {
                       .getValue()
                       .apply(
                           String.format("analyze %s", entry.getKey()),
-                          new HTTPRequestAnalysis(options, toggleCache.get(entry.getKey())))
+                          new HTTPRequestAnalysis(options, toggleCache.get(entry.getKey()), shared))
                       .apply(
                           String.format("tag %s", entry.getKey()),
                           ParDo.of(new HTTPRequestResourceTag(entry.getKey()))))
@@ -2212,6 +2652,14 @@ public class HTTPRequest implements Serializable {
                           new GlobalTriggers<Alert>(5)));
     }
 
+    if (!sharedToggles.isEmpty()) {
+      resultsList =
+          resultsList.and(
+              sharedInput
+                  .apply("flatten shared analysis input", Flatten.<KV<String, Event>>pCollections())
+                  .apply("shared analysis", new HTTPRequestSharedAnalysis(options, sharedToggles)));
+    }
+
     return resultsList.apply("flatten all output", Flatten.<Alert>pCollections());
   }
 
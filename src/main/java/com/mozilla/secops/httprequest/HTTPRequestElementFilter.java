@@ -14,6 +14,9 @@ import org.apache.beam.sdk.values.PCollection;
  * <p>The primary intent of this transform is filtering an event stream to ensure it contains only
  * events for the desired element. Additional filtering such as network address/CIDR based filtering
  * also occurs here.
+ *
+ * <p>Where a multiplexed stream needs to be split into more than one element, {@link
+ * HTTPRequestElementPartition} should be used instead so each event is only examined once.
  */
 public class HTTPRequestElementFilter
     extends PTransform<PCollection<KV<String, Event>>, PCollection<Event>> {
@@ -21,9 +24,7 @@ public class HTTPRequestElementFilter
 
   private final String name;
 
-  private final Boolean ignoreCp;
-  private final Boolean ignoreInternal;
-  private final String cidrExclusionList;
+  private final transient HTTPRequestToggles toggles;
 
   /**
    * Initialize new element filter
@@ -34,9 +35,7 @@ public class HTTPRequestElementFilter
   public HTTPRequestElementFilter(String name, HTTPRequestToggles toggles) {
     this.name = name;
 
-    ignoreCp = toggles.getIgnoreCloudProviderRequests();
-    ignoreInternal = toggles.getIgnoreInternalRequests();
-    cidrExclusionList = toggles.getCidrExclusionList();
+    this.toggles = toggles;
   }
 
   @Override
@@ -56,20 +55,45 @@ public class HTTPRequestElementFilter
                     }
                   }
                 }));
+    return applyExclusions(events, toggles, "cidr exclusion");
+  }
+
+  /**
+   * Apply address exclusions indicated in element toggles to an event collection
+   *
+   * @param events Events for a single element
+   * @param name Element name
+   * @param toggles Per-element toggles
+   * @return Events with excluded source addresses removed
+   */
+  public static PCollection<Event> applyExclusions(
+      PCollection<Event> events, String name, HTTPRequestToggles toggles) {
+    return applyExclusions(events, toggles, String.format("cidr exclusion %s", name));
+  }
+
+  private static PCollection<Event> applyExclusions(
+      PCollection<Event> events, HTTPRequestToggles toggles, String stepName) {
+    String cidrExclusionList = toggles.getCidrExclusionList();
     int exclmask = 0;
     if (cidrExclusionList != null) {
       exclmask |= CidrUtil.CIDRUTIL_FILE;
     }
-    if (ignoreCp) {
+    if (toggles.getIgnoreCloudProviderRequests()) {
       exclmask |= CidrUtil.CIDRUTIL_CLOUDPROVIDERS;
     }
-    if (ignoreInternal) {
+    if (toggles.getIgnoreInternalRequests()) {
       exclmask |= CidrUtil.CIDRUTIL_INTERNAL;
     }
     if (exclmask != 0) {
       return events.apply(
-          "cidr exclusion",
-          ParDo.of(CidrUtil.excludeNormalizedSourceAddresses(exclmask, cidrExclusionList)));
+          stepName,
+          ParDo.of(
+              CidrUtil.excludeNormalizedSourceAddresses(
+                  exclmask,
+                  cidrExclusionList,
+                  toggles.getCloudProviderSnapshot(),
+                  toggles.getCloudProviderSnapshotMaxAgeDays(),
+                  toggles.getCloudProviderSnapshotFailIfStale())));
     }
     return events;
   }
@@ -0,0 +1,103 @@
+package com.mozilla.secops.httprequest;
+
+import com.mozilla.secops.parser.Event;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TupleTagList;
+
+/**
+ * Demultiplex a multiplexed event stream into per-element branches
+ *
+ * <p>Each event is examined once and routed to the output associated with its element name using a
+ * single multi-output transform, instead of filtering the complete multiplexed collection once per
+ * configured element. Events for element names that have not been configured are dropped.
+ *
+ * <p>After routing, each branch has the per-element address exclusions applied as indicated in the
+ * toggles for that element. The collection for a given element can be obtained from the resulting
+ * {@link PCollectionTuple} using the tag returned by {@link #getTag}.
+ */
+public class HTTPRequestElementPartition
+    extends PTransform<PCollection<KV<String, Event>>, PCollectionTuple> {
+  private static final long serialVersionUID = 1L;
+
+  private final HashMap<String, TupleTag<Event>> tags;
+  private final transient Map<String, HTTPRequestToggles> toggles;
+
+  /**
+   * Initialize new element partition
+   *
+   * @param toggles Map of element name to per-element toggles
+   */
+  public HTTPRequestElementPartition(Map<String, HTTPRequestToggles> toggles) {
+    if (toggles == null || toggles.isEmpty()) {
+      throw new IllegalArgumentException("element partition requires at least one element");
+    }
+    this.toggles = toggles;
+    tags = new HashMap<>();
+    for (String name : toggles.keySet()) {
+      tags.put(
+          name,
+          new TupleTag<Event>(String.format("element-%s", name)) {
+            private static final long serialVersionUID = 1L;
+          });
+    }
+  }
+
+  /**
+   * Get output tag for a given element
+   *
+   * @param name Element name
+   * @return TupleTag, or null if the element is not known
+   */
+  public TupleTag<Event> getTag(String name) {
+    return tags.get(name);
+  }
+
+  @Override
+  public PCollectionTuple expand(PCollection<KV<String, Event>> col) {
+    // Sort the element names so the main output tag is stable between graph constructions
+    ArrayList<String> names = new ArrayList<>(new TreeSet<>(tags.keySet()));
+    TupleTag<Event> mainTag = tags.get(names.get(0));
+    ArrayList<TupleTag<?>> additional = new ArrayList<>();
+    for (int i = 1; i < names.size(); i++) {
+      additional.add(tags.get(names.get(i)));
+    }
+
+    PCollectionTuple routed =
+        col.apply(
+            "route element",
+            ParDo.of(
+                    new DoFn<KV<String, Event>, Event>() {
+                      private static final long serialVersionUID = 1L;
+
+                      @ProcessElement
+                      public void processElement(ProcessContext c) {
+                        KV<String, Event> e = c.element();
+                        TupleTag<Event> tag = tags.get(e.getKey());
+                        if (tag != null) {
+                          c.output(tag, e.getValue());
+                        }
+                      }
+                    })
+                .withOutputTags(mainTag, TupleTagList.of(additional)));
+
+    PCollectionTuple ret = PCollectionTuple.empty(col.getPipeline());
+    for (String name : names) {
+      TupleTag<Event> tag = tags.get(name);
+      ret =
+          ret.and(
+              tag,
+              HTTPRequestElementFilter.applyExclusions(routed.get(tag), name, toggles.get(name)));
+    }
+    return ret;
+  }
+}
@@ -27,4 +27,41 @@ public class HTTPRequestMetrics {
       natDetected.inc();
     }
   }
+
+  /** Metrics for {@link HTTPRequestSampler} */
+  public static class SamplerMetrics implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final String SAMPLED_KEPT = "sampler_kept";
+    static final String SAMPLED_DROPPED = "sampler_sampled_dropped";
+    static final String SHED_DROPPED = "sampler_shed_dropped";
+    private final Counter kept;
+    private final Counter sampledDropped;
+    private final Counter shedDropped;
+
+    /**
+     * Initializer for {@link SamplerMetrics}
+     *
+     * @param namespace String to categorize metric by service
+     */
+    public SamplerMetrics(String namespace) {
+      kept = Metrics.counter(namespace, SAMPLED_KEPT);
+      sampledDropped = Metrics.counter(namespace, SAMPLED_DROPPED);
+      shedDropped = Metrics.counter(namespace, SHED_DROPPED);
+    }
+
+    /** An event was retained by the sampler */
+    public void kept() {
+      kept.inc();
+    }
+
+    /** An event was dropped due to the configured sample rate */
+    public void sampledDropped() {
+      sampledDropped.inc();
+    }
+
+    /** An event was dropped due to load shedding */
+    public void shedDropped() {
+      shedDropped.inc();
+    }
+  }
 }
@@ -0,0 +1,337 @@
+package com.mozilla.secops.httprequest;
+
+import com.mozilla.secops.httprequest.HTTPRequestMetrics.SamplerMetrics;
+import com.mozilla.secops.parser.Event;
+import com.mozilla.secops.parser.Normalized;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.VarLongCoder;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Combine.CombineFn;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.MapElements;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.View;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.apache.beam.sdk.values.TypeDescriptors;
+
+/**
+ * Pre-analysis sampling and load shedding for HTTPRequest events
+ *
+ * <p>Sampling is deterministic; whether an event is retained depends only on a hash of the event
+ * source address, method, path, and timestamp, so repeated processing of the same event results in
+ * the same decision. A service level sample rate applies to all events, and path classes can be
+ * configured with their own rate, for example to retain only a small fraction of requests for
+ * static assets.
+ *
+ * <p>If load shedding is enabled, the observed throughput within each bundle is compared against
+ * the configured maximum events per second. Once the maximum is exceeded, events are additionally
+ * sampled at the ratio of the maximum to the observed rate until the end of the bundle.
+ *
+ * <p>Only analysis that tolerates sampled input should consume the output of this transform. Such
+ * analysis should scale count based thresholds using {@link #scale} with the fraction of events
+ * retained in the window, as returned by {@link #getSampledFractionView}. As the fraction depends
+ * on the mix of path classes in the input and on load shedding, it is measured rather than derived
+ * from the configured rates.
+ */
+public class HTTPRequestSampler extends PTransform<PCollection<Event>, PCollection<Event>> {
+  private static final long serialVersionUID = 1L;
+
+  /** Minimum bundle duration before load shedding decisions are made, in milliseconds */
+  private static final long SHEDDING_MIN_ELAPSED_MS = 1000L;
+
+  private final String monitoredResource;
+  private final Double sampleRate;
+  private final ArrayList<PathClass> pathClasses;
+  private final Long loadSheddingMaxEventsPerSecond;
+
+  private static class PathClass implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Double rate;
+    private final Pattern pattern;
+
+    PathClass(String spec) {
+      String[] parts = spec.split(":", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException(
+            "invalid format for sample path class, must be <rate>:<regex>");
+      }
+      rate = validateRate(Double.parseDouble(parts[0]));
+      pattern = Pattern.compile(parts[1]);
+    }
+  }
+
+  private static Double validateRate(Double rate) {
+    if (rate <= 0.0 || rate > 1.0) {
+      throw new IllegalArgumentException("sample rate must be greater than 0 and at most 1");
+    }
+    return rate;
+  }
+
+  /**
+   * Determine if sampling or load shedding has been configured in toggles
+   *
+   * @param toggles {@link HTTPRequestToggles}
+   * @return True if the sampler should be applied
+   */
+  public static boolean isEnabled(HTTPRequestToggles toggles) {
+    return (toggles.getSampleRate() != null && toggles.getSampleRate() < 1.0)
+        || (toggles.getSamplePathClasses() != null && toggles.getSamplePathClasses().length > 0)
+        || toggles.getLoadSheddingMaxEventsPerSecond() != null;
+  }
+
+  /**
+   * Combines counts of input events (keyed false) and retained events (keyed true) into the
+   * fraction of input events that were retained
+   */
+  private static class SampledFractionFn
+      extends CombineFn<KV<Boolean, Long>, KV<Long, Long>, Double> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public KV<Long, Long> createAccumulator() {
+      return KV.of(0L, 0L);
+    }
+
+    @Override
+    public KV<Long, Long> addInput(KV<Long, Long> acc, KV<Boolean, Long> input) {
+      if (input.getKey()) {
+        return KV.of(acc.getKey(), acc.getValue() + input.getValue());
+      }
+      return KV.of(acc.getKey() + input.getValue(), acc.getValue());
+    }
+
+    @Override
+    public KV<Long, Long> mergeAccumulators(Iterable<KV<Long, Long>> accs) {
+      long input = 0L;
+      long retained = 0L;
+      for (KV<Long, Long> a : accs) {
+        input += a.getKey();
+        retained += a.getValue();
+      }
+      return KV.of(input, retained);
+    }
+
+    @Override
+    public Double extractOutput(KV<Long, Long> acc) {
+      if (acc.getKey() == 0L) {
+        return 1.0;
+      }
+      return Math.min(1.0, (double) acc.getValue() / acc.getKey());
+    }
+
+    @Override
+    public Coder<KV<Long, Long>> getAccumulatorCoder(
+        CoderRegistry registry, Coder<KV<Boolean, Long>> inputCoder) {
+      return KvCoder.of(VarLongCoder.of(), VarLongCoder.of());
+    }
+  }
+
+  /**
+   * Get a view of the fraction of events retained by the sampler in each window
+   *
+   * <p>The view is suitable for use as a side input by analysis consuming the sampled events, and
+   * reflects the service sample rate, any path class rates and load shedding. Both collections must
+   * use the same windowing. If a window has no input events the fraction is 1.0.
+   *
+   * @param input Windowed events prior to sampling
+   * @param sampled Windowed output of the sampler
+   * @return {@link PCollectionView} of the fraction of events retained
+   */
+  public static PCollectionView<Double> getSampledFractionView(
+      PCollection<Event> input, PCollection<Event> sampled) {
+    PCollection<KV<Boolean, Long>> inputCount =
+        input
+            .apply(
+                "sampled fraction count input",
+                Combine.globally(Count.<Event>combineFn()).withoutDefaults())
+            .apply(
+                "sampled fraction key input",
+                MapElements.into(
+                        TypeDescriptors.kvs(TypeDescriptors.booleans(), TypeDescriptors.longs()))
+                    .via(x -> KV.of(false, x)));
+    PCollection<KV<Boolean, Long>> sampledCount =
+        sampled
+            .apply(
+                "sampled fraction count retained",
+                Combine.globally(Count.<Event>combineFn()).withoutDefaults())
+            .apply(
+                "sampled fraction key retained",
+                MapElements.into(
+                        TypeDescriptors.kvs(TypeDescriptors.booleans(), TypeDescriptors.longs()))
+                    .via(x -> KV.of(true, x)));
+    return PCollectionList.of(inputCount)
+        .and(sampledCount)
+        .apply("sampled fraction flatten", Flatten.pCollections())
+        .apply("sampled fraction", Combine.globally(new SampledFractionFn()).withoutDefaults())
+        .apply("sampled fraction view", View.<Double>asSingleton().withDefaultValue(1.0));
+  }
+
+  /**
+   * Get side inputs required to read a sampled fraction view
+   *
+   * @param sampledFractionView View returned by {@link #getSampledFractionView}, or null
+   * @return List containing the view, or an empty list if the view is null
+   */
+  public static List<PCollectionView<?>> sideInputs(PCollectionView<Double> sampledFractionView) {
+    if (sampledFractionView == null) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(sampledFractionView);
+  }
+
+  /**
+   * Scale a count threshold by a sample rate
+   *
+   * @param value Threshold, may be null
+   * @param rate Sample rate
+   * @return Scaled threshold, never less than 1, or null if value was null
+   */
+  public static Long scale(Long value, Double rate) {
+    if (value == null) {
+      return null;
+    }
+    return Math.max(1L, Math.round(value * rate));
+  }
+
+  /**
+   * Scale a threshold by a sample rate
+   *
+   * @param value Threshold, may be null
+   * @param rate Sample rate
+   * @return Scaled threshold, or null if value was null
+   */
+  public static Double scale(Double value, Double rate) {
+    if (value == null) {
+      return null;
+    }
+    return value * rate;
+  }
+
+  /**
+   * Return a deterministic value between 0 (inclusive) and 1 (exclusive) for an event
+   *
+   * @param e Event
+   * @return Double
+   */
+  static double hashFraction(Event e) {
+    Normalized n = e.getNormalized();
+    String key =
+        String.format(
+            "%s %s %s %d",
+            n.getSourceAddress(),
+            n.getRequestMethod(),
+            n.getUrlRequestPath(),
+            e.getTimestamp() != null ? e.getTimestamp().getMillis() : 0L);
+    long h = 1125899906842597L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h = 31 * h + b;
+    }
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    h = h ^ (h >>> 33);
+    return (double) (h >>> 11) / (double) (1L << 53);
+  }
+
+  /**
+   * Create new HTTPRequestSampler
+   *
+   * @param toggles {@link HTTPRequestToggles}
+   */
+  public HTTPRequestSampler(HTTPRequestToggles toggles) {
+    monitoredResource = toggles.getMonitoredResource();
+    sampleRate = validateRate(toggles.getSampleRate() != null ? toggles.getSampleRate() : 1.0);
+    pathClasses = new ArrayList<>();
+    if (toggles.getSamplePathClasses() != null) {
+      for (String s : toggles.getSamplePathClasses()) {
+        pathClasses.add(new PathClass(s));
+      }
+    }
+    loadSheddingMaxEventsPerSecond = toggles.getLoadSheddingMaxEventsPerSecond();
+  }
+
+  @Override
+  public PCollection<Event> expand(PCollection<Event> input) {
+    return input.apply(
+        "sample events",
+        ParDo.of(
+            new DoFn<Event, Event>() {
+              private static final long serialVersionUID = 1L;
+
+              private SamplerMetrics metrics;
+              private long bundleStart;
+              private long bundleCount;
+
+              @Setup
+              public void setup() {
+                metrics =
+                    new SamplerMetrics(
+                        String.format(
+                            "%s_%s", HTTPRequestSampler.class.getName(), monitoredResource));
+              }
+
+              @StartBundle
+              public void startBundle() {
+                bundleStart = System.currentTimeMillis();
+                bundleCount = 0L;
+              }
+
+              private double rateForEvent(Normalized n) {
+                String path = n.getUrlRequestPath();
+                if (path != null) {
+                  for (PathClass pc : pathClasses) {
+                    if (pc.pattern.matcher(path).find()) {
+                      return pc.rate;
+                    }
+                  }
+                }
+                return sampleRate;
+              }
+
+              @ProcessElement
+              public void processElement(ProcessContext c) {
+                Event e = c.element();
+                double h = hashFraction(e);
+
+                if (h >= rateForEvent(e.getNormalized())) {
+                  metrics.sampledDropped();
+                  return;
+                }
+
+                if (loadSheddingMaxEventsPerSecond != null) {
+                  bundleCount++;
+                  long elapsed = System.currentTimeMillis() - bundleStart;
+                  if (elapsed >= SHEDDING_MIN_ELAPSED_MS) {
+                    double observed = (bundleCount * 1000.0) / elapsed;
+                    if (observed > loadSheddingMaxEventsPerSecond) {
+                      // Use the low order bits of the hash so the shedding decision is independent
+                      // of the sampling decision made above
+                      double keep = loadSheddingMaxEventsPerSecond / observed;
+                      if (((h * 1024.0) % 1.0) >= keep) {
+                        metrics.shedDropped();
+                        return;
+                      }
+                    }
+                  }
+                }
+
+                metrics.kept();
+                c.output(e);
+              }
+            }));
+  }
+}
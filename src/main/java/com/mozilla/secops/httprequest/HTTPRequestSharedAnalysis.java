@@ -0,0 +1,503 @@
+package com.mozilla.secops.httprequest;
+
+import com.mozilla.secops.IprepdIO;
+import com.mozilla.secops.Stats;
+import com.mozilla.secops.alert.Alert;
+import com.mozilla.secops.alert.AlertFormatter;
+import com.mozilla.secops.alert.AlertMeta;
+import com.mozilla.secops.parser.Event;
+import com.mozilla.secops.parser.Normalized;
+import com.mozilla.secops.window.GlobalTriggers;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.View;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
+import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared multi-tenant analysis for multimode {@link HTTPRequest}
+ *
+ * <p>In multimode each service normally receives a dedicated copy of the analysis subgraph, which
+ * results in a large number of near identical transforms and small shuffles as the number of
+ * services grows. This transform instead operates on a single collection of events keyed by service
+ * name. Counting is done using composite (service, source address) keys, and per-service settings
+ * are carried in a map that is part of the transform, so one instance of each analysis serves every
+ * participating service.
+ *
+ * <p>Threshold, error rate, and hard limit analysis are supported. The alerts generated are the
+ * same as those generated by the per-service variants in {@link HTTPRequest}. Services that make
+ * use of NAT detection or the source correlator depend on per-service side inputs and outputs, and
+ * services with sampling configured require scaled thresholds, so these are not eligible; see
+ * {@link #isEligible}.
+ */
+public class HTTPRequestSharedAnalysis
+    extends PTransform<PCollection<KV<String, Event>>, PCollection<Alert>> {
+  private static final long serialVersionUID = 1L;
+
+  private final HashMap<String, ServiceSettings> settings;
+  private final Boolean enableIprepdDatastoreExemptions;
+  private final String iprepdDatastoreExemptionsProject;
+  private final String maxmindCityDbPath;
+  private final String maxmindIspDbPath;
+
+  /** Per-service analysis settings, extracted from {@link HTTPRequestToggles} */
+  public static class ServiceSettings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Boolean enableThresholdAnalysis;
+    private final Double thresholdModifier;
+    private final Double requiredMinimumAverage;
+    private final Long requiredMinimumClients;
+    private final Double clampThresholdMaximum;
+    private final Long requiredMinimumRequestsPerClient;
+
+    private final Boolean enableErrorRateAnalysis;
+    private final Long maxClientErrorRate;
+
+    private final Boolean enableHardLimitAnalysis;
+    private final Long hardLimitRequestCount;
+
+    /**
+     * Create new ServiceSettings
+     *
+     * @param toggles Service toggles
+     */
+    public ServiceSettings(HTTPRequestToggles toggles) {
+      enableThresholdAnalysis = toggles.getEnableThresholdAnalysis();
+      thresholdModifier = toggles.getAnalysisThresholdModifier();
+      requiredMinimumAverage = toggles.getRequiredMinimumAverage();
+      requiredMinimumClients = toggles.getRequiredMinimumClients();
+      clampThresholdMaximum = toggles.getClampThresholdMaximum();
+      requiredMinimumRequestsPerClient = toggles.getRequiredMinimumRequestsPerClient();
+      enableErrorRateAnalysis = toggles.getEnableErrorRateAnalysis();
+      maxClientErrorRate = toggles.getMaxClientErrorRate();
+      enableHardLimitAnalysis = toggles.getEnableHardLimitAnalysis();
+      hardLimitRequestCount = toggles.getHardLimitRequestCount();
+    }
+  }
+
+  /**
+   * Determine if a service can make use of shared analysis
+   *
+   * @param toggles Service toggles
+   * @return True if the shared analysis can replace the count analyses for the service
+   */
+  public static boolean isEligible(HTTPRequestToggles toggles) {
+    if (toggles.getEnableNatDetection()
+        || toggles.getEnableSourceCorrelator()
+        || HTTPRequestSampler.isEnabled(toggles)) {
+      return false;
+    }
+    return toggles.getEnableThresholdAnalysis()
+        || toggles.getEnableErrorRateAnalysis()
+        || toggles.getEnableHardLimitAnalysis();
+  }
+
+  /** Key events with the service name for use in shared analysis */
+  public static class KeyForService extends DoFn<Event, KV<String, Event>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String service;
+
+    /**
+     * Create new KeyForService
+     *
+     * @param service Service name
+     */
+    public KeyForService(String service) {
+      this.service = service;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      c.output(KV.of(service, c.element()));
+    }
+  }
+
+  /**
+   * Create new HTTPRequestSharedAnalysis
+   *
+   * @param options Pipeline options
+   * @param toggles Map of service name to toggles, for each service participating
+   */
+  public HTTPRequestSharedAnalysis(
+      HTTPRequest.HTTPRequestOptions options, Map<String, HTTPRequestToggles> toggles) {
+    settings = new HashMap<>();
+    for (Map.Entry<String, HTTPRequestToggles> entry : toggles.entrySet()) {
+      settings.put(entry.getKey(), new ServiceSettings(entry.getValue()));
+    }
+    enableIprepdDatastoreExemptions = options.getOutputIprepdEnableDatastoreExemptions();
+    iprepdDatastoreExemptionsProject = options.getOutputIprepdDatastoreExemptionsProject();
+    maxmindCityDbPath = options.getMaxmindCityDbPath();
+    maxmindIspDbPath = options.getMaxmindIspDbPath();
+  }
+
+  @Override
+  public PCollection<Alert> expand(PCollection<KV<String, Event>> input) {
+    PCollectionList<Alert> resultsList = PCollectionList.empty(input.getPipeline());
+
+    PCollection<KV<String, Event>> fwEvents =
+        input.apply(
+            "window for fixed",
+            Window.<KV<String, Event>>into(FixedWindows.of(Duration.standardMinutes(1))));
+
+    boolean threshold = false;
+    boolean errorRate = false;
+    boolean hardLimit = false;
+    for (ServiceSettings s : settings.values()) {
+      threshold |= s.enableThresholdAnalysis;
+      errorRate |= s.enableErrorRateAnalysis;
+      hardLimit |= s.enableHardLimitAnalysis;
+    }
+
+    if (threshold) {
+      resultsList =
+          resultsList.and(
+              fwEvents
+                  .apply("shared threshold analysis", new SharedThresholdAnalysis())
+                  .apply("shared threshold analysis global triggers", new GlobalTriggers<>(5)));
+    }
+    if (hardLimit) {
+      resultsList =
+          resultsList.and(
+              fwEvents
+                  .apply("shared hard limit analysis", new SharedHardLimitAnalysis())
+                  .apply("shared hard limit analysis global triggers", new GlobalTriggers<>(5)));
+    }
+    if (errorRate) {
+      resultsList =
+          resultsList.and(
+              fwEvents
+                  .apply("shared error rate analysis", new SharedErrorRateAnalysis())
+                  .apply("shared error rate analysis global triggers", new GlobalTriggers<>(5)));
+    }
+
+    // The monitored resource is set in each alert by the analysis, so the formatter is only
+    // responsible for adding GeoIP data here
+    return resultsList
+        .apply("flatten shared analysis output", Flatten.<Alert>pCollections())
+        .apply(
+            "shared output format",
+            ParDo.of(new AlertFormatter(null, maxmindCityDbPath, maxmindIspDbPath)));
+  }
+
+  /**
+   * Count events per composite (service, source address) key
+   *
+   * <p>Only events for services that have the analysis enabled, and that match the supplied
+   * predicate are counted.
+   */
+  private class CountPerServiceSource
+      extends PTransform<
+          PCollection<KV<String, Event>>, PCollection<KV<KV<String, String>, Long>>> {
+    private static final long serialVersionUID = 1L;
+
+    private final ServicePredicate predicate;
+
+    CountPerServiceSource(ServicePredicate predicate) {
+      this.predicate = predicate;
+    }
+
+    @Override
+    public PCollection<KV<KV<String, String>, Long>> expand(PCollection<KV<String, Event>> input) {
+      return input
+          .apply(
+              "key for service and source",
+              ParDo.of(
+                  new DoFn<KV<String, Event>, KV<String, String>>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @ProcessElement
+                    public void processElement(ProcessContext c) {
+                      ServiceSettings s = settings.get(c.element().getKey());
+                      if (s == null) {
+                        return;
+                      }
+                      Normalized n = c.element().getValue().getNormalized();
+                      if (n.getSourceAddress() == null) {
+                        return;
+                      }
+                      if (!predicate.include(s, n)) {
+                        return;
+                      }
+                      c.output(KV.of(c.element().getKey(), n.getSourceAddress()));
+                    }
+                  }))
+          .apply(Count.<KV<String, String>>perElement());
+    }
+  }
+
+  /** Predicate used to select events for a given analysis */
+  private interface ServicePredicate extends Serializable {
+    boolean include(ServiceSettings s, Normalized n);
+  }
+
+  /**
+   * Add iprepd exemption metadata to an alert if the source address is exempt
+   *
+   * <p>Exempt addresses are still alerted on, with the exemption indicated in the alert metadata.
+   *
+   * @param sourceAddress Source address
+   * @param a Alert
+   * @param log Logger
+   * @return True if the exemption lookup failed, in which case the alert should be dropped
+   */
+  private Boolean exemptionLookupFailed(String sourceAddress, Alert a, Logger log) {
+    if (!enableIprepdDatastoreExemptions) {
+      return false;
+    }
+    try {
+      IprepdIO.addMetadataIfIpIsExempt(sourceAddress, a, iprepdDatastoreExemptionsProject);
+    } catch (IOException exc) {
+      log.error("error checking iprepd exemptions: {}", exc.getMessage());
+      return true;
+    }
+    return false;
+  }
+
+  /** Shared variant of {@link HTTPRequest.ThresholdAnalysis} */
+  private class SharedThresholdAnalysis
+      extends PTransform<PCollection<KV<String, Event>>, PCollection<Alert>> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public PCollection<Alert> expand(PCollection<KV<String, Event>> input) {
+      PCollection<KV<KV<String, String>, Long>> clientCounts =
+          input.apply(
+              "calculate per client count",
+              new CountPerServiceSource((s, n) -> s.enableThresholdAnalysis));
+
+      // Obtain statistics on the client count population for each service for use as a side
+      // input
+      final PCollectionView<Map<String, Stats.StatsOutput>> wStats =
+          clientCounts
+              .apply(
+                  "extract service counts",
+                  ParDo.of(
+                      new DoFn<KV<KV<String, String>, Long>, KV<String, Long>>() {
+                        private static final long serialVersionUID = 1L;
+
+                        @ProcessElement
+                        public void processElement(ProcessContext c) {
+                          c.output(KV.of(c.element().getKey().getKey(), c.element().getValue()));
+                        }
+                      }))
+              .apply("per service stats", Stats.<String>perKey())
+              .apply("per service stats view", View.<String, Stats.StatsOutput>asMap());
+
+      return clientCounts.apply(
+          "apply thresholds",
+          ParDo.of(
+                  new DoFn<KV<KV<String, String>, Long>, Alert>() {
+                    private static final long serialVersionUID = 1L;
+
+                    private Logger log;
+
+                    @Setup
+                    public void setup() {
+                      log = LoggerFactory.getLogger(SharedThresholdAnalysis.class);
+                    }
+
+                    @ProcessElement
+                    public void processElement(ProcessContext c, BoundedWindow w) {
+                      String service = c.element().getKey().getKey();
+                      String sourceAddress = c.element().getKey().getValue();
+                      Long count = c.element().getValue();
+                      ServiceSettings s = settings.get(service);
+
+                      if (count < s.requiredMinimumRequestsPerClient) {
+                        return;
+                      }
+
+                      Stats.StatsOutput sOutput = c.sideInput(wStats).get(service);
+                      if (sOutput == null) {
+                        return;
+                      }
+                      Double cMean = sOutput.getMean();
+
+                      if (sOutput.getTotalElements() < s.requiredMinimumClients) {
+                        return;
+                      }
+                      if (cMean < s.requiredMinimumAverage) {
+                        return;
+                      }
+                      if ((s.clampThresholdMaximum != null) && (cMean > s.clampThresholdMaximum)) {
+                        cMean = s.clampThresholdMaximum;
+                      }
+                      if (count < (cMean * s.thresholdModifier)) {
+                        return;
+                      }
+
+                      log.info(
+                          "{}: emitting alert for {} {}", w.toString(), service, sourceAddress);
+                      Alert a = new Alert();
+                      a.setSummary(
+                          String.format(
+                              "%s httprequest threshold_analysis %s %d",
+                              service, sourceAddress, count));
+                      a.setCategory("httprequest");
+                      a.setSubcategory("threshold_analysis");
+                      a.addMetadata(AlertMeta.Key.SOURCEADDRESS, sourceAddress);
+                      if (exemptionLookupFailed(sourceAddress, a, log)) {
+                        return;
+                      }
+                      a.addMetadata(AlertMeta.Key.MEAN, sOutput.getMean().toString());
+                      a.addMetadata(AlertMeta.Key.COUNT, count.toString());
+                      a.addMetadata(
+                          AlertMeta.Key.THRESHOLD_MODIFIER, s.thresholdModifier.toString());
+                      a.setNotifyMergeKey(String.format("%s threshold_analysis", service));
+                      a.addMetadata(
+                          AlertMeta.Key.WINDOW_TIMESTAMP,
+                          (new DateTime(w.maxTimestamp())).toString());
+                      a.addMetadata(AlertMeta.Key.MONITORED_RESOURCE, service);
+                      if (!a.hasCorrectFields()) {
+                        throw new IllegalArgumentException("alert has invalid field configuration");
+                      }
+                      c.output(a);
+                    }
+                  })
+              .withSideInputs(wStats));
+    }
+  }
+
+  /** Shared variant of {@link HTTPRequest.HardLimitAnalysis} */
+  private class SharedHardLimitAnalysis
+      extends PTransform<PCollection<KV<String, Event>>, PCollection<Alert>> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public PCollection<Alert> expand(PCollection<KV<String, Event>> input) {
+      return input
+          .apply(
+              "hard limit per client count",
+              new CountPerServiceSource((s, n) -> s.enableHardLimitAnalysis))
+          .apply(
+              "per-source hard limit analysis",
+              ParDo.of(
+                  new DoFn<KV<KV<String, String>, Long>, Alert>() {
+                    private static final long serialVersionUID = 1L;
+
+                    private Logger log;
+
+                    @Setup
+                    public void setup() {
+                      log = LoggerFactory.getLogger(SharedHardLimitAnalysis.class);
+                    }
+
+                    @ProcessElement
+                    public void processElement(ProcessContext c, BoundedWindow w) {
+                      String service = c.element().getKey().getKey();
+                      String sourceAddress = c.element().getKey().getValue();
+                      Long count = c.element().getValue();
+                      Long maxCount = settings.get(service).hardLimitRequestCount;
+                      if (count <= maxCount) {
+                        return;
+                      }
+                      Alert a = new Alert();
+                      a.setSummary(
+                          String.format(
+                              "%s httprequest hard_limit %s %d", service, sourceAddress, count));
+                      a.setCategory("httprequest");
+                      a.setSubcategory("hard_limit");
+                      a.addMetadata(AlertMeta.Key.SOURCEADDRESS, sourceAddress);
+                      if (exemptionLookupFailed(sourceAddress, a, log)) {
+                        return;
+                      }
+                      a.addMetadata(AlertMeta.Key.COUNT, count.toString());
+                      a.addMetadata(AlertMeta.Key.REQUEST_THRESHOLD, maxCount.toString());
+                      a.setNotifyMergeKey(String.format("%s hard_limit_count", service));
+                      a.addMetadata(
+                          AlertMeta.Key.WINDOW_TIMESTAMP,
+                          (new DateTime(w.maxTimestamp())).toString());
+                      a.addMetadata(AlertMeta.Key.MONITORED_RESOURCE, service);
+                      if (!a.hasCorrectFields()) {
+                        throw new IllegalArgumentException("alert has invalid field configuration");
+                      }
+                      c.output(a);
+                    }
+                  }));
+    }
+  }
+
+  /** Shared variant of {@link HTTPRequest.ErrorRateAnalysis} */
+  private class SharedErrorRateAnalysis
+      extends PTransform<PCollection<KV<String, Event>>, PCollection<Alert>> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public PCollection<Alert> expand(PCollection<KV<String, Event>> input) {
+      return input
+          .apply(
+              "isolate client errors",
+              new CountPerServiceSource(
+                  (s, n) -> {
+                    Integer status = n.getRequestStatus();
+                    return s.enableErrorRateAnalysis
+                        && status != null
+                        && status >= 400
+                        && status < 500;
+                  }))
+          .apply(
+              "per-client error rate analysis",
+              ParDo.of(
+                  new DoFn<KV<KV<String, String>, Long>, Alert>() {
+                    private static final long serialVersionUID = 1L;
+
+                    private Logger log;
+
+                    @Setup
+                    public void setup() {
+                      log = LoggerFactory.getLogger(SharedErrorRateAnalysis.class);
+                    }
+
+                    @ProcessElement
+                    public void processElement(ProcessContext c, BoundedWindow w) {
+                      String service = c.element().getKey().getKey();
+                      String sourceAddress = c.element().getKey().getValue();
+                      Long count = c.element().getValue();
+                      Long maxErrorRate = settings.get(service).maxClientErrorRate;
+                      if (count <= maxErrorRate) {
+                        return;
+                      }
+                      Alert a = new Alert();
+                      a.setSummary(
+                          String.format(
+                              "%s httprequest error_rate %s %d", service, sourceAddress, count));
+                      a.setCategory("httprequest");
+                      a.setSubcategory("error_rate");
+                      a.addMetadata(AlertMeta.Key.SOURCEADDRESS, sourceAddress);
+                      if (exemptionLookupFailed(sourceAddress, a, log)) {
+                        return;
+                      }
+                      a.addMetadata(AlertMeta.Key.ERROR_COUNT, count.toString());
+                      a.addMetadata(AlertMeta.Key.ERROR_THRESHOLD, maxErrorRate.toString());
+                      a.setNotifyMergeKey(String.format("%s error_count", service));
+                      a.addMetadata(
+                          AlertMeta.Key.WINDOW_TIMESTAMP,
+                          (new DateTime(w.maxTimestamp())).toString());
+                      a.addMetadata(AlertMeta.Key.MONITORED_RESOURCE, service);
+                      if (!a.hasCorrectFields()) {
+                        throw new IllegalArgumentException("alert has invalid field configuration");
+                      }
+                      c.output(a);
+                    }
+                  }));
+    }
+  }
+}
@@ -24,6 +24,7 @@ public class HTTPRequestToggles {
   private Boolean enablePerEndpointErrorRateAnalysis;
   private Boolean enableNatDetection;
   private Boolean enableSourceCorrelator;
+  private Boolean enableHeavyHitterAnalysis;
 
   // Nat detection settings
   private String knownGatewaysPath;
@@ -31,6 +32,11 @@ public class HTTPRequestToggles {
   // Hard limit settings
   private Long hardLimitRequestCount;
 
+  // Heavy hitter settings
+  private Integer heavyHitterCapacity;
+  private Double heavyHitterRelativeThreshold;
+  private Long heavyHitterAbsoluteThreshold;
+
   // Threshold analysis settings
   private Double analysisThresholdModifier;
   private Double requiredMinimumAverage;
@@ -70,11 +76,19 @@ public class HTTPRequestToggles {
   private Integer perEndpointErrorRateSuppressRecovery;
   private Long perEndpointErrorRateAlertSuppressionDurationSeconds;
 
+  // Sampling settings
+  private Double sampleRate;
+  private String[] samplePathClasses;
+  private Long loadSheddingMaxEventsPerSecond;
+
   // Filtering settings
   private String[] filterRequestPath;
   private String[] includeUrlHostRegex;
   private String cidrExclusionList;
   private Boolean ignoreCloudProviderRequests;
+  private String cloudProviderSnapshot;
+  private Integer cloudProviderSnapshotMaxAgeDays;
+  private Boolean cloudProviderSnapshotFailIfStale;
   private Boolean ignoreInternalRequests;
 
   // Misc settings
@@ -498,6 +512,139 @@ public class HTTPRequestToggles {
     return hardLimitRequestCount;
   }
 
+  /**
+   * Set heavy hitter analysis setting
+   *
+   * @param enableHeavyHitterAnalysis Boolean
+   */
+  @JsonProperty("enable_heavy_hitter_analysis")
+  public void setEnableHeavyHitterAnalysis(Boolean enableHeavyHitterAnalysis) {
+    this.enableHeavyHitterAnalysis = enableHeavyHitterAnalysis;
+  }
+
+  /**
+   * Get heavy hitter analysis setting
+   *
+   * @return Boolean
+   */
+  public Boolean getEnableHeavyHitterAnalysis() {
+    return enableHeavyHitterAnalysis;
+  }
+
+  /**
+   * Set maximum number of candidates tracked in heavy hitter analysis
+   *
+   * @param value Integer
+   */
+  @JsonProperty("heavy_hitter_capacity")
+  public void setHeavyHitterCapacity(Integer value) {
+    heavyHitterCapacity = value;
+  }
+
+  /**
+   * Get maximum number of candidates tracked in heavy hitter analysis
+   *
+   * @return Integer
+   */
+  public Integer getHeavyHitterCapacity() {
+    return heavyHitterCapacity;
+  }
+
+  /**
+   * Set heavy hitter relative threshold, as a fraction of all requests in the window
+   *
+   * @param value Double
+   */
+  @JsonProperty("heavy_hitter_relative_threshold")
+  public void setHeavyHitterRelativeThreshold(Double value) {
+    heavyHitterRelativeThreshold = value;
+  }
+
+  /**
+   * Get heavy hitter relative threshold
+   *
+   * @return Double
+   */
+  public Double getHeavyHitterRelativeThreshold() {
+    return heavyHitterRelativeThreshold;
+  }
+
+  /**
+   * Set heavy hitter absolute threshold, as a request count
+   *
+   * @param value Long
+   */
+  @JsonProperty("heavy_hitter_absolute_threshold")
+  public void setHeavyHitterAbsoluteThreshold(Long value) {
+    heavyHitterAbsoluteThreshold = value;
+  }
+
+  /**
+   * Get heavy hitter absolute threshold
+   *
+   * @return Long
+   */
+  public Long getHeavyHitterAbsoluteThreshold() {
+    return heavyHitterAbsoluteThreshold;
+  }
+
+  /**
+   * Set sample rate for sampled analysis
+   *
+   * @param value Double
+   */
+  @JsonProperty("sample_rate")
+  public void setSampleRate(Double value) {
+    sampleRate = value;
+  }
+
+  /**
+   * Get sample rate for sampled analysis
+   *
+   * @return Double
+   */
+  public Double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Set sample path classes for sampled analysis
+   *
+   * @param value String[]
+   */
+  @JsonProperty("sample_path_classes")
+  public void setSamplePathClasses(String[] value) {
+    samplePathClasses = value;
+  }
+
+  /**
+   * Get sample path classes for sampled analysis
+   *
+   * @return String[]
+   */
+  public String[] getSamplePathClasses() {
+    return samplePathClasses;
+  }
+
+  /**
+   * Set maximum events per second before load shedding occurs in sampled analysis
+   *
+   * @param value Long
+   */
+  @JsonProperty("load_shedding_max_events_per_second")
+  public void setLoadSheddingMaxEventsPerSecond(Long value) {
+    loadSheddingMaxEventsPerSecond = value;
+  }
+
+  /**
+   * Get maximum events per second before load shedding occurs in sampled analysis
+   *
+   * @return Long
+   */
+  public Long getLoadSheddingMaxEventsPerSecond() {
+    return loadSheddingMaxEventsPerSecond;
+  }
+
   /**
    * Set user agent blocklist analysis setting
    *
@@ -709,6 +856,63 @@ public class HTTPRequestToggles {
     return ignoreCloudProviderRequests;
   }
 
+  /**
+   * Set cloud provider snapshot path
+   *
+   * @param value String
+   */
+  @JsonProperty("cloud_provider_snapshot")
+  public void setCloudProviderSnapshot(String value) {
+    cloudProviderSnapshot = value;
+  }
+
+  /**
+   * Get cloud provider snapshot path
+   *
+   * @return String
+   */
+  public String getCloudProviderSnapshot() {
+    return cloudProviderSnapshot;
+  }
+
+  /**
+   * Set maximum cloud provider snapshot age in days
+   *
+   * @param value Integer
+   */
+  @JsonProperty("cloud_provider_snapshot_max_age_days")
+  public void setCloudProviderSnapshotMaxAgeDays(Integer value) {
+    cloudProviderSnapshotMaxAgeDays = value;
+  }
+
+  /**
+   * Get maximum cloud provider snapshot age in days
+   *
+   * @return Integer
+   */
+  public Integer getCloudProviderSnapshotMaxAgeDays() {
+    return cloudProviderSnapshotMaxAgeDays;
+  }
+
+  /**
+   * Set fail if cloud provider snapshot is stale
+   *
+   * @param value Boolean
+   */
+  @JsonProperty("cloud_provider_snapshot_fail_if_stale")
+  public void setCloudProviderSnapshotFailIfStale(Boolean value) {
+    cloudProviderSnapshotFailIfStale = value;
+  }
+
+  /**
+   * Get fail if cloud provider snapshot is stale
+   *
+   * @return Boolean
+   */
+  public Boolean getCloudProviderSnapshotFailIfStale() {
+    return cloudProviderSnapshotFailIfStale;
+  }
+
   /**
    * Set ignore internal requests
    *
@@ -894,6 +1098,11 @@ public class HTTPRequestToggles {
 
     ret.setHardLimitRequestCount(o.getHardLimitRequestCount());
 
+    ret.setEnableHeavyHitterAnalysis(o.getEnableHeavyHitterAnalysis());
+    ret.setHeavyHitterCapacity(o.getHeavyHitterCapacity());
+    ret.setHeavyHitterRelativeThreshold(o.getHeavyHitterRelativeThreshold());
+    ret.setHeavyHitterAbsoluteThreshold(o.getHeavyHitterAbsoluteThreshold());
+
     ret.setAnalysisThresholdModifier(o.getAnalysisThresholdModifier());
     ret.setRequiredMinimumAverage(o.getRequiredMinimumAverage());
     ret.setRequiredMinimumClients(o.getRequiredMinimumClients());
@@ -922,10 +1131,17 @@ public class HTTPRequestToggles {
         o.getPerEndpointErrorRateAlertSuppressionDurationSeconds());
     ret.setErrorSessionGapDurationMinutes(o.getErrorSessionGapDurationMinutes());
 
+    ret.setSampleRate(o.getSampleRate());
+    ret.setSamplePathClasses(o.getSamplePathClasses());
+    ret.setLoadSheddingMaxEventsPerSecond(o.getLoadSheddingMaxEventsPerSecond());
+
     ret.setFilterRequestPath(o.getFilterRequestPath());
     ret.setIncludeUrlHostRegex(o.getIncludeUrlHostRegex());
     ret.setCidrExclusionList(o.getCidrExclusionList());
     ret.setIgnoreCloudProviderRequests(o.getIgnoreCloudProviderRequests());
+    ret.setCloudProviderSnapshot(o.getCloudProviderSnapshot());
+    ret.setCloudProviderSnapshotMaxAgeDays(o.getCloudProviderSnapshotMaxAgeDays());
+    ret.setCloudProviderSnapshotFailIfStale(o.getCloudProviderSnapshotFailIfStale());
     ret.setIgnoreInternalRequests(o.getIgnoreInternalRequests());
 
     ret.setEnableSourceCorrelator(o.getEnableSourceCorrelator());
@@ -948,6 +1164,10 @@ public class HTTPRequestToggles {
 
     hardLimitRequestCount = 100L;
 
+    enableHeavyHitterAnalysis = false;
+    heavyHitterCapacity = 100;
+    heavyHitterRelativeThreshold = 0.05;
+
     analysisThresholdModifier = 75.0;
     requiredMinimumAverage = 5.0;
     requiredMinimumClients = 5L;
@@ -959,7 +1179,11 @@ public class HTTPRequestToggles {
     sessionGapDurationMinutes = 45L;
     alertSuppressionDurationSeconds = 600L;
 
+    sampleRate = 1.0;
+
     ignoreCloudProviderRequests = true;
+    cloudProviderSnapshotMaxAgeDays = 30;
+    cloudProviderSnapshotFailIfStale = false;
     ignoreInternalRequests = true;
 
     enableSourceCorrelator = false;
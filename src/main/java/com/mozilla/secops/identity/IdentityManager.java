@@ -2,11 +2,15 @@ package com.mozilla.secops.identity;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mozilla.secops.CidrUtil;
+import com.google.common.net.InetAddresses;
 import com.mozilla.secops.FileUtil;
+import com.mozilla.secops.InetPrefixTree;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -15,12 +19,34 @@ import java.util.Map;
  *
  * <p>In addition to username identity translation, this class can also handle translations from
  * values such as AWS account IDs to a more description account name.
+ *
+ * <p>Alias and named subnet lookups are performed against indexes built from the configuration when
+ * it is loaded, so lookup cost does not depend on the number of identities or subnets. If the
+ * configuration maps are modified after the indexes have been built, {@link #buildIndexes} must be
+ * called again for the changes to be reflected in lookups.
  */
 public class IdentityManager {
   private Map<String, Identity> identities;
   private Map<String, String> awsAccountMap;
   private Map<String, String> namedSubnets;
 
+  private volatile Indexes indexes;
+
+  private static class Indexes {
+    private final HashMap<String, String> aliases;
+    private final HashMap<String, String> normalizedAliases;
+    private final InetPrefixTree<String> subnets;
+
+    Indexes(
+        HashMap<String, String> aliases,
+        HashMap<String, String> normalizedAliases,
+        InetPrefixTree<String> subnets) {
+      this.aliases = aliases;
+      this.normalizedAliases = normalizedAliases;
+      this.subnets = subnets;
+    }
+  }
+
   /**
    * Load identity manager configuration from a resource file
    *
@@ -31,7 +57,114 @@ public class IdentityManager {
   public static IdentityManager load(String path) throws IOException {
     InputStream in = FileUtil.getStreamFromPath(path);
     ObjectMapper mapper = new ObjectMapper();
-    return mapper.readValue(in, IdentityManager.class);
+    IdentityManager ret = mapper.readValue(in, IdentityManager.class);
+    ret.buildIndexes();
+    return ret;
+  }
+
+  private static String normalizeAlias(String alias) {
+    return alias.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Build alias and named subnet lookup indexes from current configuration
+   *
+   * <p>This is called automatically when the configuration is loaded using {@link #load}. Named
+   * subnets that are not a valid subnet specification are ignored.
+   */
+  public void buildIndexes() {
+    HashMap<String, String> a = new HashMap<>();
+    HashMap<String, String> na = new HashMap<>();
+    for (Map.Entry<String, Identity> entry : identities.entrySet()) {
+      ArrayList<String> aliases = entry.getValue().getAliases();
+      if (aliases == null) {
+        continue;
+      }
+      for (String alias : aliases) {
+        // Where an alias is present in more than one identity, the first one wins
+        a.putIfAbsent(alias, entry.getKey());
+        na.putIfAbsent(normalizeAlias(alias), entry.getKey());
+      }
+    }
+
+    indexes = new Indexes(a, na, buildSubnetIndex());
+  }
+
+  private static byte[] maskAddress(byte[] addr, int masklen) {
+    byte[] ret = new byte[addr.length];
+    for (int i = 0; i < masklen / 8; i++) {
+      ret[i] = addr[i];
+    }
+    if (masklen % 8 != 0) {
+      ret[masklen / 8] = (byte) (addr[masklen / 8] & (0xff00 >> (masklen % 8)));
+    }
+    return ret;
+  }
+
+  private static String prefixKey(byte[] addr, int masklen) {
+    return Arrays.toString(maskAddress(addr, masklen)) + "/" + masklen;
+  }
+
+  private InetPrefixTree<String> buildSubnetIndex() {
+    InetPrefixTree.Builder<String> b = InetPrefixTree.builder();
+    if (namedSubnets == null) {
+      return b.build();
+    }
+
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<byte[]> addrs = new ArrayList<>();
+    ArrayList<Integer> masks = new ArrayList<>();
+    // Position in configuration order of the first named subnet for each distinct prefix
+    HashMap<String, Integer> first = new HashMap<>();
+    for (Map.Entry<String, String> entry : namedSubnets.entrySet()) {
+      String cidr = entry.getValue();
+      byte[] addr;
+      int masklen;
+      try {
+        int i = cidr.indexOf("/");
+        addr = InetAddresses.forString(i == -1 ? cidr : cidr.substring(0, i)).getAddress();
+        // Subnet may be specified as a single address
+        masklen = i == -1 ? addr.length * 8 : Integer.parseInt(cidr.substring(i + 1));
+      } catch (IllegalArgumentException exc) {
+        continue;
+      }
+      if (masklen < 0 || masklen > addr.length * 8) {
+        continue;
+      }
+      first.putIfAbsent(prefixKey(addr, masklen), names.size());
+      names.add(entry.getKey());
+      addrs.add(addr);
+      masks.add(masklen);
+    }
+
+    // The index returns the most specific subnet containing an address, and every other named
+    // subnet containing the address also contains that subnet. Storing the name of the first
+    // subnet in configuration order out of a subnet and the subnets containing it means lookups
+    // return the first matching subnet in configuration order.
+    for (int i = 0; i < names.size(); i++) {
+      int best = i;
+      for (int m = 0; m <= masks.get(i); m++) {
+        Integer j = first.get(prefixKey(addrs.get(i), m));
+        if (j != null && j < best) {
+          best = j;
+        }
+      }
+      b.add(addrs.get(i), masks.get(i), names.get(best));
+    }
+    return b.build();
+  }
+
+  private Indexes getIndexes() {
+    Indexes ret = indexes;
+    if (ret == null) {
+      synchronized (this) {
+        if (indexes == null) {
+          buildIndexes();
+        }
+        ret = indexes;
+      }
+    }
+    return ret;
   }
 
   /**
@@ -89,29 +222,34 @@ public class IdentityManager {
   /**
    * Given supplied alias, return any matching global identity
    *
+   * <p>Aliases are matched exactly, and if no exact match exists, without regard to case.
+   *
    * @param username Username to search for
    * @return Resolved global identity string
    */
   public String lookupAlias(String username) {
+    if (username == null) {
+      return null;
+    }
     // If the username matches a global identity value, just return that directly
     if (identities.get(username) != null) {
       return username;
     }
 
-    for (Map.Entry<String, Identity> entry : identities.entrySet()) {
-      Identity ival = entry.getValue();
-      for (String alias : ival.getAliases()) {
-        if (alias.equals(username)) {
-          return entry.getKey();
-        }
-      }
+    Indexes i = getIndexes();
+    String ret = i.aliases.get(username);
+    if (ret != null) {
+      return ret;
     }
-    return null;
+    return i.normalizedAliases.get(normalizeAlias(username));
   }
 
   /**
    * Given supplied IP address, return matching named subnet
    *
+   * <p>If the address is contained in more than one named subnet, the first matching subnet in
+   * configuration order is returned.
+   *
    * @param address IP address for lookup
    * @return Named subnet, or null if no match
    */
@@ -119,12 +257,7 @@ public class IdentityManager {
     if (namedSubnets == null || address == null) {
       return null;
     }
-    for (Map.Entry<String, String> namedSubnet : namedSubnets.entrySet()) {
-      if (CidrUtil.addressInCidr(address, namedSubnet.getValue())) {
-        return namedSubnet.getKey();
-      }
-    }
-    return null;
+    return getIndexes().subnets.lookup(address);
   }
 
   /** Create new empty {@link IdentityManager} */
@@ -0,0 +1,151 @@
+package com.mozilla.secops.identity;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process shared {@link IdentityManager} that is periodically refreshed in the background
+ *
+ * <p>Readers obtain the current snapshot using {@link #current}, which never blocks. A scheduled
+ * task loads and validates a new snapshot from the configured path at a fixed interval and swaps it
+ * in once it has been built. If a refresh fails, the last successfully loaded snapshot continues to
+ * be used.
+ *
+ * <p>Snapshots returned by {@link #current} are shared between threads and must not be modified.
+ */
+public class SharedIdentityManager {
+  private static final Logger log = LoggerFactory.getLogger(SharedIdentityManager.class);
+
+  private static final ConcurrentHashMap<String, SharedIdentityManager> shared =
+      new ConcurrentHashMap<>();
+
+  private static ScheduledExecutorService scheduler;
+
+  private final String path;
+  private final AtomicReference<IdentityManager> snapshot;
+  private final AtomicLong version;
+
+  /**
+   * Get shared identity manager for path, loading it if required
+   *
+   * <p>The initial load is performed by the calling thread. Once loaded, the identity manager is
+   * refreshed in the background every refreshSeconds. If the identity manager for the path has
+   * already been loaded, the existing instance is returned and refreshSeconds is ignored.
+   *
+   * @param path Identity manager path, resource path or GCS URL
+   * @param refreshSeconds Refresh interval in seconds, 0 to disable refresh
+   * @return SharedIdentityManager
+   * @throws IOException IOException if the initial load fails
+   */
+  public static SharedIdentityManager get(String path, long refreshSeconds) throws IOException {
+    SharedIdentityManager ret = shared.get(path);
+    if (ret != null) {
+      return ret;
+    }
+    synchronized (shared) {
+      ret = shared.get(path);
+      if (ret != null) {
+        return ret;
+      }
+      ret = new SharedIdentityManager(path, load(path));
+      if (refreshSeconds > 0) {
+        ret.schedule(getScheduler(), refreshSeconds);
+      }
+      shared.put(path, ret);
+      return ret;
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "identity-manager-refresh");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return scheduler;
+  }
+
+  private static IdentityManager load(String path) throws IOException {
+    IdentityManager ret = IdentityManager.load(path);
+    if (ret.getIdentities() == null) {
+      throw new IOException(String.format("identity manager %s contained no identities", path));
+    }
+    return ret;
+  }
+
+  /**
+   * Create new SharedIdentityManager with an initial snapshot
+   *
+   * <p>Instances created directly are not refreshed unless {@link #schedule} is called.
+   *
+   * @param path Identity manager path, resource path or GCS URL
+   * @param initial Initial snapshot
+   */
+  public SharedIdentityManager(String path, IdentityManager initial) {
+    this.path = path;
+    snapshot = new AtomicReference<>(initial);
+    version = new AtomicLong(1L);
+  }
+
+  /**
+   * Schedule periodic refresh of the snapshot
+   *
+   * @param executor Executor to run refresh on
+   * @param refreshSeconds Refresh interval in seconds
+   */
+  public void schedule(ScheduledExecutorService executor, long refreshSeconds) {
+    executor.scheduleWithFixedDelay(
+        this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Load a new snapshot and swap it in
+   *
+   * <p>Failures are logged and the current snapshot is retained.
+   *
+   * @return True if the snapshot was replaced
+   */
+  public boolean refresh() {
+    IdentityManager n;
+    try {
+      n = load(path);
+    } catch (IOException | RuntimeException exc) {
+      log.error("identity manager refresh failed, retaining current version: {}", exc.getMessage());
+      return false;
+    }
+    snapshot.set(n);
+    log.info("loaded identity manager version {}", version.incrementAndGet());
+    return true;
+  }
+
+  /**
+   * Get current snapshot
+   *
+   * @return IdentityManager
+   */
+  public IdentityManager current() {
+    return snapshot.get();
+  }
+
+  /**
+   * Get version of current snapshot
+   *
+   * <p>The version starts at 1 and is incremented each time a new snapshot is swapped in.
+   *
+   * @return Version
+   */
+  public long getVersion() {
+    return version.get();
+  }
+}
@@ -2,29 +2,180 @@ package com.mozilla.secops.parser;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.net.InetAddresses;
+import com.maxmind.db.Network;
+import com.maxmind.db.Reader;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.model.IspResponse;
 import com.mozilla.secops.FileUtil;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
 
-/** GeoIP resolution */
+/**
+ * GeoIP resolution
+ *
+ * <p>Databases are loaded once per JVM, either onto the heap or optionally memory-mapped from a
+ * local file. When memory-mapped, databases stored in GCS or as resources are first staged to local
+ * disk.
+ *
+ * <p>Lookup results are cached per network returned by the database rather than per address, so all
+ * addresses within the same network share a single cache entry. As a result, the address contained
+ * in the traits of a cached response is the address that was first looked up in that network, and
+ * not necessarily the address being looked up.
+ */
 public class GeoIP {
   private static DatabaseReader geoipCityDb = null;
   private static DatabaseReader geoipIspDb = null;
-  private static Cache<InetAddress, CityResponse> cityCache = null;
-  private static Cache<InetAddress, IspResponse> ispCache = null;
+  private static PrefixCache<CityResponse> cityCache = null;
+  private static PrefixCache<IspResponse> ispCache = null;
   private static AtomicBoolean cityInitialized = new AtomicBoolean(false);
   private static AtomicBoolean ispInitialized = new AtomicBoolean(false);
+  private static HashMap<String, File> staged = new HashMap<>();
 
   private static final int CACHE_MAX_SIZE = 16384;
   private static final int EXPIRY_MINUTES = 15;
 
+  /** Cache key representing a network prefix, bits are left aligned in hi and lo */
+  private static final class PrefixKey {
+    private final boolean inet6;
+    private final long hi;
+    private final long lo;
+    private final int len;
+
+    PrefixKey(boolean inet6, long hi, long lo, int len) {
+      this.inet6 = inet6;
+      this.hi = hi & maskHi(len);
+      this.lo = lo & maskLo(len);
+      this.len = len;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof PrefixKey)) {
+        return false;
+      }
+      PrefixKey k = (PrefixKey) o;
+      return inet6 == k.inet6 && hi == k.hi && lo == k.lo && len == k.len;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(inet6, hi, lo, len);
+    }
+  }
+
+  private static long maskHi(int len) {
+    if (len == 0) {
+      return 0L;
+    }
+    return len >= 64 ? -1L : -1L << (64 - len);
+  }
+
+  private static long maskLo(int len) {
+    if (len <= 64) {
+      return 0L;
+    }
+    return len == 128 ? -1L : -1L << (128 - len);
+  }
+
+  private static long bytesToLong(byte[] buf, int off, int len) {
+    long ret = 0L;
+    for (int i = 0; i < len; i++) {
+      ret = (ret << 8) | (buf[off + i] & 0xffL);
+    }
+    return ret;
+  }
+
+  /**
+   * Cache of lookup results keyed by network prefix
+   *
+   * <p>The prefix lengths of networks that have been cached are tracked per address family, and a
+   * lookup probes the cache once for each such prefix length.
+   */
+  private static class PrefixCache<T> {
+    private final Cache<PrefixKey, T> cache;
+    private final AtomicLongArray lengths4 = new AtomicLongArray(1);
+    private final AtomicLongArray lengths6 = new AtomicLongArray(3);
+
+    PrefixCache() {
+      cache =
+          Caffeine.newBuilder()
+              .maximumSize(CACHE_MAX_SIZE)
+              .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+              .build();
+    }
+
+    private static void setLength(AtomicLongArray l, int len) {
+      int i = len / 64;
+      long bit = 1L << (len % 64);
+      long v;
+      do {
+        v = l.get(i);
+        if ((v & bit) != 0) {
+          return;
+        }
+      } while (!l.compareAndSet(i, v, v | bit));
+    }
+
+    T get(String ip, Function<InetAddress, T> loader, Function<T, Network> network) {
+      byte[] buf;
+      try {
+        buf = InetAddresses.forString(ip).getAddress();
+      } catch (IllegalArgumentException exc) {
+        return null;
+      }
+      boolean inet6 = buf.length == 16;
+      long hi = inet6 ? bytesToLong(buf, 0, 8) : bytesToLong(buf, 0, 4) << 32;
+      long lo = inet6 ? bytesToLong(buf, 8, 8) : 0L;
+      AtomicLongArray lengths = inet6 ? lengths6 : lengths4;
+
+      // Probe the most specific prefix lengths first
+      for (int i = lengths.length() - 1; i >= 0; i--) {
+        long v = lengths.get(i);
+        while (v != 0) {
+          int bit = 63 - Long.numberOfLeadingZeros(v);
+          v &= ~(1L << bit);
+          T ret = cache.getIfPresent(new PrefixKey(inet6, hi, lo, i * 64 + bit));
+          if (ret != null) {
+            return ret;
+          }
+        }
+      }
+
+      InetAddress ia;
+      try {
+        ia = InetAddress.getByAddress(buf);
+      } catch (UnknownHostException exc) {
+        return null;
+      }
+      T ret = loader.apply(ia);
+      if (ret == null) {
+        return null;
+      }
+      Network n = network.apply(ret);
+      int len = n != null ? n.getPrefixLength() : buf.length * 8;
+      cache.put(new PrefixKey(inet6, hi, lo, len), ret);
+      setLength(lengths, len);
+      return ret;
+    }
+  }
+
   /**
    * Lookup city/country from IP address string
    *
@@ -36,22 +187,18 @@ public class GeoIP {
       return null;
     }
 
-    try {
-      InetAddress ia = InetAddress.getByName(ip);
-      return cityCache.get(
-          ia,
-          x -> {
-            try {
-              return geoipCityDb.city(ia);
-            } catch (IOException exc) {
-              return null;
-            } catch (GeoIp2Exception exc) {
-              return null;
-            }
-          });
-    } catch (IOException exc) {
-      return null;
-    }
+    return cityCache.get(
+        ip,
+        ia -> {
+          try {
+            return geoipCityDb.city(ia);
+          } catch (IOException exc) {
+            return null;
+          } catch (GeoIp2Exception exc) {
+            return null;
+          }
+        },
+        r -> r.getTraits().getNetwork());
   }
 
   /**
@@ -65,53 +212,62 @@ public class GeoIP {
       return null;
     }
 
-    try {
-      InetAddress ia = InetAddress.getByName(ip);
-      return ispCache.get(
-          ia,
-          x -> {
-            try {
-              return geoipIspDb.isp(ia);
-            } catch (IOException exc) {
-              return null;
-            } catch (GeoIp2Exception exc) {
-              return null;
-            }
-          });
-    } catch (IOException exc) {
-      return null;
+    return ispCache.get(
+        ip,
+        ia -> {
+          try {
+            return geoipIspDb.isp(ia);
+          } catch (IOException exc) {
+            return null;
+          } catch (GeoIp2Exception exc) {
+            return null;
+          }
+        },
+        r -> r.getNetwork());
+  }
+
+  private static File stageDatabase(String path) throws IOException {
+    File ret = staged.get(path);
+    if (ret != null) {
+      return ret;
+    }
+    ret = File.createTempFile("geoip", ".mmdb");
+    ret.deleteOnExit();
+    try (InputStream in = FileUtil.getStreamFromPath(path)) {
+      Files.copy(in, ret.toPath(), StandardCopyOption.REPLACE_EXISTING);
     }
+    staged.put(path, ret);
+    return ret;
   }
 
-  private static DatabaseReader getDatabaseFromPath(String path) throws IOException {
+  private static DatabaseReader getDatabaseFromPath(String path, boolean memoryMap)
+      throws IOException {
     if (path == null) {
       return null;
     }
+    if (memoryMap) {
+      return new DatabaseReader.Builder(stageDatabase(path))
+          .fileMode(Reader.FileMode.MEMORY_MAPPED)
+          .build();
+    }
     InputStream in = FileUtil.getStreamFromPath(path);
     return new DatabaseReader.Builder(in).build();
   }
 
-  private static synchronized void initialize(String cityPath, String ispPath) throws IOException {
+  private static synchronized void initialize(String cityPath, String ispPath, boolean memoryMap)
+      throws IOException {
     if (cityPath != null && !cityInitialized.get()) {
       if (!cityInitialized.get()) {
-        geoipCityDb = getDatabaseFromPath(cityPath);
-        cityCache =
-            Caffeine.newBuilder()
-                .maximumSize(CACHE_MAX_SIZE)
-                .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
-                .build();
+        geoipCityDb = getDatabaseFromPath(cityPath, memoryMap);
+        cityCache = new PrefixCache<>();
         if (geoipCityDb != null) {
           cityInitialized.set(true);
         }
       }
     }
     if (ispPath != null && !ispInitialized.get()) {
-      geoipIspDb = getDatabaseFromPath(ispPath);
-      ispCache =
-          Caffeine.newBuilder()
-              .maximumSize(CACHE_MAX_SIZE)
-              .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
-              .build();
+      geoipIspDb = getDatabaseFromPath(ispPath, memoryMap);
+      ispCache = new PrefixCache<>();
       if (geoipIspDb != null) {
         ispInitialized.set(true);
       }
@@ -123,14 +279,31 @@ public class GeoIP {
    *
    * <p>If you don't want to initialize one of the DB's (City or ISP), pass in `null` as the path.
    *
+   * <p>Databases are loaded once per JVM, so the memory mapping setting only applies to the
+   * instance that first loads each database.
+   *
    * @param cityPath Resource or GCS path to load City database from
    * @param ispPath Resource or GCS path to load ISP database from
+   * @param memoryMap If true, stage databases to local disk and memory map them rather than loading
+   *     them onto the heap
    */
-  public GeoIP(String cityPath, String ispPath) {
+  public GeoIP(String cityPath, String ispPath, boolean memoryMap) {
     try {
-      initialize(cityPath, ispPath);
+      initialize(cityPath, ispPath, memoryMap);
     } catch (IOException exc) {
       throw new RuntimeException(exc.getMessage());
     }
   }
+
+  /**
+   * Initialize new {@link GeoIP}, load databases from specified paths onto the heap
+   *
+   * <p>If you don't want to initialize one of the DB's (City or ISP), pass in `null` as the path.
+   *
+   * @param cityPath Resource or GCS path to load City database from
+   * @param ispPath Resource or GCS path to load ISP database from
+   */
+  public GeoIP(String cityPath, String ispPath) {
+    this(cityPath, ispPath, false);
+  }
 }
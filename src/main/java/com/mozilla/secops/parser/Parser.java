@@ -543,7 +543,11 @@ public class Parser {
 
     this.cfg = cfg;
     if (cfg.getMaxmindCityDbPath() != null || cfg.getMaxmindIspDbPath() != null) {
-      geoip = new GeoIP(cfg.getMaxmindCityDbPath(), cfg.getMaxmindIspDbPath());
+      geoip =
+          new GeoIP(
+              cfg.getMaxmindCityDbPath(),
+              cfg.getMaxmindIspDbPath(),
+              cfg.getMaxmindDbMemoryMap() != null && cfg.getMaxmindDbMemoryMap());
     }
     payloads = new ArrayList<PayloadBase>();
     payloads.add(new GLB());
@@ -18,6 +18,7 @@ public class ParserCfg implements Serializable {
 
   private String maxmindCityDbPath;
   private String maxmindIspDbPath;
+  private Boolean maxmindDbMemoryMap;
   private String fastMatcher;
   private ArrayList<String> xffAddressSelectorSubnets;
   private String idmanagerPath;
@@ -41,6 +42,7 @@ public class ParserCfg implements Serializable {
     cfg.setUseEventTimestamp(options.getUseEventTimestamp());
     cfg.setMaxmindCityDbPath(options.getMaxmindCityDbPath());
     cfg.setMaxmindIspDbPath(options.getMaxmindIspDbPath());
+    cfg.setMaxmindDbMemoryMap(options.getMaxmindDbMemoryMap());
     cfg.setIdentityManagerPath(options.getIdentityManagerPath());
     cfg.setParserFastMatcher(options.getParserFastMatcher());
     if (options.getXffAddressSelector() != null) {
@@ -125,6 +127,25 @@ public class ParserCfg implements Serializable {
     maxmindCityDbPath = path;
   }
 
+  /**
+   * Get Maxmind database memory mapping setting
+   *
+   * @return Boolean or null if not specified
+   */
+  public Boolean getMaxmindDbMemoryMap() {
+    return maxmindDbMemoryMap;
+  }
+
+  /**
+   * Set Maxmind database memory mapping setting
+   *
+   * @param maxmindDbMemoryMap If true, memory map databases rather than loading them onto the heap
+   */
+  @JsonProperty("maxmind_db_memory_map")
+  public void setMaxmindDbMemoryMap(Boolean maxmindDbMemoryMap) {
+    this.maxmindDbMemoryMap = maxmindDbMemoryMap;
+  }
+
   /**
    * Get Maxmind ISP database path
    *
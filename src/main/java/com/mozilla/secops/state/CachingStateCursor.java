@@ -0,0 +1,184 @@
+package com.mozilla.secops.state;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.benmanes.caffeine.cache.Cache;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Optional;
+
+/**
+ * Cursor returned by {@link CachingStateInterface}
+ *
+ * <p>Operations are executed using a cursor allocated from the underlying state implementation.
+ * Cached values are stored serialized, so each read returns a new object and modifications made by
+ * the caller do not affect the cache.
+ */
+public class CachingStateCursor<T> extends StateCursor<T> {
+  private final CachingStateInterface parent;
+  private final Cache<String, Optional<String>> cache;
+  private final StateCursor<T> inner;
+  private final boolean transaction;
+  private final ArrayList<String> modified;
+
+  /**
+   * Commit transaction
+   *
+   * <p>Keys modified in the transaction are invalidated in the cache whether or not the commit
+   * succeeds.
+   *
+   * @throws StateException StateException
+   */
+  public void commit() throws StateException {
+    try {
+      inner.commit();
+    } finally {
+      cache.invalidateAll(modified);
+      modified.clear();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() {
+    inner.close();
+    modified.clear();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getBytesRead() {
+    return inner.getBytesRead();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getBytesWritten() {
+    return inner.getBytesWritten();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Iterator<T> iterateAll() throws StateException {
+    return inner.iterateAll();
+  }
+
+  private T readValue(String buf) throws StateException {
+    try {
+      return mapper.readValue(buf, stateClass);
+    } catch (IOException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  private String writeValue(T value) throws StateException {
+    try {
+      return mapper.writeValueAsString(value);
+    } catch (JsonProcessingException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  @Override
+  public void executeInner() throws StateException {
+    ArrayList<StateOperation<T>> forwarded = new ArrayList<>();
+
+    for (StateOperation<T> o : operations) {
+      if (transaction || o.getOperationType() != StateOperation.OperationType.GET) {
+        forwarded.add(o);
+        continue;
+      }
+      Optional<String> cached = cache.getIfPresent(o.getKey());
+      if (cached == null) {
+        parent.getMissCounter().inc();
+        forwarded.add(o);
+        continue;
+      }
+      parent.getHitCounter().inc();
+      if (cached.isPresent()) {
+        o.setResultValue(readValue(cached.get()));
+      }
+      completedOperations.put(o.getId(), o);
+    }
+
+    if (forwarded.isEmpty()) {
+      return;
+    }
+    for (StateOperation<T> o : forwarded) {
+      inner.withOperation(o);
+    }
+    try {
+      inner.execute();
+    } finally {
+      // Invalidate anything that may have been modified, even if execution failed part way
+      for (StateOperation<T> o : forwarded) {
+        switch (o.getOperationType()) {
+          case SET:
+          case DELETE:
+            cache.invalidate(o.getKey());
+            if (transaction) {
+              modified.add(o.getKey());
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    for (StateOperation<T> o : forwarded) {
+      completedOperations.put(o.getId(), o);
+    }
+    if (transaction) {
+      return;
+    }
+
+    // Reads are executed before writes by the underlying implementations, so cache read results
+    // first and then apply any writes to the same keys
+    for (StateOperation<T> o : forwarded) {
+      if (o.getOperationType() == StateOperation.OperationType.GET) {
+        T v = o.getResultValue();
+        cache.put(o.getKey(), v == null ? Optional.empty() : Optional.of(writeValue(v)));
+      }
+    }
+    for (StateOperation<T> o : forwarded) {
+      switch (o.getOperationType()) {
+        case SET:
+          // Values written with a TTL shorter than the cache TTL are not cached, so they are
+          // not returned after they have expired
+          if (parent.getReadYourWrites()
+              && (o.getTtlSeconds() == 0 || o.getTtlSeconds() >= parent.getTtlSeconds())) {
+            cache.put(o.getKey(), Optional.of(writeValue(o.getValue())));
+          } else {
+            cache.invalidate(o.getKey());
+          }
+          break;
+        case DELETE:
+          if (parent.getReadYourWrites()) {
+            cache.put(o.getKey(), Optional.empty());
+          } else {
+            cache.invalidate(o.getKey());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Initialize a new caching state cursor
+   *
+   * @param parent {@link CachingStateInterface} the cursor was allocated from
+   * @param inner Cursor allocated from the underlying state implementation
+   * @param transaction True if the cursor is a transaction
+   */
+  CachingStateCursor(CachingStateInterface parent, StateCursor<T> inner, boolean transaction) {
+    super(inner.stateClass);
+    this.parent = parent;
+    this.inner = inner;
+    this.transaction = transaction;
+    cache = parent.getCache();
+    modified = new ArrayList<>();
+  }
+}
@@ -0,0 +1,145 @@
+package com.mozilla.secops.state;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+
+/**
+ * Near cache decorator for another {@link StateInterface}
+ *
+ * <p>Results of GET operations made using non-transactional cursors are held in a bounded local
+ * cache for a fixed period, so repeated reads of the same key do not each require a round trip to
+ * the underlying state implementation. Keys that were not found are cached as well. Writes and
+ * deletes made through this interface invalidate the cached entry for the key; writes made by other
+ * clients are only observed once the cached entry expires, so the TTL bounds how stale a read can
+ * be.
+ *
+ * <p>If read-your-writes is enabled, SET and DELETE operations made using non-transactional cursors
+ * update the cache with the new value rather than invalidating it.
+ *
+ * <p>Transactional cursors always read from and write to the underlying implementation directly,
+ * and invalidate any keys they modify when they are committed.
+ *
+ * <p>Cache hits and misses are exported as Beam counters named using the cache name.
+ */
+public class CachingStateInterface implements StateInterface {
+  private final StateInterface delegate;
+  private final long maximumSize;
+  private final int ttlSeconds;
+  private boolean readYourWrites;
+  private Cache<String, Optional<String>> cache;
+  private final Counter hits;
+  private final Counter misses;
+
+  /** {@inheritDoc} */
+  public String getKind() {
+    return delegate.getKind();
+  }
+
+  /** {@inheritDoc} */
+  public <T> StateCursor<T> newCursor(Class<T> stateClass, boolean transaction)
+      throws StateException {
+    if (cache == null) {
+      throw new StateException("caching state interface not initialized");
+    }
+    return new CachingStateCursor<T>(
+        this, delegate.newCursor(stateClass, transaction), transaction);
+  }
+
+  /** {@inheritDoc} */
+  public void done() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+    delegate.done();
+  }
+
+  /** {@inheritDoc} */
+  public void deleteAll() throws StateException {
+    try {
+      delegate.deleteAll();
+    } finally {
+      if (cache != null) {
+        cache.invalidateAll();
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void initialize() throws StateException {
+    delegate.initialize();
+    cache =
+        Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Enable or disable read-your-writes
+   *
+   * @param readYourWrites If true, writes update the cache rather than invalidating it
+   * @return CachingStateInterface
+   */
+  public CachingStateInterface withReadYourWrites(boolean readYourWrites) {
+    this.readYourWrites = readYourWrites;
+    return this;
+  }
+
+  /**
+   * Get cache statistics
+   *
+   * @return {@link CacheStats}, or null if the interface has not been initialized
+   */
+  public CacheStats getCacheStats() {
+    if (cache == null) {
+      return null;
+    }
+    return cache.stats();
+  }
+
+  Cache<String, Optional<String>> getCache() {
+    return cache;
+  }
+
+  int getTtlSeconds() {
+    return ttlSeconds;
+  }
+
+  boolean getReadYourWrites() {
+    return readYourWrites;
+  }
+
+  Counter getHitCounter() {
+    return hits;
+  }
+
+  Counter getMissCounter() {
+    return misses;
+  }
+
+  /**
+   * Initialize a caching state interface
+   *
+   * @param name Name of cache, used to name metrics
+   * @param delegate Underlying state implementation
+   * @param maximumSize Maximum number of keys held in the cache
+   * @param ttlSeconds Time after which a cached value expires
+   */
+  public CachingStateInterface(
+      String name, StateInterface delegate, long maximumSize, int ttlSeconds) {
+    if (ttlSeconds <= 0) {
+      throw new IllegalArgumentException("cache ttl must be positive");
+    }
+    this.delegate = delegate;
+    this.maximumSize = maximumSize;
+    this.ttlSeconds = ttlSeconds;
+    hits = Metrics.counter(CachingStateInterface.class, String.format("%s_cache_hits", name));
+    misses = Metrics.counter(CachingStateInterface.class, String.format("%s_cache_misses", name));
+  }
+}
@@ -1,21 +1,46 @@
 package com.mozilla.secops.state;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.DatastoreReaderWriter;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.TimestampValue;
 import com.google.cloud.datastore.Transaction;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-/** Datastore state cursor implementation */
+/**
+ * Datastore state cursor implementation
+ *
+ * <p>GET operations are looked up in batches no larger than the Datastore per-request key limit.
+ * Outside of a transaction, multiple batches are looked up concurrently. SET operations outside of
+ * a transaction are similarly split into batches.
+ *
+ * <p>GET_ALL operations and {@link #iterateAll} query the kind a page at a time, continuing from
+ * the cursor returned with each page.
+ *
+ * <p>Datastore has no native expiry, so a TTL specified on a SET operation is stored in the indexed
+ * {@link #EXPIRES_AT} property of the entity. Expired entities are treated as missing when they are
+ * read, and can be removed using {@link DatastoreStateInterface#deleteExpired}.
+ */
 public class DatastoreStateCursor<T> extends StateCursor<T> {
   private DatastoreReaderWriter rw;
   private Datastore datastore;
@@ -23,6 +48,37 @@ public class DatastoreStateCursor<T> extends StateCursor<T> {
   private String kind;
   private KeyFactory keyFactory;
   private Transaction tx;
+  private final int pageSize;
+
+  /** Maximum number of keys included in a single lookup request */
+  public static final int LOOKUP_BATCH_SIZE = 1000;
+
+  /** Maximum number of entities included in a single put request */
+  public static final int PUT_BATCH_SIZE = 500;
+
+  /** Default number of entities fetched per page for GET_ALL */
+  public static final int DEFAULT_PAGE_SIZE = 500;
+
+  private static final int BATCH_CONCURRENCY = 8;
+
+  /** Entity property holding the expiry time of entities set with a TTL */
+  public static final String EXPIRES_AT = "expires_at";
+
+  private static ExecutorService executor;
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(
+              BATCH_CONCURRENCY,
+              r -> {
+                Thread t = new Thread(r, "datastore-state-batch");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return executor;
+  }
 
   /**
    * Commit datastore transaction
@@ -36,6 +92,9 @@ public class DatastoreStateCursor<T> extends StateCursor<T> {
     try {
       tx.commit();
     } catch (DatastoreException exc) {
+      if ("ABORTED".equals(exc.getReason())) {
+        throw new StateConflictException(exc.getMessage());
+      }
       throw new StateException(exc.getMessage());
     } finally {
       if (tx.isActive()) {
@@ -44,13 +103,194 @@ public class DatastoreStateCursor<T> extends StateCursor<T> {
     }
   }
 
+  /** Roll back the transaction if it has not been committed */
+  @Override
+  public void close() {
+    if (tx != null && tx.isActive()) {
+      tx.rollback();
+    }
+  }
+
+  private static boolean expired(Entity e, Timestamp now) {
+    return e.contains(EXPIRES_AT) && e.getTimestamp(EXPIRES_AT).compareTo(now) <= 0;
+  }
+
+  private T readEntity(Entity e) throws StateException {
+    String buf = e.getString("state");
+    bytesRead += buf.length();
+    try {
+      return mapper.readValue(buf, stateClass);
+    } catch (IOException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  /**
+   * Run each batch on the shared executor, or on the calling thread if there is only one batch or
+   * the cursor is a transaction
+   */
+  private <R> ArrayList<R> runBatches(ArrayList<Callable<R>> batches) throws StateException {
+    ArrayList<R> ret = new ArrayList<>();
+    try {
+      if (batches.size() == 1 || tx != null) {
+        for (Callable<R> b : batches) {
+          ret.add(b.call());
+        }
+        return ret;
+      }
+      for (Future<R> f : getExecutor().invokeAll(batches)) {
+        ret.add(f.get());
+      }
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new StateException(exc.getMessage());
+    } catch (ExecutionException exc) {
+      throw new StateException(exc.getCause().getMessage());
+    } catch (Exception exc) {
+      throw new StateException(exc.getMessage());
+    }
+    return ret;
+  }
+
+  /** Look up keys, returning found entities by key name */
+  private HashMap<String, Entity> lookup(List<Key> keys) throws StateException {
+    ArrayList<Callable<List<Entity>>> batches = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i += LOOKUP_BATCH_SIZE) {
+      Key[] batch =
+          keys.subList(i, Math.min(i + LOOKUP_BATCH_SIZE, keys.size())).toArray(new Key[0]);
+      batches.add(
+          () -> {
+            ArrayList<Entity> ret = new ArrayList<>();
+            rw.get(batch).forEachRemaining(ret::add);
+            return ret;
+          });
+    }
+    HashMap<String, Entity> ret = new HashMap<>();
+    for (List<Entity> l : runBatches(batches)) {
+      for (Entity e : l) {
+        ret.put(e.getKey().getName(), e);
+      }
+    }
+    return ret;
+  }
+
+  private void put(List<Entity> entities) throws StateException {
+    if (tx != null) {
+      // Transaction mutations are buffered locally and sent with the commit
+      tx.put(entities.toArray(new Entity[0]));
+      return;
+    }
+    ArrayList<Callable<Void>> batches = new ArrayList<>();
+    for (int i = 0; i < entities.size(); i += PUT_BATCH_SIZE) {
+      Entity[] batch =
+          entities.subList(i, Math.min(i + PUT_BATCH_SIZE, entities.size())).toArray(new Entity[0]);
+      batches.add(
+          () -> {
+            datastore.put(batch);
+            return null;
+          });
+    }
+    runBatches(batches);
+  }
+
+  private void delete(List<Key> keys) throws StateException {
+    if (tx != null) {
+      tx.delete(keys.toArray(new Key[0]));
+      return;
+    }
+    ArrayList<Callable<Void>> batches = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i += PUT_BATCH_SIZE) {
+      Key[] batch = keys.subList(i, Math.min(i + PUT_BATCH_SIZE, keys.size())).toArray(new Key[0]);
+      batches.add(
+          () -> {
+            datastore.delete(batch);
+            return null;
+          });
+    }
+    runBatches(batches);
+  }
+
+  private QueryResults<Entity> queryPage(Cursor start) {
+    EntityQuery.Builder b =
+        Query.newEntityQueryBuilder().setNamespace(namespace).setKind(kind).setLimit(pageSize);
+    if (start != null) {
+      b.setStartCursor(start);
+    }
+    return rw.run(b.build());
+  }
+
+  /** Iterator over all entities of the kind, fetching a page at a time */
+  private class PagedIterator implements Iterator<T> {
+    private final Timestamp now = Timestamp.now();
+    private QueryResults<Entity> page;
+    private int pageCount;
+    private boolean finished;
+    private Entity pending;
+
+    @Override
+    public boolean hasNext() {
+      try {
+        while (pending == null && advance()) {
+          Entity e = page.next();
+          pageCount++;
+          if (!expired(e, now)) {
+            pending = e;
+          }
+        }
+      } catch (DatastoreException exc) {
+        throw new RuntimeException(exc.getMessage());
+      }
+      return pending != null;
+    }
+
+    private boolean advance() {
+      while (!finished && (page == null || !page.hasNext())) {
+        if (page != null && pageCount < pageSize) {
+          // A short page indicates there are no further results
+          finished = true;
+          break;
+        }
+        page = queryPage(page == null ? null : page.getCursorAfter());
+        pageCount = 0;
+        if (!page.hasNext()) {
+          finished = true;
+        }
+      }
+      return !finished;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Entity e = pending;
+      pending = null;
+      try {
+        return readEntity(e);
+      } catch (StateException exc) {
+        throw new RuntimeException(exc.getMessage());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Entities are fetched from Datastore a page at a time as the iterator is consumed.
+   */
+  @Override
+  public Iterator<T> iterateAll() throws StateException {
+    return new PagedIterator();
+  }
+
   @Override
   public void executeInner() throws StateException {
     ArrayList<StateOperation<T>> getOperations = new ArrayList<>();
     ArrayList<Key> getParam = new ArrayList<>();
 
-    ArrayList<StateOperation<T>> setOperations = new ArrayList<>();
     ArrayList<Entity> setParam = new ArrayList<>();
+    ArrayList<Key> deleteParam = new ArrayList<>();
 
     ArrayList<StateOperation<T>> getAllOperations = new ArrayList<>();
 
@@ -65,79 +305,70 @@ public class DatastoreStateCursor<T> extends StateCursor<T> {
           Key nk = keyFactory.newKey(o.getKey());
           Entity.Builder eb = Entity.newBuilder(nk);
           try {
-            StringValue sv =
-                StringValue.newBuilder(mapper.writeValueAsString(o.getValue()))
-                    .setExcludeFromIndexes(true)
-                    .build();
+            String buf = mapper.writeValueAsString(o.getValue());
+            bytesWritten += buf.length();
+            StringValue sv = StringValue.newBuilder(buf).setExcludeFromIndexes(true).build();
             eb.set("state", sv);
+            if (o.getTtlSeconds() > 0) {
+              eb.set(
+                  EXPIRES_AT,
+                  TimestampValue.of(
+                      Timestamp.ofTimeMicroseconds(
+                          (System.currentTimeMillis() + o.getTtlSeconds() * 1000L) * 1000L)));
+            }
           } catch (JsonProcessingException exc) {
             throw new StateException(exc.getMessage());
           }
           setParam.add(eb.build());
-          setOperations.add(o);
+          completedOperations.put(o.getId(), o);
           break;
         case GET_ALL:
           getAllOperations.add(o);
           break;
+        case DELETE:
+          deleteParam.add(keyFactory.newKey(o.getKey()));
+          completedOperations.put(o.getId(), o);
+          break;
         default:
           throw new RuntimeException("unknown operation type");
       }
     }
 
-    Entity[] setParamFinal = setParam.toArray(new Entity[0]);
-    Key[] getParamFinal = getParam.toArray(new Key[0]);
-
-    Iterator<Entity> getResults = null;
+    HashMap<String, Entity> getResults = null;
     try {
-      getResults = rw.get(getParamFinal);
-      rw.put(setParamFinal);
+      if (!getParam.isEmpty()) {
+        getResults = lookup(getParam);
+      }
+      if (!setParam.isEmpty()) {
+        put(setParam);
+      }
+      if (!deleteParam.isEmpty()) {
+        delete(deleteParam);
+      }
     } catch (DatastoreException exc) {
       throw new StateException(exc.getMessage());
     }
 
     for (StateOperation<T> o : getAllOperations) {
       ArrayList<T> vlist = new ArrayList<>();
-      Query<Entity> query =
-          Query.newEntityQueryBuilder().setNamespace(namespace).setKind(kind).build();
-      QueryResults<Entity> results = rw.run(query);
-      while (results.hasNext()) {
-        Entity e = results.next();
-        String buf = e.getString("state");
-        try {
-          vlist.add(mapper.readValue(buf, stateClass));
-        } catch (IOException exc) {
-          throw new StateException(exc.getMessage());
-        }
+      try {
+        new PagedIterator().forEachRemaining(vlist::add);
+      } catch (RuntimeException exc) {
+        throw new StateException(exc.getMessage());
       }
       o.setResultValues(vlist);
       completedOperations.put(o.getId(), o);
     }
 
-    // Assemble the get results as completed operations
-    ArrayList<String> foundKeys = new ArrayList<>();
-    while (getResults.hasNext()) {
-      Entity e = getResults.next();
-      for (StateOperation<T> o : getOperations) {
-        if (o.getKey().equals(e.getKey().getName())) {
-          foundKeys.add(o.getKey());
-          String buf = e.getString("state");
-          try {
-            o.setResultValue(mapper.readValue(buf, stateClass));
-            completedOperations.put(o.getId(), o);
-          } catch (IOException exc) {
-            throw new StateException(exc.getMessage());
-          }
-        }
-      }
-    }
-
-    // We are done with the query, so iterate again and for any key we didn't see, mark
-    // the operation as complete but maintain a null result value to indicate it wasn't
-    // found.
+    // Assemble the get results as completed operations; any key that was not found is marked as
+    // complete with a null result value, as is any key that has expired
+    Timestamp now = Timestamp.now();
     for (StateOperation<T> o : getOperations) {
-      if (!foundKeys.contains(o.getKey())) {
-        completedOperations.put(o.getId(), o);
+      Entity e = getResults.get(o.getKey());
+      if (e != null && !expired(e, now)) {
+        o.setResultValue(readEntity(e));
       }
+      completedOperations.put(o.getId(), o);
     }
   }
 
@@ -149,17 +380,38 @@ public class DatastoreStateCursor<T> extends StateCursor<T> {
    * @param kind Datastore kind
    * @param stateClass Class used in stage storage
    * @param transaction True to initialize cursor as a transaction
+   * @param pageSize Number of entities fetched per page for GET_ALL
    */
   public DatastoreStateCursor(
-      Datastore d, String namespace, String kind, Class<T> stateClass, boolean transaction) {
+      Datastore d,
+      String namespace,
+      String kind,
+      Class<T> stateClass,
+      boolean transaction,
+      int pageSize) {
     super(stateClass);
     rw = datastore = d;
     this.namespace = namespace;
     this.kind = kind;
+    this.pageSize = pageSize;
     tx = null;
     if (transaction) {
       rw = tx = d.newTransaction();
     }
     keyFactory = d.newKeyFactory().setNamespace(namespace).setKind(kind);
   }
+
+  /**
+   * Initialize a new Datastore cursor
+   *
+   * @param d Initialized {@link Datastore} object
+   * @param namespace Datastore namespace
+   * @param kind Datastore kind
+   * @param stateClass Class used in stage storage
+   * @param transaction True to initialize cursor as a transaction
+   */
+  public DatastoreStateCursor(
+      Datastore d, String namespace, String kind, Class<T> stateClass, boolean transaction) {
+    this(d, namespace, kind, stateClass, transaction, DEFAULT_PAGE_SIZE);
+  }
 }
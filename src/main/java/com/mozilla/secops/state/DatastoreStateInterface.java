@@ -1,14 +1,18 @@
 package com.mozilla.secops.state;
 
 import com.google.cloud.NoCredentials;
+import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.cloud.http.HttpTransportOptions;
+import java.util.ArrayList;
 
 /** Utilize GCP Datastore for centralized state storage */
 public class DatastoreStateInterface implements StateInterface {
@@ -17,17 +21,35 @@ public class DatastoreStateInterface implements StateInterface {
   private final String namespace;
   private String project;
   private HttpTransportOptions transportOpts;
+  private int pageSize = DatastoreStateCursor.DEFAULT_PAGE_SIZE;
+
+  /** {@inheritDoc} */
+  public String getKind() {
+    return kind;
+  }
 
   /** {@inheritDoc} */
   public <T> StateCursor<T> newCursor(Class<T> stateClass, boolean transaction)
       throws StateException {
     try {
-      return new DatastoreStateCursor<T>(datastore, namespace, kind, stateClass, transaction);
+      return new DatastoreStateCursor<T>(
+          datastore, namespace, kind, stateClass, transaction, pageSize);
     } catch (DatastoreException exc) {
       throw new StateException(exc.getMessage());
     }
   }
 
+  /**
+   * Set number of entities fetched per query page for GET_ALL operations
+   *
+   * @param pageSize Page size
+   * @return DatastoreStateInterface
+   */
+  public DatastoreStateInterface withPageSize(int pageSize) {
+    this.pageSize = pageSize;
+    return this;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -72,6 +94,43 @@ public class DatastoreStateInterface implements StateInterface {
     }
   }
 
+  /**
+   * Delete entities whose TTL has elapsed
+   *
+   * <p>Datastore does not remove expired entities itself; they are only hidden from reads. This
+   * method can be called periodically to reclaim the storage they use.
+   *
+   * @return Number of entities deleted
+   * @throws StateException StateException
+   */
+  public int deleteExpired() throws StateException {
+    if (datastore == null) {
+      throw new StateException("datastore state interface not initialized");
+    }
+    int ret = 0;
+    try {
+      QueryResults<Key> results =
+          datastore.run(
+              Query.newKeyQueryBuilder()
+                  .setNamespace(namespace)
+                  .setKind(kind)
+                  .setFilter(PropertyFilter.le(DatastoreStateCursor.EXPIRES_AT, Timestamp.now()))
+                  .build());
+      ArrayList<Key> batch = new ArrayList<>();
+      while (results.hasNext()) {
+        batch.add(results.next());
+        if (batch.size() == DatastoreStateCursor.PUT_BATCH_SIZE || !results.hasNext()) {
+          datastore.delete(batch.toArray(new Key[0]));
+          ret += batch.size();
+          batch.clear();
+        }
+      }
+    } catch (DatastoreException exc) {
+      throw new StateException(exc.getMessage());
+    }
+    return ret;
+  }
+
   /**
    * Initialize a Datastore state interface
    *
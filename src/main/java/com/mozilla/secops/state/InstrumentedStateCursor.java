@@ -0,0 +1,207 @@
+package com.mozilla.secops.state;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.metrics.MetricsContainer;
+import org.apache.beam.sdk.metrics.MetricsEnvironment;
+
+/**
+ * Cursor returned by {@link InstrumentedStateInterface}
+ *
+ * <p>Operations are executed using a cursor allocated from the underlying state implementation.
+ * Metrics for asynchronous operations are reported to the metrics container that was current when
+ * the operation was issued, as Beam only associates a container with the processing thread.
+ */
+public class InstrumentedStateCursor<T> extends StateCursor<T> {
+  private final InstrumentedStateInterface parent;
+  private final StateCursor<T> inner;
+  private final boolean transaction;
+  private final long created;
+
+  private static long elapsedMs(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  private void countOperations() {
+    for (StateOperation<T> o : operations) {
+      switch (o.getOperationType()) {
+        case GET:
+          parent.gets.inc();
+          break;
+        case SET:
+          parent.sets.inc();
+          break;
+        case GET_ALL:
+          parent.getAlls.inc();
+          break;
+        case DELETE:
+          parent.deletes.inc();
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private void recordExecute(long start, long read, long written, Throwable exc) {
+    parent.executeLatency.update(elapsedMs(start));
+    parent.bytesRead.update(inner.getBytesRead() - read);
+    parent.bytesWritten.update(inner.getBytesWritten() - written);
+    if (exc != null) {
+      parent.errors.inc();
+    }
+  }
+
+  private void recordCommit(long start, Throwable exc) {
+    parent.commitLatency.update(elapsedMs(start));
+    parent.transactionLifetime.update(elapsedMs(created));
+    if (exc instanceof StateConflictException
+        || (exc != null && exc.getCause() instanceof StateConflictException)) {
+      parent.conflicts.inc();
+    } else if (exc != null) {
+      parent.errors.inc();
+    }
+  }
+
+  /** Run a metrics update in the given container, which may be on a different thread */
+  private static void inContainer(MetricsContainer container, Runnable r) {
+    Closeable scope = MetricsEnvironment.scopedMetricsContainer(container);
+    try {
+      r.run();
+    } finally {
+      try {
+        scope.close();
+      } catch (IOException exc) {
+        // Restoring the previous container does not perform I/O
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void commit() throws StateException {
+    if (!transaction) {
+      inner.commit();
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      inner.commit();
+    } catch (StateException exc) {
+      recordCommit(start, exc);
+      throw exc;
+    }
+    recordCommit(start, null);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() {
+    inner.close();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<Void> commitAsync() {
+    if (!transaction) {
+      return inner.commitAsync();
+    }
+    MetricsContainer container = MetricsEnvironment.getCurrentContainer();
+    long start = System.nanoTime();
+    return inner
+        .commitAsync()
+        .whenComplete((v, exc) -> inContainer(container, () -> recordCommit(start, exc)));
+  }
+
+  @Override
+  public void executeInner() throws StateException {
+    countOperations();
+    for (StateOperation<T> o : operations) {
+      inner.withOperation(o);
+    }
+    long start = System.nanoTime();
+    long read = inner.getBytesRead();
+    long written = inner.getBytesWritten();
+    try {
+      inner.execute();
+    } catch (StateException exc) {
+      recordExecute(start, read, written, exc);
+      throw exc;
+    }
+    recordExecute(start, read, written, null);
+    for (StateOperation<T> o : operations) {
+      completedOperations.put(o.getId(), o);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletableFuture<Void> executeAsync() {
+    countOperations();
+    ArrayList<StateOperation<T>> ops = new ArrayList<>(operations);
+    operations.clear();
+    completedOperations.clear();
+    try {
+      for (StateOperation<T> o : ops) {
+        inner.withOperation(o);
+      }
+    } catch (StateException exc) {
+      CompletableFuture<Void> ret = new CompletableFuture<>();
+      ret.completeExceptionally(exc);
+      return ret;
+    }
+
+    MetricsContainer container = MetricsEnvironment.getCurrentContainer();
+    long start = System.nanoTime();
+    long read = inner.getBytesRead();
+    long written = inner.getBytesWritten();
+    return inner
+        .executeAsync()
+        .whenComplete(
+            (v, exc) -> inContainer(container, () -> recordExecute(start, read, written, exc)))
+        .thenRun(
+            () -> {
+              for (StateOperation<T> o : ops) {
+                completedOperations.put(o.getId(), o);
+              }
+            });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Iterator<T> iterateAll() throws StateException {
+    parent.getAlls.inc();
+    return inner.iterateAll();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getBytesRead() {
+    return inner.getBytesRead();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long getBytesWritten() {
+    return inner.getBytesWritten();
+  }
+
+  /**
+   * Initialize a new instrumented state cursor
+   *
+   * @param parent {@link InstrumentedStateInterface} the cursor was allocated from
+   * @param inner Cursor allocated from the underlying state implementation
+   * @param transaction True if the cursor is a transaction
+   */
+  InstrumentedStateCursor(
+      InstrumentedStateInterface parent, StateCursor<T> inner, boolean transaction) {
+    super(inner.stateClass);
+    this.parent = parent;
+    this.inner = inner;
+    this.transaction = transaction;
+    created = System.nanoTime();
+  }
+}
@@ -0,0 +1,119 @@
+package com.mozilla.secops.state;
+
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
+
+/**
+ * Export metrics for operations made using another {@link StateInterface}
+ *
+ * <p>{@link State} applies this wrapper to every state implementation. Metrics are reported in the
+ * {@link #METRICS_NAMESPACE} namespace, with names prefixed by the kind of the underlying
+ * interface:
+ *
+ * <ul>
+ *   <li>{@code _get}, {@code _set}, {@code _get_all} and {@code _delete} count operations by type
+ *   <li>{@code _bytes_read} and {@code _bytes_written} are distributions of serialized payload size
+ *       per execution
+ *   <li>{@code _execute_latency_ms} and {@code _commit_latency_ms} are distributions of latency
+ *   <li>{@code _transaction_conflicts} counts commits that failed due to concurrent modification,
+ *       and {@code _transaction_retries} counts retries reported using {@link
+ *       #recordTransactionRetry}
+ *   <li>{@code _transaction_lifetime_ms} is a distribution of the time from allocation of a
+ *       transactional cursor until it is committed
+ *   <li>{@code _errors} counts failed executions and commits other than conflicts
+ * </ul>
+ */
+public class InstrumentedStateInterface implements StateInterface {
+  private final StateInterface delegate;
+
+  /** Namespace for state metrics */
+  public static final String METRICS_NAMESPACE = "state";
+
+  /** Metric name prefix used if the underlying interface has no kind */
+  public static final String DEFAULT_KIND = "default";
+
+  final Counter gets;
+  final Counter sets;
+  final Counter getAlls;
+  final Counter deletes;
+  final Counter errors;
+  final Counter conflicts;
+  final Counter retries;
+  final Distribution bytesRead;
+  final Distribution bytesWritten;
+  final Distribution executeLatency;
+  final Distribution commitLatency;
+  final Distribution transactionLifetime;
+
+  /** {@inheritDoc} */
+  public String getKind() {
+    return delegate.getKind();
+  }
+
+  /** {@inheritDoc} */
+  public <T> StateCursor<T> newCursor(Class<T> stateClass, boolean transaction)
+      throws StateException {
+    return new InstrumentedStateCursor<T>(
+        this, delegate.newCursor(stateClass, transaction), transaction);
+  }
+
+  /** {@inheritDoc} */
+  public void done() {
+    delegate.done();
+  }
+
+  /** {@inheritDoc} */
+  public void deleteAll() throws StateException {
+    delegate.deleteAll();
+  }
+
+  /** {@inheritDoc} */
+  public void initialize() throws StateException {
+    delegate.initialize();
+  }
+
+  /** Record that a transaction is being retried following a conflict */
+  public void recordTransactionRetry() {
+    retries.inc();
+  }
+
+  /**
+   * Get the underlying state interface
+   *
+   * @return StateInterface
+   */
+  public StateInterface getDelegate() {
+    return delegate;
+  }
+
+  private static Counter counter(String kind, String name) {
+    return Metrics.counter(METRICS_NAMESPACE, String.format("%s_%s", kind, name));
+  }
+
+  private static Distribution distribution(String kind, String name) {
+    return Metrics.distribution(METRICS_NAMESPACE, String.format("%s_%s", kind, name));
+  }
+
+  /**
+   * Initialize an instrumented state interface
+   *
+   * @param delegate Underlying state implementation
+   */
+  public InstrumentedStateInterface(StateInterface delegate) {
+    this.delegate = delegate;
+    String kind = delegate.getKind() != null ? delegate.getKind() : DEFAULT_KIND;
+    gets = counter(kind, "get");
+    sets = counter(kind, "set");
+    getAlls = counter(kind, "get_all");
+    deletes = counter(kind, "delete");
+    errors = counter(kind, "errors");
+    conflicts = counter(kind, "transaction_conflicts");
+    retries = counter(kind, "transaction_retries");
+    bytesRead = distribution(kind, "bytes_read");
+    bytesWritten = distribution(kind, "bytes_written");
+    executeLatency = distribution(kind, "execute_latency_ms");
+    commitLatency = distribution(kind, "commit_latency_ms");
+    transactionLifetime = distribution(kind, "transaction_lifetime_ms");
+  }
+}
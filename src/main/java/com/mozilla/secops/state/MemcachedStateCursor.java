@@ -2,57 +2,285 @@ package com.mozilla.secops.state;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.OperationFuture;
 
 /**
  * Memcached state cursor implementation
  *
- * <p>This implementation does not support transactions.
+ * <p>This implementation does not support transactions or GET_ALL operations. Memcached cannot
+ * enumerate the keys it holds, and since items can be evicted at any time an index of keys
+ * maintained separately could not reliably reflect the stored values.
+ *
+ * <p>All GET operations in the cursor are fetched with a single bulk request, and SET operations
+ * and DELETE operations are issued asynchronously and waited on together before execution
+ * completes. A TTL specified on a SET operation is used as the item expiration time.
+ *
+ * <p>{@link #executeAsync} is implemented using completion listeners on the memcached client
+ * futures, so no thread is held while requests are outstanding.
  */
 public class MemcachedStateCursor<T> extends StateCursor<T> {
   private MemcachedClient memclient;
 
+  /** Time to wait for asynchronous operations to complete, in milliseconds */
+  public static final long OPERATION_TIMEOUT_MS = 2500L;
+
+  /**
+   * Largest expiration memcached interprets as relative to the current time; larger values are
+   * interpreted as an absolute unix timestamp
+   */
+  private static final int MAX_RELATIVE_EXPIRY = 60 * 60 * 24 * 30;
+
+  private static int expiration(int ttlSeconds) {
+    if (ttlSeconds <= MAX_RELATIVE_EXPIRY) {
+      return ttlSeconds;
+    }
+    return (int) (System.currentTimeMillis() / 1000) + ttlSeconds;
+  }
+
   public void commit() throws StateException {
     throw new StateException("memcached state cursor does not support transactions");
   }
 
+  private static ScheduledExecutorService timer;
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "memcached-state-timeout");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return timer;
+  }
+
+  /** Adapt a memcached operation future, failing it if it does not complete within the timeout */
+  private static <V> CompletableFuture<V> toCompletable(OperationFuture<V> f) {
+    CompletableFuture<V> ret = new CompletableFuture<>();
+    f.addListener(
+        of -> {
+          try {
+            ret.complete(f.get());
+          } catch (ExecutionException exc) {
+            ret.completeExceptionally(new StateException(exc.getMessage()));
+          }
+        });
+    return withTimeout(ret);
+  }
+
+  private static <V> CompletableFuture<V> toCompletable(BulkFuture<V> f) {
+    CompletableFuture<V> ret = new CompletableFuture<>();
+    f.addListener(
+        bf -> {
+          try {
+            ret.complete(f.get());
+          } catch (ExecutionException exc) {
+            ret.completeExceptionally(new StateException(exc.getMessage()));
+          }
+        });
+    return withTimeout(ret);
+  }
+
+  private static <V> CompletableFuture<V> withTimeout(CompletableFuture<V> f) {
+    ScheduledFuture<?> t =
+        getTimer()
+            .schedule(
+                () -> f.completeExceptionally(new StateException("memcached operation timed out")),
+                OPERATION_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+    f.whenComplete((v, exc) -> t.cancel(false));
+    return f;
+  }
+
+  private static <V> V await(OperationFuture<V> f) throws StateException {
+    try {
+      return f.get(OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new StateException(exc.getMessage());
+    } catch (ExecutionException | TimeoutException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  private T readValue(Object buf) throws StateException {
+    bytesRead += ((String) buf).length();
+    try {
+      return mapper.readValue((String) buf, stateClass);
+    } catch (IOException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> executeAsync() {
+    ArrayList<StateOperation<T>> ops = new ArrayList<>(operations);
+    operations.clear();
+    completedOperations.clear();
+
+    ArrayList<StateOperation<T>> getOperations = new ArrayList<>();
+    ArrayList<String> getParam = new ArrayList<>();
+    ArrayList<CompletableFuture<?>> futures = new ArrayList<>();
+    try {
+      for (StateOperation<T> o : ops) {
+        switch (o.getOperationType()) {
+          case GET:
+            getParam.add(o.getKey());
+            getOperations.add(o);
+            break;
+          case SET:
+            String writebuf;
+            try {
+              writebuf = mapper.writeValueAsString(o.getValue());
+            } catch (JsonProcessingException exc) {
+              throw new StateException(exc.getMessage());
+            }
+            bytesWritten += writebuf.length();
+            OperationFuture<Boolean> sf =
+                memclient.set(o.getKey(), expiration(o.getTtlSeconds()), writebuf);
+            futures.add(
+                toCompletable(sf)
+                    .thenAccept(
+                        ok -> {
+                          if (!ok) {
+                            throw new CompletionException(
+                                new StateException(
+                                    String.format(
+                                        "memcached set failed: %s", sf.getStatus().getMessage())));
+                          }
+                        }));
+            break;
+          case DELETE:
+            // A delete of a key that does not exist returns false, which is not an error
+            futures.add(toCompletable(memclient.delete(o.getKey())));
+            break;
+          case GET_ALL:
+            throw new StateException("memcached state cursor does not support GET_ALL");
+          default:
+            throw new RuntimeException("unknown operation type");
+        }
+      }
+      if (!getParam.isEmpty()) {
+        futures.add(
+            toCompletable(memclient.asyncGetBulk(getParam))
+                .thenAccept(
+                    results -> {
+                      for (StateOperation<T> o : getOperations) {
+                        Object buf = results.get(o.getKey());
+                        if (buf != null) {
+                          try {
+                            o.setResultValue(readValue(buf));
+                          } catch (StateException exc) {
+                            throw new CompletionException(exc);
+                          }
+                        }
+                      }
+                    }));
+      }
+    } catch (StateException exc) {
+      CompletableFuture<Void> ret = new CompletableFuture<>();
+      ret.completeExceptionally(exc);
+      return ret;
+    }
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .thenRun(
+            () -> {
+              for (StateOperation<T> o : ops) {
+                completedOperations.put(o.getId(), o);
+              }
+            });
+  }
+
   @Override
   public void executeInner() throws StateException {
-    // The memcached implementation is simple and will just execute the operations in the
-    // order they have been specified.
+    ArrayList<StateOperation<T>> getOperations = new ArrayList<>();
+    ArrayList<String> getParam = new ArrayList<>();
+    ArrayList<StateOperation<T>> setOperations = new ArrayList<>();
+    ArrayList<StateOperation<T>> deleteOperations = new ArrayList<>();
+
+    // Batch the various operations based on the type
     for (StateOperation<T> o : operations) {
       switch (o.getOperationType()) {
         case GET:
-          String readbuf = null;
-          try {
-            readbuf = (String) memclient.get(o.getKey());
-          } catch (OperationTimeoutException exc) {
-            throw new StateException(exc.getMessage());
-          }
-          if (readbuf == null) {
-            break;
-          }
-          try {
-            o.setResultValue(mapper.readValue(readbuf, stateClass));
-          } catch (IOException exc) {
-            throw new StateException(exc.getMessage());
-          }
+          getParam.add(o.getKey());
+          getOperations.add(o);
           break;
         case GET_ALL:
-          throw new RuntimeException("GET_ALL not implemented for MemcachedStateCursor");
+          throw new StateException("memcached state cursor does not support GET_ALL");
         case SET:
+          setOperations.add(o);
+          break;
+        case DELETE:
+          deleteOperations.add(o);
+          break;
+        default:
+          throw new RuntimeException("unknown operation type");
+      }
+    }
+
+    try {
+      if (!getParam.isEmpty()) {
+        Map<String, Object> results = memclient.getBulk(getParam);
+        for (StateOperation<T> o : getOperations) {
+          Object buf = results.get(o.getKey());
+          if (buf != null) {
+            o.setResultValue(readValue(buf));
+          }
+          completedOperations.put(o.getId(), o);
+        }
+      }
+
+      if (!setOperations.isEmpty() || !deleteOperations.isEmpty()) {
+        ArrayList<OperationFuture<Boolean>> futures = new ArrayList<>();
+        ArrayList<OperationFuture<Boolean>> deleteFutures = new ArrayList<>();
+        for (StateOperation<T> o : setOperations) {
+          String writebuf;
           try {
-            String writebuf = mapper.writeValueAsString(o.getValue());
-            memclient.set(o.getKey(), 0, writebuf);
+            writebuf = mapper.writeValueAsString(o.getValue());
           } catch (JsonProcessingException exc) {
             throw new StateException(exc.getMessage());
           }
-          break;
-        default:
-          throw new RuntimeException("unknown operation type");
+          bytesWritten += writebuf.length();
+          futures.add(memclient.set(o.getKey(), expiration(o.getTtlSeconds()), writebuf));
+        }
+        for (StateOperation<T> o : deleteOperations) {
+          deleteFutures.add(memclient.delete(o.getKey()));
+        }
+        for (OperationFuture<Boolean> f : futures) {
+          if (!await(f)) {
+            throw new StateException(
+                String.format("memcached set failed: %s", f.getStatus().getMessage()));
+          }
+        }
+        for (OperationFuture<Boolean> f : deleteFutures) {
+          // A delete of a key that does not exist returns false, which is not an error
+          await(f);
+        }
+        for (StateOperation<T> o : setOperations) {
+          completedOperations.put(o.getId(), o);
+        }
+        for (StateOperation<T> o : deleteOperations) {
+          completedOperations.put(o.getId(), o);
+        }
       }
-      completedOperations.put(o.getId(), o);
+    } catch (OperationTimeoutException exc) {
+      throw new StateException(exc.getMessage());
     }
   }
 
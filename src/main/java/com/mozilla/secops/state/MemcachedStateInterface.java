@@ -4,7 +4,11 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import net.spy.memcached.MemcachedClient;
 
-/** Utilize a memcached instance for centralized state storage */
+/**
+ * Utilize a memcached instance for centralized state storage
+ *
+ * <p>Transactions and GET_ALL operations are not supported, see {@link MemcachedStateCursor}.
+ */
 public class MemcachedStateInterface implements StateInterface {
   private final String memcachedHost;
   private final int memcachedPort;
@@ -0,0 +1,158 @@
+package com.mozilla.secops.state;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory state cursor implementation
+ *
+ * <p>If the cursor is a transaction, the version of each key is recorded the first time the key is
+ * read or written, and writes are buffered until {@link #commit} is called. The commit fails with a
+ * {@link StateException} if any recorded key has since been modified by another cursor, in which
+ * case none of the buffered writes are applied. GET_ALL operations in a transaction do not
+ * participate in conflict detection, as Datastore does not permit such queries in a transaction.
+ */
+public class MemoryStateCursor<T> extends StateCursor<T> {
+  private final MemoryStateInterface.Store store;
+  private final boolean transaction;
+  private final HashMap<String, Long> versions;
+  private final LinkedHashMap<String, Write> writes;
+
+  /** Serialized write; a null value indicates the key should be deleted */
+  private static class Write {
+    private final String value;
+    private final int ttlSeconds;
+
+    Write(String value, int ttlSeconds) {
+      this.value = value;
+      this.ttlSeconds = ttlSeconds;
+    }
+  }
+
+  /**
+   * Commit memory transaction
+   *
+   * @throws StateException StateException
+   */
+  public void commit() throws StateException {
+    if (!transaction) {
+      throw new StateException("memory cursor not configured as transaction");
+    }
+    try {
+      synchronized (store) {
+        for (Map.Entry<String, Long> e : versions.entrySet()) {
+          if (store.versionOf(e.getKey()) != e.getValue()) {
+            throw new StateConflictException("transaction aborted due to concurrent modification");
+          }
+        }
+        for (Map.Entry<String, Write> e : writes.entrySet()) {
+          store.write(e.getKey(), e.getValue().value, e.getValue().ttlSeconds);
+        }
+      }
+    } finally {
+      versions.clear();
+      writes.clear();
+    }
+  }
+
+  private void track(String key) {
+    if (transaction) {
+      versions.putIfAbsent(key, store.versionOf(key));
+    }
+  }
+
+  private T readValue(MemoryStateInterface.Entry e, long now) throws StateException {
+    if (e == null || !e.live(now)) {
+      return null;
+    }
+    bytesRead += e.value.length();
+    try {
+      return mapper.readValue(e.value, stateClass);
+    } catch (IOException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  private Write toWrite(StateOperation<T> o) throws StateException {
+    if (o.getOperationType() == StateOperation.OperationType.DELETE) {
+      return new Write(null, 0);
+    }
+    try {
+      String buf = mapper.writeValueAsString(o.getValue());
+      bytesWritten += buf.length();
+      return new Write(buf, o.getTtlSeconds());
+    } catch (JsonProcessingException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  @Override
+  public void executeInner() throws StateException {
+    long now = System.currentTimeMillis();
+    LinkedHashMap<String, Write> pendingWrites = new LinkedHashMap<>();
+
+    // Reads are completed before writes are applied, matching the other implementations
+    for (StateOperation<T> o : operations) {
+      switch (o.getOperationType()) {
+        case GET:
+          track(o.getKey());
+          o.setResultValue(readValue(store.entries.get(o.getKey()), now));
+          break;
+        case GET_ALL:
+          ArrayList<T> vlist = new ArrayList<>();
+          for (MemoryStateInterface.Entry e : store.entries.values()) {
+            T v = readValue(e, now);
+            if (v != null) {
+              vlist.add(v);
+            }
+          }
+          o.setResultValues(vlist);
+          break;
+        case SET:
+        case DELETE:
+          // Values are serialized when the operation is executed, so later changes made by the
+          // caller to the object are not stored
+          pendingWrites.put(o.getKey(), toWrite(o));
+          break;
+        default:
+          throw new RuntimeException("unknown operation type");
+      }
+    }
+
+    if (transaction) {
+      for (Map.Entry<String, Write> e : pendingWrites.entrySet()) {
+        track(e.getKey());
+        writes.put(e.getKey(), e.getValue());
+      }
+    } else if (!pendingWrites.isEmpty()) {
+      synchronized (store) {
+        for (Map.Entry<String, Write> e : pendingWrites.entrySet()) {
+          store.write(e.getKey(), e.getValue().value, e.getValue().ttlSeconds);
+        }
+      }
+    }
+
+    for (StateOperation<T> o : operations) {
+      completedOperations.put(o.getId(), o);
+    }
+  }
+
+  /**
+   * Initialize a new memory state cursor
+   *
+   * @param store Store for namespace and kind
+   * @param stateClass Class for state storage
+   * @param transaction True to initialize cursor as a transaction
+   */
+  MemoryStateCursor(MemoryStateInterface.Store store, Class<T> stateClass, boolean transaction) {
+    super(stateClass);
+    this.store = store;
+    this.transaction = transaction;
+    versions = new HashMap<>();
+    writes = new LinkedHashMap<>();
+  }
+}
@@ -0,0 +1,117 @@
+package com.mozilla.secops.state;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utilize process memory for state storage
+ *
+ * <p>Intended for tests and local development. Entities are held in a store shared by every memory
+ * state interface in the process using the same namespace and kind, in the same way multiple
+ * Datastore state interfaces would share entities in a project. Values are stored serialized, so
+ * objects returned from a cursor are always copies.
+ *
+ * <p>Transactions use optimistic concurrency in the same manner as Datastore; see {@link
+ * MemoryStateCursor}.
+ */
+public class MemoryStateInterface implements StateInterface {
+  private final String storeName;
+  private final String kind;
+  private Store store;
+
+  private static final ConcurrentHashMap<String, Store> stores = new ConcurrentHashMap<>();
+
+  /** Stored entity; a null value indicates the entity has been deleted */
+  static class Entry {
+    final String value;
+    final long version;
+    final long expiresAt;
+
+    Entry(String value, long version, long expiresAt) {
+      this.value = value;
+      this.version = version;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean live(long now) {
+      return value != null && (expiresAt == 0 || expiresAt > now);
+    }
+  }
+
+  /** Entities for a namespace and kind */
+  static class Store {
+    final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    final AtomicLong version = new AtomicLong();
+
+    /**
+     * Get the current version of a key, or 0 if it has never been written
+     *
+     * @param key Key
+     * @return Version
+     */
+    long versionOf(String key) {
+      Entry e = entries.get(key);
+      return e == null ? 0 : e.version;
+    }
+
+    /**
+     * Write a value, or delete the key if the value is null
+     *
+     * <p>Callers must hold the store lock.
+     */
+    void write(String key, String value, int ttlSeconds) {
+      long expiresAt = 0;
+      if (value != null && ttlSeconds > 0) {
+        expiresAt = System.currentTimeMillis() + ttlSeconds * 1000L;
+      }
+      entries.put(key, new Entry(value, version.incrementAndGet(), expiresAt));
+    }
+  }
+
+  /** {@inheritDoc} */
+  public String getKind() {
+    return kind;
+  }
+
+  /** {@inheritDoc} */
+  public <T> StateCursor<T> newCursor(Class<T> stateClass, boolean transaction)
+      throws StateException {
+    if (store == null) {
+      throw new StateException("memory state interface not initialized");
+    }
+    return new MemoryStateCursor<T>(store, stateClass, transaction);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>noop for memory state, entities remain available to other interfaces using the same store
+   */
+  public void done() {}
+
+  /** {@inheritDoc} */
+  public void deleteAll() throws StateException {
+    if (store == null) {
+      throw new StateException("memory state interface not initialized");
+    }
+    synchronized (store) {
+      store.entries.clear();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void initialize() throws StateException {
+    store = stores.computeIfAbsent(storeName, k -> new Store());
+  }
+
+  /**
+   * Initialize a memory state interface
+   *
+   * @param kind Kind value to use for stored objects
+   * @param namespace Namespace
+   */
+  public MemoryStateInterface(String kind, String namespace) {
+    storeName = String.format("%s:%s", namespace, kind);
+    this.kind = kind;
+  }
+}
@@ -0,0 +1,293 @@
+package com.mozilla.secops.state;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Redis state cursor implementation
+ *
+ * <p>Operations are batched by type when the cursor is executed. Multiple GET operations are
+ * fetched with a single MGET, SET operations are pipelined, and GET_ALL operations iterate the key
+ * prefix using SCAN. DELETE operations are pipelined along with SET operations.
+ *
+ * <p>A TTL specified on a SET operation is applied using SETEX and takes precedence over any expiry
+ * configured on the state interface.
+ *
+ * <p>If the cursor is a transaction, keys read by the cursor are watched, and SET and DELETE
+ * operations are queued until {@link #commit} is called, at which point they are applied atomically
+ * using MULTI/EXEC. If any watched key was modified by another client after it was read, the commit
+ * fails with a {@link StateException} and none of the queued operations are applied. A transaction
+ * cursor holds a connection from the pool until it is committed or closed, so transaction cursors
+ * must always be committed or closed. The connection is also released if an operation in the
+ * transaction fails.
+ */
+public class RedisStateCursor<T> extends StateCursor<T> {
+  private final JedisPool pool;
+  private final String prefix;
+  private final int expirySeconds;
+  private final boolean transaction;
+  private final LinkedHashMap<String, Write> queued;
+  private Jedis txConnection;
+
+  /** Number of keys requested per SCAN iteration */
+  public static final int SCAN_COUNT = 500;
+
+  /** Pending write for a key; a null value indicates the key should be deleted */
+  private static class Write {
+    private final String value;
+    private final int ttlSeconds;
+
+    Write(String value, int ttlSeconds) {
+      this.value = value;
+      this.ttlSeconds = ttlSeconds;
+    }
+  }
+
+  private static void apply(PipelineBase p, Map<String, Write> writes) {
+    for (Map.Entry<String, Write> e : writes.entrySet()) {
+      Write w = e.getValue();
+      if (w.value == null) {
+        p.del(e.getKey());
+      } else if (w.ttlSeconds > 0) {
+        p.setex(e.getKey(), w.ttlSeconds, w.value);
+      } else {
+        p.set(e.getKey(), w.value);
+      }
+    }
+  }
+
+  /**
+   * Commit Redis transaction
+   *
+   * @throws StateException StateException
+   */
+  public void commit() throws StateException {
+    if (!transaction) {
+      throw new StateException("redis cursor not configured as transaction");
+    }
+    try {
+      if (queued.isEmpty()) {
+        return;
+      }
+      if (txConnection == null) {
+        txConnection = pool.getResource();
+      }
+      Transaction t = txConnection.multi();
+      apply(t, queued);
+      List<Object> results = t.exec();
+      if (results == null) {
+        throw new StateConflictException("transaction aborted due to concurrent modification");
+      }
+      for (Object r : results) {
+        if (r instanceof Exception) {
+          throw new StateException(((Exception) r).getMessage());
+        }
+      }
+    } catch (JedisException exc) {
+      throw new StateException(exc.getMessage());
+    } finally {
+      queued.clear();
+      release();
+    }
+  }
+
+  /** Discard any queued operations and release the connection held by a transaction */
+  @Override
+  public void close() {
+    queued.clear();
+    release();
+  }
+
+  private void release() {
+    if (txConnection != null) {
+      // Returning the connection to the pool also clears any watched keys
+      txConnection.close();
+      txConnection = null;
+    }
+  }
+
+  private T readValue(String buf) throws StateException {
+    bytesRead += buf.length();
+    try {
+      return mapper.readValue(buf, stateClass);
+    } catch (IOException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  /**
+   * Escape glob pattern characters so a string is matched literally by SCAN
+   *
+   * @param s String
+   * @return Escaped string
+   */
+  static String escapeGlob(String s) {
+    StringBuilder b = new StringBuilder();
+    for (char c : s.toCharArray()) {
+      if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+        b.append('\\');
+      }
+      b.append(c);
+    }
+    return b.toString();
+  }
+
+  private ArrayList<String> scanKeys(Jedis j) {
+    ArrayList<String> ret = new ArrayList<>();
+    // The prefix is matched literally, so any pattern characters in it are escaped
+    ScanParams params = new ScanParams().match(escapeGlob(prefix) + "*").count(SCAN_COUNT);
+    String cursor = ScanParams.SCAN_POINTER_START;
+    do {
+      ScanResult<String> r = j.scan(cursor, params);
+      ret.addAll(r.getResult());
+      cursor = r.getCursor();
+    } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    return ret;
+  }
+
+  @Override
+  public void executeInner() throws StateException {
+    ArrayList<StateOperation<T>> getOperations = new ArrayList<>();
+    ArrayList<String> getParam = new ArrayList<>();
+
+    ArrayList<StateOperation<T>> setOperations = new ArrayList<>();
+    LinkedHashMap<String, Write> setParam = new LinkedHashMap<>();
+
+    ArrayList<StateOperation<T>> getAllOperations = new ArrayList<>();
+
+    // Batch the various operations based on the type
+    for (StateOperation<T> o : operations) {
+      switch (o.getOperationType()) {
+        case GET:
+          getParam.add(prefix + o.getKey());
+          getOperations.add(o);
+          break;
+        case SET:
+          try {
+            String buf = mapper.writeValueAsString(o.getValue());
+            bytesWritten += buf.length();
+            setParam.put(
+                prefix + o.getKey(),
+                new Write(buf, o.getTtlSeconds() > 0 ? o.getTtlSeconds() : expirySeconds));
+          } catch (JsonProcessingException exc) {
+            throw new StateException(exc.getMessage());
+          }
+          setOperations.add(o);
+          break;
+        case DELETE:
+          setParam.put(prefix + o.getKey(), new Write(null, 0));
+          setOperations.add(o);
+          break;
+        case GET_ALL:
+          getAllOperations.add(o);
+          break;
+        default:
+          throw new RuntimeException("unknown operation type");
+      }
+    }
+
+    Jedis j = null;
+    boolean success = false;
+    try {
+      if (transaction) {
+        if (txConnection == null) {
+          txConnection = pool.getResource();
+        }
+        j = txConnection;
+      } else {
+        j = pool.getResource();
+      }
+
+      if (!getParam.isEmpty()) {
+        String[] keys = getParam.toArray(new String[0]);
+        if (transaction) {
+          j.watch(keys);
+        }
+        List<String> values = j.mget(keys);
+        for (int i = 0; i < getOperations.size(); i++) {
+          StateOperation<T> o = getOperations.get(i);
+          String buf = values.get(i);
+          if (buf != null) {
+            o.setResultValue(readValue(buf));
+          }
+          completedOperations.put(o.getId(), o);
+        }
+      }
+
+      for (StateOperation<T> o : getAllOperations) {
+        ArrayList<T> vlist = new ArrayList<>();
+        ArrayList<String> keys = scanKeys(j);
+        if (!keys.isEmpty()) {
+          String[] k = keys.toArray(new String[0]);
+          if (transaction) {
+            j.watch(k);
+          }
+          for (String buf : j.mget(k)) {
+            // Keys may have expired or been deleted since the scan
+            if (buf != null) {
+              vlist.add(readValue(buf));
+            }
+          }
+        }
+        o.setResultValues(vlist);
+        completedOperations.put(o.getId(), o);
+      }
+
+      if (!setParam.isEmpty()) {
+        if (transaction) {
+          queued.putAll(setParam);
+        } else {
+          Pipeline p = j.pipelined();
+          apply(p, setParam);
+          p.sync();
+        }
+        for (StateOperation<T> o : setOperations) {
+          completedOperations.put(o.getId(), o);
+        }
+      }
+      success = true;
+    } catch (JedisException exc) {
+      throw new StateException(exc.getMessage());
+    } finally {
+      if (!transaction) {
+        if (j != null) {
+          j.close();
+        }
+      } else if (!success) {
+        // The transaction cannot be committed after a failure, so release the connection here
+        close();
+      }
+    }
+  }
+
+  /**
+   * Initialize a new Redis state cursor
+   *
+   * @param pool {@link JedisPool}
+   * @param prefix Prefix applied to all keys
+   * @param expirySeconds Expiry applied to keys when they are set, 0 for no expiry
+   * @param stateClass Class for state storage
+   * @param transaction True to initialize cursor as a transaction
+   */
+  public RedisStateCursor(
+      JedisPool pool, String prefix, int expirySeconds, Class<T> stateClass, boolean transaction) {
+    super(stateClass);
+    this.pool = pool;
+    this.prefix = prefix;
+    this.expirySeconds = expirySeconds;
+    this.transaction = transaction;
+    queued = new LinkedHashMap<>();
+  }
+}
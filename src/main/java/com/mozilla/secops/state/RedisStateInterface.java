@@ -0,0 +1,140 @@
+package com.mozilla.secops.state;
+
+import java.util.List;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Utilize a Redis instance for centralized state storage
+ *
+ * <p>Keys are stored with a prefix derived from the namespace and kind, so multiple state
+ * interfaces can share a Redis instance in the same way they would share a Datastore project.
+ * Transactions are supported using optimistic locking; see {@link RedisStateCursor}.
+ */
+public class RedisStateInterface implements StateInterface {
+  private final String redisHost;
+  private final int redisPort;
+  private final String prefix;
+  private final String kind;
+  private final int expirySeconds;
+  private JedisPool pool;
+
+  /** Maximum number of pooled connections */
+  public static final int POOL_MAX_TOTAL = 32;
+
+  /** Connection, socket and pool wait timeout in milliseconds */
+  public static final int TIMEOUT_MS = 5000;
+
+  /** {@inheritDoc} */
+  public String getKind() {
+    return kind;
+  }
+
+  /** {@inheritDoc} */
+  public <T> StateCursor<T> newCursor(Class<T> stateClass, boolean transaction)
+      throws StateException {
+    if (pool == null) {
+      throw new StateException("redis state interface not initialized");
+    }
+    return new RedisStateCursor<T>(pool, prefix, expirySeconds, stateClass, transaction);
+  }
+
+  /** {@inheritDoc} */
+  public void done() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void deleteAll() throws StateException {
+    try (Jedis j = pool.getResource()) {
+      if (prefix.isEmpty()) {
+        j.flushDB();
+        return;
+      }
+      ScanParams params =
+          new ScanParams()
+              .match(RedisStateCursor.escapeGlob(prefix) + "*")
+              .count(RedisStateCursor.SCAN_COUNT);
+      String cursor = ScanParams.SCAN_POINTER_START;
+      do {
+        ScanResult<String> r = j.scan(cursor, params);
+        List<String> keys = r.getResult();
+        if (!keys.isEmpty()) {
+          j.del(keys.toArray(new String[0]));
+        }
+        cursor = r.getCursor();
+      } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    } catch (JedisException exc) {
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void initialize() throws StateException {
+    JedisPoolConfig cfg = new JedisPoolConfig();
+    cfg.setMaxTotal(POOL_MAX_TOTAL);
+    cfg.setMaxIdle(POOL_MAX_TOTAL);
+    cfg.setMaxWaitMillis(TIMEOUT_MS);
+    pool = new JedisPool(cfg, redisHost, redisPort, TIMEOUT_MS);
+    try (Jedis j = pool.getResource()) {
+      j.ping();
+    } catch (JedisException exc) {
+      pool.close();
+      pool = null;
+      throw new StateException(exc.getMessage());
+    }
+  }
+
+  /**
+   * Initialize a Redis state interface
+   *
+   * @param host Hostname of Redis instance
+   * @param port Port of Redis instance
+   * @param namespace Namespace for keys, can be null
+   * @param kind Kind for keys, can be null
+   * @param expirySeconds Expiry applied to keys when they are set, 0 for no expiry
+   */
+  public RedisStateInterface(
+      String host, int port, String namespace, String kind, int expirySeconds) {
+    redisHost = host;
+    redisPort = port;
+    StringBuilder b = new StringBuilder();
+    if (namespace != null) {
+      b.append(namespace).append(":");
+    }
+    if (kind != null) {
+      b.append(kind).append(":");
+    }
+    prefix = b.toString();
+    this.kind = kind;
+    this.expirySeconds = expirySeconds;
+  }
+
+  /**
+   * Initialize a Redis state interface
+   *
+   * @param host Hostname of Redis instance
+   * @param port Port of Redis instance
+   * @param namespace Namespace for keys, can be null
+   * @param kind Kind for keys, can be null
+   */
+  public RedisStateInterface(String host, int port, String namespace, String kind) {
+    this(host, port, namespace, kind, 0);
+  }
+
+  /**
+   * Initialize a Redis state interface without a key prefix
+   *
+   * @param host Hostname of Redis instance
+   * @param port Port of Redis instance
+   */
+  public RedisStateInterface(String host, int port) {
+    this(host, port, null, null, 0);
+  }
+}
@@ -6,9 +6,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Represents a generic state interface that can be used to store and load state from or to a
  * persistent storage source
+ *
+ * <p>Operations made using a state instance are instrumented; see {@link
+ * InstrumentedStateInterface}.
  */
 public class State {
-  private final StateInterface si;
+  private final InstrumentedStateInterface si;
   private final Logger log;
 
   /**
@@ -17,10 +20,20 @@ public class State {
    * @param in {@link StateInterface} to use for state storage
    */
   public State(StateInterface in) {
-    si = in;
+    si = new InstrumentedStateInterface(in);
     log = LoggerFactory.getLogger(State.class);
   }
 
+  /**
+   * Record that a transaction is being retried following a conflict
+   *
+   * <p>Callers that retry transactions should call this each time a transaction is retried, so the
+   * retry rate is reported alongside the conflict rate.
+   */
+  public void recordTransactionRetry() {
+    si.recordTransactionRetry();
+  }
+
   /**
    * Flush all keys in the underlying state storage
    *
@@ -56,7 +69,7 @@ public class State {
    * @throws StateException StateException
    */
   public void initialize() throws StateException {
-    log.info("Initializing new state interface using {}", si.getClass().getName());
+    log.info("Initializing new state interface using {}", si.getDelegate().getClass().getName());
     si.initialize();
   }
 
@@ -67,7 +80,7 @@ public class State {
    * released.
    */
   public void done() {
-    log.info("Closing state interface {}", si.getClass().getName());
+    log.info("Closing state interface {}", si.getDelegate().getClass().getName());
     si.done();
   }
 }
@@ -0,0 +1,108 @@
+package com.mozilla.secops.state;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Collect state reads made while processing a bundle and execute them together
+ *
+ * <p>Intended for use in a DoFn, where {@link #get} is called for each element as it is processed
+ * and {@link #flush} is called from the {@code FinishBundle} method. All keys requested since the
+ * previous flush are fetched using a single non-transactional cursor, so the state implementation
+ * can batch the lookups rather than making a round trip per element. Requests for the same key are
+ * only fetched once.
+ *
+ * <p>A reader is not safe for concurrent use.
+ *
+ * @param <T> Class used in state storage
+ */
+public class StateBundleReader<T> {
+  private final State state;
+  private final Class<T> stateClass;
+  private LinkedHashMap<String, CompletableFuture<T>> pending;
+
+  /**
+   * Request a value from state
+   *
+   * <p>The returned future is completed when {@link #flush} is called.
+   *
+   * @param key Key
+   * @return Future completed with the value, or null if the key does not exist
+   */
+  public CompletableFuture<T> get(String key) {
+    return pending.computeIfAbsent(key, k -> new CompletableFuture<>());
+  }
+
+  /**
+   * Get number of keys waiting to be fetched
+   *
+   * @return Number of pending keys
+   */
+  public int size() {
+    return pending.size();
+  }
+
+  /**
+   * Fetch all pending keys asynchronously
+   *
+   * <p>If the lookup fails, every pending future is completed exceptionally.
+   *
+   * @return Future completed once all pending futures have been completed
+   */
+  public CompletableFuture<Void> flushAsync() {
+    LinkedHashMap<String, CompletableFuture<T>> requests = pending;
+    pending = new LinkedHashMap<>();
+    if (requests.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    HashMap<String, StateOperation<T>> ops = new HashMap<>();
+    CompletableFuture<Void> exec;
+    try {
+      StateCursor<T> c = state.newCursor(stateClass, false);
+      for (String key : requests.keySet()) {
+        StateOperation<T> o = new StateOperation<T>().get(key);
+        c.withOperation(o);
+        ops.put(key, o);
+      }
+      exec = c.executeAsync();
+    } catch (StateException exc) {
+      exec = new CompletableFuture<>();
+      exec.completeExceptionally(exc);
+    }
+
+    return exec.whenComplete(
+        (v, exc) -> {
+          for (Map.Entry<String, CompletableFuture<T>> e : requests.entrySet()) {
+            if (exc != null) {
+              e.getValue().completeExceptionally(exc);
+            } else {
+              e.getValue().complete(ops.get(e.getKey()).getResultValue());
+            }
+          }
+        });
+  }
+
+  /**
+   * Fetch all pending keys, blocking until the lookup completes
+   *
+   * @throws StateException If the lookup fails
+   */
+  public void flush() throws StateException {
+    StateCursor.await(flushAsync());
+  }
+
+  /**
+   * Create a new bundle reader
+   *
+   * @param state Initialized state instance
+   * @param stateClass Class used in state storage
+   */
+  public StateBundleReader(State state, Class<T> stateClass) {
+    this.state = state;
+    this.stateClass = stateClass;
+    pending = new LinkedHashMap<>();
+  }
+}
@@ -0,0 +1,20 @@
+package com.mozilla.secops.state;
+
+/**
+ * Exception indicating a transaction could not be committed because state it depends on was
+ * modified concurrently
+ *
+ * <p>The transaction can be retried using a new cursor.
+ */
+public class StateConflictException extends StateException {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Construct new {@link StateConflictException}
+   *
+   * @param e String
+   */
+  public StateConflictException(String e) {
+    super(e);
+  }
+}
@@ -4,17 +4,106 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Generic state cursor implementation */
+/**
+ * Generic state cursor implementation
+ *
+ * <p>In addition to the blocking methods, a cursor provides asynchronous variants returning a
+ * {@link CompletableFuture}. Implementations that can issue requests asynchronously override {@link
+ * #executeAsync}; otherwise the blocking operation is run on a shared executor. Futures returned by
+ * the asynchronous methods complete exceptionally with a {@link StateException} if the operation
+ * fails. A cursor is not safe for concurrent use, so it must not be used again until any future
+ * returned from it has completed.
+ */
 public abstract class StateCursor<T> {
   private final Logger log;
   protected final Class<T> stateClass;
   protected final ObjectMapper mapper;
   protected ArrayList<StateOperation<T>> operations;
   protected HashMap<UUID, StateOperation<T>> completedOperations;
+  protected long bytesRead;
+  protected long bytesWritten;
+
+  // Configured once and shared by all cursors, as an ObjectMapper is thread-safe once configured
+  // and comparatively expensive to construct; wrapping state interfaces allocate a cursor per layer
+  private static final ObjectMapper sharedMapper = new ObjectMapper();
+
+  static {
+    sharedMapper.registerModule(new JodaModule());
+    sharedMapper.configure(
+        com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+  }
+
+  /** Maximum number of blocking cursor operations run concurrently for asynchronous callers */
+  public static final int ASYNC_CONCURRENCY = 16;
+
+  private static ExecutorService asyncExecutor;
+
+  private static synchronized ExecutorService getAsyncExecutor() {
+    if (asyncExecutor == null) {
+      asyncExecutor =
+          Executors.newFixedThreadPool(
+              ASYNC_CONCURRENCY,
+              r -> {
+                Thread t = new Thread(r, "state-cursor-async");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return asyncExecutor;
+  }
+
+  /** Functional interface for blocking cursor operations run asynchronously */
+  @FunctionalInterface
+  protected interface BlockingOperation {
+    void run() throws StateException;
+  }
+
+  /**
+   * Run a blocking operation on the shared executor
+   *
+   * @param op Operation
+   * @return Future completed when the operation has completed
+   */
+  protected static CompletableFuture<Void> runAsync(BlockingOperation op) {
+    return CompletableFuture.runAsync(
+        () -> {
+          try {
+            op.run();
+          } catch (StateException exc) {
+            throw new CompletionException(exc);
+          }
+        },
+        getAsyncExecutor());
+  }
+
+  /**
+   * Wait for a future returned by an asynchronous cursor method
+   *
+   * @param <V> Result type
+   * @param f Future
+   * @return Result of future
+   * @throws StateException If the future completed exceptionally
+   */
+  public static <V> V await(CompletableFuture<V> f) throws StateException {
+    try {
+      return f.join();
+    } catch (CompletionException exc) {
+      Throwable cause = exc.getCause();
+      if (cause instanceof StateException) {
+        throw (StateException) cause;
+      }
+      throw new StateException(cause != null ? cause.getMessage() : exc.getMessage());
+    }
+  }
 
   /**
    * Add an operation for execution in the cursor
@@ -65,6 +154,24 @@ public abstract class StateCursor<T> {
     return completedOperations.get(id).getResultValues();
   }
 
+  /**
+   * Get total size of serialized values read by the cursor
+   *
+   * @return Size in characters
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Get total size of serialized values written by the cursor
+   *
+   * @return Size in characters
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
   /**
    * Commit transaction
    *
@@ -76,6 +183,16 @@ public abstract class StateCursor<T> {
    */
   public abstract void commit() throws StateException;
 
+  /**
+   * Release any resources held by the cursor
+   *
+   * <p>A transaction cursor that will not be committed, for example because an error occurred while
+   * reading from it, should be closed so any resources held for the transaction are released.
+   * Closing a cursor that has been committed or holds no resources has no effect. Any operations
+   * queued in a transaction that has not been committed are discarded.
+   */
+  public void close() {}
+
   /**
    * Execute all operations in cursor
    *
@@ -87,6 +204,26 @@ public abstract class StateCursor<T> {
     operations.clear();
   }
 
+  /**
+   * Execute all operations in cursor asynchronously
+   *
+   * <p>Result values are available from the cursor once the returned future has completed.
+   *
+   * @return Future completed when all operations have completed
+   */
+  public CompletableFuture<Void> executeAsync() {
+    return runAsync(this::execute);
+  }
+
+  /**
+   * Commit transaction asynchronously
+   *
+   * @return Future completed when the transaction has been committed
+   */
+  public CompletableFuture<Void> commitAsync() {
+    return runAsync(this::commit);
+  }
+
   /**
    * Execute all operations in cursor
    *
@@ -111,6 +248,36 @@ public abstract class StateCursor<T> {
     execute();
   }
 
+  /**
+   * Set a value in state with a TTL
+   *
+   * <p>This is a convenience method that will add a single SET operation and call execute.
+   *
+   * @param key Key
+   * @param value Value
+   * @param ttlSeconds TTL in seconds, or 0 if the value should not expire
+   * @throws StateException StateException
+   */
+  public void set(String key, T value, int ttlSeconds) throws StateException {
+    StateOperation<T> o = new StateOperation<T>().set(key, value, ttlSeconds);
+    withOperation(o);
+    execute();
+  }
+
+  /**
+   * Delete a value from state
+   *
+   * <p>This is a convenience method that will add a single DELETE operation and call execute.
+   *
+   * @param key Key
+   * @throws StateException StateException
+   */
+  public void delete(String key) throws StateException {
+    StateOperation<T> o = new StateOperation<T>().delete(key);
+    withOperation(o);
+    execute();
+  }
+
   /**
    * Get a value from state
    *
@@ -127,6 +294,46 @@ public abstract class StateCursor<T> {
     return getResultValueForId(o.getId());
   }
 
+  /**
+   * Get a value from state asynchronously
+   *
+   * <p>This is a convenience method that will add a single GET operation and call executeAsync.
+   *
+   * @param key Key
+   * @return Future completed with the value, or null if the key does not exist
+   */
+  public CompletableFuture<T> getAsync(String key) {
+    StateOperation<T> o = new StateOperation<T>().get(key);
+    try {
+      withOperation(o);
+    } catch (StateException exc) {
+      CompletableFuture<T> ret = new CompletableFuture<>();
+      ret.completeExceptionally(exc);
+      return ret;
+    }
+    return executeAsync().thenApply(v -> o.getResultValue());
+  }
+
+  /**
+   * Set a value in state asynchronously
+   *
+   * <p>This is a convenience method that will add a single SET operation and call executeAsync.
+   *
+   * @param key Key
+   * @param value Value
+   * @return Future completed when the value has been set
+   */
+  public CompletableFuture<Void> setAsync(String key, T value) {
+    try {
+      withOperation(new StateOperation<T>().set(key, value));
+    } catch (StateException exc) {
+      CompletableFuture<Void> ret = new CompletableFuture<>();
+      ret.completeExceptionally(exc);
+      return ret;
+    }
+    return executeAsync();
+  }
+
   /**
    * Get all values from state
    *
@@ -142,6 +349,23 @@ public abstract class StateCursor<T> {
     return getResultValuesForId(o.getId());
   }
 
+  /**
+   * Iterate over all values in state
+   *
+   * <p>Implementations may fetch values incrementally as the iterator is consumed, rather than
+   * loading all values at once as {@link #getAll} does. The default implementation executes a
+   * single GET_ALL operation and iterates over the result.
+   *
+   * <p>Errors that occur while the iterator is being consumed are raised as {@link
+   * RuntimeException}.
+   *
+   * @return Iterator
+   * @throws StateException StateException
+   */
+  public Iterator<T> iterateAll() throws StateException {
+    return getAll().iterator();
+  }
+
   private static Boolean validKey(String k) {
     if ((k == null) || (k.isEmpty())) {
       return false;
@@ -161,9 +385,6 @@ public abstract class StateCursor<T> {
 
     this.stateClass = stateClass;
 
-    mapper = new ObjectMapper();
-    mapper.registerModule(new JodaModule());
-    mapper.configure(
-        com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    mapper = sharedMapper;
   }
 }
@@ -2,6 +2,17 @@ package com.mozilla.secops.state;
 
 /** Interface for state implementations */
 public interface StateInterface {
+  /**
+   * Get kind of entities stored using this interface
+   *
+   * <p>Used to label state metrics.
+   *
+   * @return Kind, or null if the implementation does not separate entities by kind
+   */
+  public default String getKind() {
+    return null;
+  }
+
   /** Notify state implementation no further processing will occur */
   public void done();
 
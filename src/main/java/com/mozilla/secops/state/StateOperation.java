@@ -14,13 +14,15 @@ public class StateOperation<T> {
   private T value;
   private T resultValue;
   private ArrayList<T> resultValues;
+  private int ttlSeconds;
   private OperationType operationType;
 
   /** Available state operation types */
   public enum OperationType {
     GET,
     GET_ALL,
-    SET
+    SET,
+    DELETE
   }
 
   /**
@@ -50,6 +52,17 @@ public class StateOperation<T> {
     return value;
   }
 
+  /**
+   * Get TTL
+   *
+   * <p>Only applicable for SET operations.
+   *
+   * @return TTL in seconds, or 0 if the entry does not expire
+   */
+  public int getTtlSeconds() {
+    return ttlSeconds;
+  }
+
   /**
    * Set result value
    *
@@ -131,9 +144,42 @@ public class StateOperation<T> {
    * @return This for chaining
    */
   public StateOperation<T> set(String key, T value) {
+    return set(key, value, 0);
+  }
+
+  /**
+   * Configure as a set operation with a TTL
+   *
+   * <p>Once the TTL has elapsed the entity is treated as if it does not exist. Whether and when the
+   * underlying storage is reclaimed depends on the state implementation.
+   *
+   * @param key Key for entity to set
+   * @param value Value to associate with entity state
+   * @param ttlSeconds TTL in seconds, or 0 if the entity should not expire
+   * @return This for chaining
+   */
+  public StateOperation<T> set(String key, T value, int ttlSeconds) {
+    if (ttlSeconds < 0) {
+      throw new IllegalArgumentException("ttl must not be negative");
+    }
     operationType = OperationType.SET;
     this.key = key;
     this.value = value;
+    this.ttlSeconds = ttlSeconds;
+    return this;
+  }
+
+  /**
+   * Configure as a delete operation
+   *
+   * <p>Deleting an entity that does not exist is not an error.
+   *
+   * @param key Key for entity to delete
+   * @return This for chaining
+   */
+  public StateOperation<T> delete(String key) {
+    operationType = OperationType.DELETE;
+    this.key = key;
     return this;
   }
 
@@ -27,4 +27,18 @@ public class BenchCidrUtil {
       c.contains("172.16.10.1");
     }
   }
+
+  @BenchmarkOptions(benchmarkRounds = 20, warmupRounds = 5)
+  @Test
+  public void benchmarkContainsInet6() throws Exception {
+    CidrUtil c = new CidrUtil();
+
+    for (int i = 0; i < 2000; i++) {
+      c.add(String.format("2600:%x::/32", i));
+    }
+
+    for (int i = 0; i < 15000; i++) {
+      c.contains("2001:db8::1");
+    }
+  }
 }
@@ -0,0 +1,213 @@
+package com.mozilla.secops;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
+import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TimestampedValue;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestAsyncEnrich {
+  @Rule public final transient TestPipeline pipeline = TestPipeline.create();
+
+  private HttpServer server;
+
+  public TestAsyncEnrich() {}
+
+  /** Reputation lookup against local stand-in iprepd server */
+  private static class ReputationLookup
+      implements AsyncEnrich.Enricher<String, KV<String, Integer>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String spec;
+    private transient IprepdIO.Reader reader;
+
+    ReputationLookup(String spec) {
+      this.spec = spec;
+    }
+
+    @Override
+    public void setup() {
+      reader = IprepdIO.getReader(spec, null);
+    }
+
+    @Override
+    public KV<String, Integer> enrich(String input) {
+      return KV.of(input, reader.getReputation("ip", input));
+    }
+
+    @Override
+    public KV<String, Integer> fallback(String input) {
+      return KV.of(input, -1);
+    }
+  }
+
+  private static class FormatFn extends DoFn<KV<String, Integer>, String> {
+    private static final long serialVersionUID = 1L;
+
+    @ProcessElement
+    public void processElement(ProcessContext c, BoundedWindow w) {
+      c.output(
+          String.format(
+              "%s %d %d %d",
+              c.element().getKey(),
+              c.element().getValue(),
+              c.timestamp().getMillis(),
+              w.maxTimestamp().getMillis()));
+    }
+  }
+
+  private static final AtomicInteger failingCalls = new AtomicInteger();
+
+  /** Lookup that always fails */
+  private static class FailingLookup implements AsyncEnrich.Enricher<String, String> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String enrich(String input) throws Exception {
+      failingCalls.incrementAndGet();
+      throw new Exception("lookup failed");
+    }
+
+    @Override
+    public String fallback(String input) {
+      return input + " fallback";
+    }
+  }
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/type/ip/",
+        x -> {
+          String addr = x.getRequestURI().getPath().replace("/type/ip/", "");
+          if (addr.equals("10.0.0.3")) {
+            // Slow lookup, exceeds the enrichment timeout
+            try {
+              Thread.sleep(3000);
+            } catch (InterruptedException exc) {
+              // Ignored
+            }
+          }
+          if (addr.equals("10.0.0.2")) {
+            x.sendResponseHeaders(404, -1);
+            x.close();
+            return;
+          }
+          byte[] buf =
+              String.format("{\"object\": \"%s\", \"type\": \"ip\", \"reputation\": 20}", addr)
+                  .getBytes(StandardCharsets.UTF_8);
+          x.sendResponseHeaders(200, buf.length);
+          x.getResponseBody().write(buf);
+          x.close();
+        });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void asyncEnrichTest() throws Exception {
+    String spec = String.format("http://127.0.0.1:%d|test", server.getAddress().getPort());
+
+    PCollection<String> input =
+        pipeline
+            .apply(
+                Create.timestamped(
+                    TimestampedValue.of("10.0.0.1", new Instant(0L)),
+                    TimestampedValue.of("10.0.0.2", new Instant(70000L)),
+                    TimestampedValue.of("10.0.0.3", new Instant(130000L))))
+            .apply(Window.<String>into(FixedWindows.of(Duration.standardMinutes(1))));
+
+    PCollection<String> results =
+        input
+            .apply(
+                new AsyncEnrich<String, KV<String, Integer>>(
+                        "test",
+                        new ReputationLookup(spec),
+                        KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()))
+                    .withMaxConcurrency(4)
+                    .withTimeoutMs(500L))
+            .apply(ParDo.of(new FormatFn()));
+
+    PAssert.that(results)
+        .containsInAnyOrder(
+            "10.0.0.1 20 0 59999", "10.0.0.2 100 70000 119999", "10.0.0.3 -1 130000 179999");
+
+    pipeline.run().waitUntilFinish();
+  }
+
+  @Test
+  public void circuitBreakerTest() throws Exception {
+    AsyncEnrich.CircuitBreaker b = new AsyncEnrich.CircuitBreaker(3, 60000L);
+    assertTrue(b.allow());
+    b.failure();
+    b.failure();
+    b.success();
+    b.failure();
+    b.failure();
+    assertTrue(b.allow());
+    b.failure();
+    assertFalse(b.allow());
+
+    b = new AsyncEnrich.CircuitBreaker(1, 0L);
+    b.failure();
+    // Open period elapsed, calls permitted again
+    assertTrue(b.allow());
+  }
+
+  @Test
+  public void circuitBreakerPipelineTest() throws Exception {
+    PCollection<String> input = pipeline.apply(Create.of("a", "b", "c", "d", "e", "f", "g", "h"));
+
+    PCollection<String> results =
+        input.apply(
+            new AsyncEnrich<String, String>(
+                    "test_failing", new FailingLookup(), StringUtf8Coder.of())
+                .withMaxConcurrency(1)
+                .withCircuitBreaker(2, 60000L));
+
+    PAssert.that(results)
+        .containsInAnyOrder(
+            "a fallback",
+            "b fallback",
+            "c fallback",
+            "d fallback",
+            "e fallback",
+            "f fallback",
+            "g fallback",
+            "h fallback");
+
+    failingCalls.set(0);
+    pipeline.run().waitUntilFinish();
+    // Once the breaker opened no further lookups were attempted by the DoFn instance
+    assertTrue(failingCalls.get() < 8);
+  }
+}
@@ -0,0 +1,117 @@
+package com.mozilla.secops;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class TestCanonicalHostResolver {
+  private static final Pattern GOOGLE = Pattern.compile(".*\\.google\\.com$");
+
+  private CanonicalHostResolver.InMemoryResolver getZone() {
+    return new CanonicalHostResolver.InMemoryResolver()
+        .addRecord("rate-limited-proxy-1.google.com", "66.249.1.1")
+        .addRecord("host.example.com", "10.0.0.1", "2001:db8::1")
+        // Reverse record that does not resolve back to the address
+        .addReverseRecord("10.0.0.2", "spoofed.google.com");
+  }
+
+  @Test
+  public void resolveTest() throws Exception {
+    CanonicalHostResolver.InMemoryResolver zone = getZone();
+    ExecutorService ex = Executors.newFixedThreadPool(2);
+    CanonicalHostResolver r = new CanonicalHostResolver(zone, 3600L, 300L, 100L, 5000L, ex);
+
+    assertTrue(r.matches("66.249.1.1", GOOGLE));
+    assertEquals("host.example.com", r.resolve("10.0.0.1"));
+    assertEquals("host.example.com", r.resolve("2001:db8::1"));
+    assertFalse(r.matches("10.0.0.1", GOOGLE));
+    assertNull(r.resolve("10.0.0.2"));
+    assertFalse(r.matches("10.0.0.2", GOOGLE));
+    assertNull(r.resolve("10.0.0.3"));
+    int q = zone.getQueries();
+    assertEquals(5, q);
+
+    // Repeated lookups for positive and negative results are served from cache
+    assertTrue(r.matches("66.249.1.1", GOOGLE));
+    assertNull(r.resolve("10.0.0.2"));
+    assertNull(r.resolve("10.0.0.3"));
+    assertEquals(q, zone.getQueries());
+    ex.shutdown();
+  }
+
+  @Test
+  public void negativeExpiryTest() throws Exception {
+    CanonicalHostResolver.InMemoryResolver zone = getZone();
+    ExecutorService ex = Executors.newFixedThreadPool(2);
+    // Negative results are not cached, positive results are retained
+    CanonicalHostResolver r = new CanonicalHostResolver(zone, 3600L, 0L, 100L, 5000L, ex);
+    assertNull(r.resolve("10.0.0.3"));
+    assertNull(r.resolve("10.0.0.3"));
+    assertEquals(2, zone.getQueries());
+    assertEquals("host.example.com", r.resolve("10.0.0.1"));
+    assertEquals("host.example.com", r.resolve("10.0.0.1"));
+    assertEquals(3, zone.getQueries());
+    ex.shutdown();
+  }
+
+  @Test
+  public void coalesceTest() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    CanonicalHostResolver.InMemoryResolver zone =
+        new CanonicalHostResolver.InMemoryResolver() {
+          @Override
+          public String reverse(java.net.InetAddress addr) {
+            try {
+              latch.await();
+            } catch (InterruptedException exc) {
+              throw new RuntimeException(exc);
+            }
+            return super.reverse(addr);
+          }
+        }.addRecord("rate-limited-proxy-1.google.com", "66.249.1.1");
+    ExecutorService ex = Executors.newFixedThreadPool(4);
+    CanonicalHostResolver r = new CanonicalHostResolver(zone, 3600L, 300L, 100L, 5000L, ex);
+
+    ArrayList<CompletableFuture<Boolean>> f = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      f.add(r.matchesAsync("66.249.1.1", GOOGLE));
+    }
+    latch.countDown();
+    for (CompletableFuture<Boolean> i : f) {
+      assertTrue(i.get());
+    }
+    assertEquals(1, zone.getQueries());
+    ex.shutdown();
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    CanonicalHostResolver.InMemoryResolver zone =
+        new CanonicalHostResolver.InMemoryResolver() {
+          @Override
+          public String reverse(java.net.InetAddress addr) {
+            try {
+              latch.await();
+            } catch (InterruptedException exc) {
+              throw new RuntimeException(exc);
+            }
+            return super.reverse(addr);
+          }
+        }.addRecord("rate-limited-proxy-1.google.com", "66.249.1.1");
+    ExecutorService ex = Executors.newFixedThreadPool(2);
+    CanonicalHostResolver r = new CanonicalHostResolver(zone, 3600L, 300L, 100L, 50L, ex);
+    assertFalse(r.matches("66.249.1.1", GOOGLE));
+    latch.countDown();
+    // The lookup completed in the background and was cached
+    assertTrue(r.matchesAsync("66.249.1.1", GOOGLE).get());
+    assertEquals(1, zone.getQueries());
+    ex.shutdown();
+  }
+}
@@ -0,0 +1,97 @@
+package com.mozilla.secops;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+public class TestCloudProviderSnapshot {
+  private static final String SNAPSHOT = "/testdata/cloudprovider1/cloudprovider1.snapshot";
+
+  @Test
+  public void snapshotLoadTest() throws Exception {
+    CloudProviderSnapshot s = CloudProviderSnapshot.load(SNAPSHOT);
+    assertArrayEquals(
+        new String[] {CloudProviderSnapshot.PROVIDER_GCP, CloudProviderSnapshot.PROVIDER_AWS},
+        s.getProviders());
+    assertEquals(3, s.getPrefixes(CloudProviderSnapshot.PROVIDER_GCP).size());
+    assertEquals(3, s.getPrefixes(CloudProviderSnapshot.PROVIDER_AWS).size());
+    assertEquals(0, s.getPrefixes("unknown").size());
+    assertSame(
+        CloudProviderSnapshot.loadCached(SNAPSHOT), CloudProviderSnapshot.loadCached(SNAPSHOT));
+  }
+
+  @Test
+  public void cidrLoadSnapshotTest() throws Exception {
+    CidrUtil c = new CidrUtil();
+    c.add("192.168.1.0/24");
+    assertFalse(c.contains("35.232.216.1"));
+    assertFalse(c.contains("52.204.100.1"));
+    c.loadCloudProviderSnapshot(SNAPSHOT, Integer.MAX_VALUE, true);
+    assertTrue(c.contains("192.168.1.25"));
+    assertTrue(c.contains("35.232.216.1"));
+    assertTrue(c.contains("52.204.100.1"));
+    assertTrue(c.contains("2600:1f18::1"));
+    assertFalse(c.contains("8.8.8.8"));
+
+    c = new CidrUtil();
+    c.loadCloudProviderSnapshot(
+        SNAPSHOT, Integer.MAX_VALUE, true, CloudProviderSnapshot.PROVIDER_GCP);
+    assertTrue(c.contains("35.232.216.1"));
+    assertTrue(c.contains("2600:1900::1"));
+    assertFalse(c.contains("52.204.100.1"));
+  }
+
+  @Test
+  public void snapshotRoundTripTest() throws Exception {
+    DateTime created = new DateTime(2020, 1, 1, 0, 0, DateTimeZone.UTC);
+    CloudProviderSnapshot s = new CloudProviderSnapshot(created, "v1");
+    s.addSubnets("test", Arrays.asList("10.0.0.0/8", "10.1.2.3/32", "0.0.0.0/0", "2001:db8::/127"));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    s.write(out);
+    CloudProviderSnapshot r =
+        CloudProviderSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(created, r.getCreatedAt());
+    assertEquals("v1", r.getSourceVersion());
+    assertEquals(4, r.getPrefixes("test").size());
+    assertEquals(127, r.getPrefixes("test").get(3).getMasklen());
+
+    InetPrefixTree.Builder<Boolean> b = InetPrefixTree.builder();
+    for (CloudProviderSnapshot.Prefix p : r.getPrefixes("test")) {
+      if (p.getMasklen() > 0) {
+        b.add(p.getAddress(), p.getMasklen(), true);
+      }
+    }
+    InetPrefixTree<Boolean> t = b.build();
+    assertTrue(t.contains("10.200.0.1"));
+    assertTrue(t.contains("2001:db8::1"));
+    assertFalse(t.contains("2001:db8::2"));
+    assertFalse(t.contains("11.0.0.1"));
+  }
+
+  @Test
+  public void snapshotStalenessTest() throws Exception {
+    CloudProviderSnapshot s =
+        new CloudProviderSnapshot(new DateTime(DateTimeZone.UTC).minusDays(45), "");
+    assertTrue(s.isStale(30));
+    assertFalse(s.isStale(60));
+    s.checkStaleness(30, false);
+    try {
+      s.checkStaleness(30, true);
+      fail("stale snapshot should have generated exception");
+    } catch (IOException exc) {
+      assertTrue(exc.getMessage().contains("older than 30 days"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void snapshotInvalidTest() throws Exception {
+    CloudProviderSnapshot.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6}));
+  }
+}
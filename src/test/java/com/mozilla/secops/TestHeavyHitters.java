@@ -0,0 +1,112 @@
+package com.mozilla.secops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestHeavyHitters {
+  public TestHeavyHitters() {}
+
+  @Rule public final transient TestPipeline pipeline = TestPipeline.create();
+
+  @Test
+  public void sketchTest() throws Exception {
+    HeavyHitters.Sketch s = new HeavyHitters.Sketch(64, 4, 5);
+    // Many unique elements, far more than the summary capacity
+    for (int i = 0; i < 10000; i++) {
+      s.add(String.format("10.0.%d.%d", i / 256, i % 256), 1L);
+    }
+    s.add("192.168.1.1", 2000L);
+    s.add("192.168.1.2", 1500L);
+
+    assertEquals(13500L, s.getTotal());
+    assertTrue(s.estimate("192.168.1.1") >= 2000L);
+    assertTrue(s.estimate("192.168.1.2") >= 1500L);
+    assertEquals(2, s.candidates(1000L).size());
+    assertTrue(s.candidates(1000L).containsKey("192.168.1.1"));
+    assertTrue(s.candidates(1000L).containsKey("192.168.1.2"));
+  }
+
+  @Test
+  public void sketchInterleavedTest() throws Exception {
+    HeavyHitters.Sketch s = new HeavyHitters.Sketch(256, 4, 10);
+    // Frequent elements interleaved with unique elements, so counters are repeatedly evicted and
+    // replaced while the frequent elements are incremented
+    for (int i = 0; i < 50000; i++) {
+      s.add(String.format("heavy%d", i % 3), 1L);
+      s.add(String.format("unique%d", i), 1L);
+    }
+
+    assertEquals(100000L, s.getTotal());
+    for (int i = 0; i < 3; i++) {
+      String h = String.format("heavy%d", i);
+      assertTrue(s.estimate(h) >= 16666L);
+      assertTrue(s.candidates(16666L).containsKey(h));
+    }
+    assertEquals(3, s.candidates(16666L).size());
+  }
+
+  @Test
+  public void sketchMergeTest() throws Exception {
+    HeavyHitters.Sketch a = new HeavyHitters.Sketch(64, 4, 3);
+    HeavyHitters.Sketch b = new HeavyHitters.Sketch(64, 4, 3);
+    for (int i = 0; i < 100; i++) {
+      a.add(String.format("a%d", i), 1L);
+      b.add(String.format("b%d", i), 1L);
+    }
+    a.add("heavy", 50L);
+    b.add("heavy", 60L);
+    a.merge(b);
+
+    assertEquals(310L, a.getTotal());
+    assertTrue(a.estimate("heavy") >= 110L);
+    assertTrue(a.candidates(100L).containsKey("heavy"));
+    assertFalse(a.candidates(100L).containsKey("a1"));
+  }
+
+  @Test
+  public void heavyHittersTest() throws Exception {
+    ArrayList<String> in = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      in.add(String.format("10.0.0.%d", i % 250));
+    }
+    for (int i = 0; i < 100; i++) {
+      in.add("192.168.1.1");
+    }
+    PCollection<String> input = pipeline.apply(Create.of(in));
+    PCollection<HeavyHitters.HeavyHittersOutput> results =
+        input.apply(new HeavyHitters(10, 0.10, null));
+
+    PAssert.that(results)
+        .satisfies(
+            x -> {
+              HeavyHitters.HeavyHittersOutput o =
+                  ((Collection<HeavyHitters.HeavyHittersOutput>) x)
+                      .toArray(new HeavyHitters.HeavyHittersOutput[0])[0];
+              assertEquals(600L, (long) o.getTotalCount());
+              assertEquals(60L, (long) o.getThreshold());
+              assertEquals(1, o.getCandidates().size());
+              assertTrue(o.isCandidate("192.168.1.1"));
+              return null;
+            });
+
+    pipeline.run().waitUntilFinish();
+  }
+
+  @Test
+  public void thresholdTest() throws Exception {
+    assertEquals(50L, HeavyHitters.getThreshold(1000L, 0.05, null));
+    assertEquals(100L, HeavyHitters.getThreshold(1000L, 0.05, 100L));
+    assertEquals(100L, HeavyHitters.getThreshold(1000L, null, 100L));
+    assertEquals(1L, HeavyHitters.getThreshold(0L, 0.05, null));
+  }
+}
@@ -0,0 +1,79 @@
+package com.mozilla.secops;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestInetPrefixTree {
+  @Test
+  public void testLongestPrefixMatch() throws Exception {
+    InetPrefixTree<String> t =
+        InetPrefixTree.<String>builder()
+            .add("10.0.0.0/8", "a")
+            .add("10.1.0.0/16", "b")
+            .add("10.1.1.0/24", "c")
+            .add("10.1.1.1/32", "d")
+            .add("0.0.0.0/0", "default")
+            .build();
+    assertEquals(5, t.size());
+
+    assertEquals("a", t.lookup("10.2.0.1"));
+    assertEquals("b", t.lookup("10.1.2.1"));
+    assertEquals("c", t.lookup("10.1.1.2"));
+    assertEquals("d", t.lookup("10.1.1.1"));
+    assertEquals("default", t.lookup("192.168.1.1"));
+    assertEquals("d", t.lookupInet4(0x0a010101));
+    assertEquals("default", t.lookupInet4(0xffffffff));
+
+    // The IPv4 default route does not match IPv6 addresses
+    assertNull(t.lookup("::1"));
+  }
+
+  @Test
+  public void testInet6() throws Exception {
+    InetPrefixTree<Integer> t =
+        InetPrefixTree.<Integer>builder()
+            .add("2600:1f00::/24", 1)
+            .add("2600:1f14:8000::/36", 2)
+            .add("2001:db8::1/128", 3)
+            .add("::1/128", 4)
+            .add("2001:db8:ffff::/48", 5)
+            .add("2001:db8:ffff::/48", 6) // Replaces previous value
+            .build();
+    assertEquals(5, t.size());
+
+    assertEquals(1, (int) t.lookup("2600:1f00::1"));
+    assertEquals(1, (int) t.lookup("2600:1fff:ffff:ffff:ffff:ffff:ffff:ffff"));
+    assertEquals(2, (int) t.lookup("2600:1f14:8000::10"));
+    assertEquals(1, (int) t.lookup("2600:1f14:9000::10"));
+    assertNull(t.lookup("2600:2000::1"));
+    assertEquals(3, (int) t.lookup("2001:db8::1"));
+    assertNull(t.lookup("2001:db8::2"));
+    assertEquals(4, (int) t.lookup("::1"));
+    assertNull(t.lookup("::2"));
+    assertEquals(6, (int) t.lookup("2001:db8:ffff:1::1"));
+    assertEquals(3, (int) t.lookupInet6(0x20010db800000000L, 1L));
+
+    assertNull(t.lookup("127.0.0.1"));
+    assertFalse(t.contains("10.0.0.1"));
+    assertTrue(t.contains("::1"));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    InetPrefixTree<Boolean> t = InetPrefixTree.<Boolean>builder().build();
+    assertEquals(0, t.size());
+    assertFalse(t.contains("10.0.0.1"));
+    assertFalse(t.contains("::1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMask() throws Exception {
+    InetPrefixTree.<Boolean>builder().add("10.0.0.0/33", true);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingMask() throws Exception {
+    InetPrefixTree.<Boolean>builder().add("10.0.0.0", true);
+  }
+}
@@ -4,13 +4,29 @@ import static org.junit.Assert.*;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
 import com.mozilla.secops.alert.Alert;
 import com.mozilla.secops.alert.AlertFormatter;
+import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.StringJoiner;
+import java.util.concurrent.Executors;
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricsFilter;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
@@ -221,4 +237,135 @@ public class TestIprepdIO implements Serializable {
     r = IprepdIO.getReader("http://127.0.0.1:8080|invalid", null);
     assertEquals(100, (int) r.getReputation("ip", "255.255.200.1"));
   }
+
+  private static IprepdIO.ExemptedObject exemption(String obj, String createdBy) {
+    IprepdIO.ExemptedObject ret = new IprepdIO.ExemptedObject();
+    ret.setObject(obj);
+    ret.setCreatedBy(createdBy);
+    return ret;
+  }
+
+  @Test
+  public void iprepdIOTestExemptionSnapshot() throws Exception {
+    ArrayList<IprepdIO.ExemptedObject> entries = new ArrayList<>();
+    entries.add(exemption("192.168.1.4", "a"));
+    entries.add(exemption("10.0.0.0/8", "b"));
+    entries.add(exemption("2001:db8::/32", "c"));
+    entries.add(exemption("not an address", "d"));
+
+    IprepdIO.Exemptions e = new IprepdIO.Exemptions(entries, true);
+    assertTrue(e.isComplete());
+    assertEquals("a", e.lookup("192.168.1.4").getCreatedBy());
+    assertNull(e.lookup("192.168.1.5"));
+    assertEquals("b", e.lookup("10.1.2.3").getCreatedBy());
+    assertEquals("b", e.lookup("10.0.0.0/8").getCreatedBy());
+    assertEquals("c", e.lookup("2001:db8::1").getCreatedBy());
+    assertNull(e.lookup("2001:db9::1"));
+    assertEquals("d", e.lookup("not an address").getCreatedBy());
+    assertNull(e.lookup("also not an address"));
+
+    entries = new ArrayList<>();
+    entries.add(exemption("riker@mozilla.com", "a"));
+    entries.add(new IprepdIO.ExemptedObject());
+    e = new IprepdIO.Exemptions(entries, false);
+    assertFalse(e.isComplete());
+    assertEquals("a", e.lookup("riker@mozilla.com").getCreatedBy());
+    assertNull(e.lookup("10.0.0.1"));
+  }
+
+  private static String readAlert() throws IOException {
+    try (InputStream in = TestIprepdIO.class.getResourceAsStream("/testdata/iprepdio1.txt")) {
+      return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8).trim();
+    }
+  }
+
+  @Test
+  public void iprepdIOTestWriteBatched() throws Exception {
+    deleteReputation("ip", "99.99.99.1");
+    deleteReputation("email", "testiprepdio1@mozilla.com");
+
+    IprepdIO.Reader r = IprepdIO.getReader("http://127.0.0.1:8080|test", null);
+
+    p.apply(Create.of(readAlert()))
+        .apply(IprepdIO.writeSpecs(new String[] {"http://127.0.0.1:8080|test"}, null));
+    PipelineResult result = p.run();
+    result.waitUntilFinish();
+
+    assertEquals(50, (int) r.getReputation("ip", "99.99.99.1"));
+    assertEquals(0, (int) r.getReputation("email", "testiprepdio1@mozilla.com"));
+    assertEquals(2L, getCounter(result, IprepdIO.VIOLATION_SUBMITTED_METRIC));
+    assertEquals(0L, getCounter(result, IprepdIO.VIOLATION_FAILED_METRIC));
+    // Both violations should have been accepted using multi-violation requests
+    assertEquals(0L, getCounter(result, IprepdIO.VIOLATION_INDIVIDUAL_METRIC));
+    assertTrue(
+        IprepdIO.WriteFn.multiSupported("http://127.0.0.1:8080", System.currentTimeMillis()));
+  }
+
+  @Test
+  public void iprepdIOTestWriteMultiUnsupported() throws Exception {
+    // Stand-in for an iprepd instance that only provides the single violation endpoint
+    List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/violations/type/",
+        ex -> {
+          String[] parts = ex.getRequestURI().getPath().split("/");
+          int status = 404;
+          if (parts.length == 5 && !ex.getRequestURI().getPath().endsWith("/")) {
+            requests.add(parts[4]);
+            status = 200;
+          }
+          ex.sendResponseHeaders(status, -1);
+          ex.close();
+        });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    String url = String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+
+    try {
+      // Each alert results in an ip and an email violation, submitting the same alert twice
+      // results in duplicate violations that will be dropped if processed in the same bundle
+      String alert = readAlert();
+      p.apply(Create.of(Arrays.asList(alert, alert)))
+          .apply(IprepdIO.writeSpecs(new String[] {url + "|test"}, null));
+      PipelineResult result = p.run();
+      result.waitUntilFinish();
+
+      assertEquals(
+          new HashSet<>(Arrays.asList("99.99.99.1", "testiprepdio1@mozilla.com")),
+          new HashSet<>(requests));
+
+      long submitted = getCounter(result, IprepdIO.VIOLATION_SUBMITTED_METRIC);
+      long deduplicated = getCounter(result, IprepdIO.VIOLATION_DEDUPLICATED_METRIC);
+      assertEquals(4L, getCounter(result, IprepdIO.VIOLATION_WRITES_METRIC));
+      assertEquals(0L, getCounter(result, IprepdIO.VIOLATION_FAILED_METRIC));
+      assertEquals(requests.size(), submitted);
+      assertEquals(4L, submitted + deduplicated);
+      assertEquals(submitted, getCounter(result, IprepdIO.VIOLATION_INDIVIDUAL_METRIC));
+
+      // The instance is marked as not supporting multi-violation requests until the mark expires
+      long now = System.currentTimeMillis();
+      assertFalse(IprepdIO.WriteFn.multiSupported(url, now));
+      assertTrue(
+          IprepdIO.WriteFn.multiSupported(url, now + IprepdIO.WRITER_MULTI_UNSUPPORTED_RETRY_MS));
+      assertTrue(IprepdIO.WriteFn.multiSupported(url, now));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static long getCounter(PipelineResult result, String name) {
+    long ret = 0L;
+    for (MetricResult<Long> x :
+        result
+            .metrics()
+            .queryMetrics(
+                MetricsFilter.builder()
+                    .addNameFilter(MetricNameFilter.named(IprepdIO.METRICS_NAMESPACE, name))
+                    .build())
+            .getCounters()) {
+      ret += x.getCommitted();
+    }
+    return ret;
+  }
 }
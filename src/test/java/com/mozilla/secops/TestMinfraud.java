@@ -0,0 +1,151 @@
+package com.mozilla.secops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.io.ByteStreams;
+import com.maxmind.minfraud.WebServiceClient;
+import com.maxmind.minfraud.response.InsightsResponse;
+import com.mozilla.secops.state.MemoryStateInterface;
+import com.mozilla.secops.state.State;
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMinfraud {
+  private HttpServer server;
+  private AtomicInteger requests;
+  private CountDownLatch release;
+
+  public TestMinfraud() {}
+
+  @Before
+  public void startServer() throws Exception {
+    Minfraud.cacheClear();
+    Minfraud.setCacheOnly(false);
+    requests = new AtomicInteger();
+    release = new CountDownLatch(0);
+    byte[] normal =
+        ByteStreams.toByteArray(
+            TestMinfraud.class.getResourceAsStream("/testdata/minfraud/insights_normal1.json"));
+
+    // Local stand-in for the minFraud insights endpoint
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/minfraud/v2.0/insights",
+        x -> {
+          requests.incrementAndGet();
+          try {
+            release.await();
+          } catch (InterruptedException exc) {
+            // Ignored
+          }
+          String body = new String(ByteStreams.toByteArray(x.getRequestBody()));
+          if (body.contains("10.0.0.1")) {
+            x.sendResponseHeaders(500, -1);
+            x.close();
+            return;
+          }
+          x.getResponseHeaders()
+              .add(
+                  "Content-Type",
+                  "application/vnd.maxmind.com-minfraud-insights+json; charset=UTF-8; version=2.0");
+          x.sendResponseHeaders(200, normal.length);
+          x.getResponseBody().write(normal);
+          x.close();
+        });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+    Minfraud.cacheClear();
+  }
+
+  private Minfraud getMinfraud() {
+    return new Minfraud(
+        new WebServiceClient.Builder(1, "test")
+            .host("127.0.0.1")
+            .port(server.getAddress().getPort())
+            .disableHttps()
+            .build());
+  }
+
+  @Test
+  public void minfraudCacheTest() throws Exception {
+    Minfraud mf = getMinfraud();
+
+    InsightsResponse r = mf.getInsights("216.160.83.56", null);
+    assertNotNull(r);
+    assertEquals(1, requests.get());
+    assertSame(r, mf.getInsights("216.160.83.56", null));
+    assertSame(r, getMinfraud().getInsights("216.160.83.56", null));
+    assertEquals(1, requests.get());
+
+    // Different request inputs are cached separately
+    assertNotNull(mf.getInsights("216.160.83.56", "test@example.com"));
+    assertEquals(2, requests.get());
+
+    // Errors are not cached
+    assertNull(mf.getInsights("10.0.0.1", null));
+    assertNull(mf.getInsights("10.0.0.1", null));
+    assertEquals(4, requests.get());
+  }
+
+  @Test
+  public void minfraudCoalesceTest() throws Exception {
+    release = new CountDownLatch(1);
+    ArrayList<CompletableFuture<InsightsResponse>> f = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Minfraud mf = getMinfraud();
+      f.add(CompletableFuture.supplyAsync(() -> mf.getInsights("216.160.83.57", null)));
+    }
+    Thread.sleep(500);
+    release.countDown();
+    InsightsResponse first = f.get(0).get();
+    assertNotNull(first);
+    for (CompletableFuture<InsightsResponse> i : f) {
+      assertSame(first, i.get());
+    }
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void minfraudForcedTest() throws Exception {
+    Minfraud.cacheInsightsResource("216.160.83.58", "/testdata/minfraud/insights_hosting1.json");
+    Minfraud mf = getMinfraud();
+    assertNotNull(mf.getInsights("216.160.83.58", "test@example.com"));
+    assertEquals(0, requests.get());
+  }
+
+  @Test
+  public void minfraudPersistentCacheTest() throws Exception {
+    State state =
+        new State(new MemoryStateInterface(Minfraud.PERSISTENT_CACHE_KIND, "minfraudtest"));
+    state.initialize();
+
+    Minfraud mf = getMinfraud();
+    mf.setPersistentCache(state);
+    assertNotNull(mf.getInsights("216.160.83.59", null));
+    assertEquals(1, requests.get());
+
+    // With the in-memory cache cleared the response is read from the persistent cache
+    Minfraud.cacheClear();
+    mf = getMinfraud();
+    mf.setPersistentCache(state);
+    assertNotNull(mf.getInsights("216.160.83.59", null));
+    assertEquals(1, requests.get());
+    state.done();
+  }
+}
@@ -20,19 +20,30 @@ import com.mozilla.secops.input.Input;
 import com.mozilla.secops.parser.Event;
 import com.mozilla.secops.parser.Normalized;
 import com.mozilla.secops.parser.ParserTest;
+import com.mozilla.secops.state.ConflictingStateInterface;
 import com.mozilla.secops.state.DatastoreStateInterface;
+import com.mozilla.secops.state.InstrumentedStateInterface;
+import com.mozilla.secops.state.MemoryStateInterface;
 import com.mozilla.secops.state.State;
 import com.mozilla.secops.state.StateCursor;
+import com.mozilla.secops.state.StateInterface;
 import com.mozilla.secops.window.GlobalTriggers;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricsFilter;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.GroupByKey;
+import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.TypeDescriptors;
 import org.joda.time.DateTime;
 import org.junit.Rule;
 import org.junit.Test;
@@ -91,6 +102,7 @@ public class TestAuthProfile {
     ret.setMaxmindCityDbPath(ParserTest.TEST_GEOIP_DBPATH);
     ret.setContactEmail("test@localhost");
     ret.setDocLink("https://localhost");
+    ret.setCloudProviderSnapshot("/testdata/cloudprovider1/cloudprovider1.snapshot");
     return ret;
   }
 
@@ -271,6 +283,140 @@ public class TestAuthProfile {
     p.run().waitUntilFinish();
   }
 
+  /** StateAnalyze using memory state, optionally forcing transaction conflicts */
+  private static class MemoryStateAnalyze extends AuthProfile.StateAnalyze {
+    private static final long serialVersionUID = 1L;
+
+    private static final AtomicInteger conflicts = new AtomicInteger();
+
+    private final String namespace;
+    private final boolean conflict;
+
+    MemoryStateAnalyze(AuthProfile.AuthProfileOptions options, String namespace, boolean conflict) {
+      super(options);
+      this.namespace = namespace;
+      this.conflict = conflict;
+    }
+
+    @Override
+    StateInterface newStateInterface(String kind) {
+      if (conflict) {
+        return new ConflictingStateInterface(kind, namespace, conflicts);
+      }
+      return new MemoryStateInterface(kind, namespace);
+    }
+  }
+
+  private static AuthStateModel getMemoryState(String namespace, String identity) throws Exception {
+    State state = new State(new MemoryStateInterface("authprofile", namespace));
+    state.initialize();
+    StateCursor<AuthStateModel> c = state.newCursor(AuthStateModel.class, true);
+    AuthStateModel ret = AuthStateModel.get(identity, c, new PruningStrategyEntryAge());
+    state.done();
+    return ret;
+  }
+
+  @Test
+  public void analyzeTransactionRetryTest() throws Exception {
+    AuthProfile.AuthProfileOptions options = getTestOptions();
+    for (String namespace : new String[] {"testauthprofileretry", "testauthprofileconflict"}) {
+      State state = new State(new MemoryStateInterface("authprofile", namespace));
+      state.initialize();
+      state.deleteAll();
+      state.done();
+    }
+    // Only the first transaction commit in the conflicting branch will fail
+    MemoryStateAnalyze.conflicts.set(1);
+
+    PCollection<KV<String, Iterable<Event>>> events =
+        TestUtil.getTestInput("/testdata/authprof_buffer1.txt", p)
+            .apply(new AuthProfile.Parse(options))
+            .apply(ParDo.of(new AuthProfile.ExtractIdentity(options)))
+            .apply(new GlobalTriggers<KV<String, Event>>(60))
+            .apply(GroupByKey.<String, Event>create());
+
+    PCollection<String> res =
+        events
+            .apply(
+                "analyze", ParDo.of(new MemoryStateAnalyze(options, "testauthprofileretry", false)))
+            .apply(
+                "describe",
+                MapElements.into(TypeDescriptors.strings()).via(TestAuthProfile::describe));
+    PCollection<String> resConflict =
+        events
+            .apply(
+                "analyze conflict",
+                ParDo.of(new MemoryStateAnalyze(options, "testauthprofileconflict", true)))
+            .apply(
+                "describe conflict",
+                MapElements.into(TypeDescriptors.strings()).via(TestAuthProfile::describe));
+
+    // The replayed events must produce the same alerts as an analysis without a conflict
+    String[] expected =
+        new String[] {
+          "WARNING unknown_ip_minfraud_geo_failure authentication event observed riker "
+              + "[wriker@mozilla.com] to emit-bastion, new source 216.160.83.56 [Milton/US]",
+          "INFORMATIONAL known_ip authentication event observed riker "
+              + "[wriker@mozilla.com] to emit-bastion, 216.160.83.56 [Milton/US]"
+        };
+    PAssert.that(res).containsInAnyOrder(expected);
+    PAssert.that(resConflict).containsInAnyOrder(expected);
+
+    PipelineResult result = p.run();
+    result.waitUntilFinish();
+
+    long retries = 0;
+    for (MetricResult<Long> x :
+        result
+            .metrics()
+            .queryMetrics(
+                MetricsFilter.builder()
+                    .addNameFilter(
+                        MetricNameFilter.named(
+                            InstrumentedStateInterface.METRICS_NAMESPACE,
+                            "authprofile_transaction_retries"))
+                    .build())
+            .getCounters()) {
+      retries += x.getAttempted();
+    }
+    assertEquals(1L, retries);
+    assertTrue(MemoryStateAnalyze.conflicts.get() <= 0);
+
+    AuthStateModel sm = getMemoryState("testauthprofileretry", "wriker@mozilla.com");
+    AuthStateModel smConflict = getMemoryState("testauthprofileconflict", "wriker@mozilla.com");
+    assertNotNull(sm);
+    assertNotNull(smConflict);
+    assertEquals(sm.getSubject(), smConflict.getSubject());
+    assertEquals(1, sm.getEntries().size());
+    assertEquals(sm.getEntries().keySet(), smConflict.getEntries().keySet());
+    for (String key : sm.getEntries().keySet()) {
+      AuthStateModel.ModelEntry e = sm.getEntries().get(key);
+      AuthStateModel.ModelEntry eConflict = smConflict.getEntries().get(key);
+      assertEquals(e.getLatitude(), eConflict.getLatitude());
+      assertEquals(e.getLongitude(), eConflict.getLongitude());
+    }
+  }
+
+  @Test
+  public void minfraudPersistentCacheMemcachedTest() throws Exception {
+    AuthProfile.AuthProfileOptions options = getTestOptions();
+    options.setMemcachedHost("127.0.0.1");
+    options.setMinfraudPersistentCache(true);
+    try {
+      new AuthProfile.StateAnalyze(options);
+      fail("persistent cache with memcached state should be rejected");
+    } catch (IllegalArgumentException exc) {
+      assertEquals(
+          "minfraud persistent cache is not supported with memcached state", exc.getMessage());
+    }
+  }
+
+  private static String describe(Alert a) {
+    return String.format(
+        "%s %s %s",
+        a.getSeverity(), a.getMetadataValue(AlertMeta.Key.STATE_ACTION_TYPE), a.getSummary());
+  }
+
   @Test
   public void analyzeMixedTest() throws Exception {
     testEnv();
@@ -6,9 +6,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.mozilla.secops.state.DatastoreStateInterface;
+import com.mozilla.secops.state.MemoryStateInterface;
 import com.mozilla.secops.state.State;
 import com.mozilla.secops.state.StateCursor;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import org.joda.time.DateTime;
@@ -48,6 +53,156 @@ public class TestAuthStateModel {
     assertEquals(4L, ret.get(3).getValue().getTimestamp().getMillis());
   }
 
+  @Test
+  public void authStateModelOrderingTest() throws Exception {
+    AuthStateModel sm = new AuthStateModel("riker");
+    for (int i = 0; i < 10; i++) {
+      assertTrue(sm.updateEntry(String.format("127.0.0.%d", i), new DateTime(i * 1000L), 1.0, 1.0));
+    }
+    // Updating an existing entry moves it to the end of the ordering
+    assertFalse(sm.updateEntry("127.0.0.0", new DateTime(20000L), 2.0, 2.0));
+    ArrayList<AbstractMap.SimpleEntry<String, AuthStateModel.ModelEntry>> ret =
+        sm.timeSortedEntries();
+    assertEquals(10, ret.size());
+    assertEquals("127.0.0.1", ret.get(0).getKey());
+    assertEquals("127.0.0.0", ret.get(9).getKey());
+
+    AuthStateModel.GeoVelocityResponse g = sm.geoVelocityAnalyzeLatest(1000.0);
+    assertEquals("127.0.0.9", g.getPreviousSource());
+    assertEquals("127.0.0.0", g.getCurrentSource());
+    assertEquals(11L, (long) g.getTimeDifference());
+
+    assertEquals(2, sm.removeEntriesBefore(new DateTime(3000L)));
+    assertNull(sm.getEntries().get("127.0.0.2"));
+    assertTrue(sm.removeEntry("127.0.0.5"));
+    assertFalse(sm.removeEntry("127.0.0.5"));
+    assertEquals(4, sm.retainLatest(3));
+    ret = sm.timeSortedEntries();
+    assertEquals(3, ret.size());
+    assertEquals("127.0.0.8", ret.get(0).getKey());
+    assertEquals("127.0.0.9", ret.get(1).getKey());
+    assertEquals("127.0.0.0", ret.get(2).getKey());
+  }
+
+  @Test
+  public void authStateModelMaxEntriesTest() throws Exception {
+    AuthStateModel sm = new AuthStateModel("riker");
+    DateTime now = new DateTime();
+    for (int i = 0; i < 20; i++) {
+      sm.updateEntry(String.format("10.0.0.%d", i), now.minusMinutes(20 - i), 1.0, 1.0);
+    }
+    PruningStrategyEntryAge ps = new PruningStrategyEntryAge();
+    ps.setMaxEntries(5);
+    ps.pruneState(sm);
+    assertEquals(5, sm.getEntries().size());
+    assertEquals("10.0.0.15", sm.timeSortedEntries().get(0).getKey());
+
+    new PruningStrategyLatest().pruneState(sm);
+    assertEquals(1, sm.getEntries().size());
+    assertNotNull(sm.getEntries().get("10.0.0.19"));
+  }
+
+  @Test
+  public void authStateModelEncodingTest() throws Exception {
+    State s = new State(new MemoryStateInterface("authprofile", "teststatemodel"));
+    s.initialize();
+    s.deleteAll();
+
+    AuthStateModel sm = new AuthStateModel("riker");
+    sm.updateEntry("127.0.0.1", new DateTime(1000L), 1.5, -2.5);
+    sm.updateEntry("127.0.0.2", new DateTime(500L), null, null);
+    AuthStateModel.ModelEntryUpdate u = new AuthStateModel.ModelEntryUpdate();
+    u.ipAddress = "127.0.0.3";
+    u.timestamp = new DateTime(2000L);
+    u.userAgent = "Mozilla/5.0";
+    sm.updateEntry(u);
+    StateCursor<AuthStateModel> c = s.newCursor(AuthStateModel.class, true);
+    // Persist without pruning
+    sm.set(c, m -> {});
+
+    sm = AuthStateModel.fromBytes(sm.toBytes());
+    c = s.newCursor(AuthStateModel.class, false);
+    for (AuthStateModel m : new AuthStateModel[] {sm, c.get("riker")}) {
+      assertEquals("riker", m.getSubject());
+      ArrayList<AbstractMap.SimpleEntry<String, AuthStateModel.ModelEntry>> ret =
+          m.timeSortedEntries();
+      assertEquals(3, ret.size());
+      assertEquals("127.0.0.2", ret.get(0).getKey());
+      assertEquals(500L, ret.get(0).getValue().getTimestamp().getMillis());
+      assertNull(ret.get(0).getValue().getLatitude());
+      assertEquals(1.5, ret.get(1).getValue().getLatitude(), 0.0);
+      assertEquals(-2.5, ret.get(1).getValue().getLongitude(), 0.0);
+      assertEquals("Mozilla/5.0", ret.get(2).getValue().getUserAgent());
+      assertNull(ret.get(2).getValue().getLatitude());
+    }
+    s.done();
+  }
+
+  @Test
+  public void authStateModelOversizedUserAgentTest() throws Exception {
+    // User agents are attacker controlled, and must encode regardless of length
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < 40000; i++) {
+      b.append("\u00e9a");
+    }
+    String ua = b.toString();
+    AuthStateModel.ModelEntryUpdate u = new AuthStateModel.ModelEntryUpdate();
+    u.ipAddress = "127.0.0.1";
+    u.timestamp = new DateTime(1000L);
+    u.userAgent = ua;
+    AuthStateModel sm = new AuthStateModel("riker");
+    sm.updateEntry(u);
+
+    sm = AuthStateModel.fromBytes(sm.toBytes());
+    assertEquals(ua, sm.getEntries().get("127.0.0.1").getUserAgent());
+  }
+
+  @Test
+  public void authStateModelVersion1DecodeTest() throws Exception {
+    // Models written using the previous encoding with modified UTF-8 strings can still be read
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeByte(1);
+    out.writeBoolean(true);
+    out.writeUTF("riker");
+    out.writeByte(2); // One entry, zig-zag encoded
+    out.writeUTF("127.0.0.1");
+    out.writeByte(4); // Timestamp 2, zig-zag encoded
+    out.writeByte(4); // User agent flag
+    out.writeUTF("ua");
+    out.flush();
+
+    AuthStateModel sm = AuthStateModel.fromBytes(buf.toByteArray());
+    assertEquals("riker", sm.getSubject());
+    assertEquals("ua", sm.getEntries().get("127.0.0.1").getUserAgent());
+    assertEquals(2L, sm.getEntries().get("127.0.0.1").getTimestamp().getMillis());
+  }
+
+  @Test
+  public void authStateModelObjectFormTest() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.registerModule(new JodaModule());
+    AuthStateModel sm =
+        mapper.readValue(
+            "{\"subject\":\"riker\",\"entries\":{"
+                + "\"127.0.0.1\":{\"latitude\":1.0,\"longitude\":2.0,"
+                + "\"timestamp\":\"1970-01-01T00:00:02.000Z\",\"useragent\":null},"
+                + "\"127.0.0.2\":{\"latitude\":3.0,\"longitude\":4.0,"
+                + "\"timestamp\":\"1970-01-01T00:00:01.000Z\",\"useragent\":\"ua\"}}}",
+            AuthStateModel.class);
+    assertEquals("riker", sm.getSubject());
+    ArrayList<AbstractMap.SimpleEntry<String, AuthStateModel.ModelEntry>> ret =
+        sm.timeSortedEntries();
+    assertEquals(2, ret.size());
+    assertEquals("127.0.0.2", ret.get(0).getKey());
+    assertEquals("ua", ret.get(0).getValue().getUserAgent());
+    assertEquals("127.0.0.1", ret.get(1).getKey());
+    assertEquals(2000L, ret.get(1).getValue().getTimestamp().getMillis());
+
+    // Models are written in the binary form
+    assertTrue(mapper.writeValueAsString(sm).startsWith("\""));
+  }
+
   @Test
   public void authStateModelTest() throws Exception {
     testEnv();
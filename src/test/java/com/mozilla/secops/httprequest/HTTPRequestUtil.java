@@ -7,6 +7,10 @@ import org.apache.beam.sdk.testing.TestStream;
 
 /** Various test utilities for HTTPRequest */
 public class HTTPRequestUtil {
+  /** Cloud provider snapshot used by tests in place of the live provider sources */
+  public static final String TEST_CLOUDPROVIDER_SNAPSHOT =
+      "/testdata/cloudprovider1/cloudprovider1.snapshot";
+
   /**
    * Return an input stream wired with {@link TestStream}
    *
@@ -30,6 +30,7 @@ public class TestEndpointAbuse1 {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
     ret.setMonitoredResourceIndicator("test");
     ret.setEnableEndpointAbuseAnalysis(true);
@@ -0,0 +1,81 @@
+package com.mozilla.secops.httprequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.beam.sdk.util.SerializableUtils;
+import org.junit.Test;
+
+public class TestEndpointSequenceTracker {
+  public TestEndpointSequenceTracker() {}
+
+  @Test
+  public void trackerInOrderTest() throws Exception {
+    EndpointSequenceTracker t = new EndpointSequenceTracker(new long[] {1000L});
+    t.addFirst(0, 0L);
+    t.addSecond(0, 500L, "a");
+    t.addSecond(0, 1500L, "b"); // Outside delta
+    t.addFirst(0, 2000L);
+    t.addSecond(0, 2999L, "c");
+    assertEquals(2, t.getCount(0));
+    assertEquals(2999L, (long) t.getLastViolationTimestamp(0));
+    assertEquals("c", t.getLastViolationUserAgent(0));
+  }
+
+  @Test
+  public void trackerOutOfOrderTest() throws Exception {
+    // The same requests as the in order test, arriving in a different order
+    EndpointSequenceTracker t = new EndpointSequenceTracker(new long[] {1000L});
+    t.addSecond(0, 2999L, "c");
+    t.addSecond(0, 1500L, "b");
+    t.addSecond(0, 500L, "a");
+    t.addFirst(0, 2000L);
+    t.addFirst(0, 0L);
+    assertEquals(2, t.getCount(0));
+    assertEquals(2999L, (long) t.getLastViolationTimestamp(0));
+    assertEquals("c", t.getLastViolationUserAgent(0));
+  }
+
+  @Test
+  public void trackerLatestFirstTest() throws Exception {
+    // A second endpoint request is only compared against the most recent preceding first
+    // endpoint request
+    EndpointSequenceTracker t = new EndpointSequenceTracker(new long[] {100L, 1000L});
+    t.addFirst(0, 0L);
+    t.addFirst(0, 50L);
+    t.addSecond(0, 140L, null);
+    t.addSecond(0, 160L, null);
+    assertEquals(1, t.getCount(0));
+    assertEquals("", t.getLastViolationUserAgent(0));
+    assertEquals(0, t.getCount(1));
+    assertNull(t.getLastViolationTimestamp(1));
+  }
+
+  @Test
+  public void trackerBoundedTest() throws Exception {
+    EndpointSequenceTracker t = new EndpointSequenceTracker(new long[] {10L});
+    for (int i = 0; i < 10000; i++) {
+      t.addFirst(0, i * 100L);
+      t.addSecond(0, i * 100L + 5L, "x");
+      t.addSecond(0, i * 100L + 50L, "x");
+    }
+    assertEquals(10000, t.getCount(0));
+    assertEquals(999905L, (long) t.getLastViolationTimestamp(0));
+  }
+
+  @Test
+  public void trackerEqualityTest() throws Exception {
+    EndpointSequenceTracker a = new EndpointSequenceTracker(new long[] {1000L});
+    EndpointSequenceTracker b = new EndpointSequenceTracker(new long[] {1000L});
+    assertEquals(a, b);
+    a.addFirst(0, 0L);
+    a.addSecond(0, 500L, "a");
+    assertNotEquals(a, b);
+    b.addFirst(0, 0L);
+    b.addSecond(0, 500L, "a");
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(a, SerializableUtils.clone(a));
+  }
+}
@@ -27,6 +27,7 @@ public class TestErrorRate1 {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setMonitoredResourceIndicator("test");
     ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
     ret.setGenerateConfigurationTicksInterval(1);
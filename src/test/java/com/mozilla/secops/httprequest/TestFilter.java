@@ -20,6 +20,7 @@ public class TestFilter {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
     ret.setIgnoreInternalRequests(false); // Tests use internal subnets
     ret.setMonitoredResourceIndicator("test");
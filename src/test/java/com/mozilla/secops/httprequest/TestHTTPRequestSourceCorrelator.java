@@ -28,6 +28,7 @@ public class TestHTTPRequestSourceCorrelator {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setUseEventTimestamp(true);
     ret.setAnalysisThresholdModifier(1.0);
     ret.setRequiredMinimumAverage(1.0);
@@ -54,6 +54,7 @@ public class TestHardLimit1 {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
     ret.setHardLimitRequestCount(10L);
     ret.setMonitoredResourceIndicator("test");
@@ -153,6 +154,7 @@ public class TestHardLimit1 {
         state.newCursor(IprepdIO.ExemptedObject.class, false);
     cur.set("192.168.1.4", wobj);
     state.done();
+    IprepdIO.clearExemptionSnapshots();
 
     HTTPRequest.HTTPRequestOptions options = getTestOptions();
     options.setOutputIprepdEnableDatastoreExemptions(true);
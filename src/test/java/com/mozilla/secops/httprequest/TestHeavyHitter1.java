@@ -0,0 +1,74 @@
+package com.mozilla.secops.httprequest;
+
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.mozilla.secops.alert.Alert;
+import com.mozilla.secops.alert.AlertMeta;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestHeavyHitter1 {
+  public TestHeavyHitter1() {}
+
+  @Rule public final transient TestPipeline p = TestPipeline.create();
+
+  private HTTPRequest.HTTPRequestOptions getTestOptions() {
+    HTTPRequest.HTTPRequestOptions ret =
+        PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
+    ret.setMonitoredResourceIndicator("test");
+    ret.setEnableHeavyHitterAnalysis(true);
+    ret.setHeavyHitterRelativeThreshold(0.15);
+    ret.setHeavyHitterAbsoluteThreshold(11L);
+    ret.setIgnoreInternalRequests(false); // Tests use internal subnets
+    ret.setIgnoreCloudProviderRequests(false);
+    ret.setInputFile(new String[] {"./target/test-classes/testdata/httpreq_hardlimit1.txt"});
+    return ret;
+  }
+
+  @Test
+  public void heavyHitterTest() throws Exception {
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+
+    PCollection<Alert> results =
+        HTTPRequest.expandInputMap(
+            p, HTTPRequest.readInput(p, HTTPRequest.getInput(p, options), options), options);
+
+    PCollection<Long> resultCount =
+        results.apply(Combine.globally(Count.<Alert>combineFn()).withoutDefaults());
+    PAssert.thatSingleton(resultCount).isEqualTo(3L);
+
+    PAssert.that(results)
+        .satisfies(
+            i -> {
+              for (Alert a : i) {
+                assertThat(
+                    a.getMetadataValue(AlertMeta.Key.SOURCEADDRESS),
+                    anyOf(equalTo("192.168.1.2"), equalTo("192.168.1.4"), equalTo("192.168.1.5")));
+                String summary =
+                    String.format(
+                        "test httprequest heavy_hitter %s 11",
+                        a.getMetadataValue(AlertMeta.Key.SOURCEADDRESS));
+                assertEquals(summary, a.getSummary());
+                assertEquals("heavy_hitter", a.getSubcategory());
+                assertEquals(11L, Long.parseLong(a.getMetadataValue(AlertMeta.Key.COUNT)));
+                assertEquals(
+                    11L, Long.parseLong(a.getMetadataValue(AlertMeta.Key.REQUEST_THRESHOLD)));
+                assertEquals(
+                    "1970-01-01T00:00:59.999Z", a.getMetadataValue(AlertMeta.Key.WINDOW_TIMESTAMP));
+              }
+              return null;
+            });
+
+    p.run().waitUntilFinish();
+  }
+}
@@ -29,6 +29,7 @@ public class TestMulti1 implements Serializable {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setGenerateConfigurationTicksInterval(1);
     ret.setGenerateConfigurationTicksMaximum(5L);
     return ret;
@@ -0,0 +1,112 @@
+package com.mozilla.secops.httprequest;
+
+import static org.junit.Assert.assertEquals;
+
+import com.mozilla.secops.alert.Alert;
+import com.mozilla.secops.alert.AlertFormatter;
+import com.mozilla.secops.alert.AlertMeta;
+import java.io.Serializable;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestMultiShared1 implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public TestMultiShared1() {}
+
+  @Rule public final transient TestPipeline p = TestPipeline.create();
+
+  private HTTPRequest.HTTPRequestOptions getTestOptions() {
+    HTTPRequest.HTTPRequestOptions ret =
+        PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
+    ret.setGenerateConfigurationTicksInterval(1);
+    ret.setGenerateConfigurationTicksMaximum(5L);
+    return ret;
+  }
+
+  private PCollection<Alert> runShared(HTTPRequest.HTTPRequestOptions options) throws Exception {
+    options.setPipelineMultimodeConfiguration("/testdata/httpreq_multi_shared1.json");
+    return HTTPRequest.expandInputMap(
+            p, HTTPRequest.readInput(p, HTTPRequest.getInput(p, options), options), options)
+        .apply(ParDo.of(new AlertFormatter(options)));
+  }
+
+  @Test
+  public void testMultiShared1() throws Exception {
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+    options.setEnableSharedAnalysis(true);
+
+    PAssert.that(runShared(options))
+        .satisfies(
+            i -> {
+              int hlAlerts = 0;
+              int erAlerts = 0;
+              int ticks = 0;
+              for (Alert a : i) {
+                if (a.getCategory().equals("httprequest-cfgtick")) {
+                  ticks++;
+                  continue;
+                }
+                String sc = a.getMetadataValue(AlertMeta.Key.ALERT_SUBCATEGORY_FIELD);
+                if (sc.equals("hard_limit")) {
+                  assertEquals("resource2", a.getMetadataValue(AlertMeta.Key.MONITORED_RESOURCE));
+                  assertEquals(
+                      "resource2 hard_limit_count", a.getMetadataValue(AlertMeta.Key.NOTIFY_MERGE));
+                  assertEquals(
+                      10L, Long.parseLong(a.getMetadataValue(AlertMeta.Key.REQUEST_THRESHOLD)));
+                  if (a.getMetadataValue(AlertMeta.Key.SOURCEADDRESS).equals("192.168.1.2")) {
+                    assertEquals("resource2 httprequest hard_limit 192.168.1.2 11", a.getSummary());
+                  }
+                  hlAlerts++;
+                } else if (sc.equals("error_rate")) {
+                  assertEquals("10.0.0.1", a.getMetadataValue(AlertMeta.Key.SOURCEADDRESS));
+                  assertEquals("resource1 httprequest error_rate 10.0.0.1 35", a.getSummary());
+                  assertEquals(
+                      30L, Long.parseLong(a.getMetadataValue(AlertMeta.Key.ERROR_THRESHOLD), 10));
+                  assertEquals(
+                      "1970-01-01T00:00:59.999Z",
+                      a.getMetadataValue(AlertMeta.Key.WINDOW_TIMESTAMP));
+                  assertEquals("resource1", a.getMetadataValue(AlertMeta.Key.MONITORED_RESOURCE));
+                  assertEquals(
+                      "resource1 error_count", a.getMetadataValue(AlertMeta.Key.NOTIFY_MERGE));
+                  erAlerts++;
+                }
+              }
+              // Without NAT detection, the gateway addresses in the hard limit data set also
+              // generate alerts
+              assertEquals(3, hlAlerts);
+              assertEquals(1, erAlerts);
+              assertEquals(10, ticks);
+              return null;
+            });
+
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void testMultiSharedDisabled() throws Exception {
+    // The same configuration without the shared graph should produce the same alerts
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+
+    PAssert.that(runShared(options))
+        .satisfies(
+            i -> {
+              int alerts = 0;
+              for (Alert a : i) {
+                if (!a.getCategory().equals("httprequest-cfgtick")) {
+                  alerts++;
+                }
+              }
+              assertEquals(4, alerts);
+              return null;
+            });
+
+    p.run().waitUntilFinish();
+  }
+}
@@ -0,0 +1,184 @@
+package com.mozilla.secops.httprequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mozilla.secops.TestUtil;
+import com.mozilla.secops.alert.Alert;
+import com.mozilla.secops.parser.Event;
+import com.mozilla.secops.parser.ParserDoFn;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.Distinct;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestSampler1 {
+  public TestSampler1() {}
+
+  @Rule public final transient TestPipeline p = TestPipeline.create();
+
+  private HTTPRequest.HTTPRequestOptions getTestOptions() {
+    HTTPRequest.HTTPRequestOptions ret =
+        PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
+    ret.setHardLimitRequestCount(10L);
+    ret.setMonitoredResourceIndicator("test");
+    ret.setEnableHardLimitAnalysis(true);
+    ret.setIgnoreInternalRequests(false); // Tests use internal subnets
+    ret.setIgnoreCloudProviderRequests(false);
+    ret.setInputFile(new String[] {"./target/test-classes/testdata/httpreq_hardlimit1.txt"});
+    return ret;
+  }
+
+  private PCollection<Event> getEvents() throws Exception {
+    return TestUtil.getTestInput("/testdata/httpreq_hardlimit1.txt", p)
+        .apply(ParDo.of(new ParserDoFn()));
+  }
+
+  @Test
+  public void samplerScaleTest() throws Exception {
+    HTTPRequestToggles toggles =
+        HTTPRequestToggles.fromPipelineOptions(
+            PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class));
+    assertFalse(HTTPRequestSampler.isEnabled(toggles));
+
+    toggles.setSampleRate(0.25);
+    assertTrue(HTTPRequestSampler.isEnabled(toggles));
+    assertEquals(25L, (long) HTTPRequestSampler.scale(100L, 0.25));
+    assertEquals(1L, (long) HTTPRequestSampler.scale(2L, 0.25));
+    assertEquals(2.5, HTTPRequestSampler.scale(10.0, 0.25), 0.0);
+    assertEquals(null, HTTPRequestSampler.scale((Long) null, 0.25));
+  }
+
+  @Test
+  public void samplerPathClassTest() throws Exception {
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+    // None of the requests in the test data match the path class, so it should have no effect and
+    // all input events should be retained
+    options.setSamplePathClasses(new String[] {"0.01:^/nonexistent"});
+    HTTPRequestToggles toggles = HTTPRequestToggles.fromPipelineOptions(options);
+
+    PCollection<Long> count =
+        getEvents()
+            .apply(new HTTPRequestSampler(toggles))
+            .apply(Combine.globally(Count.<Event>combineFn()).withoutDefaults());
+    PAssert.thatSingleton(count).isEqualTo(39L);
+
+    p.run().waitUntilFinish();
+  }
+
+  /** Output the sampled fraction, checking it against the retained count of 39 input events */
+  private static class CheckFraction extends DoFn<Integer, Double> {
+    private static final long serialVersionUID = 1L;
+
+    private final PCollectionView<Double> fraction;
+    private final PCollectionView<Long> retained;
+
+    CheckFraction(PCollectionView<Double> fraction, PCollectionView<Long> retained) {
+      this.fraction = fraction;
+      this.retained = retained;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      assertEquals(c.sideInput(retained) / 39.0, c.sideInput(fraction), 0.0001);
+      c.output(c.sideInput(fraction));
+    }
+  }
+
+  @Test
+  public void samplerFractionPathClassTest() throws Exception {
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+    // The service rate does not apply to the requests in the test data, as they all match the
+    // path class, so the fraction retained must reflect the path class rate
+    options.setSampleRate(0.9);
+    options.setSamplePathClasses(new String[] {"0.3:^/public/"});
+    HTTPRequestToggles toggles = HTTPRequestToggles.fromPipelineOptions(options);
+
+    PCollection<Event> events = getEvents();
+    PCollection<Event> sampled = events.apply(new HTTPRequestSampler(toggles));
+    final PCollectionView<Double> fraction =
+        HTTPRequestSampler.getSampledFractionView(events, sampled);
+    final PCollectionView<Long> retained =
+        sampled.apply(
+            "count retained", Combine.globally(Count.<Event>combineFn()).asSingletonView());
+
+    PCollection<Double> result =
+        p.apply("single element", Create.of(1))
+            .apply(
+                ParDo.of(new CheckFraction(fraction, retained)).withSideInputs(fraction, retained));
+    PAssert.thatSingleton(result)
+        .satisfies(
+            i -> {
+              assertTrue(i > 0.0 && i < 0.9);
+              // Thresholds scale by the fraction retained rather than the service rate
+              assertEquals(Math.round(100 * i), (long) HTTPRequestSampler.scale(100L, i));
+              return null;
+            });
+
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void samplerDeterministicTest() throws Exception {
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+    options.setSampleRate(0.5);
+    HTTPRequestToggles toggles = HTTPRequestToggles.fromPipelineOptions(options);
+
+    PCollection<Event> events = getEvents();
+    PCollection<Long> c1 =
+        events
+            .apply("sample 1", new HTTPRequestSampler(toggles))
+            .apply("count 1", Combine.globally(Count.<Event>combineFn()).withoutDefaults());
+    PCollection<Long> c2 =
+        events
+            .apply("sample 2", new HTTPRequestSampler(toggles))
+            .apply("count 2", Combine.globally(Count.<Event>combineFn()).withoutDefaults());
+
+    PAssert.thatSingleton(c1)
+        .satisfies(
+            i -> {
+              assertTrue(i > 0L && i < 39L);
+              return null;
+            });
+    // Both applications of the sampler must make identical decisions
+    PCollection<Long> distinct =
+        PCollectionList.of(c1)
+            .and(c2)
+            .apply(Flatten.pCollections())
+            .apply(Distinct.create())
+            .apply("count distinct", Count.globally());
+    PAssert.thatSingleton(distinct).isEqualTo(1L);
+
+    p.run().waitUntilFinish();
+  }
+
+  @Test
+  public void samplerHardLimitExemptTest() throws Exception {
+    // Hard limit analysis consumes the unsampled input, so a low sample rate has no effect on it
+    HTTPRequest.HTTPRequestOptions options = getTestOptions();
+    options.setSampleRate(0.1);
+
+    PCollection<Alert> results =
+        HTTPRequest.expandInputMap(
+            p, HTTPRequest.readInput(p, HTTPRequest.getInput(p, options), options), options);
+
+    PCollection<Long> resultCount =
+        results.apply(Combine.globally(Count.<Alert>combineFn()).withoutDefaults());
+    PAssert.thatSingleton(resultCount).isEqualTo(3L);
+
+    p.run().waitUntilFinish();
+  }
+}
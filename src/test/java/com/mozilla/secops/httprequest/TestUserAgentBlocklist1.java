@@ -26,6 +26,7 @@ public class TestUserAgentBlocklist1 {
   private HTTPRequest.HTTPRequestOptions getTestOptions() {
     HTTPRequest.HTTPRequestOptions ret =
         PipelineOptionsFactory.as(HTTPRequest.HTTPRequestOptions.class);
+    ret.setCloudProviderSnapshot(HTTPRequestUtil.TEST_CLOUDPROVIDER_SNAPSHOT);
     ret.setUseEventTimestamp(true); // Use timestamp from events for our testing
     ret.setUserAgentBlocklistPath("/testdata/uablocklist1.txt");
     ret.setMonitoredResourceIndicator("test");
@@ -6,6 +6,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.Map;
 import org.junit.Test;
 
@@ -92,4 +93,65 @@ public class TestIdentityManager {
     assertNotNull(mgr);
     mgr.lookupNamedSubnet("invalid");
   }
+
+  @Test
+  public void identityManagerIndexTest() throws Exception {
+    StringBuilder buf = new StringBuilder("{\"identities\": {");
+    for (int i = 0; i < 5000; i++) {
+      if (i > 0) {
+        buf.append(",");
+      }
+      buf.append(
+          String.format(
+              "\"user%d@mozilla.com\": {\"aliases\": [\"user%d\", \"User %d\"]}", i, i, i));
+    }
+    buf.append("}, \"named_subnets\": {\"office-vpn\": \"10.1.0.0/16\",");
+    buf.append("\"office\": \"10.0.0.0/8\", \"office-host\": \"192.168.1.1\"}}");
+    IdentityManager mgr = new ObjectMapper().readValue(buf.toString(), IdentityManager.class);
+    mgr.buildIndexes();
+
+    assertEquals("user4321@mozilla.com", mgr.lookupAlias("user4321"));
+    assertEquals("user4321@mozilla.com", mgr.lookupAlias("USER4321"));
+    assertEquals("user4321@mozilla.com", mgr.lookupAlias("user 4321"));
+    assertEquals("user4321@mozilla.com", mgr.lookupAlias("user4321@mozilla.com"));
+    assertNull(mgr.lookupAlias("user5000"));
+
+    assertEquals("office", mgr.lookupNamedSubnet("10.2.0.1"));
+    assertEquals("office-vpn", mgr.lookupNamedSubnet("10.1.0.1"));
+    assertEquals("office-host", mgr.lookupNamedSubnet("192.168.1.1"));
+    assertNull(mgr.lookupNamedSubnet("192.168.1.2"));
+  }
+
+  @Test
+  public void identityManagerNamedSubnetOrderTest() throws Exception {
+    // The first matching subnet in configuration order is returned, regardless of specificity,
+    // and invalid subnets are ignored
+    IdentityManager mgr =
+        new ObjectMapper()
+            .readValue(
+                "{\"identities\": {}, \"named_subnets\": {\"invalid\": \"10.0.0.0/33\","
+                    + " \"bad\": \"office\", \"office\": \"10.0.0.0/8\","
+                    + " \"office-vpn\": \"10.1.0.0/16\", \"office-host\": \"10.1.2.3\","
+                    + " \"dc-host\": \"10.2.0.1\", \"dc\": \"10.2.0.0/16\","
+                    + " \"dc-dup\": \"10.2.0.0/16\"}}",
+                IdentityManager.class);
+    mgr.buildIndexes();
+    assertEquals("office", mgr.lookupNamedSubnet("10.1.2.3"));
+    assertEquals("office", mgr.lookupNamedSubnet("10.1.0.1"));
+    assertEquals("office", mgr.lookupNamedSubnet("10.2.0.1"));
+    assertNull(mgr.lookupNamedSubnet("11.0.0.1"));
+
+    mgr =
+        new ObjectMapper()
+            .readValue(
+                "{\"identities\": {}, \"named_subnets\": {\"dc-host\": \"10.2.0.1\","
+                    + " \"dc\": \"10.2.0.0/16\", \"dc-dup\": \"10.2.0.0/16\","
+                    + " \"office\": \"10.0.0.0/8\", \"v6\": \"fd00::/8\"}}",
+                IdentityManager.class);
+    mgr.buildIndexes();
+    assertEquals("dc-host", mgr.lookupNamedSubnet("10.2.0.1"));
+    assertEquals("dc", mgr.lookupNamedSubnet("10.2.0.2"));
+    assertEquals("office", mgr.lookupNamedSubnet("10.3.0.1"));
+    assertEquals("v6", mgr.lookupNamedSubnet("fd00::1"));
+  }
 }
@@ -0,0 +1,46 @@
+package com.mozilla.secops.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestSharedIdentityManager {
+  public TestSharedIdentityManager() {}
+
+  @Test
+  public void sharedIdentityManagerGetTest() throws Exception {
+    SharedIdentityManager s = SharedIdentityManager.get("/testdata/identitymanager.json", 0L);
+    assertNotNull(s);
+    assertSame(s, SharedIdentityManager.get("/testdata/identitymanager.json", 0L));
+    assertEquals(1L, s.getVersion());
+    assertEquals("testuser@mozilla.com", s.current().lookupAlias("testuser"));
+  }
+
+  @Test
+  public void sharedIdentityManagerRefreshTest() throws Exception {
+    IdentityManager initial = IdentityManager.load("/testdata/identitymanager.json");
+    SharedIdentityManager s = new SharedIdentityManager("/testdata/identitymanager.json", initial);
+    assertSame(initial, s.current());
+
+    assertTrue(s.refresh());
+    assertEquals(2L, s.getVersion());
+    assertNotSame(initial, s.current());
+    assertEquals("testuser@mozilla.com", s.current().lookupAlias("testuser"));
+  }
+
+  @Test
+  public void sharedIdentityManagerRefreshFailureTest() throws Exception {
+    IdentityManager initial = IdentityManager.load("/testdata/identitymanager.json");
+    SharedIdentityManager s = new SharedIdentityManager("/testdata/nonexistent.json", initial);
+
+    // A failed refresh retains the last good snapshot
+    assertFalse(s.refresh());
+    assertEquals(1L, s.getVersion());
+    assertSame(initial, s.current());
+  }
+}
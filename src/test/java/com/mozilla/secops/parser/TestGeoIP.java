@@ -0,0 +1,42 @@
+package com.mozilla.secops.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.maxmind.geoip2.model.CityResponse;
+import com.maxmind.geoip2.model.IspResponse;
+import org.junit.Test;
+
+public class TestGeoIP {
+  public TestGeoIP() {}
+
+  @Test
+  public void geoIpLookupTest() throws Exception {
+    GeoIP g = new GeoIP(ParserTest.TEST_GEOIP_DBPATH, ParserTest.TEST_ISP_DBPATH, true);
+
+    CityResponse c1 = g.lookupCity("216.160.83.56");
+    assertNotNull(c1);
+    assertEquals("Milton", c1.getCity().getName());
+    assertEquals("US", c1.getCountry().getIsoCode());
+
+    // Another address in the same network shares the cached response
+    CityResponse c2 = g.lookupCity("216.160.83.57");
+    assertSame(c1, c2);
+
+    CityResponse c3 = g.lookupCity("2001:218::1");
+    assertNotNull(c3);
+    assertEquals("JP", c3.getCountry().getIsoCode());
+    assertSame(c3, g.lookupCity("2001:218::2"));
+
+    IspResponse i1 = g.lookupIsp("1.128.0.1");
+    assertNotNull(i1);
+    assertEquals("Telstra Internet", i1.getIsp());
+    assertSame(i1, g.lookupIsp("1.128.1.1"));
+
+    assertNull(g.lookupCity("10.0.0.1"));
+    assertNull(g.lookupCity("not an address"));
+    assertNull(g.lookupIsp("127.0.0.1"));
+  }
+}
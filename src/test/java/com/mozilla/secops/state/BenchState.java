@@ -0,0 +1,220 @@
+package com.mozilla.secops.state;
+
+import static org.junit.Assume.assumeNoException;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.mozilla.secops.authstate.AuthStateModel;
+import com.mozilla.secops.authstate.PruningStrategy;
+import com.mozilla.secops.authstate.PruningStrategyEntryAge;
+import com.mozilla.secops.authstate.PruningStrategyLatest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.contrib.java.lang.system.EnvironmentVariables;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Replay state workloads against each state implementation
+ *
+ * <p>Each workload is recorded once from a fixed seed, so every implementation sees the same
+ * sequence of operations. Implementations whose server is not available are skipped. In addition to
+ * the round timings reported by the benchmark rule, operations per second and latency percentiles
+ * are printed for each workload.
+ */
+@RunWith(Parameterized.class)
+public class BenchState {
+  @Rule public TestRule benchmarkRun = new BenchmarkRule();
+  @Rule public final EnvironmentVariables environmentVariables = new EnvironmentVariables();
+
+  private static final int STEPS = 2000;
+  private static final int USERS = 500;
+  private static final int ADDRESSES = 50;
+  private static final int READ_BATCH = 100;
+
+  /** A single recorded authentication event */
+  private static class Step {
+    private final String user;
+    private final String address;
+    private final DateTime timestamp;
+    private final double latitude;
+    private final double longitude;
+
+    Step(String user, String address, DateTime timestamp, double latitude, double longitude) {
+      this.user = user;
+      this.address = address;
+      this.timestamp = timestamp;
+      this.latitude = latitude;
+      this.longitude = longitude;
+    }
+  }
+
+  private static final ArrayList<Step> workload = record(42L);
+
+  /**
+   * Record a workload; a small number of users account for most of the events, as is the case for
+   * authentication logs
+   */
+  private static ArrayList<Step> record(long seed) {
+    Random r = new Random(seed);
+    ArrayList<Step> ret = new ArrayList<>();
+    DateTime ts = new DateTime();
+    for (int i = 0; i < STEPS; i++) {
+      int user = (int) (USERS * Math.pow(r.nextDouble(), 3));
+      int addr = r.nextInt(ADDRESSES);
+      ret.add(
+          new Step(
+              String.format("user%d@example.com", user),
+              String.format("10.0.%d.%d", addr / 250, addr % 250),
+              ts.plusSeconds(i),
+              r.nextDouble() * 180 - 90,
+              r.nextDouble() * 360 - 180));
+    }
+    return ret;
+  }
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> data() {
+    return Arrays.asList(
+        new Object[][] {
+          {"memory", new MemoryStateInterface("bench", "benchstate")},
+          {"memcached", new MemcachedStateInterface("127.0.0.1", 11211)},
+          {"redis", new RedisStateInterface("127.0.0.1", 6379, "benchstate", "bench")},
+          {"datastore", new DatastoreStateInterface("bench", "benchstate")}
+        });
+  }
+
+  private final String name;
+  private final StateInterface si;
+  private final boolean transactions;
+  private State state;
+
+  public BenchState(String name, StateInterface si) {
+    this.name = name;
+    this.si = si;
+    // Memcached does not support transactions, so the workloads run without them
+    transactions = !(si instanceof MemcachedStateInterface);
+  }
+
+  @Before
+  public void setUp() {
+    environmentVariables.set("DATASTORE_EMULATOR_HOST", "localhost:8081");
+    environmentVariables.set("DATASTORE_EMULATOR_HOST_PATH", "localhost:8081/datastore");
+    environmentVariables.set("DATASTORE_HOST", "http://localhost:8081");
+    environmentVariables.set("DATASTORE_PROJECT_ID", "foxsec-pipeline");
+    state = new State(si);
+    try {
+      state.initialize();
+      state.deleteAll();
+    } catch (Exception exc) {
+      assumeNoException(exc);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    state.done();
+  }
+
+  private static void report(
+      String name, String workload, long[] latency, int operations, long elapsed) {
+    Arrays.sort(latency);
+    System.out.println(
+        String.format(
+            "%s %s: %.0f ops/s, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms",
+            name,
+            workload,
+            operations / (elapsed / 1e9),
+            percentile(latency, 0.50),
+            percentile(latency, 0.95),
+            percentile(latency, 0.99)));
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    int idx = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(idx, 0)] / 1e6;
+  }
+
+  /** Read, update and write an authentication state model for each step */
+  private void replayModelUpdates(String label, PruningStrategy ps, boolean analyze)
+      throws StateException {
+    long[] latency = new long[workload.size()];
+    long start = System.nanoTime();
+    for (int i = 0; i < workload.size(); i++) {
+      Step s = workload.get(i);
+      long opStart = System.nanoTime();
+      StateCursor<AuthStateModel> c = state.newCursor(AuthStateModel.class, transactions);
+      AuthStateModel sm = AuthStateModel.get(s.user, c, ps);
+      if (sm == null) {
+        sm = new AuthStateModel(s.user);
+      }
+      sm.updateEntry(s.address, s.timestamp, s.latitude, s.longitude);
+      if (analyze) {
+        sm.geoVelocityAnalyzeLatest(0.2);
+      }
+      ps.pruneState(sm);
+      c.set(s.user, sm, ps.getStateTtlSeconds());
+      if (transactions) {
+        c.commit();
+      }
+      latency[i] = System.nanoTime() - opStart;
+    }
+    report(name, label, latency, latency.length, System.nanoTime() - start);
+  }
+
+  /** authprofile; transactional model update per event with entry age pruning */
+  @BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 1)
+  @Test
+  public void benchmarkAuthProfile() throws Exception {
+    replayModelUpdates("authprofile", new PruningStrategyEntryAge(), false);
+  }
+
+  /** customs velocity; transactional model update and velocity analysis per event */
+  @BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 1)
+  @Test
+  public void benchmarkCustomsVelocity() throws Exception {
+    replayModelUpdates("velocity", new PruningStrategyLatest(), true);
+  }
+
+  /** Point lookups for each event, batched per bundle using a bundle reader */
+  @BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 1)
+  @Test
+  public void benchmarkBundleReads() throws Exception {
+    StateCursor<AuthStateModel> c = state.newCursor(AuthStateModel.class, false);
+    for (int i = 0; i < USERS; i += 2) {
+      c.withOperation(
+          new StateOperation<AuthStateModel>()
+              .set(String.format("user%d@example.com", i), new AuthStateModel("user")));
+    }
+    c.execute();
+
+    StateBundleReader<AuthStateModel> r = new StateBundleReader<>(state, AuthStateModel.class);
+    int batches = (workload.size() + READ_BATCH - 1) / READ_BATCH;
+    long[] latency = new long[batches];
+    long start = System.nanoTime();
+    for (int b = 0; b < batches; b++) {
+      long opStart = System.nanoTime();
+      ArrayList<CompletableFuture<AuthStateModel>> results = new ArrayList<>();
+      for (int i = b * READ_BATCH; i < Math.min((b + 1) * READ_BATCH, workload.size()); i++) {
+        results.add(r.get(workload.get(i).user));
+      }
+      r.flush();
+      for (CompletableFuture<AuthStateModel> f : results) {
+        f.get();
+      }
+      latency[b] = System.nanoTime() - opStart;
+    }
+    // Latency percentiles are per bundle
+    report(name, "bundle reads", latency, workload.size(), System.nanoTime() - start);
+  }
+}
@@ -0,0 +1,111 @@
+package com.mozilla.secops.state;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State interface for tests that forces transaction conflicts
+ *
+ * <p>Wraps a {@link MemoryStateInterface}. Before a transaction commits, each key read by the
+ * transaction is written again with its current value using a separate cursor, while the number of
+ * conflicts remaining is greater than zero. The commit then fails with a {@link
+ * StateConflictException} through the normal conflict detection of the memory store, but the stored
+ * values are not changed.
+ */
+public class ConflictingStateInterface implements StateInterface {
+  private final MemoryStateInterface inner;
+  private final AtomicInteger conflicts;
+
+  /** Cursor that rewrites the keys it read before the transaction is committed */
+  private static class ConflictingStateCursor<T> extends StateCursor<T> {
+    private final StateCursor<T> cursor;
+    private final ConflictingStateInterface parent;
+    private final boolean transaction;
+    private final ArrayList<String> readKeys = new ArrayList<>();
+
+    /** {@inheritDoc} */
+    public void commit() throws StateException {
+      if (transaction && parent.conflicts.getAndDecrement() > 0) {
+        for (String key : readKeys) {
+          StateCursor<T> c = parent.inner.newCursor(stateClass, false);
+          T value = c.get(key);
+          c = parent.inner.newCursor(stateClass, false);
+          if (value == null) {
+            c.delete(key);
+          } else {
+            c.set(key, value);
+          }
+        }
+      }
+      cursor.commit();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+      cursor.close();
+    }
+
+    @Override
+    public void executeInner() throws StateException {
+      for (StateOperation<T> o : operations) {
+        if (o.getOperationType() == StateOperation.OperationType.GET) {
+          readKeys.add(o.getKey());
+        }
+        cursor.withOperation(o);
+      }
+      cursor.execute();
+      for (StateOperation<T> o : operations) {
+        completedOperations.put(o.getId(), o);
+      }
+    }
+
+    ConflictingStateCursor(
+        ConflictingStateInterface parent, StateCursor<T> cursor, boolean transaction) {
+      super(cursor.stateClass);
+      this.parent = parent;
+      this.cursor = cursor;
+      this.transaction = transaction;
+    }
+  }
+
+  /** {@inheritDoc} */
+  public String getKind() {
+    return inner.getKind();
+  }
+
+  /** {@inheritDoc} */
+  public <T> StateCursor<T> newCursor(Class<T> stateClass, boolean transaction)
+      throws StateException {
+    return new ConflictingStateCursor<T>(
+        this, inner.newCursor(stateClass, transaction), transaction);
+  }
+
+  /** {@inheritDoc} */
+  public void done() {
+    inner.done();
+  }
+
+  /** {@inheritDoc} */
+  public void deleteAll() throws StateException {
+    inner.deleteAll();
+  }
+
+  /** {@inheritDoc} */
+  public void initialize() throws StateException {
+    inner.initialize();
+  }
+
+  /**
+   * Initialize a conflicting state interface
+   *
+   * @param kind Kind value to use for stored objects
+   * @param namespace Namespace
+   * @param conflicts Counter of transaction commits that should conflict, shared by all users of
+   *     the counter
+   */
+  public ConflictingStateInterface(String kind, String namespace, AtomicInteger conflicts) {
+    inner = new MemoryStateInterface(kind, namespace);
+    this.conflicts = conflicts;
+  }
+}
@@ -0,0 +1,112 @@
+package com.mozilla.secops.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class StateCachingTest {
+  public StateCachingTest() {}
+
+  private static StateTestClass value(String str) {
+    StateTestClass ret = new StateTestClass();
+    ret.str = str;
+    return ret;
+  }
+
+  private static State getBacking() throws StateException {
+    State s = new State(new RedisStateInterface("127.0.0.1", 6379, "cachingtest", "test"));
+    s.initialize();
+    s.deleteAll();
+    return s;
+  }
+
+  private static CachingStateInterface getCaching(boolean readYourWrites) {
+    return new CachingStateInterface(
+            "test", new RedisStateInterface("127.0.0.1", 6379, "cachingtest", "test"), 100, 60)
+        .withReadYourWrites(readYourWrites);
+  }
+
+  @Test
+  public void testCachingReadAndInvalidate() throws Exception {
+    State backing = getBacking();
+    backing.newCursor(StateTestClass.class, false).set("a", value("initial"));
+
+    CachingStateInterface csi = getCaching(false);
+    State s = new State(csi);
+    s.initialize();
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    assertEquals("initial", c.get("a").str);
+    assertNull(c.get("nonexist"));
+    assertEquals(2, csi.getCacheStats().missCount());
+
+    // Modifications by other clients are not observed until the cached value expires
+    backing.newCursor(StateTestClass.class, false).set("a", value("other"));
+    backing.newCursor(StateTestClass.class, false).set("nonexist", value("other"));
+    StateTestClass t = c.get("a");
+    assertEquals("initial", t.str);
+    assertNull(c.get("nonexist"));
+    assertEquals(2, csi.getCacheStats().hitCount());
+
+    // Values returned from the cache are copies
+    t.str = "modified";
+    assertEquals("initial", c.get("a").str);
+
+    // Writes through the interface invalidate the cached value
+    c.set("a", value("updated"));
+    assertEquals("updated", c.get("a").str);
+    assertEquals(3, csi.getCacheStats().missCount());
+    c.delete("a");
+    assertNull(c.get("a"));
+    assertEquals(4, csi.getCacheStats().missCount());
+    s.done();
+    backing.done();
+  }
+
+  @Test
+  public void testCachingReadYourWrites() throws Exception {
+    State backing = getBacking();
+    CachingStateInterface csi = getCaching(true);
+    State s = new State(csi);
+    s.initialize();
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    c.set("a", value("written"));
+    assertEquals("written", c.get("a").str);
+    assertEquals(1, csi.getCacheStats().hitCount());
+
+    // Values written with a TTL shorter than the cache TTL are not cached
+    c.set("b", value("ttl"), 1);
+    assertEquals("ttl", c.get("b").str);
+    assertEquals(1, csi.getCacheStats().missCount());
+
+    c.delete("a");
+    assertNull(c.get("a"));
+    assertEquals(2, csi.getCacheStats().hitCount());
+    assertNull(backing.newCursor(StateTestClass.class, false).get("a"));
+    s.done();
+    backing.done();
+  }
+
+  @Test
+  public void testCachingTransactionBypassesCache() throws Exception {
+    State backing = getBacking();
+    backing.newCursor(StateTestClass.class, false).set("a", value("initial"));
+    CachingStateInterface csi = getCaching(true);
+    State s = new State(csi);
+    s.initialize();
+    assertEquals("initial", s.newCursor(StateTestClass.class, false).get("a").str);
+
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, true);
+    backing.newCursor(StateTestClass.class, false).set("a", value("other"));
+    // Transactional reads are made against the underlying implementation
+    assertEquals("other", c.get("a").str);
+    c.set("a", value("tx"));
+    c.commit();
+
+    assertEquals("tx", s.newCursor(StateTestClass.class, false).get("a").str);
+    assertEquals(0, csi.getCacheStats().hitCount());
+    assertEquals(2, csi.getCacheStats().missCount());
+    s.done();
+    backing.done();
+  }
+}
@@ -2,7 +2,10 @@ package com.mozilla.secops.state;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
@@ -59,4 +62,72 @@ public class StateDatastoreTest {
     c1.set("testing", t);
     c1.commit();
   }
+
+  @Test
+  public void testStateBatchedGetAndPagedGetAll() throws Exception {
+    testEnv();
+    State s = new State(new DatastoreStateInterface("paged", "statetest").withPageSize(7));
+    s.initialize();
+    s.deleteAll();
+
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    for (int i = 0; i < 1200; i++) {
+      StateTestClass t = new StateTestClass();
+      t.str = "v" + i;
+      c.withOperation(new StateOperation<StateTestClass>().set("key" + i, t));
+    }
+    c.execute();
+
+    // Lookups span more than one batch
+    ArrayList<StateOperation<StateTestClass>> gets = new ArrayList<>();
+    for (int i = 0; i < 1300; i++) {
+      StateOperation<StateTestClass> o = new StateOperation<StateTestClass>().get("key" + i);
+      gets.add(o);
+      c.withOperation(o);
+    }
+    c.execute();
+    for (int i = 0; i < 1300; i++) {
+      StateTestClass t = c.getResultValueForId(gets.get(i).getId());
+      if (i < 1200) {
+        assertEquals("v" + i, t.str);
+      } else {
+        assertNull(t);
+      }
+    }
+
+    assertEquals(1200, c.getAll().size());
+    int cnt = 0;
+    Iterator<StateTestClass> it = s.newCursor(StateTestClass.class, false).iterateAll();
+    while (it.hasNext()) {
+      assertNotNull(it.next().str);
+      cnt++;
+    }
+    assertEquals(1200, cnt);
+  }
+
+  @Test
+  public void testStateDeleteExpired() throws Exception {
+    testEnv();
+    DatastoreStateInterface si = new DatastoreStateInterface("expired", "statetest");
+    State s = new State(si);
+    s.initialize();
+    s.deleteAll();
+
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    for (int i = 0; i < 10; i++) {
+      StateTestClass t = new StateTestClass();
+      t.str = "v" + i;
+      c.withOperation(new StateOperation<StateTestClass>().set("key" + i, t, i < 6 ? 1 : 0));
+    }
+    c.execute();
+    assertEquals(10, c.getAll().size());
+
+    Thread.sleep(1500);
+    // Expired entities are hidden from reads before they are removed
+    assertNull(c.get("key0"));
+    assertEquals(4, c.getAll().size());
+    assertEquals(6, si.deleteExpired());
+    assertEquals(0, si.deleteExpired());
+    assertEquals("v9", c.get("key9").str);
+  }
 }
@@ -0,0 +1,121 @@
+package com.mozilla.secops.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.metrics.DistributionResult;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricQueryResults;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricsFilter;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StateInstrumentationTest {
+  @Rule public final transient TestPipeline p = TestPipeline.create();
+
+  public StateInstrumentationTest() {}
+
+  /** Perform a fixed set of state operations for each element */
+  private static class StateWork extends DoFn<String, String> {
+    private static final long serialVersionUID = 1L;
+
+    private State state;
+
+    @Setup
+    public void setup() throws StateException {
+      state = new State(new MemoryStateInterface("instrumented", "instrumentationtest"));
+      state.initialize();
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) throws StateException {
+      String key = c.element();
+      StateTestClass t = new StateTestClass();
+      t.str = "test";
+
+      StateCursor<StateTestClass> cur = state.newCursor(StateTestClass.class, false);
+      cur.set(key, t);
+      cur = state.newCursor(StateTestClass.class, false);
+      cur.get(key);
+      cur = state.newCursor(StateTestClass.class, false);
+      cur.delete(key);
+
+      // Produce a transaction conflict using a write from another cursor
+      StateCursor<StateTestClass> tx = state.newCursor(StateTestClass.class, true);
+      tx.get(key);
+      state.newCursor(StateTestClass.class, false).set(key, t);
+      tx.set(key, t);
+      try {
+        tx.commit();
+        fail("commit of conflicting transaction should fail");
+      } catch (StateConflictException exc) {
+        state.recordTransactionRetry();
+      }
+      c.output(key);
+    }
+
+    @Teardown
+    public void teardown() {
+      state.done();
+    }
+  }
+
+  private static long counter(MetricQueryResults r, String name) {
+    long ret = 0;
+    for (MetricResult<Long> x : r.getCounters()) {
+      if (x.getName().getName().equals(name)) {
+        ret += x.getAttempted();
+      }
+    }
+    return ret;
+  }
+
+  private static DistributionResult distribution(MetricQueryResults r, String name) {
+    for (MetricResult<DistributionResult> x : r.getDistributions()) {
+      if (x.getName().getName().equals(name)) {
+        return x.getAttempted();
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testStateMetrics() throws Exception {
+    p.apply(Create.of("a", "b", "c")).apply(ParDo.of(new StateWork()));
+
+    PipelineResult result = p.run();
+    result.waitUntilFinish();
+
+    MetricQueryResults r =
+        result
+            .metrics()
+            .queryMetrics(
+                MetricsFilter.builder()
+                    .addNameFilter(
+                        MetricNameFilter.inNamespace(InstrumentedStateInterface.METRICS_NAMESPACE))
+                    .build());
+
+    // Each element performs two non-transactional sets, one transactional set and a transactional
+    // get in addition to the get and delete
+    assertEquals(9L, counter(r, "instrumented_set"));
+    assertEquals(6L, counter(r, "instrumented_get"));
+    assertEquals(3L, counter(r, "instrumented_delete"));
+    assertEquals(3L, counter(r, "instrumented_transaction_conflicts"));
+    assertEquals(3L, counter(r, "instrumented_transaction_retries"));
+    assertEquals(0L, counter(r, "instrumented_errors"));
+
+    DistributionResult written = distribution(r, "instrumented_bytes_written");
+    assertTrue(written.getSum() > 0);
+    DistributionResult read = distribution(r, "instrumented_bytes_read");
+    assertTrue(read.getSum() > 0);
+    assertEquals(3L, distribution(r, "instrumented_commit_latency_ms").getCount());
+    assertEquals(3L, distribution(r, "instrumented_transaction_lifetime_ms").getCount());
+  }
+}
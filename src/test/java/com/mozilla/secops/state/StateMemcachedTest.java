@@ -1,7 +1,10 @@
 package com.mozilla.secops.state;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
+import java.util.ArrayList;
 import org.junit.Test;
 
 public class StateMemcachedTest {
@@ -15,4 +18,42 @@ public class StateMemcachedTest {
     StateCursor<StateTestClass> sc = s.newCursor(StateTestClass.class, false);
     sc.get("testing");
   }
+
+  private static StateTestClass value(String str) {
+    StateTestClass ret = new StateTestClass();
+    ret.str = str;
+    return ret;
+  }
+
+  @Test
+  public void testMemcachedBulk() throws Exception {
+    State s = new State(new MemcachedStateInterface("127.0.0.1", 11211));
+    s.initialize();
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    for (int i = 0; i < 100; i++) {
+      c.withOperation(new StateOperation<StateTestClass>().set("bulk" + i, value("v" + i)));
+    }
+    c.execute();
+
+    ArrayList<StateOperation<StateTestClass>> gets = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      StateOperation<StateTestClass> o = new StateOperation<StateTestClass>().get("bulk" + i);
+      gets.add(o);
+      c.withOperation(o);
+    }
+    StateOperation<StateTestClass> missing = new StateOperation<StateTestClass>().get("nonexist");
+    c.withOperation(missing).execute();
+    for (int i = 0; i < 100; i++) {
+      assertEquals("v" + i, c.getResultValueForId(gets.get(i).getId()).str);
+    }
+    assertNull(c.getResultValueForId(missing.getId()));
+    s.done();
+  }
+
+  @Test(expected = StateException.class)
+  public void testMemcachedGetAllUnsupported() throws Exception {
+    State s = new State(new MemcachedStateInterface("127.0.0.1", 11211));
+    s.initialize();
+    s.newCursor(StateTestClass.class, false).getAll();
+  }
 }
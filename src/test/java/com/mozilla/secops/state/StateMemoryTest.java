@@ -0,0 +1,101 @@
+package com.mozilla.secops.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class StateMemoryTest {
+  public StateMemoryTest() {}
+
+  private static StateTestClass value(String str) {
+    StateTestClass ret = new StateTestClass();
+    ret.str = str;
+    return ret;
+  }
+
+  private static State getState(String kind) throws StateException {
+    State s = new State(new MemoryStateInterface(kind, "memorytest"));
+    s.initialize();
+    s.deleteAll();
+    return s;
+  }
+
+  private static void assertConflict(StateCursor<StateTestClass> c) {
+    try {
+      c.commit();
+      fail("commit of conflicting transaction should fail");
+    } catch (StateException exc) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testMemorySharedStore() throws Exception {
+    State s1 = getState("shared");
+    State s2 = new State(new MemoryStateInterface("shared", "memorytest"));
+    s2.initialize();
+    State other = getState("other");
+
+    StateTestClass t = value("test");
+    s1.newCursor(StateTestClass.class, false).set("a", t);
+    // Stored values are copies of the object that was set
+    t.str = "modified";
+    assertEquals("test", s2.newCursor(StateTestClass.class, false).get("a").str);
+    assertNull(other.newCursor(StateTestClass.class, false).get("a"));
+    assertEquals(1, s2.newCursor(StateTestClass.class, false).getAll().size());
+  }
+
+  @Test
+  public void testMemoryTransactionReadConflict() throws Exception {
+    State s = getState("tx");
+    s.newCursor(StateTestClass.class, false).set("user", value("initial"));
+
+    StateCursor<StateTestClass> c1 = s.newCursor(StateTestClass.class, true);
+    StateCursor<StateTestClass> c2 = s.newCursor(StateTestClass.class, true);
+    assertEquals("initial", c1.get("user").str);
+    assertEquals("initial", c2.get("user").str);
+
+    c1.set("user", value("first"));
+    assertEquals("initial", s.newCursor(StateTestClass.class, false).get("user").str);
+    c1.commit();
+    assertEquals("first", s.newCursor(StateTestClass.class, false).get("user").str);
+
+    c2.set("user", value("second"));
+    assertConflict(c2);
+    assertEquals("first", s.newCursor(StateTestClass.class, false).get("user").str);
+  }
+
+  @Test
+  public void testMemoryTransactionWriteConflict() throws Exception {
+    State s = getState("txwrite");
+
+    // Blind writes to the same key conflict if the key changes after it was first written
+    StateCursor<StateTestClass> c1 = s.newCursor(StateTestClass.class, true);
+    c1.set("user", value("first"));
+    s.newCursor(StateTestClass.class, false).set("user", value("other"));
+    assertConflict(c1);
+
+    // A key that did not exist when read conflicts if it is created and deleted again
+    StateCursor<StateTestClass> c2 = s.newCursor(StateTestClass.class, true);
+    assertNull(c2.get("new"));
+    s.newCursor(StateTestClass.class, false).set("new", value("other"));
+    s.newCursor(StateTestClass.class, false).delete("new");
+    c2.set("new", value("second"));
+    assertConflict(c2);
+
+    // Transactions on unrelated keys do not conflict
+    StateCursor<StateTestClass> c3 = s.newCursor(StateTestClass.class, true);
+    assertEquals("other", c3.get("user").str);
+    s.newCursor(StateTestClass.class, false).set("unrelated", value("other"));
+    c3.delete("user");
+    c3.commit();
+    assertNull(s.newCursor(StateTestClass.class, false).get("user"));
+  }
+
+  @Test(expected = StateException.class)
+  public void testMemoryCommitNonTransaction() throws Exception {
+    getState("tx").newCursor(StateTestClass.class, false).commit();
+  }
+}
@@ -0,0 +1,201 @@
+package com.mozilla.secops.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+public class StateRedisTest {
+  public StateRedisTest() {}
+
+  private static StateTestClass value(String str) {
+    StateTestClass ret = new StateTestClass();
+    ret.str = str;
+    return ret;
+  }
+
+  private static State getState(String kind, int expirySeconds) throws StateException {
+    State s =
+        new State(new RedisStateInterface("127.0.0.1", 6379, "redistest", kind, expirySeconds));
+    s.initialize();
+    s.deleteAll();
+    return s;
+  }
+
+  @Test(expected = StateException.class)
+  public void testRedisNoConnection() throws Exception {
+    State s = new State(new RedisStateInterface("127.0.0.1", 6380));
+    assertNotNull(s);
+    s.initialize();
+  }
+
+  @Test
+  public void testRedisMultiGetAndGetAll() throws Exception {
+    State s = getState("getall", 0);
+    State other = getState("other", 0);
+    other.newCursor(StateTestClass.class, false).set("a", value("other"));
+
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    for (int i = 0; i < 1200; i++) {
+      c.withOperation(new StateOperation<StateTestClass>().set("key" + i, value("v" + i)));
+    }
+    c.execute();
+
+    StateOperation<StateTestClass> g1 = new StateOperation<StateTestClass>().get("key1");
+    StateOperation<StateTestClass> g2 = new StateOperation<StateTestClass>().get("nonexist");
+    StateOperation<StateTestClass> g3 = new StateOperation<StateTestClass>().get("key1199");
+    c.withOperation(g1).withOperation(g2).withOperation(g3).execute();
+    assertEquals("v1", c.getResultValueForId(g1.getId()).str);
+    assertNull(c.getResultValueForId(g2.getId()));
+    assertEquals("v1199", c.getResultValueForId(g3.getId()).str);
+
+    // Keys from other kinds are not returned
+    ArrayList<StateTestClass> all = c.getAll();
+    assertEquals(1200, all.size());
+    ArrayList<String> v = new ArrayList<>();
+    for (StateTestClass t : all) {
+      v.add(t.str);
+    }
+    Collections.sort(v);
+    assertEquals("v0", v.get(0));
+
+    s.deleteAll();
+    assertEquals(0, c.getAll().size());
+    assertEquals("other", other.newCursor(StateTestClass.class, false).get("a").str);
+    s.done();
+    other.done();
+  }
+
+  @Test
+  public void testRedisTransactionConflict() throws Exception {
+    State s = getState("tx", 0);
+    s.newCursor(StateTestClass.class, false).set("user", value("initial"));
+
+    StateCursor<StateTestClass> c1 = s.newCursor(StateTestClass.class, true);
+    StateCursor<StateTestClass> c2 = s.newCursor(StateTestClass.class, true);
+    assertEquals("initial", c1.get("user").str);
+    assertEquals("initial", c2.get("user").str);
+
+    // Writes are not visible until commit
+    c1.set("user", value("first"));
+    assertEquals("initial", s.newCursor(StateTestClass.class, false).get("user").str);
+    c1.commit();
+    assertEquals("first", s.newCursor(StateTestClass.class, false).get("user").str);
+
+    // The second transaction read the key before it was modified, so it must fail
+    c2.set("user", value("second"));
+    try {
+      c2.commit();
+      fail("commit of conflicting transaction should fail");
+    } catch (StateException exc) {
+      // Expected
+    }
+    assertEquals("first", s.newCursor(StateTestClass.class, false).get("user").str);
+
+    // Retrying the transaction succeeds
+    c2 = s.newCursor(StateTestClass.class, true);
+    assertEquals("first", c2.get("user").str);
+    c2.set("user", value("second"));
+    c2.commit();
+    assertEquals("second", s.newCursor(StateTestClass.class, false).get("user").str);
+    s.done();
+  }
+
+  @Test
+  public void testRedisTransactionDelete() throws Exception {
+    State s = getState("txdelete", 0);
+    s.newCursor(StateTestClass.class, false).set("user", value("initial"));
+
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, true);
+    assertEquals("initial", c.get("user").str);
+    c.delete("user");
+    // Deletes are not visible until commit
+    assertEquals("initial", s.newCursor(StateTestClass.class, false).get("user").str);
+    c.commit();
+    assertNull(s.newCursor(StateTestClass.class, false).get("user"));
+    s.done();
+  }
+
+  @Test
+  public void testRedisOperationTtlOverridesExpiry() throws Exception {
+    State s = getState("ttl", 1);
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    c.set("default", value("test"));
+    c.set("ttl", value("test"), 60);
+    Thread.sleep(1500);
+    assertNull(c.get("default"));
+    assertEquals("test", c.get("ttl").str);
+    s.done();
+  }
+
+  @Test(expected = StateException.class)
+  public void testRedisCommitNonTransaction() throws Exception {
+    State s = getState("tx", 0);
+    s.newCursor(StateTestClass.class, false).commit();
+  }
+
+  @Test
+  public void testRedisExpiry() throws Exception {
+    State s = getState("expiry", 1);
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+    c.set("key", value("test"));
+    assertEquals("test", c.get("key").str);
+    Thread.sleep(1500);
+    assertNull(c.get("key"));
+    s.done();
+  }
+
+  @Test
+  public void testRedisGetAllPatternPrefix() throws Exception {
+    // Pattern characters in the kind are matched literally
+    State s = getState("glob*", 0);
+    State other = getState("globber", 0);
+    other.newCursor(StateTestClass.class, false).set("a", value("other"));
+    s.newCursor(StateTestClass.class, false).set("a", value("glob"));
+
+    ArrayList<StateTestClass> all = s.newCursor(StateTestClass.class, false).getAll();
+    assertEquals(1, all.size());
+    assertEquals("glob", all.get(0).str);
+
+    s.deleteAll();
+    assertEquals("other", other.newCursor(StateTestClass.class, false).get("a").str);
+    s.done();
+    other.done();
+  }
+
+  @Test
+  public void testRedisTransactionReleaseOnError() throws Exception {
+    State s = getState("txrelease", 0);
+    try (Jedis j = new Jedis("127.0.0.1", 6379)) {
+      j.set("redistest:txrelease:bad", "not json");
+    }
+
+    // A failed read in a transaction releases its connection; if it did not, the pool would be
+    // exhausted before all attempts complete
+    for (int i = 0; i < RedisStateInterface.POOL_MAX_TOTAL * 2; i++) {
+      StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, true);
+      try {
+        c.get("bad");
+        fail("read of invalid value should fail");
+      } catch (StateException exc) {
+        // Expected
+      }
+    }
+
+    // Transactions that are closed without being committed release their connection and discard
+    // queued operations
+    for (int i = 0; i < RedisStateInterface.POOL_MAX_TOTAL * 2; i++) {
+      StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, true);
+      c.get("user");
+      c.set("user", value("uncommitted"));
+      c.close();
+    }
+    assertNull(s.newCursor(StateTestClass.class, false).get("user"));
+    s.done();
+  }
+}
@@ -1,11 +1,14 @@
 package com.mozilla.secops.state;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
@@ -29,7 +32,9 @@ public class StateTest {
     return Arrays.asList(
         new Object[][] {
           {new MemcachedStateInterface("127.0.0.1", 11211)},
-          {new DatastoreStateInterface("test", "statetest")}
+          {new RedisStateInterface("127.0.0.1", 6379, "statetest", "test")},
+          {new DatastoreStateInterface("test", "statetest")},
+          {new MemoryStateInterface("test", "statetest")}
         });
   }
 
@@ -67,6 +72,65 @@ public class StateTest {
     assertEquals("test", t.str);
   }
 
+  @Test
+  public void testStateDeleteAndTtl() throws Exception {
+    testEnv();
+    State s = new State(si);
+    s.initialize();
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+
+    StateTestClass t = new StateTestClass();
+    t.str = "test";
+    c.set("delete", t);
+    c.set("ttl", t, 1);
+    c.set("nottl", t);
+    assertEquals("test", c.get("delete").str);
+    assertEquals("test", c.get("ttl").str);
+
+    c.delete("delete");
+    assertNull(c.get("delete"));
+    // Deleting a key that does not exist is not an error
+    c.delete("delete");
+
+    // Expiry granularity is a second, so wait long enough to be sure the TTL has elapsed
+    Thread.sleep(2100);
+    assertNull(c.get("ttl"));
+    assertEquals("test", c.get("nottl").str);
+    c.delete("nottl");
+  }
+
+  @Test
+  public void testStateAsync() throws Exception {
+    testEnv();
+    State s = new State(si);
+    s.initialize();
+    StateCursor<StateTestClass> c = s.newCursor(StateTestClass.class, false);
+
+    StateTestClass t = new StateTestClass();
+    t.str = "async";
+    StateCursor.await(c.setAsync("async", t));
+    assertEquals("async", StateCursor.await(c.getAsync("async")).str);
+    assertNull(StateCursor.await(c.getAsync("nonexist")));
+
+    StateOperation<StateTestClass> g1 = new StateOperation<StateTestClass>().get("async");
+    StateOperation<StateTestClass> g2 = new StateOperation<StateTestClass>().get("nonexist");
+    StateCursor.await(c.withOperation(g1).withOperation(g2).executeAsync());
+    assertEquals("async", c.getResultValueForId(g1.getId()).str);
+    assertNull(c.getResultValueForId(g2.getId()));
+
+    StateBundleReader<StateTestClass> r = new StateBundleReader<>(s, StateTestClass.class);
+    CompletableFuture<StateTestClass> f1 = r.get("async");
+    CompletableFuture<StateTestClass> f2 = r.get("nonexist");
+    assertSame(f1, r.get("async"));
+    assertEquals(2, r.size());
+    assertFalse(f1.isDone());
+    r.flush();
+    assertEquals(0, r.size());
+    assertEquals("async", f1.get().str);
+    assertNull(f2.get());
+    c.delete("async");
+  }
+
   @Test
   public void testStateSetGetNoExist() throws Exception {
     testEnv();